@@ -1,6 +1,9 @@
 package au.org.ala.images.iiif;
 
+import au.org.ala.images.util.CancellationToken;
 import au.org.ala.images.util.DefaultImageReaderSelectionStrategy;
+import au.org.ala.images.util.ImageEncoder;
+import au.org.ala.images.util.ImageReaderUtils;
 import com.google.common.io.ByteSource;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -43,7 +46,17 @@ public class IiifImageProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(IiifImageProcessor.class);
 
+    private final ImageEncoder imageEncoder;
+
     public IiifImageProcessor() {
+        this(new ImageEncoder());
+    }
+
+    /**
+     * @param imageEncoder The JPEG and PNG encoder settings for the processed images
+     */
+    public IiifImageProcessor(ImageEncoder imageEncoder) {
+        this.imageEncoder = imageEncoder;
     }
 
     /**
@@ -51,6 +64,19 @@ public class IiifImageProcessor {
      * The output stream is not closed by this method.
      */
     public Result process(ByteSource imageBytes, Region region, Size size, Rotation rotation, Quality quality, Format format, OutputStream out) throws IOException {
+        return process(imageBytes, region, size, rotation, quality, format, out, CancellationToken.NONE);
+    }
+
+    /**
+     * Process an image until the cancellation token is cancelled, eg because the client has disconnected.  The
+     * token is checked between the pipeline stages, and aborts the decode if it is cancelled while decoding.
+     * Nothing is written to the output stream once the token has been cancelled.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled
+     */
+    public Result process(ByteSource imageBytes, Region region, Size size, Rotation rotation, Quality quality, Format format, OutputStream out,
+                          CancellationToken cancellationToken) throws IOException {
+        cancellationToken.throwIfCancelled();
         BufferedImage src;
 
         // Open stream once and create ImageReader
@@ -75,7 +101,9 @@ public class IiifImageProcessor {
             }
 
             try {
-                reader.setInput(iis, true, false); // Set ignoreMetadata to false to allow reading metadata
+                // Set ignoreMetadata to false to allow reading metadata, and allow seeking back in formats that may
+                // have reduced resolution pages after image 0
+                reader.setInput(iis, !ImageReaderUtils.mayHaveReducedResolutions(reader), false);
                 ImageReadParam readParam = reader.getDefaultReadParam();
 
                 // Determine source dimensions
@@ -117,10 +145,18 @@ public class IiifImageProcessor {
                 // Ensure at least 1
                 sx = Math.max(1, sx);
                 sy = Math.max(1, sy);
-                readParam.setSourceSubsampling(sx, sy, 0, 0);
+
+                // Pyramidal sources can be read from a reduced resolution copy, with correspondingly less subsampling
+                ImageReaderUtils.ReducedResolution reduced = ImageReaderUtils.findReducedResolution(reader, sx, sy);
+                if (reduced.imageIndex != 0) {
+                    readParam.setSourceRegion(reduced.toReducedRegion(sourceRegion));
+                }
+                readParam.setSourceSubsampling(sx / reduced.scale, sy / reduced.scale, 0, 0);
 
                 // Read with subsampling and region applied
-                src = reader.read(0, readParam);
+                try (CancellationToken.Registration ignored = cancellationToken.onCancel(reader::abort)) {
+                    src = reader.read(reduced.imageIndex, readParam);
+                }
 
                 // We already applied the IIIF Region via setSourceRegion; avoid double-cropping by nulling region
                 region = Region.full();
@@ -130,6 +166,7 @@ public class IiifImageProcessor {
         }
 
         try {
+            cancellationToken.throwIfCancelled();
             // 1. Region
             BufferedImage afterRegion = applyRegion(src, region);
             if (src != afterRegion) src.flush();
@@ -137,18 +174,21 @@ public class IiifImageProcessor {
             // 2. Size
             BufferedImage afterSize = applySize(afterRegion, size);
             if (afterRegion != afterSize) afterRegion.flush();
+            cancellationToken.throwIfCancelled();
 
             // 3. Rotation (mirror first if requested)
             BufferedImage afterRotation = applyRotation(afterSize, rotation);
             if (afterSize != afterRotation) afterSize.flush();
+            cancellationToken.throwIfCancelled();
 
             // 4. Quality
             BufferedImage afterQuality = applyQuality(afterRotation, quality);
             if (afterRotation != afterQuality) afterRotation.flush();
+            cancellationToken.throwIfCancelled();
 
             // 5. Format (encode)
             String formatName = format.getFormatName();
-            boolean ok = ImageIO.write(afterQuality, formatName, out);
+            boolean ok = imageEncoder.write(afterQuality, formatName, out);
             if (!ok) {
                 throw new IOException("No ImageIO writer for format: " + formatName);
             }
@@ -0,0 +1,138 @@
+package au.org.ala.images.iiif;
+
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.PrefetchScheduler;
+import com.google.common.io.ByteSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves IIIF image requests through an {@link IiifImageProcessor}, and after each request for an absolute region
+ * (the way deep zoom viewers ask for tiles) renders the regions the viewer usually asks for next in the background:
+ * the 8 neighbouring regions of the same size, and then the 4 quarters of the region at the same output size.
+ *
+ * See {@link PrefetchScheduler} for how prefetching is kept from slowing down the requested regions.
+ */
+public class IiifPrefetcher implements Closeable {
+
+    private final IiifImageProcessor processor;
+    private final PrefetchScheduler<Rendered> scheduler;
+
+    /**
+     * @param cacheBudget The approximate number of bytes of encoded images to keep
+     * @param threads The number of background threads to prefetch with
+     */
+    public IiifPrefetcher(IiifImageProcessor processor, long cacheBudget, int threads) {
+        this.processor = processor;
+        this.scheduler = new PrefetchScheduler<>(cacheBudget, rendered -> rendered.bytes.length, threads, 256);
+    }
+
+    /**
+     * Process an image as {@link IiifImageProcessor#process} does, and queue the likely next regions.
+     *
+     * @param sourceId Identifies the image in the cache, it must change if the image does
+     */
+    public IiifImageProcessor.Result process(String sourceId, ByteSource imageBytes, IiifImageProcessor.Region region, IiifImageProcessor.Size size,
+                                             IiifImageProcessor.Rotation rotation, IiifImageProcessor.Quality quality, IiifImageProcessor.Format format,
+                                             OutputStream out) throws IOException {
+        Rendered rendered = scheduler.get(key(sourceId, region, size, rotation, quality, format),
+                token -> render(imageBytes, region, size, rotation, quality, format, token));
+        out.write(rendered.bytes);
+        prefetchAround(sourceId, imageBytes, region, size, rotation, quality, format);
+        return rendered.result;
+    }
+
+    /**
+     * Queue the neighbours and quarters of an absolute region.  Other regions aren't tiles, so have no neighbours.
+     */
+    public void prefetchAround(String sourceId, ByteSource imageBytes, IiifImageProcessor.Region region, IiifImageProcessor.Size size,
+                               IiifImageProcessor.Rotation rotation, IiifImageProcessor.Quality quality, IiifImageProcessor.Format format) {
+        if (region.type != IiifImageProcessor.Region.Type.ABSOLUTE || region.w <= 0 || region.h <= 0) {
+            return;
+        }
+        Map<String, PrefetchScheduler.Renderer<Rendered>> candidates = new LinkedHashMap<>();
+        int[][] offsets = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 }, { -1, -1 }, { 1, -1 }, { -1, 1 }, { 1, 1 } };
+        for (int[] offset : offsets) {
+            addCandidate(candidates, sourceId, imageBytes,
+                    IiifImageProcessor.Region.absolute(region.x + offset[0] * region.w, region.y + offset[1] * region.h, region.w, region.h),
+                    size, rotation, quality, format);
+        }
+        if (region.w >= 2 && region.h >= 2) {
+            double w = Math.floor(region.w / 2);
+            double h = Math.floor(region.h / 2);
+            for (int i = 0; i < 4; i++) {
+                addCandidate(candidates, sourceId, imageBytes,
+                        IiifImageProcessor.Region.absolute(region.x + (i & 1) * w, region.y + (i >> 1) * h, w, h),
+                        size, rotation, quality, format);
+            }
+        }
+        scheduler.prefetch(sourceId, candidates);
+    }
+
+    /**
+     * Drop the queued prefetches for an image, and abort those being processed, eg when a viewer closes it.
+     */
+    public void cancel(String sourceId) {
+        scheduler.cancel(sourceId);
+    }
+
+    /**
+     * The number of regions rendered by prefetching.
+     */
+    public long getPrefetched() {
+        return scheduler.getPrefetched();
+    }
+
+    /**
+     * Whether a request can be served without processing the image.
+     */
+    public boolean isCached(String sourceId, IiifImageProcessor.Region region, IiifImageProcessor.Size size,
+                            IiifImageProcessor.Rotation rotation, IiifImageProcessor.Quality quality, IiifImageProcessor.Format format) {
+        return scheduler.isCached(key(sourceId, region, size, rotation, quality, format));
+    }
+
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+
+    private void addCandidate(Map<String, PrefetchScheduler.Renderer<Rendered>> candidates, String sourceId, ByteSource imageBytes,
+                              IiifImageProcessor.Region region, IiifImageProcessor.Size size, IiifImageProcessor.Rotation rotation,
+                              IiifImageProcessor.Quality quality, IiifImageProcessor.Format format) {
+        // regions off the right and bottom edges are clamped by the processor, so only the top and left are checked
+        if (region.x >= 0 && region.y >= 0) {
+            candidates.put(key(sourceId, region, size, rotation, quality, format),
+                    token -> render(imageBytes, region, size, rotation, quality, format, token));
+        }
+    }
+
+    private Rendered render(ByteSource imageBytes, IiifImageProcessor.Region region, IiifImageProcessor.Size size,
+                            IiifImageProcessor.Rotation rotation, IiifImageProcessor.Quality quality, IiifImageProcessor.Format format,
+                            CancellationToken cancellationToken) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        IiifImageProcessor.Result result = processor.process(imageBytes, region, size, rotation, quality, format, out, cancellationToken);
+        return new Rendered(out.toByteArray(), result);
+    }
+
+    private static String key(String sourceId, IiifImageProcessor.Region region, IiifImageProcessor.Size size,
+                              IiifImageProcessor.Rotation rotation, IiifImageProcessor.Quality quality, IiifImageProcessor.Format format) {
+        // the same path as the IIIF image request
+        return sourceId + '/' + region.canonical() + '/' + size.canonical() + '/' + rotation.canonical() + '/'
+                + quality.canonical() + '.' + format.canonical();
+    }
+
+    private static final class Rendered {
+        final byte[] bytes;
+        final IiifImageProcessor.Result result;
+
+        Rendered(byte[] bytes, IiifImageProcessor.Result result) {
+            this.bytes = bytes;
+            this.result = result;
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package au.org.ala.images.thumb;
 
 import au.org.ala.images.util.ByteSinkFactory;
+import au.org.ala.images.util.CancellationToken;
 import au.org.ala.images.util.DefaultImageReaderSelectionStrategy;
 import au.org.ala.images.util.FileByteSinkFactory;
+import au.org.ala.images.util.ImageEncoder;
 import au.org.ala.images.util.ImageReaderUtils;
 import au.org.ala.images.util.ImageUtils;
 import com.google.common.io.ByteSink;
@@ -38,6 +40,7 @@ public class ImageThumbnailer {
     private static final int MAX_THUMB_SIZE = 1024;
 
     private final RenderingHints renderingHints;
+    private ImageEncoder imageEncoder = new ImageEncoder();
 
     public ImageThumbnailer() {
         this(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
@@ -47,6 +50,17 @@ public class ImageThumbnailer {
         renderingHints = new RenderingHints(RenderingHints.KEY_INTERPOLATION, interpolation);
     }
 
+    /**
+     * The JPEG and PNG encoder settings for thumbnails.
+     */
+    public ImageEncoder getImageEncoder() {
+        return imageEncoder;
+    }
+
+    public void setImageEncoder(ImageEncoder imageEncoder) {
+        this.imageEncoder = imageEncoder;
+    }
+
     public List<ThumbnailingResult> generateThumbnails(byte[] imageBytes, File destinationDirectory, List<ThumbDefinition> thumbDefs) throws IOException {
         return generateThumbnails(imageBytes, new FileByteSinkFactory(destinationDirectory), thumbDefs);
     }
@@ -55,6 +69,18 @@ public class ImageThumbnailer {
     }
 
     public List<ThumbnailingResult> generateThumbnails(ByteSource imageBytes, ByteSinkFactory byteSinkFactory, List<ThumbDefinition> thumbDefs, boolean useFileCache) throws IOException {
+        return generateThumbnails(imageBytes, byteSinkFactory, thumbDefs, useFileCache, CancellationToken.NONE);
+    }
+
+    /**
+     * Generate thumbnails until the cancellation token is cancelled.  The token is checked before each thumbnail
+     * and aborts the decode of the source image if it is cancelled while decoding.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled
+     */
+    public List<ThumbnailingResult> generateThumbnails(ByteSource imageBytes, ByteSinkFactory byteSinkFactory, List<ThumbDefinition> thumbDefs, boolean useFileCache,
+                                                       CancellationToken cancellationToken) throws IOException {
+        cancellationToken.throwIfCancelled();
 
         List<ThumbnailingResult> results = new ArrayList<ThumbnailingResult>();
 
@@ -83,7 +109,7 @@ public class ImageThumbnailer {
             }
             reader.setInput(iis, true, false); // Set ignoreMetadata to false to allow reading metadata
 
-            generateThumbnailsInternal(byteSinkFactory, thumbDefs, reader, results, null);
+            generateThumbnailsInternal(byteSinkFactory, thumbDefs, reader, results, null, cancellationToken);
         }
         return results;
     }
@@ -98,6 +124,18 @@ public class ImageThumbnailer {
      * @throws IOException
      */
     public List<ThumbnailingResult> generateThumbnailsNoIntermediateEncode(ByteSource imageBytes, ByteSinkFactory byteSinkFactory, List<ThumbDefinition> thumbDefs) throws IOException {
+        return generateThumbnailsNoIntermediateEncode(imageBytes, byteSinkFactory, thumbDefs, CancellationToken.NONE);
+    }
+
+    /**
+     * As {@link #generateThumbnailsNoIntermediateEncode(ByteSource, ByteSinkFactory, List)}, until the cancellation
+     * token is cancelled.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled
+     */
+    public List<ThumbnailingResult> generateThumbnailsNoIntermediateEncode(ByteSource imageBytes, ByteSinkFactory byteSinkFactory, List<ThumbDefinition> thumbDefs,
+                                                                         CancellationToken cancellationToken) throws IOException {
+        cancellationToken.throwIfCancelled();
 
         List<ThumbnailingResult> results = new ArrayList<ThumbnailingResult>();
 
@@ -176,14 +214,15 @@ public class ImageThumbnailer {
                 }
             }
 
-            generateThumbnailsInternal(byteSinkFactory, thumbDefs, reader, results, orientation);
+            generateThumbnailsInternal(byteSinkFactory, thumbDefs, reader, results, orientation, cancellationToken);
         }
         return results;
     }
 
-    private void generateThumbnailsInternal(ByteSinkFactory byteSinkFactory, List<ThumbDefinition> thumbDefs, ImageReader reader, List<ThumbnailingResult> results, ImageReaderUtils.Orientation orientation) throws IOException {
+    private void generateThumbnailsInternal(ByteSinkFactory byteSinkFactory, List<ThumbDefinition> thumbDefs, ImageReader reader, List<ThumbnailingResult> results,
+                                            ImageReaderUtils.Orientation orientation, CancellationToken cancellationToken) throws IOException {
         BufferedImage thumbSrc;
-        try {
+        try (CancellationToken.Registration ignored = cancellationToken.onCancel(reader::abort)) {
             ImageReadParam imageParams = reader.getDefaultReadParam();
             int height = reader.getHeight(0);
             int width = reader.getWidth(0);
@@ -202,6 +241,7 @@ public class ImageThumbnailer {
 
                 imageParams.setSourceSubsampling(ratio, ratio, 0, 0);
                 var inputSrc = reader.read(0, imageParams);
+                cancellationToken.throwIfCancelled();
                 // apply orientation if needed
                 thumbSrc = applyOrientation(orientation, inputSrc);
                 inputSrc.flush();
@@ -216,6 +256,7 @@ public class ImageThumbnailer {
             } else {
                 // small images
                 var inputSrc = reader.read(0);
+                cancellationToken.throwIfCancelled();
                 // apply orientation if needed
                 thumbSrc = applyOrientation(orientation, inputSrc);
                 inputSrc.flush();
@@ -244,6 +285,7 @@ public class ImageThumbnailer {
 
         if (thumbSrc != null) {
             for (ThumbDefinition thumbDef : thumbDefs) {
+                cancellationToken.throwIfCancelled();
                 ByteSink destination = byteSinkFactory.getByteSinkForNames(thumbDef.getName());
                 // workout if we need to be a transparent png or if jpg will do...
                 Color backgroundColor = thumbDef.getBackgroundColor();
@@ -332,7 +374,7 @@ public class ImageThumbnailer {
                 if (thumbImage != null) {
                     boolean result = false;
                     try (OutputStream thumbOutputStream = destination.openStream()) {
-                        result = ImageIO.write(thumbImage, isPNG ? "PNG" : "JPG", thumbOutputStream);
+                        result = imageEncoder.write(thumbImage, isPNG ? "PNG" : "JPG", thumbOutputStream);
                     }
                     thumbImage.flush();
                     if (result) {
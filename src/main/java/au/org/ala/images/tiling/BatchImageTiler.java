@@ -0,0 +1,386 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.ImageSource;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tiles many images through a single tiler, running several jobs at once so that slices, levels and tiles from
+ * different images interleave on the tiler's shared level and io executors instead of the pools draining at the
+ * end of every image.
+ *
+ * Waiting jobs are started smallest first (by encoded size) to keep latency low for small images.  Each time a job
+ * is passed over it ages, and once it has been passed over maxTimesPassedOver times it is started ahead of any
+ * smaller jobs, so large images always make progress.
+ *
+ * With an ImageTiler4, the running jobs' level work and tile writes also go through a queue in front of each of the
+ * tiler's pools, which hands the pool no more tasks than it has threads.  The next task is taken from the job with
+ * the least estimated work left, from its {@link TilingPlan} and the tiles written so far, aging jobs in the same
+ * way, so a small image started while a large one is being tiled gets ahead of the large one's tiles rather than
+ * waiting behind them.  Levels aren't reported to the tiler's level listener for these jobs.
+ *
+ * The tiler must support concurrent tileImage calls, eg ImageTiler4.
+ */
+public class BatchImageTiler implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchImageTiler.class);
+
+    private final IImageTiler tiler;
+    private final int maxConcurrentJobs;
+    private final int maxTimesPassedOver;
+    private final ExecutorService jobExecutor;
+    // the queues in front of an ImageTiler4's pools, or null for other tilers
+    private final WorkQueue levelQueue;
+    private final WorkQueue ioQueue;
+
+    // guarded by this
+    private final List<BatchJob> pending = new ArrayList<>();
+    private int running = 0;
+    private long sequence = 0;
+    private boolean closed = false;
+
+    public BatchImageTiler(IImageTiler tiler, int maxConcurrentJobs) {
+        this(tiler, maxConcurrentJobs, 8);
+    }
+
+    public BatchImageTiler(IImageTiler tiler, int maxConcurrentJobs, int maxTimesPassedOver) {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("maxConcurrentJobs must be at least 1");
+        }
+        this.tiler = tiler;
+        this.maxConcurrentJobs = maxConcurrentJobs;
+        this.maxTimesPassedOver = maxTimesPassedOver;
+        this.jobExecutor = Executors.newFixedThreadPool(maxConcurrentJobs,
+                new ThreadFactoryBuilder().setNameFormat("batch-tiler-%d").setDaemon(true).build());
+        if (tiler instanceof ImageTiler4) {
+            this.levelQueue = new WorkQueue(((ImageTiler4) tiler).getLevelExecutor());
+            this.ioQueue = new WorkQueue(((ImageTiler4) tiler).getIoExecutor());
+        } else {
+            this.levelQueue = null;
+            this.ioQueue = null;
+        }
+    }
+
+    public CompletableFuture<ImageTilerResults> submit(Path imagePath, TilerSink tilerSink) {
+        return submit(imagePath, tilerSink, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Queue an image file to be tiled.
+     * @return A future that completes with the results once the image has been tiled.
+     */
+    public CompletableFuture<ImageTilerResults> submit(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel) {
+        long size;
+        try {
+            size = Files.size(imagePath);
+        } catch (IOException e) {
+            // let the tiler report the problem
+            size = Long.MAX_VALUE;
+        }
+        if (levelQueue != null) {
+            ImageTiler4 tiler4 = (ImageTiler4) tiler;
+            return enqueue(imagePath.toString(), size, job -> tileScheduled(tiler4, tiler4.openImageSource(imagePath), tilerSink, minLevel, maxLevel, job));
+        }
+        return enqueue(imagePath.toString(), size, job -> tiler.tileImage(imagePath, tilerSink, minLevel, maxLevel));
+    }
+
+    public CompletableFuture<ImageTilerResults> submit(ByteSource imageSource, TilerSink tilerSink) {
+        return submit(imageSource, tilerSink, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Queue an image to be tiled.  Sources of unknown size are treated as the largest images.
+     * @return A future that completes with the results once the image has been tiled.
+     */
+    public CompletableFuture<ImageTilerResults> submit(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) {
+        long size = imageSource.sizeIfKnown().or(Long.MAX_VALUE);
+        if (levelQueue != null) {
+            return enqueue(imageSource.toString(), size, job -> tileScheduled((ImageTiler4) tiler, ImageSource.of(imageSource), tilerSink, minLevel, maxLevel, job));
+        }
+        return enqueue(imageSource.toString(), size, job -> tiler.tileImage(imageSource, tilerSink, minLevel, maxLevel));
+    }
+
+    /**
+     * Stop accepting new images.  Queued and running images are still tiled.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        shutdownIfIdle();
+    }
+
+    /**
+     * Wait for all queued images to be tiled after the batch has been closed.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return jobExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Tile an image with its level and io work queued behind the other running jobs' by how much work each has left.
+     */
+    private ImageTilerResults tileScheduled(ImageTiler4 tiler4, ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel,
+                                            BatchJob job) throws IOException {
+        TilingPlan plan = tiler4.plan(imageSource, minLevel, maxLevel);
+        job.setPlan(plan.getEstimatedCpuCost(), plan.getTileCount());
+        Executor ioExecutor = task -> ioQueue.submit(job, () -> {
+            try {
+                task.run();
+            } finally {
+                job.tilesWritten.incrementAndGet();
+            }
+        });
+        return tiler4.tileImage(imageSource, tilerSink, minLevel, maxLevel, CancellationToken.NONE, task -> levelQueue.submit(job, task), ioExecutor);
+    }
+
+    private synchronized CompletableFuture<ImageTilerResults> enqueue(String name, long size, JobWork work) {
+        if (closed) {
+            throw new RejectedExecutionException("Batch tiler is closed");
+        }
+        BatchJob job = new BatchJob(name, sequence++, size, work);
+        pending.add(job);
+        startJobs();
+        return job.result;
+    }
+
+    private synchronized void startJobs() {
+        while (running < maxConcurrentJobs && !pending.isEmpty()) {
+            BatchJob next = selectNext();
+            pending.remove(next);
+            running++;
+            log.debug("startJobs: starting {} ({} bytes), {} waiting", next.name, next.size, pending.size());
+            jobExecutor.execute(() -> run(next));
+        }
+        shutdownIfIdle();
+    }
+
+    /**
+     * The smallest waiting job, unless a job has been passed over too many times, in which case the oldest of
+     * those.
+     */
+    private BatchJob selectNext() {
+        BatchJob smallest = null;
+        BatchJob starved = null;
+        for (BatchJob job : pending) {
+            if (job.timesPassedOver >= maxTimesPassedOver && (starved == null || job.sequence < starved.sequence)) {
+                starved = job;
+            }
+            if (smallest == null || job.size < smallest.size || (job.size == smallest.size && job.sequence < smallest.sequence)) {
+                smallest = job;
+            }
+        }
+        BatchJob next = starved != null ? starved : smallest;
+        for (BatchJob job : pending) {
+            if (job != next) {
+                job.timesPassedOver++;
+            }
+        }
+        return next;
+    }
+
+    private void run(BatchJob job) {
+        try {
+            job.result.complete(job.work.run(job));
+        } catch (Exception | Error e) {
+            log.error("Exception occurred tiling " + job.name, e);
+            job.result.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                running--;
+                if (levelQueue != null) {
+                    levelQueue.remove(job);
+                    ioQueue.remove(job);
+                }
+                startJobs();
+            }
+        }
+    }
+
+    private void shutdownIfIdle() {
+        if (closed && running == 0 && pending.isEmpty()) {
+            jobExecutor.shutdown();
+        }
+    }
+
+    private interface JobWork {
+        ImageTilerResults run(BatchJob job) throws Exception;
+    }
+
+    private static final class BatchJob {
+        final String name;
+        final long sequence;
+        final long size;
+        final JobWork work;
+        final CompletableFuture<ImageTilerResults> result = new CompletableFuture<>();
+        final AtomicLong tilesWritten = new AtomicLong();
+        int timesPassedOver = 0;
+        // from the job's plan, once it is running
+        private volatile long estimatedCost = Long.MAX_VALUE;
+        private volatile long tileCount = 0;
+
+        BatchJob(String name, long sequence, long size, JobWork work) {
+            this.name = name;
+            this.sequence = sequence;
+            this.size = size;
+            this.work = work;
+        }
+
+        void setPlan(long estimatedCost, long tileCount) {
+            this.estimatedCost = estimatedCost;
+            this.tileCount = tileCount;
+        }
+
+        /**
+         * The plan's estimated CPU cost, less the share of its tiles that have been written.
+         */
+        long getRemainingCost() {
+            long tiles = tileCount;
+            if (tiles <= 0) {
+                return estimatedCost;
+            }
+            double done = Math.min(tilesWritten.get(), tiles) / (double) tiles;
+            return estimatedCost - (long) (estimatedCost * done);
+        }
+    }
+
+    /**
+     * Tasks waiting for one of the tiler's pools, per job.  Up to the pool's thread count are running at once, and
+     * each time one finishes the next is taken from the job with the least work left, unless a job has been passed
+     * over maxTimesPassedOver times, in which case the oldest of those.  Guarded by the batch tiler.
+     */
+    private final class WorkQueue {
+        private final Executor pool;
+        private final int maxRunning;
+        private final Map<BatchJob, JobTasks> jobs = new LinkedHashMap<>();
+        private int running = 0;
+
+        WorkQueue(Executor pool) {
+            this.pool = pool;
+            this.maxRunning = getParallelism(pool);
+        }
+
+        void submit(BatchJob job, Runnable task) {
+            List<Runnable> rejected;
+            synchronized (BatchImageTiler.this) {
+                jobs.computeIfAbsent(job, JobTasks::new).tasks.add(task);
+                rejected = dispatch();
+            }
+            rejected.forEach(Runnable::run);
+        }
+
+        /**
+         * Forget a finished job, once it has no tasks left.
+         */
+        void remove(BatchJob job) {
+            jobs.computeIfPresent(job, (j, tasks) -> tasks.tasks.isEmpty() ? null : tasks);
+        }
+
+        private void finished() {
+            List<Runnable> rejected;
+            synchronized (BatchImageTiler.this) {
+                running--;
+                rejected = dispatch();
+            }
+            rejected.forEach(Runnable::run);
+        }
+
+        /**
+         * Hand the pool tasks until it is busy.
+         * @return Tasks the pool rejected, which the caller runs itself once it has released the lock
+         */
+        private List<Runnable> dispatch() {
+            List<Runnable> rejected = new ArrayList<>();
+            JobTasks next;
+            while (running < maxRunning && (next = selectNext()) != null) {
+                Runnable task = next.tasks.poll();
+                running++;
+                try {
+                    pool.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            finished();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    log.warn("dispatch: pool rejected a task for {}, running it on the calling thread", next.job.name);
+                    running--;
+                    rejected.add(task);
+                }
+            }
+            return rejected;
+        }
+
+        private JobTasks selectNext() {
+            JobTasks least = null;
+            JobTasks starved = null;
+            for (JobTasks candidate : jobs.values()) {
+                if (candidate.tasks.isEmpty()) {
+                    continue;
+                }
+                if (candidate.timesPassedOver >= maxTimesPassedOver && (starved == null || candidate.job.sequence < starved.job.sequence)) {
+                    starved = candidate;
+                }
+                if (least == null || candidate.job.getRemainingCost() < least.job.getRemainingCost()
+                        || (candidate.job.getRemainingCost() == least.job.getRemainingCost() && candidate.job.sequence < least.job.sequence)) {
+                    least = candidate;
+                }
+            }
+            JobTasks next = starved != null ? starved : least;
+            for (JobTasks candidate : jobs.values()) {
+                if (candidate != next && !candidate.tasks.isEmpty()) {
+                    candidate.timesPassedOver++;
+                }
+            }
+            if (next != null) {
+                next.timesPassedOver = 0;
+            }
+            return next;
+        }
+    }
+
+    private static final class JobTasks {
+        final BatchJob job;
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        int timesPassedOver = 0;
+
+        JobTasks(BatchJob job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * The number of tasks a pool runs at once.
+     */
+    private static int getParallelism(Executor pool) {
+        if (pool instanceof ThreadPoolExecutor) {
+            return Math.max(1, ((ThreadPoolExecutor) pool).getMaximumPoolSize());
+        }
+        if (pool instanceof ForkJoinPool) {
+            return ((ForkJoinPool) pool).getParallelism();
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -1,11 +1,14 @@
 package au.org.ala.images.tiling;
 
+import au.org.ala.images.util.CancellationToken;
 import au.org.ala.images.util.FileByteSinkFactory;
-import org.apache.commons.io.FileUtils;
+import com.google.common.io.ByteSource;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * Interface for image tilers that can tile images into smaller tiles for various zoom levels.
@@ -13,7 +16,7 @@ import java.io.InputStream;
 public interface IImageTiler {
 
     default ImageTilerResults tileImage(File imageFile, File destinationDirectory) throws IOException, InterruptedException {
-        return tileImage(FileUtils.openInputStream(imageFile), new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(destinationDirectory)));
+        return tileImage(imageFile.toPath(), new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(destinationDirectory)), 0, Integer.MAX_VALUE);
     }
 
     default ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink) throws IOException, InterruptedException {
@@ -31,4 +34,94 @@ public interface IImageTiler {
      * @throws InterruptedException If the tiling operation is interrupted.
      */
     ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException, InterruptedException;
+
+    /**
+     * Tile the image from the input stream until the cancellation token is cancelled.  Implementations that don't
+     * support cancellation only check the token before they start and after they finish.
+     * @param imageInputStream An input stream of the image to be tiled.  Should be bufferable and support mark/reset.
+     * @param tilerSink The sink to write the tiles to.
+     * @param minLevel The minimum zoom level to generate.
+     * @param maxLevel The maximum zoom level to generate.
+     * @param cancellationToken The token to stop tiling with.
+     * @return The results of the tiling operation.
+     * @throws IOException If an error occurs during tiling.
+     * @throws InterruptedException If the tiling operation is interrupted.
+     * @throws java.util.concurrent.CancellationException If the token was cancelled.
+     */
+    default ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException, InterruptedException {
+        cancellationToken.throwIfCancelled();
+        ImageTilerResults results = tileImage(imageInputStream, tilerSink, minLevel, maxLevel);
+        cancellationToken.throwIfCancelled();
+        return results;
+    }
+
+    /**
+     * Tile the image in a file and write tiles to the provided sink.  Implementations that support it will read
+     * the file directly rather than loading the encoded image onto the heap.
+     * @param imagePath The path of the image to be tiled.
+     * @param tilerSink The sink to write the tiles to.
+     * @param minLevel The minimum zoom level to generate.
+     * @param maxLevel The maximum zoom level to generate.
+     * @return The results of the tiling operation.
+     * @throws IOException If an error occurs during tiling.
+     * @throws InterruptedException If the tiling operation is interrupted.
+     */
+    default ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException, InterruptedException {
+        return tileImage(Files.newInputStream(imagePath), tilerSink, minLevel, maxLevel);
+    }
+
+    /**
+     * Tile the image in a file until the cancellation token is cancelled.  Implementations that don't support
+     * cancellation only check the token before they start and after they finish.
+     * @param imagePath The path of the image to be tiled.
+     * @param tilerSink The sink to write the tiles to.
+     * @param minLevel The minimum zoom level to generate.
+     * @param maxLevel The maximum zoom level to generate.
+     * @param cancellationToken The token to stop tiling with.
+     * @return The results of the tiling operation.
+     * @throws IOException If an error occurs during tiling.
+     * @throws InterruptedException If the tiling operation is interrupted.
+     * @throws java.util.concurrent.CancellationException If the token was cancelled.
+     */
+    default ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException, InterruptedException {
+        cancellationToken.throwIfCancelled();
+        ImageTilerResults results = tileImage(imagePath, tilerSink, minLevel, maxLevel);
+        cancellationToken.throwIfCancelled();
+        return results;
+    }
+
+    /**
+     * Tile the image from a ByteSource and write tiles to the provided sink.  Implementations that support it will
+     * reopen the source as needed rather than loading the encoded image onto the heap.
+     * @param imageSource The source of the image to be tiled.
+     * @param tilerSink The sink to write the tiles to.
+     * @param minLevel The minimum zoom level to generate.
+     * @param maxLevel The maximum zoom level to generate.
+     * @return The results of the tiling operation.
+     * @throws IOException If an error occurs during tiling.
+     * @throws InterruptedException If the tiling operation is interrupted.
+     */
+    default ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException, InterruptedException {
+        return tileImage(imageSource.openBufferedStream(), tilerSink, minLevel, maxLevel);
+    }
+
+    /**
+     * Tile the image from a ByteSource until the cancellation token is cancelled.  Implementations that don't
+     * support cancellation only check the token before they start and after they finish.
+     * @param imageSource The source of the image to be tiled.
+     * @param tilerSink The sink to write the tiles to.
+     * @param minLevel The minimum zoom level to generate.
+     * @param maxLevel The maximum zoom level to generate.
+     * @param cancellationToken The token to stop tiling with.
+     * @return The results of the tiling operation.
+     * @throws IOException If an error occurs during tiling.
+     * @throws InterruptedException If the tiling operation is interrupted.
+     * @throws java.util.concurrent.CancellationException If the token was cancelled.
+     */
+    default ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException, InterruptedException {
+        cancellationToken.throwIfCancelled();
+        ImageTilerResults results = tileImage(imageSource, tilerSink, minLevel, maxLevel);
+        cancellationToken.throwIfCancelled();
+        return results;
+    }
 }
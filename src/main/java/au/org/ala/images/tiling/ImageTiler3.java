@@ -1,9 +1,12 @@
 package au.org.ala.images.tiling;
 
+import au.org.ala.images.util.BufferedImagePool;
+import au.org.ala.images.util.CancellationToken;
 import au.org.ala.images.util.DefaultImageReaderSelectionStrategy;
+import au.org.ala.images.util.ImageSource;
 import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.UnsynchronizedByteArrayInputStream;
 import org.apache.commons.lang3.tuple.Pair;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
@@ -19,6 +22,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -43,6 +47,8 @@ public class ImageTiler3 implements IImageTiler{
     private Color _tileBackgroundColor = Color.gray;
     private boolean _exceptionOccurred =  false; // crude mechanism for the worker threads to communicate serious failure
     private ZoomFactorStrategy _zoomFactorStrategy = new DefaultZoomFactorStrategy(_tileSize);
+    private boolean _memoryMapInput = true;
+    private BufferedImagePool _slicePool = new BufferedImagePool(2);
 
     private ExecutorService levelThreadPool;
     private ExecutorService ioThreadPool;
@@ -65,12 +71,63 @@ public class ImageTiler3 implements IImageTiler{
             _tileFormat = config.getTileFormat();
             _tileBackgroundColor = config.getTileBackgroundColor();
             _zoomFactorStrategy = config.getZoomFactorStrategy();
+            _memoryMapInput = config.isMemoryMapInput();
+            _slicePool = new BufferedImagePool(config.getSlicePoolSize());
         }
     }
 
+    BufferedImagePool getSlicePool() {
+        return _slicePool;
+    }
+
     @Override
     public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
-        int zoomLevels = startTiling(imageInputStream, tilerSink, minLevel, maxLevel);
+        return tileImage(imageInputStream, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imagePath, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imageSource, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    public ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imageSource, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        byte[] imageBytes;
+        try (var inputStream = imageInputStream) {
+            imageBytes = IOUtils.toByteArray(inputStream);
+        }
+        log.trace("tileImage:inputStream to imageBytes");
+        return tileImage(ImageSource.of(imageBytes), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return tileImage(ImageSource.of(imagePath, _memoryMapInput), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return tileImage(ImageSource.of(imageSource), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
+
+    /**
+     * Tile an image until the cancellation token is cancelled.  Once it is, the segment being decoded is aborted, no
+     * more segments are read or levels split, and tiles not yet written are dropped.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled
+     */
+    public ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        int zoomLevels = startTiling(imageSource, tilerSink, minLevel, maxLevel, cancellationToken);
+        cancellationToken.throwIfCancelled();
 
         if (!_exceptionOccurred) {
             return new ImageTilerResults(true, zoomLevels);
@@ -80,14 +137,14 @@ public class ImageTiler3 implements IImageTiler{
 
     }
 
-    private int startTiling(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+    private int startTiling(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
         log.debug("tileImage");
 
         if (minLevel < 0 || maxLevel < 0 || minLevel > maxLevel) {
             throw new IllegalArgumentException("Invalid min/max levels");
         }
 
-        var result = getBufferedImages(imageInputStream);
+        var result = getBufferedImages(imageSource, cancellationToken);
         var dimensions = result.imageDimensions;
         log.debug("tileImage:read image");
 
@@ -108,7 +165,13 @@ public class ImageTiler3 implements IImageTiler{
                 log.debug("tileImage:getZoomFactors");
 
                 var coords = pair.getLeft();
-                var image = pair.getRight();
+                var image = pair.getRight().getImage();
+                var pooled = pair.getRight().getPooled();
+                if (cancellationToken.isCancelled()) {
+                    // an aborted segment can be incomplete
+                    _slicePool.release(pooled);
+                    return Stream.empty();
+                }
                 try {
                     var intStream = IntStream.rangeClosed(minLevel, finalMaxLevel);
                     if (minLevel == 0 && maxLevel == Integer.MAX_VALUE) {
@@ -117,6 +180,7 @@ public class ImageTiler3 implements IImageTiler{
                         // otherwise we're doing user requested levels, so start only process the requested levels
                     }
                     return intStream
+                            .filter(level -> !cancellationToken.isCancelled())
                             .mapToObj(level -> submitLevelForProcessing(image, coords, pyramid[level], tilerSink.getLevelSink(level)))
                             .flatMap(future -> {
                                 try {
@@ -126,7 +190,9 @@ public class ImageTiler3 implements IImageTiler{
                                     _exceptionOccurred = true;
                                     return Stream.empty();
                                 }
-                            });
+                            })
+                            // the slice can be reused once all its levels have been split into tiles
+                            .onClose(() -> _slicePool.release(pooled));
                 } finally {
                     if (image != null) {
                         image.flush();
@@ -134,11 +200,15 @@ public class ImageTiler3 implements IImageTiler{
                 }
             }).collect(Collectors.toList());
         }
-        try {
-            CompletableFuture.allOf(ioStream.stream().map(task -> CompletableFuture.runAsync(task, ioThreadPool)).collect(Collectors.toList()).toArray(CompletableFuture[]::new)).join();
+        List<CompletableFuture<Void>> ioFutures = ioStream.stream().map(task -> CompletableFuture.runAsync(task, ioThreadPool)).collect(Collectors.toList());
+        // tiles still waiting for the io pool are never written once cancelled
+        try (CancellationToken.Registration ignored = cancellationToken.onCancel(() -> ioFutures.forEach(future -> future.cancel(false)))) {
+            CompletableFuture.allOf(ioFutures.toArray(CompletableFuture[]::new)).join();
         } catch (Exception e) {
-            log.error("execution exception", e);
-            _exceptionOccurred = true;
+            if (!cancellationToken.isCancelled()) {
+                log.error("execution exception", e);
+                _exceptionOccurred = true;
+            }
         }
 
         log.debug("tileImage: all tiles completed");
@@ -146,43 +216,30 @@ public class ImageTiler3 implements IImageTiler{
     }
 
     private static final class GetBufferedImageResult {
-        final Stream<Pair<Point, BufferedImage>> imageStream;
+        final Stream<Pair<Point, BufferedImagePool.PooledImage>> imageStream;
         final Point imageDimensions;
 
-        public GetBufferedImageResult(Stream<Pair<Point, BufferedImage>> imageStream, Point imageDimensions) {
+        public GetBufferedImageResult(Stream<Pair<Point, BufferedImagePool.PooledImage>> imageStream, Point imageDimensions) {
             this.imageStream = imageStream;
             this.imageDimensions = imageDimensions;
         }
     }
 
-    private GetBufferedImageResult getBufferedImages(InputStream imageInputStream) throws IOException {
+    private GetBufferedImageResult getBufferedImages(ImageSource imageSource, CancellationToken cancellationToken) throws IOException {
         // maintain memory usage by splitting image into 8k or 4k chunks
         log.trace("getBufferedImages");
-        byte[] imageBytes;
-        try (var inputStream = imageInputStream) {
-            imageBytes = IOUtils.toByteArray(inputStream);
-        }
-        log.trace("getBufferedImages:inputStream to imageBytes");
-
-        // Create ImageInputStream directly without helper method
-        var bais = UnsynchronizedByteArrayInputStream.builder()
-                .setByteArray(imageBytes)
-                .setOffset(0)
-                .get();
-
-        ImageInputStream iis = ImageIO.createImageInputStream(bais);
-        if (iis == null) {
-            throw new IOException("Failed to create ImageInputStream");
-        }
+        ImageInputStream iis = imageSource.openImageInputStream();
 
         Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
         if (!readers.hasNext()) {
+            iis.close();
             throw new IOException("No compatible ImageReader found");
         }
 
         // Use selection strategy to prefer TwelveMonkeys readers
         ImageReader reader = DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers);
         if (reader == null) {
+            iis.close();
             throw new IOException("No suitable ImageReader selected");
         }
         reader.setInput(iis, true, false); // Set ignoreMetadata to false to allow reading metadata
@@ -210,7 +267,8 @@ public class ImageTiler3 implements IImageTiler{
                 }
             }
 
-            return new GetBufferedImageResult(stream.build().map( p -> {
+            CancellationToken.Registration abortOnCancel = cancellationToken.onCancel(reader::abort);
+            return new GetBufferedImageResult(stream.build().takeWhile(p -> !cancellationToken.isCancelled()).map( p -> {
                 var params = reader.getDefaultReadParam();
 
                 int rectWidth;
@@ -234,11 +292,12 @@ public class ImageTiler3 implements IImageTiler{
 //                params.setSourceRegion(new Rectangle(p.x, p.y, rectWidth, rectHeight));
 //                params.setSourceSubsampling(subsample, subsample, 0, 0);
                 try {
-                    return Pair.of(p, reader.read(0, params));
+                    return Pair.of(p, _slicePool.read(reader, params, segmentSize, segmentSize));
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
             }).onClose(() -> {
+                abortOnCancel.close();
                 var input = reader.getInput();
                 if (input instanceof Closeable) {
                     try {
@@ -1,9 +1,16 @@
 package au.org.ala.images.tiling;
 
+import au.org.ala.images.util.BufferedImagePool;
+import au.org.ala.images.util.CancellationToken;
 import au.org.ala.images.util.DefaultImageReaderSelectionStrategy;
-import com.google.common.io.ByteSink;
+import au.org.ala.images.util.ImageEncoder;
+import au.org.ala.images.util.ImageReaderUtils;
+import au.org.ala.images.util.ImageSource;
+import au.org.ala.images.util.ImageUtils;
+import au.org.ala.images.util.ScanlineReader;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.UnsynchronizedByteArrayInputStream;
 import org.apache.commons.lang3.tuple.Pair;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
@@ -12,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.spi.IIORegistry;
 import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
@@ -19,42 +27,68 @@ import java.awt.image.BufferedImage;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
  * Advanced tiler implementation that properly handles all zoom levels including extreme ones.
- * 
- * Key improvements over ImageTiler3:
- * - Detects when slices would be smaller than tiles at extreme zoom levels
- * - Uses ImageReader subsampling for efficient extreme zoom level processing
- * - Reads entire image (not sliced) for extreme zoom levels
- * - Maintains slice-based architecture for normal zoom levels (memory efficient)
+ *
+ * The levels whose slices would be smaller than a tile are tiled from the whole image, read once with
+ * ImageReader subsampling; the rest are tiled slice by slice to bound memory use.  How an image is split up is
+ * worked out first as a {@link TilingPlan}.  Each tileImage call keeps its own state, so one instance can tile
+ * several images at once.
  */
 public class ImageTiler4 implements IImageTiler {
 
     private static final Logger log = LoggerFactory.getLogger(ImageTiler4.class);
+    /**
+     * The slice size used when the slice memory budget fits an 8192 pixel RGB or ABGR slice.
+     * @deprecated slices are now sized per image from {@link ImageTilerConfig#getSliceMemoryBudget()}
+     */
+    @Deprecated
     public static final int SLICE_SIZE = 8192;
 
     private int _tileSize = 256;
     private TileFormat _tileFormat = TileFormat.JPEG;
     private Color _tileBackgroundColor = Color.gray;
-    private boolean _exceptionOccurred = false;
     private ZoomFactorStrategy _zoomFactorStrategy = new DefaultZoomFactorStrategy(_tileSize);
+    private boolean _cascadeLevels = false;
+    private int _maxTilesInFlight = 512;
+    private boolean _memoryMapInput = true;
+    private long _maxBandBytes = 256L * 1024 * 1024;
+    private int _decodeParallelism = 1;
+    private long _decodeMemoryBudget = 1024L * 1024 * 1024;
+    private long _sliceMemoryBudget = 256L * 1024 * 1024;
+    private BufferedImagePool _slicePool = new BufferedImagePool(2);
+    private final TileBuilder _tileBuilder;
+    private ImageEncoder _tileEncoder = new ImageEncoder();
+    private boolean _fastJpegTiles = false;
+    private boolean _deduplicateTiles = false;
+    private int _dedupCacheSize = 1024;
+    private boolean _lowZoomFirst = false;
+    private LevelListener _levelListener;
+    private final TileWriter _tileWriter;
 
     private ExecutorService levelThreadPool;
     private ExecutorService ioThreadPool;
 
-    private static final GraphicsEnvironment GRAPHICS_ENV =
-            GraphicsEnvironment.getLocalGraphicsEnvironment();
-
     static {
         ImageIO.scanForPlugins();
         IIORegistry.getDefaultInstance();
@@ -69,192 +103,386 @@ public class ImageTiler4 implements IImageTiler {
             _tileFormat = config.getTileFormat();
             _tileBackgroundColor = config.getTileBackgroundColor();
             _zoomFactorStrategy = config.getZoomFactorStrategy();
+            _cascadeLevels = config.isCascadeLevels();
+            _maxTilesInFlight = config.getMaxTilesInFlight();
+            _memoryMapInput = config.isMemoryMapInput();
+            _maxBandBytes = config.getMaxBandBytes();
+            _decodeParallelism = config.getDecodeParallelism();
+            _decodeMemoryBudget = config.getDecodeMemoryBudget();
+            _sliceMemoryBudget = config.getSliceMemoryBudget();
+            _slicePool = new BufferedImagePool(config.getSlicePoolSize());
+            _tileEncoder = config.getTileEncoder();
+            _fastJpegTiles = config.isFastJpegTiles();
+            _deduplicateTiles = config.isDeduplicateTiles();
+            _dedupCacheSize = config.getDedupCacheSize();
+            _lowZoomFirst = config.isLowZoomFirst();
+            _levelListener = config.getLevelListener();
         }
+        _tileBuilder = new TileBuilder(_tileSize, _tileFormat, _tileBackgroundColor, _maxTilesInFlight);
+        _tileWriter = new TileWriter(_tileBuilder, _tileFormat, _tileEncoder, _fastJpegTiles, _maxTilesInFlight,
+                _deduplicateTiles, _dedupCacheSize, _levelListener);
     }
 
     @Override
     public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
-        int zoomLevels = startTiling(imageInputStream, tilerSink, minLevel, maxLevel);
-
-        if (!_exceptionOccurred) {
-            return new ImageTilerResults(true, zoomLevels);
-        } else {
-            return new ImageTilerResults(false, 0);
-        }
+        return tileImage(imageInputStream, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
     }
 
-    private int startTiling(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
-        log.debug("tileImage");
+    @Override
+    public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(openImageSource(imagePath), tilerSink, minLevel, maxLevel);
+    }
 
-        if (minLevel < 0 || maxLevel < 0 || minLevel > maxLevel) {
-            throw new IllegalArgumentException("Invalid min/max levels");
-        }
+    @Override
+    public ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(ImageSource.of(imageSource), tilerSink, minLevel, maxLevel);
+    }
 
+    @Override
+    public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
         // Read image bytes once
         byte[] imageBytes;
         try (var inputStream = imageInputStream) {
             imageBytes = IOUtils.toByteArray(inputStream);
         }
+        return tileImage(ImageSource.of(imageBytes), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
 
-        // Get image dimensions and calculate pyramid
-        Point dimensions = getImageDimensions(imageBytes);
-        int[] pyramid = _zoomFactorStrategy.getZoomFactors(dimensions.y, dimensions.x);
-        int zoomLevels = pyramid.length;
+    @Override
+    public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return tileImage(openImageSource(imagePath), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
 
-        final int finalMaxLevel = Math.min(maxLevel, zoomLevels - 1);
+    @Override
+    public ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return tileImage(ImageSource.of(imageSource), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
 
-        if (minLevel > finalMaxLevel) {
-            log.debug("tileImage: asked for levels {} to {}, but only {} levels available", minLevel, maxLevel, zoomLevels);
-            return zoomLevels;
-        }
+    BufferedImagePool getSlicePool() {
+        return _slicePool;
+    }
 
-        // Determine which levels need full-image processing vs slice-based processing
-        int extremeZoomThreshold = findExtremeZoomThreshold(pyramid, dimensions);
-        
-        log.debug("tileImage: extreme zoom threshold is level {}, total levels: {}", extremeZoomThreshold, zoomLevels);
+    ImageSource openImageSource(Path imagePath) {
+        return ImageSource.of(imagePath, _memoryMapInput);
+    }
 
-        // Process extreme zoom levels (if any) - read full image with subsampling
-        if (minLevel <= extremeZoomThreshold && extremeZoomThreshold < zoomLevels) {
-            int extremeMaxLevel = Math.min(extremeZoomThreshold, finalMaxLevel);
-            log.debug("tileImage: processing extreme zoom levels {} to {} with full-image approach", minLevel, extremeMaxLevel);
-            processExtremeZoomLevels(imageBytes, dimensions, pyramid, minLevel, extremeMaxLevel, tilerSink);
-        }
+    ExecutorService getLevelExecutor() {
+        return levelThreadPool;
+    }
 
-        // Process normal zoom levels with slice-based approach
-        int normalMinLevel = Math.max(minLevel, extremeZoomThreshold + 1);
-        if (normalMinLevel <= finalMaxLevel) {
-            log.debug("tileImage: processing normal zoom levels {} to {} with slice-based approach", normalMinLevel, finalMaxLevel);
-            processNormalZoomLevels(imageBytes, dimensions, pyramid, normalMinLevel, finalMaxLevel, tilerSink);
-        }
+    ExecutorService getIoExecutor() {
+        return ioThreadPool;
+    }
 
-        log.debug("tileImage: all tiles completed");
-        return zoomLevels;
+    /**
+     * Tile an image that can be reopened as many times as needed without holding the encoded bytes on the heap.
+     */
+    public ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imageSource, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
     }
 
     /**
-     * Find the highest zoom level (most zoomed out) where slice size < tile size.
-     * Levels at or below this threshold need full-image processing.
+     * Tile an image that can be reopened as many times as needed, until the cancellation token is cancelled.  Once
+     * it is, no more slices are decoded or tiles rendered, a decode in progress is aborted and the tiles waiting to
+     * be written are dropped.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled, once the tiles already being
+     * written have finished
      */
-    private int findExtremeZoomThreshold(int[] pyramid, Point dimensions) {
-        for (int level = 0; level < pyramid.length; level++) {
-            int subsample = pyramid[level];
-            double sliceSizeAtLevel = (double) SLICE_SIZE / (double) subsample;
-            
-            // If slice size is at least 2x tile size, we can safely use slicing
-            if (sliceSizeAtLevel >= _tileSize * 2) {
-                return level - 1; // Previous level was the last extreme one
-            }
-        }
-        return pyramid.length - 1; // All levels are extreme
+    public ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return runJob(imageSource, tilerSink, new TilingJob(_tileWriter, cancellationToken, levelThreadPool, ioThreadPool), minLevel, maxLevel);
     }
 
     /**
-     * Process extreme zoom levels by reading the full image with ImageReader subsampling.
-     * This is more efficient than reading slices and prevents tile overlap issues.
+     * Tile an image with its level work and tile writes submitted to the given executors instead of the tiler's
+     * pools, so that a scheduler in front of the pools, such as {@link BatchImageTiler}'s, can choose which of several
+     * jobs' work runs next.  The executors must eventually run everything submitted to them.
      */
-    private void processExtremeZoomLevels(byte[] imageBytes, Point dimensions, int[] pyramid, 
-                                          int minLevel, int maxLevel, TilerSink tilerSink) throws IOException {
-        var bais = UnsynchronizedByteArrayInputStream.builder()
-                .setByteArray(imageBytes)
-                .setOffset(0)
-                .get();
+    ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken,
+                                Executor levelExecutor, Executor ioExecutor) throws IOException {
+        return runJob(imageSource, tilerSink, new TilingJob(_tileWriter, cancellationToken, levelExecutor, ioExecutor), minLevel, maxLevel);
+    }
+
+    private ImageTilerResults runJob(ImageSource imageSource, TilerSink tilerSink, TilingJob job, int minLevel, int maxLevel) throws IOException {
+        CancellationToken cancellationToken = job.getCancellationToken();
+        int zoomLevels = startTiling(imageSource, tilerSink, minLevel, maxLevel, job);
+        log.debug("tileImage: {} tiles written, {} duplicates", job.getTilesWritten(), job.getDuplicateTiles());
+        cancellationToken.throwIfCancelled();
 
-        ImageInputStream iis = ImageIO.createImageInputStream(bais);
-        if (iis == null) {
-            throw new IOException("Failed to create ImageInputStream");
+        if (!job.isFailed()) {
+            return new ImageTilerResults(true, zoomLevels);
+        } else {
+            return new ImageTilerResults(false, 0);
         }
+    }
 
+    /**
+     * Work out how an image will be tiled, reading only its header.
+     */
+    public TilingPlan plan(ImageSource imageSource, int minLevel, int maxLevel) throws IOException {
+        Point dimensions = getImageDimensions(imageSource);
+        int bytesPerPixel;
+        int nativeTileSize = 0;
+        ImageInputStream iis = imageSource.openImageInputStream();
         try {
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-            if (!readers.hasNext()) {
-                throw new IOException("No image readers for image");
+            ImageReader reader = createReader(iis);
+            try {
+                bytesPerPixel = getBytesPerPixel(reader);
+                if (reader.isImageTiled(0)) {
+                    nativeTileSize = Math.max(reader.getTileWidth(0), reader.getTileHeight(0));
+                }
+            } finally {
+                reader.dispose();
             }
+        } finally {
+            iis.close();
+        }
+        int sliceSize = TilingPlan.getSliceSize(_tileSize, _sliceMemoryBudget, bytesPerPixel, nativeTileSize);
+        return new TilingPlan(dimensions.x, dimensions.y, _tileSize, _zoomFactorStrategy.getZoomFactors(dimensions.y, dimensions.x),
+                sliceSize, bytesPerPixel, _sliceMemoryBudget, minLevel, maxLevel, _lowZoomFirst);
+    }
 
-            ImageReader reader = DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers);
-            if (reader == null) {
-                throw new IOException("No suitable image reader selected");
-            }
+    /**
+     * Run some of the work units of a plan, eg the share of a large image given to this machine.  The plan must have
+     * been made for the same image and a tiler with the same tile size and zoom factors.  Levels are only reported
+     * to the level listener when every unit of the plan is run at once.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled
+     */
+    public ImageTilerResults tileWorkUnits(ImageSource imageSource, TilerSink tilerSink, TilingPlan plan, Collection<TilingPlan.WorkUnit> workUnits,
+                                           CancellationToken cancellationToken) throws IOException {
+        Point dimensions = getImageDimensions(imageSource);
+        if (dimensions.x != plan.getWidth() || dimensions.y != plan.getHeight() || plan.getTileSize() != _tileSize) {
+            throw new IllegalArgumentException("Plan " + plan + " is not for this " + dimensions.x + "x" + dimensions.y + " image and tile size " + _tileSize);
+        }
+        TilingJob job = new TilingJob(_tileWriter, cancellationToken, levelThreadPool, ioThreadPool);
+        executePlan(imageSource, tilerSink, plan, workUnits, job);
+        cancellationToken.throwIfCancelled();
+        return new ImageTilerResults(!job.isFailed(), job.isFailed() ? 0 : plan.getZoomLevels());
+    }
 
-            reader.setInput(iis, true, false);
+    private int startTiling(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, TilingJob job) throws IOException {
+        log.debug("tileImage");
 
-            try {
-                // Process each extreme zoom level
-                List<CompletableFuture<List<SaveTileTask>>> futures = new ArrayList<>();
-                
-                for (int level = minLevel; level <= maxLevel; level++) {
-                    int subsample = pyramid[level];
-                    final int finalLevel = level;
-                    
-                    CompletableFuture<List<SaveTileTask>> future = CompletableFuture.supplyAsync(() -> {
-                        try {
-                            return processFullImageLevel(reader, dimensions, subsample, tilerSink.getLevelSink(finalLevel));
-                        } catch (Exception e) {
-                            log.error("Error processing extreme zoom level " + finalLevel, e);
-                            _exceptionOccurred = true;
-                            return new ArrayList<>();
-                        }
-                    }, levelThreadPool);
-                    
-                    futures.add(future);
+        if (minLevel < 0 || maxLevel < 0 || minLevel > maxLevel) {
+            throw new IllegalArgumentException("Invalid min/max levels");
+        }
+
+        TilingPlan plan = plan(imageSource, minLevel, maxLevel);
+        if (plan.getLevels().isEmpty()) {
+            log.debug("tileImage: asked for levels {} to {}, but only {} levels available", minLevel, maxLevel, plan.getZoomLevels());
+            return plan.getZoomLevels();
+        }
+
+        executePlan(imageSource, tilerSink, plan, plan.getWorkUnits(), job);
+        return plan.getZoomLevels();
+    }
+
+    /**
+     * Run the work units of a plan pass by pass, the whole image for the extreme zoom levels and then the slices
+     * for the rest.
+     */
+    private void executePlan(ImageSource imageSource, TilerSink tilerSink, TilingPlan plan, Collection<TilingPlan.WorkUnit> workUnits,
+                             TilingJob job) throws IOException {
+        Set<TilingPlan.WorkUnit> requested = new HashSet<>(workUnits);
+        job.setPlan(plan, plan.isComplete(requested));
+        Point dimensions = new Point(plan.getWidth(), plan.getHeight());
+
+        // tell the sink the size of each level as it is requested
+        TilerSink sizedSink = level -> tilerSink.getLevelSink(level, ceilDiv(dimensions.x, plan.getZoomFactor(level)), ceilDiv(dimensions.y, plan.getZoomFactor(level)));
+
+        log.debug("tileImage: {}, extreme zoom threshold is level {}", plan, plan.getExtremeZoomThreshold());
+
+        // the units of each pass, in plan order
+        Map<Integer, List<TilingPlan.WorkUnit>> passes = new TreeMap<>();
+        for (TilingPlan.WorkUnit unit : plan.getWorkUnits()) {
+            if (requested.contains(unit)) {
+                passes.computeIfAbsent(unit.getPass(), pass -> new ArrayList<>()).add(unit);
+            }
+        }
+        for (List<TilingPlan.WorkUnit> pass : passes.values()) {
+            TilingPlan.WorkUnit first = pass.get(0);
+            for (int level = first.getMinLevel(); level <= first.getMaxLevel() && !first.isExtreme(); level++) {
+                if (!plan.isAligned(level, first.getDecodeSubsample())) {
+                    // tiles on the slice edges would be split between slices, and each slice would overwrite the other's half
+                    throw new IllegalArgumentException("Slices of plan " + plan + " don't start on a tile boundary at level " + level
+                            + " (zoom factor " + plan.getZoomFactor(level) + ")");
                 }
+            }
+        }
 
-                // Wait for all level processing to complete
-                List<SaveTileTask> allTasks = futures.stream()
-                        .flatMap(f -> f.join().stream())
-                        .collect(Collectors.toList());
+        try {
+            for (List<TilingPlan.WorkUnit> pass : passes.values()) {
+                if (job.isCancelled()) {
+                    break;
+                }
+                TilingPlan.WorkUnit first = pass.get(0);
+                if (first.isExtreme()) {
+                    // Process extreme zoom levels - read full image with subsampling
+                    log.debug("tileImage: processing extreme zoom levels {} to {} with full-image approach", first.getMinLevel(), first.getMaxLevel());
+                    processExtremeZoomLevels(imageSource, dimensions, plan, first.getMinLevel(), first.getMaxLevel(), sizedSink, job);
+                } else {
+                    // Process normal zoom levels with slice-based approach
+                    log.debug("tileImage: processing normal zoom levels {} to {} with slice-based approach", first.getMinLevel(), first.getMaxLevel());
+                    Set<Point> slices = pass.stream().map(TilingPlan.WorkUnit::getSliceCoords).collect(Collectors.toSet());
+                    processNormalZoomLevels(imageSource, plan, first.getMinLevel(), first.getMaxLevel(), first.getDecodeSubsample(), slices, sizedSink, job);
+                    for (int level = first.getMinLevel(); level <= first.getMaxLevel(); level++) {
+                        job.levelSubmitted(level);
+                    }
+                }
+            }
+        } finally {
+            // wait for the io pool to drain the remaining tiles, even if tiling failed part way
+            job.awaitCompletion();
+        }
 
-                // Execute IO tasks
-                CompletableFuture.allOf(
-                    allTasks.stream()
-                        .map(task -> CompletableFuture.runAsync(task, ioThreadPool))
-                        .toArray(CompletableFuture[]::new)
-                ).join();
+        log.debug("tileImage: all tiles completed");
+    }
 
+    /**
+     * Process extreme zoom levels by reading the full image once with ImageReader subsampling at the finest
+     * extreme level, then box downsampling it for each coarser level.
+     * This is more efficient than reading slices and prevents tile overlap issues.
+     */
+    private void processExtremeZoomLevels(ImageSource imageSource, Point dimensions, TilingPlan plan,
+                                          int minLevel, int maxLevel, TilerSink tilerSink, TilingJob job) throws IOException {
+        // Decode the whole image once, at the finest extreme level
+        int finestSubsample = plan.getZoomFactor(maxLevel);
+        BufferedImage decoded;
+        ImageInputStream iis = imageSource.openImageInputStream();
+        try {
+            ImageReader reader = createReader(iis);
+            try {
+                decoded = readFullImage(reader, finestSubsample, job.getCancellationToken());
             } finally {
                 reader.dispose();
             }
         } finally {
-            if (iis != null) {
-                iis.close();
+            iis.close();
+        }
+        if (job.isCancelled()) {
+            decoded.flush();
+            return;
+        }
+
+        // a reduced resolution copy can be a pixel out from the subsampled size
+        int finestWidth = ceilDiv(dimensions.x, finestSubsample);
+        int finestHeight = ceilDiv(dimensions.y, finestSubsample);
+        BufferedImage finest = decoded.getWidth() == finestWidth && decoded.getHeight() == finestHeight
+                ? decoded : resizeExact(decoded, finestWidth, finestHeight);
+
+        // Derive the coarser levels from it, tiles are handed to the io pool as they are split
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<CompletableFuture<BufferedImage>> levelImages = new ArrayList<>();
+        CompletableFuture<BufferedImage> finerLevel = CompletableFuture.completedFuture(finest);
+        int finerSubsample = finestSubsample;
+
+        for (int level = maxLevel; level >= minLevel; level--) {
+            final int subsample = plan.getZoomFactor(level);
+
+            CompletableFuture<BufferedImage> levelImage;
+            if (subsample == finerSubsample) {
+                levelImage = finerLevel;
+            } else if (subsample == finerSubsample * 2) {
+                levelImage = finerLevel.thenApplyAsync(ImageUtils::downsample2x, job.getLevelExecutor());
+            } else {
+                levelImage = CompletableFuture.supplyAsync(() -> resizeFullImage(finest, dimensions, subsample), job.getLevelExecutor());
+            }
+
+            levelImages.add(0, levelImage);
+
+            finerLevel = levelImage;
+            finerSubsample = subsample;
+        }
+
+        if (_lowZoomFirst) {
+            // deriving the levels is cheap next to splitting them, so wait for them all and then queue the splits
+            // coarsest first, each level on its own so that it is reported as soon as its tiles are written
+            CompletableFuture.allOf(levelImages.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+        }
+
+        // Split the finest level first, or the coarsest first when the overview should be written first
+        List<Integer> levels = new ArrayList<>();
+        for (int i = 0; i < levelImages.size(); i++) {
+            int level = _lowZoomFirst ? minLevel + i : maxLevel - i;
+            CompletableFuture<BufferedImage> levelImage = levelImages.get(level - minLevel);
+            futures.add(levelImage.thenAcceptAsync(image -> splitFullImageIntoTiles(image, level, tilerSink.getLevelSink(level), job), job.getLevelExecutor()));
+            levels.add(level);
+        }
+
+        // Wait for all level processing to complete
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).join();
+            } catch (Exception e) {
+                log.error("Error processing extreme zoom level " + levels.get(i), e);
+                job.fail();
             }
         }
     }
 
     /**
-     * Process a single zoom level using the full image with ImageReader subsampling.
+     * Read the whole image using ImageReader's built-in subsampling, from the smallest reduced resolution copy that
+     * is at least as detailed when the source is a pyramidal TIFF.
      */
-    private synchronized List<SaveTileTask> processFullImageLevel(ImageReader reader, Point dimensions, 
-                                                       int subsample, TilerSink.LevelSink levelSink) throws IOException {
-        log.debug("processFullImageLevel: subsample={}", subsample);
+    private BufferedImage readFullImage(ImageReader reader, int subsample, CancellationToken cancellationToken) throws IOException {
+        ImageReaderUtils.ReducedResolution reduced = ImageReaderUtils.findReducedResolution(reader, subsample, subsample);
+        log.debug("readFullImage: subsample={}, reading {}", subsample, reduced);
 
-        // Use ImageReader's built-in subsampling for efficiency
         ImageReadParam params = reader.getDefaultReadParam();
-        params.setSourceSubsampling(subsample, subsample, 0, 0);
-        
-        BufferedImage fullImage = reader.read(0, params);
-        
-        log.debug("processFullImageLevel: read image {}x{}", fullImage.getWidth(), fullImage.getHeight());
+        params.setSourceSubsampling(subsample / reduced.scale, subsample / reduced.scale, 0, 0);
 
-        // Now split this full (subsampled) image into tiles
-        return splitFullImageIntoTiles(fullImage, levelSink);
+        BufferedImage fullImage;
+        try (CancellationToken.Registration ignored = cancellationToken.onCancel(reader::abort)) {
+            fullImage = reader.read(reduced.imageIndex, params);
+        }
+
+        log.debug("readFullImage: read image {}x{}", fullImage.getWidth(), fullImage.getHeight());
+        return fullImage;
+    }
+
+    /**
+     * Stretch an image to exactly the given size, for the small differences Scalr's proportional resize can't fix.
+     */
+    static BufferedImage resizeExact(BufferedImage image, int width, int height) {
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY) {
+            type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        }
+        BufferedImage resized = new BufferedImage(width, height, type);
+        Graphics2D g = resized.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return resized;
+    }
+
+    /**
+     * Resize an already subsampled full image to the dimensions of the given level subsample.
+     */
+    private BufferedImage resizeFullImage(BufferedImage image, Point dimensions, int subsample) {
+        int width = (int) Math.ceil((double) dimensions.x / subsample);
+        int height = (int) Math.ceil((double) dimensions.y / subsample);
+        return Scalr.resize(image, width, height);
     }
 
     /**
      * Split a full (already subsampled) image into tiles.
      */
-    private List<SaveTileTask> splitFullImageIntoTiles(BufferedImage image, TilerSink.LevelSink levelSink) {
+    private void splitFullImageIntoTiles(BufferedImage image, int level, TilerSink.LevelSink levelSink, TilingJob job) {
         int cols = (int) Math.ceil((double) image.getWidth() / _tileSize);
         int rows = (int) Math.ceil((double) image.getHeight() / _tileSize);
         
         log.debug("splitFullImageIntoTiles: {}x{} image -> {}x{} tiles", 
                   image.getWidth(), image.getHeight(), cols, rows);
 
-        List<SaveTileTask> tasks = new ArrayList<>(cols * rows);
-
         int imageWidth = image.getWidth();
         int imageHeight = image.getHeight();
 
-        for (int col = 0; col < cols; col++) {
+        for (int col = 0; col < cols && !job.isCancelled(); col++) {
             TilerSink.ColumnSink columnSink = levelSink.getColumnSink(col, 0, 1);
 
             for (int row = rows - 1; row >= 0; row--) {
@@ -274,94 +502,386 @@ public class ImageTiler4 implements IImageTiler {
                 int tw = Math.min(_tileSize, imageWidth - x);
 //                int th = Math.min(_tileSize, imageHeight - y);
 
-                BufferedImage tile = null;
-                if (tw > 0 && th > 0) {
-                    tile = image.getSubimage(x, y, tw, th);
-                }
+                // Align tile to bottom-left corner (partial tiles at top edge have padding at top)
+                BufferedImage destTile = _tileBuilder.buildTile(image, x, y, tw, th);
+
+                // Flip y-coordinate so (0,0) is at bottom-left
+                job.submit(level, columnSink, row, destTile);
+            }
+        }
+        job.levelSubmitted(level);
+    }
+
+    /**
+     * Process normal zoom levels using the slice-based approach for memory efficiency, for the given slices of
+     * the plan.
+     *
+     * When only lower resolution levels are in the pass, the reader subsamples while decoding by the pass's decode
+     * subsample, which every level's zoom factor is a multiple of.  Each slice then covers decodeSubsample times as
+     * many source pixels and the levels are relative to the decoded slice.
+     */
+    private void processNormalZoomLevels(ImageSource imageSource, TilingPlan plan, int minLevel, int maxLevel, int decodeSubsample,
+                                         Set<Point> slices, TilerSink tilerSink, TilingJob job) throws IOException {
+        int[] levelPyramid = new int[plan.getZoomLevels()];
+        for (int level = minLevel; level <= maxLevel; level++) {
+            levelPyramid[level] = plan.getZoomFactor(level) / decodeSubsample;
+        }
+        if (decodeSubsample > 1) {
+            log.debug("processNormalZoomLevels: decoding slices with subsample {}", decodeSubsample);
+        }
+        Point dimensions = new Point(plan.getWidth(), plan.getHeight());
+
+        // streamed bands are whole tile rows of the finest level, region read bands of the most zoomed out level
+        int streamUnitRows = levelPyramid[maxLevel] * _tileSize;
+        int bandUnitRows = levelPyramid[minLevel] * _tileSize;
+        int decodeParallelism = getDecodeParallelism(imageSource, decodeSubsample, plan.getSliceSize(), streamUnitRows, bandUnitRows);
+        if (decodeParallelism > 1) {
+            processSlicesInParallel(imageSource, dimensions, decodeSubsample, levelPyramid, minLevel, maxLevel, slices, tilerSink, job, decodeParallelism);
+            return;
+        }
 
-                BufferedImage destTile = createDestTile();
-                Graphics g = GRAPHICS_ENV.createGraphics(destTile);
+        if (streamBands(imageSource, dimensions, decodeSubsample, plan.getSliceSize(), streamUnitRows, slices, levelPyramid, minLevel, maxLevel, tilerSink, job)) {
+            return;
+        }
+
+        var result = getBufferedImagesSliced(imageSource, dimensions, decodeSubsample, plan.getSliceSize(), bandUnitRows, slices, job.getCancellationToken());
 
-                if (_tileFormat == TileFormat.JPEG && tile != null) {
-                    g.setColor(_tileBackgroundColor);
-                    g.fillRect(0, 0, _tileSize, _tileSize);
+        try (var images = result.imageStream) {
+            // stop decoding slices as soon as the job fails
+            var iterator = images.iterator();
+            while (iterator.hasNext() && !job.isCancelled()) {
+                var pair = iterator.next();
+                try {
+                    processSlice(pair.getRight().getImage(), pair.getLeft(), levelPyramid, minLevel, maxLevel, tilerSink, job, job.getLevelExecutor());
+                } finally {
+                    result.release(pair.getRight());
                 }
+            }
+        }
+    }
 
-                if (tile != null) {
-                    // Align tile to bottom-left corner (partial tiles at top edge have padding at top)
-                    g.drawImage(tile, 0, _tileSize - th, null);
+    /**
+     * Decode a baseline JPEG or PNG once from the top with a {@link ScanlineReader}, tiling the planned slices of
+     * each full width band as it is decoded.  Bands are a whole number of tile rows of the finest level, so the parts
+     * of a slice in different bands are tiled separately for the levels whose tile rows fit in a band.  The more
+     * zoomed out levels are built up a tile row at a time from each band's part, which is what lets a band be much
+     * shorter than a slice for very wide images.
+     *
+     * @return false if the image can't be streamed, or a band doesn't fit in the band budget
+     */
+    private boolean streamBands(ImageSource imageSource, Point dimensions, int decodeSubsample, int sliceSize, int bandUnitRows, Set<Point> slices,
+                                int[] pyramid, int minLevel, int maxLevel, TilerSink tilerSink, TilingJob job) throws IOException {
+        ImageInputStream iis = imageSource.openImageInputStream();
+        try {
+            ImageReader reader = createReader(iis);
+            // large images are decoded in segments, each seeking back to the start of the image
+            reader.setInput(iis, false, false);
+            try (CancellationToken.Registration ignored = job.getCancellationToken().onCancel(reader::abort)) {
+                if (!ScanlineReader.canStream(reader)) {
+                    return false;
                 }
-                
-                g.dispose();
+                int w = dimensions.x;
+                int h = dimensions.y;
+                // the reader holds two bands
+                int bandRows = getBandRows(reader, ceilDiv(w, decodeSubsample), sliceSize, bandUnitRows, ceilDiv(h, sliceSize * decodeSubsample), 2);
+                if (bandRows <= 0) {
+                    return false;
+                }
+                // the first level whose tile rows fit in a band, the levels before it are built up over several bands
+                int firstBandLevel = minLevel;
+                while (firstBandLevel <= maxLevel && pyramid[firstBandLevel] * _tileSize > bandRows) {
+                    firstBandLevel++;
+                }
+                for (int level = minLevel; level <= maxLevel; level++) {
+                    int tileRows = pyramid[level] * _tileSize;
+                    if (level < firstBandLevel ? tileRows % bandRows != 0 || bandRows % pyramid[level] != 0 : bandRows % tileRows != 0) {
+                        log.debug("streamBands: bands of {} rows don't line up with the tiles of level {}, reading by slice", bandRows, level);
+                        return false;
+                    }
+                }
+                int bandSize = bandRows * decodeSubsample;
+                int bands = ceilDiv(h, bandSize);
+                int[] bandHeights = new int[bands];
+                Rectangle[] bandRects = new Rectangle[bands];
+                for (int band = 0; band < bands; band++) {
+                    Rectangle rect = getBandRect(band, bands, w, h, bandSize);
+                    bandRects[band] = rect;
+                    bandHeights[band] = ceilDiv(rect.y + rect.height, decodeSubsample) - ceilDiv(rect.y, decodeSubsample);
+                }
+                log.debug("streamBands: decoding {} bands of {} rows in a single pass", bands, bandRows);
+
+                int bandMinLevel = firstBandLevel;
+                Map<Point, LevelStrip> strips = new HashMap<>();
+                int[] band = { 0 };
+                ScanlineReader.read(reader, getSliceReadParam(reader, decodeSubsample), bandHeights, _slicePool, (image, y) -> {
+                    Rectangle bandRect = bandRects[band[0]++];
+                    for (var piece : cutBand(image, bandRect, 0, decodeSubsample, sliceSize, slices, w, h)) {
+                        if (job.isCancelled()) {
+                            return;
+                        }
+                        if (bandMinLevel <= maxLevel) {
+                            processSlice(piece.getRight(), piece.getLeft(), pyramid, bandMinLevel, maxLevel, tilerSink, job, job.getLevelExecutor());
+                        }
+                        for (int level = minLevel; level < bandMinLevel; level++) {
+                            appendToLevelStrip(strips, piece.getRight(), piece.getLeft(), level, pyramid[level], decodeSubsample, h, tilerSink, job);
+                        }
+                    }
+                });
+                return true;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
 
-                // Flip y-coordinate so (0,0) is at bottom-left
-                ByteSink tileSink = columnSink.getTileSink(row);
-                tasks.add(new SaveTileTask(tileSink, destTile));
+    /**
+     * The source rows of a full width band, counting bands from the top.  Bands are anchored at the bottom of the
+     * image like the slices, so only the top band is partial.
+     */
+    private static Rectangle getBandRect(int band, int bands, int w, int h, int bandSize) {
+        Rectangle rows = TilingPlan.getSliceRect(new Point(0, bands - 1 - band), bandSize, h, bandSize);
+        return new Rectangle(0, rows.y, w, rows.height);
+    }
+
+    /**
+     * The pixels of a level built up from the parts of successive bands, until there is a whole tile row.
+     */
+    private static final class LevelStrip {
+        private final BufferedImage _image;
+        private final Rectangle _region;
+        private int _rows;
+
+        LevelStrip(BufferedImage image, Rectangle region) {
+            _image = image;
+            _region = new Rectangle(region.x, region.y, region.width, 0);
+        }
+    }
+
+    /**
+     * Add a band's part of a slice to the level's strip for that slice column, and tile the strip once it reaches
+     * the bottom of a tile row.  Tile rows are measured from the bottom of the image, so the first strip of a
+     * column is the partial tile row at the top.
+     */
+    private void appendToLevelStrip(Map<Point, LevelStrip> strips, BufferedImage piece, Rectangle region, int level, int subsample,
+                                    int decodeSubsample, int h, TilerSink tilerSink, TilingJob job) {
+        BufferedImage levelImage;
+        if (_cascadeLevels && Integer.bitCount(subsample) == 1) {
+            levelImage = piece;
+            for (int s = subsample; s > 1; s /= 2) {
+                levelImage = ImageUtils.downsample2x(levelImage);
             }
+        } else {
+            levelImage = resizeToSubSampleLevel(piece, subsample);
         }
 
-        return tasks;
+        var key = new Point(level, region.x);
+        var strip = strips.get(key);
+        if (strip == null) {
+            var cm = levelImage.getColorModel();
+            var raster = cm.createCompatibleWritableRaster(levelImage.getWidth(), _tileSize);
+            strip = new LevelStrip(new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null), region);
+            strips.put(key, strip);
+        }
+        strip._image.getRaster().setRect(0, strip._rows, levelImage.getRaster());
+        strip._rows += levelImage.getHeight();
+        strip._region.height += region.height;
+        levelImage.flush();
+
+        long sourceTileSize = (long) subsample * decodeSubsample * _tileSize;
+        if ((h - strip._region.y - strip._region.height) % sourceTileSize == 0) {
+            strips.remove(key);
+            splitLevelIntoTiles(strip._image.getSubimage(0, 0, strip._image.getWidth(), strip._rows), strip._region, level,
+                    tilerSink.getLevelSink(level), subsample, job);
+        }
     }
 
     /**
-     * Process normal zoom levels using the slice-based approach for memory efficiency.
+     * The parts of a decoded full width band that belong to the planned slices, from the top, with the source
+     * region each covers.
+     *
+     * @param gridY The source row the reader's subsampling started at
      */
-    private void processNormalZoomLevels(byte[] imageBytes, Point dimensions, int[] pyramid,
-                                         int minLevel, int maxLevel, TilerSink tilerSink) throws IOException {
-        var result = getBufferedImagesSliced(imageBytes, dimensions);
+    private static List<Pair<Rectangle, BufferedImage>> cutBand(BufferedImage band, Rectangle bandRect, int gridY, int decodeSubsample, int sliceSize,
+                                                               Set<Point> wanted, int w, int h) {
+        int segmentSize = sliceSize * decodeSubsample;
+        int xs = ceilDiv(w, segmentSize);
+        int bandTop = ceilDiv(bandRect.y - gridY, decodeSubsample);
+        // the slice rows the band overlaps, counted from the bottom of the image
+        int topRow = (h - bandRect.y - 1) / segmentSize;
+        int bottomRow = (h - bandRect.y - bandRect.height) / segmentSize;
+
+        List<Pair<Rectangle, BufferedImage>> pieces = new ArrayList<>();
+        for (int j = topRow; j >= bottomRow; --j) {
+            for (int i = 0; i < xs; ++i) {
+                var p = new Point(i, j);
+                if (!wanted.contains(p)) {
+                    continue;
+                }
+                var rect = TilingPlan.getSliceRect(p, w, h, segmentSize).intersection(bandRect);
+                // the rows of the piece in the (possibly subsampled) band
+                int x = ceilDiv(rect.x, decodeSubsample);
+                int y = ceilDiv(rect.y - gridY, decodeSubsample) - bandTop;
+                int width = Math.min(band.getWidth(), ceilDiv(rect.x + rect.width, decodeSubsample)) - x;
+                int height = Math.min(band.getHeight(), ceilDiv(rect.y + rect.height - gridY, decodeSubsample) - bandTop) - y;
+                pieces.add(Pair.of(rect, band.getSubimage(x, y, width, height)));
+            }
+        }
+        return pieces;
+    }
 
-        List<SaveTileTask> ioStream;
-        try (var images = result.imageStream) {
-            ioStream = images.flatMap(pair -> {
-                var coords = pair.getLeft();
-                var image = pair.getRight();
+    /**
+     * Tile all the requested levels for a single slice, running the level work on the given executor.
+     */
+    private void processSlice(BufferedImage image, Rectangle region, int[] pyramid, int minLevel, int maxLevel,
+                              TilerSink tilerSink, TilingJob job, Executor levelExecutor) {
+        try {
+            if (job.isCancelled()) {
+                return;
+            }
+            if (_cascadeLevels) {
+                tileSliceCascading(image, region, pyramid, minLevel, maxLevel, tilerSink, job, levelExecutor);
+                return;
+            }
+            var intStream = IntStream.rangeClosed(minLevel, maxLevel);
+            if (minLevel == 0 && maxLevel == (pyramid.length - 1)) {
+                intStream = intStream.map(index -> maxLevel - index);
+            }
+            // submit every level for this slice before waiting on any of them
+            var futures = intStream
+                    .mapToObj(level -> submitLevelForProcessing(image, region, level, pyramid[level], tilerSink.getLevelSink(level), job, levelExecutor))
+                    .collect(Collectors.toList());
+            for (var future : futures) {
                 try {
-                    var intStream = IntStream.rangeClosed(minLevel, maxLevel);
-                    if (minLevel == 0 && maxLevel == (pyramid.length - 1)) {
-                        intStream = intStream.map(index -> maxLevel - index);
-                    }
-                    return intStream
-                            .mapToObj(level -> submitLevelForProcessing(image, coords, pyramid[level], tilerSink.getLevelSink(level)))
-                            .flatMap(future -> {
-                                try {
-                                    return future.join();
-                                } catch (Exception e) {
-                                    log.error("execution exception", e);
-                                    _exceptionOccurred = true;
-                                    return Stream.empty();
-                                }
-                            });
-                } finally {
-                    if (image != null) {
-                        image.flush();
-                    }
+                    future.join();
+                } catch (Exception e) {
+                    log.error("execution exception", e);
+                    job.fail();
                 }
-            }).collect(Collectors.toList());
+            }
+        } finally {
+            if (image != null) {
+                image.flush();
+            }
         }
-        
+    }
+
+    /**
+     * The number of slices to decode at once.  Sequentially encoded images that will be read in bands are
+     * always decoded by a single reader, otherwise the configured parallelism is capped so the decoded slices
+     * fit in the decode memory budget.
+     */
+    private int getDecodeParallelism(ImageSource imageSource, int decodeSubsample, int sliceSize, int streamUnitRows, int bandUnitRows) throws IOException {
+        if (_decodeParallelism <= 1) {
+            return 1;
+        }
+        ImageInputStream iis = imageSource.openImageInputStream();
         try {
-            CompletableFuture.allOf(
-                ioStream.stream()
-                    .map(task -> CompletableFuture.runAsync(task, ioThreadPool))
-                    .collect(Collectors.toList())
-                    .toArray(CompletableFuture[]::new)
-            ).join();
-        } catch (Exception e) {
-            log.error("execution exception", e);
-            _exceptionOccurred = true;
+            ImageReader reader = createReader(iis);
+            // the streaming check reads the header again
+            reader.setInput(iis, false, false);
+            try {
+                int decodedWidth = (reader.getWidth(0) + decodeSubsample - 1) / decodeSubsample;
+                int ys = (int) Math.ceil((double) reader.getHeight(0) / ((double) sliceSize * decodeSubsample));
+                int bandRows = ScanlineReader.canStream(reader)
+                        ? getBandRows(reader, decodedWidth, sliceSize, streamUnitRows, ys, 2)
+                        : getBandRows(reader, decodedWidth, sliceSize, bandUnitRows, ys, 1);
+                if (bandRows > 0) {
+                    return 1;
+                }
+                long sliceBytes = (long) sliceSize * sliceSize * getBytesPerPixel(reader);
+                int parallelism = (int) Math.max(1, Math.min(_decodeParallelism, _decodeMemoryBudget / sliceBytes));
+                log.debug("getDecodeParallelism: decoding {} slices at a time", parallelism);
+                return parallelism;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
         }
     }
 
-    private Point getImageDimensions(byte[] imageBytes) throws IOException {
-        var bais = UnsynchronizedByteArrayInputStream.builder()
-                .setByteArray(imageBytes)
-                .setOffset(0)
-                .get();
+    /**
+     * Decode independent slices concurrently on the level thread pool, each with its own ImageReader over the
+     * shared image source.  Each slice task tiles its own levels inline, as it would otherwise be waiting on the
+     * same pool, and the number of decoded slices in memory is bounded by the parallelism.
+     */
+    private void processSlicesInParallel(ImageSource imageSource, Point dimensions, int decodeSubsample, int[] pyramid, int minLevel, int maxLevel,
+                                         Set<Point> slices, TilerSink tilerSink, TilingJob job, int parallelism) {
+        int w = dimensions.x;
+        int h = dimensions.y;
+        int sliceSize = job.getPlan().getSliceSize();
+        int sourceSliceSize = sliceSize * decodeSubsample;
+        var xs = (int) Math.ceil((double) w / (double) sourceSliceSize);
+        var ys = (int) Math.ceil((double) h / (double) sourceSliceSize);
+
+        Semaphore slicePermits = new Semaphore(parallelism);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < xs && !job.isCancelled(); ++i) {
+            for (int j = ys - 1; j >= 0 && !job.isCancelled(); --j) {
+                var p = new Point(i, j);
+                if (!slices.contains(p)) {
+                    continue;
+                }
+                slicePermits.acquireUninterruptibly();
+                try {
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            var sliceRect = TilingPlan.getSliceRect(p, w, h, sourceSliceSize);
+                            var slice = readSlice(imageSource, sliceRect, decodeSubsample, sliceSize, job.getCancellationToken());
+                            try {
+                                processSlice(slice.getImage(), sliceRect, pyramid, minLevel, maxLevel, tilerSink, job, MoreExecutors.directExecutor());
+                            } finally {
+                                _slicePool.release(slice.getPooled());
+                            }
+                        } catch (Exception e) {
+                            log.error("Exception occurred decoding slice " + p, e);
+                            job.fail();
+                        } finally {
+                            slicePermits.release();
+                        }
+                    }, job.getLevelExecutor()));
+                } catch (RejectedExecutionException e) {
+                    slicePermits.release();
+                    log.error("Level thread pool rejected slice", e);
+                    job.fail();
+                }
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    }
 
-        ImageInputStream iis = ImageIO.createImageInputStream(bais);
-        if (iis == null) {
-            throw new IOException("Failed to create ImageInputStream");
+    private BufferedImagePool.PooledImage readSlice(ImageSource imageSource, Rectangle sliceRect, int decodeSubsample, int sliceSize,
+                                                    CancellationToken cancellationToken) throws IOException {
+        ImageInputStream iis = imageSource.openImageInputStream();
+        try {
+            ImageReader reader = createReader(iis);
+            try (CancellationToken.Registration ignored = cancellationToken.onCancel(reader::abort)) {
+                var params = getSliceReadParam(reader, decodeSubsample);
+                params.setSourceRegion(sliceRect);
+                return _slicePool.read(reader, params, sliceSize, sliceSize);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
         }
+    }
+
+    private ImageReader createReader(ImageInputStream iis) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        ImageReader reader = readers.hasNext() ? DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers) : null;
+        if (reader == null) {
+            throw new IOException("No suitable image reader selected");
+        }
+        // formats with reduced resolution pages need to seek back to image 0 after finding them
+        reader.setInput(iis, !ImageReaderUtils.mayHaveReducedResolutions(reader), false);
+        return reader;
+    }
+
+    private Point getImageDimensions(ImageSource imageSource) throws IOException {
+        ImageInputStream iis = imageSource.openImageInputStream();
 
         try {
             Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
@@ -388,76 +908,128 @@ public class ImageTiler4 implements IImageTiler {
         }
     }
 
-    private static final class GetBufferedImageResult {
-        final Stream<Pair<Point, BufferedImage>> imageStream;
+    /**
+     * The decoded slices, and the slice pool buffers that have been decoded into but not released yet.  Closing the
+     * stream returns any that are left, eg when the job is cancelled part way through a band or after a slice has
+     * been read ahead.
+     */
+    private final class GetBufferedImageResult {
+        final Stream<Pair<Rectangle, BufferedImagePool.PooledImage>> imageStream;
+        private final Set<BufferedImage> unreleased;
+
+        GetBufferedImageResult(Stream<Pair<Rectangle, BufferedImagePool.PooledImage>> imageStream, Set<BufferedImage> unreleased) {
+            this.unreleased = unreleased;
+            this.imageStream = imageStream.onClose(() -> {
+                for (BufferedImage pooled : unreleased) {
+                    if (unreleased.remove(pooled)) {
+                        _slicePool.release(pooled);
+                    }
+                }
+            });
+        }
 
-        public GetBufferedImageResult(Stream<Pair<Point, BufferedImage>> imageStream) {
-            this.imageStream = imageStream;
+        void release(BufferedImagePool.PooledImage image) {
+            BufferedImage pooled = image.getPooled();
+            if (pooled != null && unreleased.remove(pooled)) {
+                _slicePool.release(pooled);
+            }
         }
     }
 
-    private GetBufferedImageResult getBufferedImagesSliced(byte[] imageBytes, Point dimensions) throws IOException {
-        var bais = UnsynchronizedByteArrayInputStream.builder()
-                .setByteArray(imageBytes)
-                .setOffset(0)
-                .get();
-
-        ImageInputStream iis = ImageIO.createImageInputStream(bais);
-        if (iis == null) {
-            throw new IOException("Failed to create ImageInputStream");
-        }
+    private GetBufferedImageResult getBufferedImagesSliced(ImageSource imageSource, Point dimensions, int decodeSubsample, int sliceSize,
+                                                           int bandUnitRows, Set<Point> wanted, CancellationToken cancellationToken) throws IOException {
+        ImageInputStream iis = imageSource.openImageInputStream();
 
         Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
-        if (!readers.hasNext()) {
-            throw new IOException("No image readers for image");
-        }
-
-        ImageReader reader = DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers);
+        ImageReader reader = readers.hasNext() ? DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers) : null;
         if (reader == null) {
+            // the stream may be holding a file open
+            iis.close();
             throw new IOException("No suitable image reader selected");
         }
-        
-        reader.setInput(iis, true, false);
 
-        var stream = Stream.<Point>builder();
+        reader.setInput(iis, true, false);
+        // abort the slice or band being decoded when the job is cancelled, until the stream is closed
+        CancellationToken.Registration abortOnCancel = cancellationToken.onCancel(reader::abort);
 
         int w = dimensions.x;
         int h = dimensions.y;
 
-        var segmentSize = SLICE_SIZE;
+        var segmentSize = sliceSize * decodeSubsample;
         var xs = (int) Math.ceil((double) w / (double) segmentSize);
         var ys = (int) Math.ceil((double) h / (double) segmentSize);
 
-        for (int i = 0; i < xs; ++i) {
-            for (int j = ys-1; j >= 0; --j) {
-                stream.accept(new Point(i, j));
-            }
-        }
+        int bandRows = getBandRows(reader, ceilDiv(w, decodeSubsample), sliceSize, bandUnitRows, ys, 1);
+        // BufferedImage doesn't override equals, so this is an identity set
+        Set<BufferedImage> unreleased = ConcurrentHashMap.newKeySet();
+        Stream<Pair<Rectangle, BufferedImagePool.PooledImage>> slices;
+        if (bandRows > 0) {
+            // Sequentially encoded but can't be streamed, read full width bands from the top so the rows above
+            // each band are only decoded once per band instead of once per slice column
+            int bandSize = bandRows * decodeSubsample;
+            int bands = ceilDiv(h, bandSize);
+            log.debug("getBufferedImagesSliced: reading {} bands of {} rows", bands, bandRows);
+            slices = IntStream.range(0, bands).boxed().flatMap(band -> {
+                Rectangle bandRect = getBandRect(band, bands, w, h, bandSize);
+                int topRow = (h - bandRect.y - 1) / segmentSize;
+                int bottomRow = (h - bandRect.y - bandRect.height) / segmentSize;
+                if (wanted.stream().noneMatch(p -> p.y >= bottomRow && p.y <= topRow)) {
+                    // none of the band's slices are planned, so it isn't decoded
+                    return Stream.empty();
+                }
 
-        return new GetBufferedImageResult(stream.build().map(p -> {
-            var params = reader.getDefaultReadParam();
+                var params = getSliceReadParam(reader, decodeSubsample);
+                params.setSourceRegion(bandRect);
+                BufferedImagePool.PooledImage pooledBand;
+                try {
+                    pooledBand = _slicePool.read(reader, params, ceilDiv(w, decodeSubsample), bandRows);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (pooledBand.getPooled() != null) {
+                    unreleased.add(pooledBand.getPooled());
+                }
 
-            int rectWidth = (p.x + 1) * segmentSize > w ? w - (p.x * segmentSize) : segmentSize;
-            int rectX = p.x * segmentSize;
+                List<Pair<Rectangle, BufferedImagePool.PooledImage>> bandSlices = cutBand(pooledBand.getImage(), bandRect, bandRect.y, decodeSubsample, sliceSize, wanted, w, h)
+                        .stream()
+                        .map(piece -> Pair.of(piece.getLeft(), new BufferedImagePool.PooledImage(piece.getRight(), null)))
+                        .collect(Collectors.toList());
+                // slices are processed in order, so the band can be reused once its last slice is done
+                var last = bandSlices.get(bandSlices.size() - 1);
+                bandSlices.set(bandSlices.size() - 1, Pair.of(last.getLeft(), new BufferedImagePool.PooledImage(last.getRight().getImage(), pooledBand.getPooled())));
+                return bandSlices.stream();
+            });
+        } else {
+            var stream = Stream.<Point>builder();
+            for (int i = 0; i < xs; ++i) {
+                for (int j = ys-1; j >= 0; --j) {
+                    var p = new Point(i, j);
+                    if (wanted.contains(p)) {
+                        stream.accept(p);
+                    }
+                }
+            }
 
-            int rectHeight = (p.y + 1) * segmentSize > h ? h - (p.y * segmentSize) : segmentSize;
-            int rectY = h - (p.y * segmentSize) - rectHeight;
+            slices = stream.build().map(p -> {
+                var params = getSliceReadParam(reader, decodeSubsample);
+                var sliceRect = TilingPlan.getSliceRect(p, w, h, segmentSize);
+                params.setSourceRegion(sliceRect);
 
-            // Safety check
-            if (rectHeight <= 0) {
-                throw new IllegalStateException(String.format(
-                    "Invalid slice dimensions: p.y=%d, h=%d, rectY=%d, rectHeight=%d, segmentSize=%d",
-                    p.y, h, rectY, rectHeight, segmentSize));
-            }
+                BufferedImagePool.PooledImage slice;
+                try {
+                    slice = _slicePool.read(reader, params, sliceSize, sliceSize);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                if (slice.getPooled() != null) {
+                    unreleased.add(slice.getPooled());
+                }
+                return Pair.of(sliceRect, slice);
+            });
+        }
 
-            params.setSourceRegion(new Rectangle(rectX, rectY, rectWidth, rectHeight));
-            
-            try {
-                return Pair.of(p, reader.read(0, params));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }).onClose(() -> {
+        return new GetBufferedImageResult(slices.onClose(() -> {
+            abortOnCancel.close();
             var input = reader.getInput();
             if (input instanceof Closeable) {
                 try {
@@ -467,77 +1039,173 @@ public class ImageTiler4 implements IImageTiler {
                 }
             }
             reader.dispose();
-        }));
+        }), unreleased);
+    }
+
+    private static ImageReadParam getSliceReadParam(ImageReader reader, int decodeSubsample) {
+        var params = reader.getDefaultReadParam();
+        if (decodeSubsample > 1) {
+            params.setSourceSubsampling(decodeSubsample, decodeSubsample, 0, 0);
+        }
+        return params;
     }
 
-    private CompletableFuture<Stream<SaveTileTask>> submitLevelForProcessing(BufferedImage bufferedImage, Point sliceCoords, int subSample, TilerSink.LevelSink levelSink) {
-        return CompletableFuture.supplyAsync(() -> {
+    private static int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+
+    /**
+     * How many decoded rows to put in each full width band, or 0 to read slice by slice.
+     *
+     * Formats that can't decode a region without decoding everything above it (baseline JPEG, PNG, GIF, BMP and
+     * stripped TIFF) are read in bands when a band of at least one unit of rows fits in the band budget.  Bands are
+     * as many whole slice rows as fit, or else a slice row halved until it fits, so a band never splits a unit.
+     *
+     * @param unitRows The decoded rows in a tile row of the finest level when streaming, or of the most zoomed out
+     *                 level when each band is read as a region
+     * @param ys The number of slice rows
+     * @param bandsHeld How many bands are decoded at once
+     */
+    private int getBandRows(ImageReader reader, int w, int sliceSize, int unitRows, int ys, int bandsHeld) {
+        long rowBytes;
+        try {
+            if (_maxBandBytes <= 0 || !isSequentiallyEncoded(reader)) {
+                return 0;
+            }
+            rowBytes = (long) w * getBytesPerPixel(reader) * bandsHeld;
+        } catch (IOException e) {
+            log.debug("getBandRows: couldn't inspect image, reading by slice", e);
+            return 0;
+        }
+        if (rowBytes * sliceSize <= _maxBandBytes) {
+            return (int) Math.min(ys, _maxBandBytes / (rowBytes * sliceSize)) * sliceSize;
+        }
+        int rows = sliceSize;
+        while (rows / 2 >= unitRows && (rows / 2) % unitRows == 0 && rowBytes * rows > _maxBandBytes) {
+            rows /= 2;
+        }
+        if (rowBytes * rows > _maxBandBytes) {
+            log.debug("getBandRows: full width band of {} rows exceeds the band budget, reading by slice", rows);
+            return 0;
+        }
+        return rows;
+    }
+
+    private static boolean isSequentiallyEncoded(ImageReader reader) throws IOException {
+        String format = reader.getFormatName().toLowerCase();
+        switch (format) {
+            case "jpeg":
+            case "jpg":
+            case "png":
+            case "gif":
+            case "bmp":
+                return true;
+            case "tif":
+            case "tiff":
+                return !reader.isImageTiled(0);
+            default:
+                return false;
+        }
+    }
+
+    private static int getBytesPerPixel(ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        if (type == null) {
+            return 4;
+        }
+        int bits = 0;
+        for (int size : type.getSampleModel().getSampleSize()) {
+            bits += size;
+        }
+        return Math.max(1, (bits + 7) / 8);
+    }
+
+    private CompletableFuture<Void> submitLevelForProcessing(BufferedImage bufferedImage, Rectangle sliceRegion, int level, int subSample, TilerSink.LevelSink levelSink, TilingJob job, Executor levelExecutor) {
+        return CompletableFuture.runAsync(() -> {
             try {
-                return tileImageAtSubSampleLevel(bufferedImage, sliceCoords, subSample, levelSink);
+                tileImageAtSubSampleLevel(bufferedImage, sliceRegion, level, subSample, levelSink, job);
             } catch (IOException e) {
-                _exceptionOccurred = true;
+                job.fail();
                 log.error("Exception occurred during tiling image task", e);
-                return Stream.empty();
             }
-        }, levelThreadPool);
+        }, levelExecutor);
     }
 
-    private Stream<SaveTileTask> tileImageAtSubSampleLevel(BufferedImage bufferedImage, Point sliceCoords, int subsample, TilerSink.LevelSink levelSink) throws IOException {
-        int srcHeight = bufferedImage.getHeight();
-        int srcWidth = bufferedImage.getWidth();
-
-        int height = (int) Math.ceil(((double) srcHeight) / ((double) subsample));
-        int width = (int) Math.ceil(((double) srcWidth) / ((double) subsample));
-        int rows = (int) Math.ceil(((double) height) / ((double) _tileSize));
-        int cols = (int) Math.ceil(((double) width) / ((double) _tileSize));
-
-        var resized = Scalr.resize(bufferedImage, width, height);
+    private void tileImageAtSubSampleLevel(BufferedImage bufferedImage, Rectangle sliceRegion, int level, int subsample, TilerSink.LevelSink levelSink, TilingJob job) throws IOException {
+        var resized = resizeToSubSampleLevel(bufferedImage, subsample);
 
-        List<SaveTileTask> saveTileTasks = splitIntoTiles(resized, sliceCoords, levelSink, cols, rows, subsample);
+        splitLevelIntoTiles(resized, sliceRegion, level, levelSink, subsample, job);
 
         if (resized != null && resized != bufferedImage) {
             resized.flush();
         }
-
-        return saveTileTasks.stream();
     }
 
-    private List<SaveTileTask> splitIntoTiles(BufferedImage strip, Point sliceCoords, TilerSink.LevelSink levelSink, int cols, int rows, int subsample) {
-        var result = new ArrayList<SaveTileTask>(cols * rows);
-
-        log.debug("splitIntoTiles: sliceCoords=({},{}), subsample={}, strip={}x{}, tiles={}x{}",
-                sliceCoords.x, sliceCoords.y, subsample, strip.getWidth(), strip.getHeight(), cols, rows);
-        // Calculate tile position based on actual pixel positions
-        int startCol;
-        int startRow;
-        if (SLICE_SIZE % subsample == 0) {
-            int sliceSizeAtLevel = SLICE_SIZE / subsample;
-            if (sliceSizeAtLevel % _tileSize == 0) {
-                int maxTilesPerSliceAtLevel = sliceSizeAtLevel / _tileSize;
-                startCol = sliceCoords.x * maxTilesPerSliceAtLevel;
-                startRow = sliceCoords.y * maxTilesPerSliceAtLevel;
-            } else if (sliceSizeAtLevel < _tileSize) {
-                log.warn("slice size {} at subsample {} is smaller than tile size {}", sliceSizeAtLevel, subsample, _tileSize);
-                startCol = sliceCoords.x;
-                startRow = sliceCoords.y;
+    /**
+     * Tile a slice for every requested level, finest first.  Where the zoom factor of a level is exactly double
+     * the level below it, the level is built by 2x2 box downsampling that level's pixels rather than resizing the
+     * whole slice again, so each source pixel is only resampled once no matter how many levels are produced.
+     * Levels that can't be cascaded (eg a custom ZoomFactorStrategy) fall back to resizing the slice.
+     */
+    private void tileSliceCascading(BufferedImage slice, Rectangle sliceRegion, int[] pyramid, int minLevel, int maxLevel, TilerSink tilerSink, TilingJob job, Executor levelExecutor) {
+        List<CompletableFuture<Void>> levelFutures = new ArrayList<>();
+
+        CompletableFuture<BufferedImage> finerLevel = null;
+        int finerSubsample = 0;
+        for (int level = maxLevel; level >= minLevel; level--) {
+            final int currentLevel = level;
+            final int subsample = pyramid[level];
+            final TilerSink.LevelSink levelSink = tilerSink.getLevelSink(level);
+
+            CompletableFuture<BufferedImage> levelImage;
+            if (finerLevel != null && subsample == finerSubsample * 2) {
+                levelImage = finerLevel.thenApplyAsync(ImageUtils::downsample2x, levelExecutor);
+            } else if (subsample == 1) {
+                levelImage = CompletableFuture.completedFuture(slice);
             } else {
-                log.warn("slice size {} at subsample {} is not evenly divisible by tile size {}", sliceSizeAtLevel, subsample, _tileSize);
-                double maxTilesPerSliceAtLevel = (double)sliceSizeAtLevel / (double)_tileSize;
-                startCol = (int)((double)sliceCoords.x * maxTilesPerSliceAtLevel);
-                startRow = (int)((double)sliceCoords.y * maxTilesPerSliceAtLevel);
-
+                levelImage = CompletableFuture.supplyAsync(() -> resizeToSubSampleLevel(slice, subsample), levelExecutor);
             }
-        } else {
-            log.warn("slice size {} is not evenly divisible by subsample {}", SLICE_SIZE, subsample);
-            double sliceSizeAtLevel = (double) SLICE_SIZE / (double) subsample;
-            double maxTilesPerSliceAtLevel = sliceSizeAtLevel / (double) _tileSize;
 
-            startCol = (int) ((double) sliceCoords.x * maxTilesPerSliceAtLevel);
-            startRow = (int) ((double) sliceCoords.y * maxTilesPerSliceAtLevel);
+            levelFutures.add(levelImage.thenAcceptAsync(image -> splitLevelIntoTiles(image, sliceRegion, currentLevel, levelSink, subsample, job), levelExecutor));
+
+            finerLevel = levelImage;
+            finerSubsample = subsample;
+        }
+
+        for (var future : levelFutures) {
+            try {
+                future.join();
+            } catch (Exception e) {
+                log.error("Exception occurred during cascading tiling image task", e);
+                job.fail();
+            }
         }
+    }
+
+    private BufferedImage resizeToSubSampleLevel(BufferedImage bufferedImage, int subsample) {
+        int height = (int) Math.ceil(((double) bufferedImage.getHeight()) / ((double) subsample));
+        int width = (int) Math.ceil(((double) bufferedImage.getWidth()) / ((double) subsample));
+
+        return Scalr.resize(bufferedImage, width, height);
+    }
+
+    private void splitLevelIntoTiles(BufferedImage levelImage, Rectangle sliceRegion, int level, TilerSink.LevelSink levelSink, int subsample, TilingJob job) {
+        int rows = (int) Math.ceil(((double) levelImage.getHeight()) / ((double) _tileSize));
+        int cols = (int) Math.ceil(((double) levelImage.getWidth()) / ((double) _tileSize));
+
+        splitIntoTiles(levelImage, sliceRegion, level, levelSink, cols, rows, subsample, job);
+    }
+
+    private void splitIntoTiles(BufferedImage strip, Rectangle sliceRegion, int level, TilerSink.LevelSink levelSink, int cols, int rows, int subsample, TilingJob job) {
+        log.debug("splitIntoTiles: sliceRegion={}, subsample={}, strip={}x{}, tiles={}x{}",
+                sliceRegion, subsample, strip.getWidth(), strip.getHeight(), cols, rows);
+        // Tile position of the slice from the plan, slices of power of 2 levels start on a tile boundary
+        Point startTile = job.getPlan().getTileOrigin(sliceRegion, level);
+        int startCol = startTile.x;
+        int startRow = startTile.y;
         final int stripHeight = strip.getHeight();
 
-        for (int col = 0; col < cols; col++) {
+        for (int col = 0; col < cols && !job.isCancelled(); col++) {
             int stripColOffset = col * _tileSize;
             if (stripColOffset >= strip.getWidth()) {
                 continue;
@@ -566,71 +1234,12 @@ public class ImageTiler4 implements IImageTiler {
 //                int rowOffset = y * _tileSize;
 //                int th = Math.min(_tileSize, strip.getHeight() - rowOffset);
 
-                BufferedImage tile = null;
-                if (tw > 0 && th > 0) {
-                    tile = strip.getSubimage(stripColOffset, rowOffset, tw, th);
-                }
-
-                BufferedImage destTile = createDestTile();
-                Graphics g = GRAPHICS_ENV.createGraphics(destTile);
-
-                if (_tileFormat == TileFormat.JPEG && tile != null) {
-                    g.setColor(_tileBackgroundColor);
-                    g.fillRect(0, 0, _tileSize, _tileSize);
-                }
-
-                if (tile != null) {
-                    // Align tile to bottom-left corner (partial tiles at top edge have padding at top)
-                    g.drawImage(tile, 0, _tileSize - th, null);
-                }
-                
-                g.dispose();
+                // Align tile to bottom-left corner (partial tiles at top edge have padding at top)
+                BufferedImage destTile = _tileBuilder.buildTile(strip, stripColOffset, rowOffset, tw, th);
 
                 int actualRow = startRow + y;
-                ByteSink tileSink = columnSink.getTileSink(actualRow);
-                result.add(new SaveTileTask(tileSink, destTile));
-            }
-        }
-        return result;
-    }
-
-    private BufferedImage createDestTile() {
-        BufferedImage destTile;
-
-        if (_tileFormat == TileFormat.PNG) {
-            destTile = new BufferedImage(_tileSize, _tileSize, BufferedImage.TYPE_4BYTE_ABGR);
-        } else {
-            destTile = new BufferedImage(_tileSize, _tileSize, BufferedImage.TYPE_3BYTE_BGR);
-        }
-        return destTile;
-    }
-
-    class SaveTileTask implements Runnable {
-        protected ByteSink tileSink;
-        protected BufferedImage image;
-
-        public SaveTileTask(ByteSink tileSink, BufferedImage image) {
-            this.tileSink = tileSink;
-            this.image = image;
-        }
-
-        public void run() {
-            try {
-                String format = _tileFormat == TileFormat.PNG ? "png" : "jpeg";
-                try (OutputStream tileStream = tileSink.openStream()) {
-                    if (!ImageIO.write(image, format, tileStream)) {
-                        _exceptionOccurred = true;
-                    }
-                }
-            } catch (Exception | Error ex) {
-                _exceptionOccurred = true;
-                log.error("Exception occurred saving file task", ex);
-            } finally {
-                if (image != null) {
-                    image.flush();
-                }
+                job.submit(level, columnSink, actualRow, destTile);
             }
         }
     }
 }
-
@@ -0,0 +1,553 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.BufferedImagePool;
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.DefaultImageReaderSelectionStrategy;
+import au.org.ala.images.util.ImageEncoder;
+import au.org.ala.images.util.ImageSource;
+import au.org.ala.images.util.ScanlineReader;
+import com.google.common.io.ByteSource;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streaming tiler that reads the source image one band of rows at a time, from the top, and builds every zoom
+ * level at once.
+ *
+ * - Each zoom level keeps a single row of pixel sums and one row of tiles, so apart from the band being decoded
+ *   memory use depends only on the image width and tile size, not its height
+ * - Each level is built from the sums of the nearest finer level whose zoom factor divides its own (or the source), so
+ *   every level is an exact box (area) average of the source pixels
+ * - Tile rows are written as soon as their last pixel row is complete
+ * - Baseline JPEG and non interlaced PNG are decoded once from the top by a {@link ScanlineReader}, and each band is
+ *   accumulated on the level executor while the next one is decoded
+ *
+ * Other formats are read a band at a time as source regions, with the next band decoded on the level executor while
+ * the current one is accumulated.  That suits tiled formats, but sequentially encoded ones that can't be streamed
+ * (progressive JPEG, interlaced PNG, GIF, BMP and stripped TIFF) decode every row above a band again for each band,
+ * so tiling them takes time quadratic in the height and ImageTiler4 is the better choice for large ones.
+ *
+ * Tiles use the same layout as ImageTiler4: row 0 at the bottom, partial tiles padded at the top and right.  They
+ * are built, encoded and deduplicated by the same {@link TileBuilder} and {@link TilingJob} code.
+ */
+public class ImageTiler5 implements IImageTiler {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageTiler5.class);
+
+    private int _tileSize = 256;
+    private TileFormat _tileFormat = TileFormat.JPEG;
+    private ImageEncoder _tileEncoder = new ImageEncoder();
+    private Color _tileBackgroundColor = Color.gray;
+    private ZoomFactorStrategy _zoomFactorStrategy = new DefaultZoomFactorStrategy(_tileSize);
+    private int _maxTilesInFlight = 512;
+    private boolean _memoryMapInput = true;
+    private int _bandHeight = 2048;
+    private boolean _fastJpegTiles = false;
+    private boolean _deduplicateTiles = false;
+    private int _dedupCacheSize = 1024;
+    private final TileBuilder _tileBuilder;
+    private final TileWriter _tileWriter;
+
+    private ExecutorService levelThreadPool;
+    private ExecutorService ioThreadPool;
+
+    static {
+        ImageIO.scanForPlugins();
+        IIORegistry.getDefaultInstance();
+        ImageIO.setUseCache(false);
+    }
+
+    public ImageTiler5(ImageTilerConfig config) {
+        if (config != null) {
+            ioThreadPool = config.getIoExecutor();
+            levelThreadPool = config.getLevelExecutor();
+            _tileSize = config.getTileSize();
+            _tileFormat = config.getTileFormat();
+            _tileEncoder = config.getTileEncoder();
+            _tileBackgroundColor = config.getTileBackgroundColor();
+            _zoomFactorStrategy = config.getZoomFactorStrategy();
+            _maxTilesInFlight = config.getMaxTilesInFlight();
+            _memoryMapInput = config.isMemoryMapInput();
+            _bandHeight = config.getStreamingBandHeight();
+            _fastJpegTiles = config.isFastJpegTiles();
+            _deduplicateTiles = config.isDeduplicateTiles();
+            _dedupCacheSize = config.getDedupCacheSize();
+        }
+        _tileBuilder = new TileBuilder(_tileSize, _tileFormat, _tileBackgroundColor, _maxTilesInFlight);
+        // levels are built row by row rather than from a plan, so they aren't reported to a level listener
+        _tileWriter = new TileWriter(_tileBuilder, _tileFormat, _tileEncoder, _fastJpegTiles, _maxTilesInFlight,
+                _deduplicateTiles, _dedupCacheSize, null);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imageInputStream, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imagePath, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imageSource, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    public ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel) throws IOException {
+        return tileImage(imageSource, tilerSink, minLevel, maxLevel, CancellationToken.NONE);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        byte[] imageBytes;
+        try (var inputStream = imageInputStream) {
+            imageBytes = IOUtils.toByteArray(inputStream);
+        }
+        return tileImage(ImageSource.of(imageBytes), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return tileImage(ImageSource.of(imagePath, _memoryMapInput), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
+
+    @Override
+    public ImageTilerResults tileImage(ByteSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        return tileImage(ImageSource.of(imageSource), tilerSink, minLevel, maxLevel, cancellationToken);
+    }
+
+    /**
+     * Tile an image until the cancellation token is cancelled.  Once it is, the band being decoded is aborted, no
+     * more rows are accumulated and the tiles waiting to be written are dropped.
+     *
+     * @throws java.util.concurrent.CancellationException If the token was cancelled, once the tiles already being
+     * written have finished
+     */
+    public ImageTilerResults tileImage(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, CancellationToken cancellationToken) throws IOException {
+        TilingJob job = new TilingJob(_tileWriter, cancellationToken, levelThreadPool, ioThreadPool);
+        int zoomLevels = startTiling(imageSource, tilerSink, minLevel, maxLevel, job);
+        cancellationToken.throwIfCancelled();
+
+        if (!job.isFailed()) {
+            return new ImageTilerResults(true, zoomLevels);
+        } else {
+            return new ImageTilerResults(false, 0);
+        }
+    }
+
+    private int startTiling(ImageSource imageSource, TilerSink tilerSink, int minLevel, int maxLevel, TilingJob job) throws IOException {
+        log.debug("tileImage");
+
+        if (minLevel < 0 || maxLevel < 0 || minLevel > maxLevel) {
+            throw new IllegalArgumentException("Invalid min/max levels");
+        }
+
+        ImageInputStream iis = imageSource.openImageInputStream();
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            ImageReader reader = readers.hasNext() ? DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers) : null;
+            if (reader == null) {
+                throw new IOException("No suitable image reader selected");
+            }
+            // a streamed JPEG's header is read again from the start of the stream
+            reader.setInput(iis, false, false);
+
+            try {
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+
+                int[] pyramid = _zoomFactorStrategy.getZoomFactors(h, w);
+                int zoomLevels = pyramid.length;
+                int finalMaxLevel = Math.min(maxLevel, zoomLevels - 1);
+                if (minLevel > finalMaxLevel) {
+                    log.debug("tileImage: asked for levels {} to {}, but only {} levels available", minLevel, maxLevel, zoomLevels);
+                    return zoomLevels;
+                }
+
+                List<LevelBuilder> levels = createLevelBuilders(pyramid, minLevel, finalMaxLevel, w, h, hasAlpha(reader), tilerSink);
+                try (CancellationToken.Registration ignored = job.getCancellationToken().onCancel(reader::abort)) {
+                    if (ScanlineReader.canStream(reader)) {
+                        streamBands(reader, w, h, levels, job);
+                    } else {
+                        readBands(reader, w, h, levels, job);
+                    }
+                } finally {
+                    job.awaitCompletion();
+                }
+
+                log.debug("tileImage: all tiles completed");
+                return zoomLevels;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Create a builder for each requested level, finest first, and link each one to the nearest finer level it can
+     * be built from.
+     */
+    private List<LevelBuilder> createLevelBuilders(int[] pyramid, int minLevel, int maxLevel, int w, int h, boolean hasAlpha, TilerSink tilerSink) {
+        List<LevelBuilder> levels = new ArrayList<>();
+        for (int level = maxLevel; level >= minLevel; level--) {
+            int subsample = pyramid[level];
+            TilerSink.LevelSink levelSink = tilerSink.getLevelSink(level, (w + subsample - 1) / subsample, (h + subsample - 1) / subsample);
+            levels.add(new LevelBuilder(level, subsample, w, h, hasAlpha, levelSink));
+        }
+        levels.sort((a, b) -> Integer.compare(a.subsample, b.subsample));
+
+        for (int i = 0; i < levels.size(); i++) {
+            LevelBuilder level = levels.get(i);
+            LevelBuilder parent = null;
+            for (int j = i - 1; j >= 0 && parent == null; j--) {
+                LevelBuilder candidate = levels.get(j);
+                if (candidate.subsample < level.subsample && level.subsample % candidate.subsample == 0) {
+                    parent = candidate;
+                }
+            }
+            level.setParent(parent);
+        }
+        return levels;
+    }
+
+    /**
+     * Whether the decoded image can have transparent pixels, assuming it can if the reader won't say.
+     */
+    private static boolean hasAlpha(ImageReader reader) throws IOException {
+        ImageTypeSpecifier type = reader.getRawImageType(0);
+        return type == null || type.getColorModel().hasAlpha();
+    }
+
+    /**
+     * Decode the image once from the top, accumulating each band on the level executor while the next one is decoded.
+     */
+    private void streamBands(ImageReader reader, int w, int h, List<LevelBuilder> levels, TilingJob job) {
+        List<LevelBuilder> sourceChildren = getSourceChildren(levels);
+        int bandHeight = Math.max(1, _bandHeight);
+        int[] bandHeights = new int[(h + bandHeight - 1) / bandHeight];
+        Arrays.fill(bandHeights, bandHeight);
+        bandHeights[bandHeights.length - 1] = h - (bandHeights.length - 1) * bandHeight;
+
+        // the reader decodes into two band buffers, a band's buffer is reused for the band after next, so the
+        // previous band has to be accumulated before the next one is handed over
+        BufferedImagePool pool = new BufferedImagePool(2);
+        int[] row = new int[w];
+        AtomicReference<CompletableFuture<Void>> accumulating = new AtomicReference<>(CompletableFuture.completedFuture(null));
+        try {
+            ScanlineReader.read(reader, reader.getDefaultReadParam(), bandHeights, pool, (band, y) -> {
+                accumulating.get().join();
+                if (job.isCancelled()) {
+                    reader.abort();
+                    return;
+                }
+                accumulating.set(CompletableFuture.runAsync(() -> accumulateBand(band, row, sourceChildren, job), levelThreadPool));
+            });
+        } catch (IOException e) {
+            log.error("Exception occurred streaming image bands", e);
+            job.fail();
+        } finally {
+            try {
+                accumulating.get().join();
+            } catch (CompletionException e) {
+                log.error("Exception occurred accumulating image band", e);
+                job.fail();
+            }
+        }
+
+        finishLevels(levels, job);
+    }
+
+    /**
+     * Read the image a band at a time as source regions, decoding the next band on the level executor while the
+     * current band is accumulated.
+     */
+    private void readBands(ImageReader reader, int w, int h, List<LevelBuilder> levels, TilingJob job) {
+        List<LevelBuilder> sourceChildren = getSourceChildren(levels);
+        int bandHeight = Math.max(1, _bandHeight);
+        int[] row = new int[w];
+        CompletableFuture<BufferedImage> nextBand = readBand(reader, 0, Math.min(bandHeight, h), w);
+        try {
+            for (int bandY = 0; bandY < h && !job.isCancelled(); bandY += bandHeight) {
+                BufferedImage band;
+                try {
+                    band = nextBand.join();
+                } catch (CompletionException e) {
+                    log.error("Exception occurred reading image band at row " + bandY, e);
+                    job.fail();
+                    return;
+                }
+                if (job.isCancelled()) {
+                    // an aborted band can be incomplete
+                    band.flush();
+                    break;
+                }
+                int nextBandY = bandY + bandHeight;
+                if (nextBandY < h) {
+                    // decode the next band while this one is accumulated
+                    nextBand = readBand(reader, nextBandY, Math.min(bandHeight, h - nextBandY), w);
+                }
+
+                accumulateBand(band, row, sourceChildren, job);
+                band.flush();
+            }
+        } finally {
+            // the reader is disposed once we return, so a band still being decoded has to finish first
+            if (!nextBand.isDone()) {
+                reader.abort();
+            }
+            try {
+                nextBand.join();
+            } catch (CompletionException e) {
+                log.debug("Abandoned image band failed", e);
+            }
+        }
+
+        finishLevels(levels, job);
+    }
+
+    private static List<LevelBuilder> getSourceChildren(List<LevelBuilder> levels) {
+        List<LevelBuilder> sourceChildren = new ArrayList<>();
+        for (LevelBuilder level : levels) {
+            if (level.parent == null) {
+                sourceChildren.add(level);
+            }
+        }
+        return sourceChildren;
+    }
+
+    /**
+     * Flush any partial level rows, finest first so each parent feeds its children before they flush.
+     */
+    private static void finishLevels(List<LevelBuilder> levels, TilingJob job) {
+        if (job.isCancelled()) {
+            return;
+        }
+        for (LevelBuilder level : levels) {
+            level.finish(job);
+        }
+    }
+
+    private void accumulateBand(BufferedImage band, int[] row, List<LevelBuilder> sourceChildren, TilingJob job) {
+        for (int y = 0; y < band.getHeight() && !job.isCancelled(); y++) {
+            readRow(band, y, row);
+            for (LevelBuilder child : sourceChildren) {
+                child.addSourceRow(row, job);
+            }
+        }
+    }
+
+    /**
+     * Read a row of a band as ARGB pixels.  8 bit sRGB bands, which is what JPEG and most PNG decode to, are read
+     * straight from the raster's data buffer like TileBuilder does, anything else goes through the colour model.
+     */
+    private static void readRow(BufferedImage band, int y, int[] row) {
+        WritableRaster raster = band.getRaster();
+        ColorModel cm = band.getColorModel();
+        if (!(raster.getSampleModel() instanceof PixelInterleavedSampleModel) || !(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(cm instanceof ComponentColorModel) || !cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied()) {
+            band.getRGB(0, y, row.length, 1, row, 0, row.length);
+            return;
+        }
+        PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int pixelStride = model.getPixelStride();
+        int[] offsets = model.getBandOffsets();
+        // the raster may be a child (sub image) of a larger raster
+        int base = ((DataBufferByte) raster.getDataBuffer()).getOffset()
+                + (y - raster.getSampleModelTranslateY()) * model.getScanlineStride() - raster.getSampleModelTranslateX() * pixelStride;
+        int r = base + offsets[0];
+        int g = base + offsets[1];
+        int b = base + offsets[2];
+        if (cm.hasAlpha()) {
+            int a = base + offsets[3];
+            for (int x = 0, p = 0; x < row.length; x++, p += pixelStride) {
+                row[x] = ((data[a + p] & 0xff) << 24) | ((data[r + p] & 0xff) << 16) | ((data[g + p] & 0xff) << 8) | (data[b + p] & 0xff);
+            }
+        } else {
+            for (int x = 0, p = 0; x < row.length; x++, p += pixelStride) {
+                row[x] = 0xff000000 | ((data[r + p] & 0xff) << 16) | ((data[g + p] & 0xff) << 8) | (data[b + p] & 0xff);
+            }
+        }
+    }
+
+    private CompletableFuture<BufferedImage> readBand(ImageReader reader, int y, int height, int w) {
+        return CompletableFuture.supplyAsync(() -> {
+            var params = reader.getDefaultReadParam();
+            params.setSourceRegion(new Rectangle(0, y, w, height));
+            try {
+                return reader.read(0, params);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, levelThreadPool);
+    }
+
+    /**
+     * Accumulates one zoom level.  Pixels are kept as per channel sums of the source pixels they cover so that
+     * coarser levels can be built exactly from finer ones, including the partial blocks at the right and bottom.
+     */
+    private final class LevelBuilder {
+        final int level;
+        final int subsample;
+        final TilerSink.LevelSink levelSink;
+        final List<LevelBuilder> children = new ArrayList<>();
+
+        final int levelWidth;
+        final int levelHeight;
+        final int tileRows;
+        final int tileCols;
+        // source columns covered by each level column
+        final int[] columnWeights;
+
+        // the level this one is built from, or null to build from the source rows
+        LevelBuilder parent;
+        int ratio;
+
+        // sums of the parent rows accumulated into the current level row, 4 channels per pixel
+        final long[] sums;
+        int accumulatedParentRows = 0;
+        int accumulatedSourceRows = 0;
+
+        // the current row of tiles, the pixels of tileRowImage as ARGB, or RGB with the alpha ignored
+        final BufferedImage tileRowImage;
+        final int[] tileRowPixels;
+        int levelY = 0;
+
+        LevelBuilder(int level, int subsample, int w, int h, boolean hasAlpha, TilerSink.LevelSink levelSink) {
+            this.level = level;
+            this.subsample = subsample;
+            this.levelSink = levelSink;
+            this.levelWidth = (w + subsample - 1) / subsample;
+            this.levelHeight = (h + subsample - 1) / subsample;
+            this.tileRows = (levelHeight + _tileSize - 1) / _tileSize;
+            this.tileCols = (levelWidth + _tileSize - 1) / _tileSize;
+            this.columnWeights = new int[levelWidth];
+            for (int x = 0; x < levelWidth; x++) {
+                columnWeights[x] = Math.min(subsample, w - x * subsample);
+            }
+            this.sums = new long[levelWidth * 4];
+            // opaque rows can be copied straight into JPEG tiles rather than drawn onto the background
+            this.tileRowImage = new BufferedImage(levelWidth, _tileSize, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            this.tileRowPixels = ((DataBufferInt) tileRowImage.getRaster().getDataBuffer()).getData();
+        }
+
+        void setParent(LevelBuilder parent) {
+            this.parent = parent;
+            if (parent == null) {
+                ratio = subsample;
+            } else {
+                ratio = subsample / parent.subsample;
+                parent.children.add(this);
+            }
+        }
+
+        void addSourceRow(int[] argb, TilingJob job) {
+            for (int x = 0; x < argb.length; x++) {
+                int pixel = argb[x];
+                int i = (x / ratio) * 4;
+                sums[i] += (pixel >>> 24);
+                sums[i + 1] += (pixel >>> 16) & 0xff;
+                sums[i + 2] += (pixel >>> 8) & 0xff;
+                sums[i + 3] += pixel & 0xff;
+            }
+            accumulatedSourceRows++;
+            if (++accumulatedParentRows == ratio) {
+                completeRow(job);
+            }
+        }
+
+        void addParentRow(long[] parentSums, int parentSourceRows, TilingJob job) {
+            int length = parentSums.length / 4;
+            for (int x = 0; x < length; x++) {
+                int i = (x / ratio) * 4;
+                int p = x * 4;
+                sums[i] += parentSums[p];
+                sums[i + 1] += parentSums[p + 1];
+                sums[i + 2] += parentSums[p + 2];
+                sums[i + 3] += parentSums[p + 3];
+            }
+            accumulatedSourceRows += parentSourceRows;
+            if (++accumulatedParentRows == ratio) {
+                completeRow(job);
+            }
+        }
+
+        void finish(TilingJob job) {
+            if (accumulatedParentRows > 0) {
+                completeRow(job);
+            }
+        }
+
+        private void completeRow(TilingJob job) {
+            for (LevelBuilder child : children) {
+                child.addParentRow(sums, accumulatedSourceRows, job);
+            }
+
+            // level row levelY belongs to tile row r, counted from the bottom
+            int tileRow = (levelHeight - 1 - levelY) / _tileSize;
+            int tileRowTop = levelHeight - (tileRow + 1) * _tileSize;
+            int offset = (levelY - tileRowTop) * levelWidth;
+            for (int x = 0; x < levelWidth; x++) {
+                long count = (long) columnWeights[x] * accumulatedSourceRows;
+                long half = count / 2;
+                int i = x * 4;
+                int a = (int) ((sums[i] + half) / count);
+                int r = (int) ((sums[i + 1] + half) / count);
+                int g = (int) ((sums[i + 2] + half) / count);
+                int b = (int) ((sums[i + 3] + half) / count);
+                tileRowPixels[offset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+
+            Arrays.fill(sums, 0);
+            accumulatedParentRows = 0;
+            accumulatedSourceRows = 0;
+
+            if (levelY == levelHeight - tileRow * _tileSize - 1) {
+                writeTileRow(tileRow, job);
+            }
+            levelY++;
+        }
+
+        private void writeTileRow(int tileRow, TilingJob job) {
+            // the top row of tiles can be partial, its level rows are at the bottom of the tile row
+            int th = Math.min(_tileSize, levelHeight - tileRow * _tileSize);
+            for (int col = 0; col < tileCols && !job.isCancelled(); col++) {
+                int x = col * _tileSize;
+                int tw = Math.min(_tileSize, levelWidth - x);
+
+                BufferedImage tile = _tileBuilder.buildTile(tileRowImage, x, _tileSize - th, tw, th);
+                job.submit(level, levelSink.getColumnSink(col, 0, 1), tileRow, tile);
+            }
+            log.trace("writeTileRow: level {} row {} written", level, tileRow);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package au.org.ala.images.tiling;
 
+import au.org.ala.images.util.ImageEncoder;
+
 import java.awt.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -15,6 +17,26 @@ public class ImageTilerConfig {
     private TileFormat _tileFormat = TileFormat.JPEG;
     private Color _tileBackgroundColor = new Color(221, 221, 221);
     private ZoomFactorStrategy _zoomFactorStrategy = new DefaultZoomFactorStrategy(_tileSize);
+    private boolean _cascadeLevels = false;
+    private int _maxTilesInFlight = 512;
+    private boolean _memoryMapInput = true;
+    private long _maxBandBytes = 256L * 1024 * 1024;
+    private int _streamingBandHeight = 2048;
+    private int _decodeParallelism = 1;
+    private long _decodeMemoryBudget = 1024L * 1024 * 1024;
+    private long _sliceMemoryBudget = 256L * 1024 * 1024;
+    private int _slicePoolSize = 2;
+    private ImageEncoder _tileEncoder = new ImageEncoder();
+    private boolean _fastJpegTiles = false;
+    private boolean _deduplicateTiles = false;
+    private int _dedupCacheSize = 1024;
+    private boolean _lowZoomFirst = false;
+    private LevelListener _levelListener;
+    private int _lazyRegionTiles = 4;
+    private long _lazyRegionCacheBudget = 256L * 1024 * 1024;
+    private long _prefetchCacheBudget = 64L * 1024 * 1024;
+    private int _prefetchThreads = 1;
+    private int _prefetchQueueSize = 256;
 
     public ImageTilerConfig() {
         _ioExecutor = Executors.newFixedThreadPool(_ioThreads);
@@ -74,6 +96,140 @@ public class ImageTilerConfig {
     public ZoomFactorStrategy getZoomFactorStrategy() { return _zoomFactorStrategy; }
     public void setZoomFactorStrategy(ZoomFactorStrategy strategy) { _zoomFactorStrategy = strategy; }
 
+    /**
+     * When true, tilers that support it build each zoom level by 2x2 box downsampling the level below it
+     * instead of resizing the full resolution slice once per level.
+     */
+    public boolean isCascadeLevels() { return _cascadeLevels; }
+    public void setCascadeLevels(boolean cascadeLevels) { _cascadeLevels = cascadeLevels; }
+
+    /**
+     * The maximum number of rendered tiles that may be waiting on the io executor at once.  Tile rendering blocks
+     * when this is reached, so the io and level executors should be separate pools.
+     */
+    public int getMaxTilesInFlight() { return _maxTilesInFlight; }
+    public void setMaxTilesInFlight(int maxTilesInFlight) { _maxTilesInFlight = maxTilesInFlight; }
+
+    /**
+     * When tiling a file, memory map it rather than reading it through a file ImageInputStream.
+     */
+    public boolean isMemoryMapInput() { return _memoryMapInput; }
+    public void setMemoryMapInput(boolean memoryMapInput) { _memoryMapInput = memoryMapInput; }
+
+    /**
+     * The most bytes that tilers may hold in full width bands when decoding sequentially encoded
+     * images (eg baseline JPEG or PNG).  Baseline JPEG and PNG are decoded in a single pass holding two bands at a
+     * time.  0 disables band reads.
+     */
+    public long getMaxBandBytes() { return _maxBandBytes; }
+    public void setMaxBandBytes(long maxBandBytes) { _maxBandBytes = maxBandBytes; }
+
+    /**
+     * The number of source rows the streaming tiler (ImageTiler5) decodes at a time.
+     */
+    public int getStreamingBandHeight() { return _streamingBandHeight; }
+    public void setStreamingBandHeight(int bandHeight) { _streamingBandHeight = bandHeight; }
+
+    /**
+     * The maximum number of image slices to decode concurrently, each with its own ImageReader.  1 decodes slices
+     * one at a time.  Slices are decoded on the level executor, so it needs at least this many threads to benefit.
+     */
+    public int getDecodeParallelism() { return _decodeParallelism; }
+    public void setDecodeParallelism(int decodeParallelism) { _decodeParallelism = decodeParallelism; }
+
+    /**
+     * The memory, in bytes, that concurrently decoded slices may use.  Caps the decode parallelism at the number
+     * of full size decoded slices that fit.
+     */
+    public long getDecodeMemoryBudget() { return _decodeMemoryBudget; }
+    public void setDecodeMemoryBudget(long decodeMemoryBudget) { _decodeMemoryBudget = decodeMemoryBudget; }
+
+    /**
+     * The memory, in bytes, that a single decoded slice may use.  Slices are the largest tile size x 2^k square
+     * that fits, given the image's bands and bit depth, so the default gives 8192 pixel RGB and ABGR slices.
+     */
+    public long getSliceMemoryBudget() { return _sliceMemoryBudget; }
+    public void setSliceMemoryBudget(long sliceMemoryBudget) { _sliceMemoryBudget = sliceMemoryBudget; }
+
+    /**
+     * The number of idle decoded slice images each tiler keeps for reuse by later slices and images, 0 to allocate
+     * a new image for every slice.
+     */
+    public int getSlicePoolSize() { return _slicePoolSize; }
+    public void setSlicePoolSize(int slicePoolSize) { _slicePoolSize = slicePoolSize; }
+
+    /**
+     * The JPEG and PNG encoder settings for tiles.
+     */
+    public ImageEncoder getTileEncoder() { return _tileEncoder; }
+    public void setTileEncoder(ImageEncoder tileEncoder) { _tileEncoder = tileEncoder; }
+
+    /**
+     * Encode JPEG tiles with {@link au.org.ala.images.util.FastJpegEncoder} instead of ImageIO.  Only the tile
+     * encoder's JPEG quality applies, tiles are always baseline 4:2:0 with the standard Huffman tables.
+     */
+    public boolean isFastJpegTiles() { return _fastJpegTiles; }
+    public void setFastJpegTiles(boolean fastJpegTiles) { _fastJpegTiles = fastJpegTiles; }
+
+    /**
+     * Detect tiles with the same pixels as an earlier tile of the image (typically blank background) and store
+     * them as links to that tile where the sink supports it, or else write the earlier tile's bytes without
+     * encoding them again.
+     */
+    public boolean isDeduplicateTiles() { return _deduplicateTiles; }
+    public void setDeduplicateTiles(boolean deduplicateTiles) { _deduplicateTiles = deduplicateTiles; }
+
+    /**
+     * The number of distinct tiles, and their encoded bytes, remembered per image for deduplication.
+     */
+    public int getDedupCacheSize() { return _dedupCacheSize; }
+    public void setDedupCacheSize(int dedupCacheSize) { _dedupCacheSize = dedupCacheSize; }
+
+    /**
+     * Write the most zoomed out levels first, so an image can be browsed before its detailed levels are done.
+     * The levels tiled from slices are then tiled one level per pass, decoding the source image once per level with
+     * the reader subsampling to the level's resolution, so the tiles can differ slightly from the default order.
+     */
+    public boolean isLowZoomFirst() { return _lowZoomFirst; }
+    public void setLowZoomFirst(boolean lowZoomFirst) { _lowZoomFirst = lowZoomFirst; }
+
+    /**
+     * Notified as each level of an image has been completely written, or null.
+     */
+    public LevelListener getLevelListener() { return _levelListener; }
+    public void setLevelListener(LevelListener levelListener) { _levelListener = levelListener; }
+
+    /**
+     * The width and height, in tiles, of the regions {@link LazyTileRenderer} decodes and caches at a time.
+     */
+    public int getLazyRegionTiles() { return _lazyRegionTiles; }
+    public void setLazyRegionTiles(int lazyRegionTiles) { _lazyRegionTiles = lazyRegionTiles; }
+
+    /**
+     * The approximate number of bytes of decoded regions {@link LazyTileRenderer} keeps, least recently used first
+     * out.
+     */
+    public long getLazyRegionCacheBudget() { return _lazyRegionCacheBudget; }
+    public void setLazyRegionCacheBudget(long lazyRegionCacheBudget) { _lazyRegionCacheBudget = lazyRegionCacheBudget; }
+
+    /**
+     * The approximate number of bytes of encoded tiles {@link TilePrefetcher} keeps.
+     */
+    public long getPrefetchCacheBudget() { return _prefetchCacheBudget; }
+    public void setPrefetchCacheBudget(long prefetchCacheBudget) { _prefetchCacheBudget = prefetchCacheBudget; }
+
+    /**
+     * The number of background threads {@link TilePrefetcher} renders likely next tiles with.
+     */
+    public int getPrefetchThreads() { return _prefetchThreads; }
+    public void setPrefetchThreads(int prefetchThreads) { _prefetchThreads = prefetchThreads; }
+
+    /**
+     * The number of tiles waiting to be prefetched before the oldest are dropped.
+     */
+    public int getPrefetchQueueSize() { return _prefetchQueueSize; }
+    public void setPrefetchQueueSize(int prefetchQueueSize) { _prefetchQueueSize = prefetchQueueSize; }
+
     public ExecutorService getIoExecutor() {
         return _ioExecutor;
     }
@@ -0,0 +1,330 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.DefaultImageReaderSelectionStrategy;
+import au.org.ala.images.util.ImageEncoder;
+import au.org.ala.images.util.ImageReaderUtils;
+import au.org.ala.images.util.ImageSource;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.imgscalr.Scalr;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Renders single tiles on demand, straight from the source image, for images that are viewed too rarely to be
+ * worth tiling up front.
+ *
+ * Tiles have the same addresses, size and padding as those written by {@link ImageTiler4}: the pyramid comes from
+ * the configured {@link ZoomFactorStrategy}, row 0 is at the bottom of the level and partial tiles at the top edge
+ * are padded at the top.  Instead of decoding each tile's area on its own, a region of several tiles square around
+ * the tile is decoded (using the reader's subsampling, and reduced resolution pages where the source has them) and
+ * kept in an LRU cache, so a viewer requesting the neighbouring tiles is served from a single decode.
+ *
+ * This class is thread safe.  Concurrent requests for tiles in the same region wait for one decode.
+ */
+public class LazyTileRenderer {
+
+    private static final Logger log = LoggerFactory.getLogger(LazyTileRenderer.class);
+
+    private final int _tileSize;
+    private final TileFormat _tileFormat;
+    private final ZoomFactorStrategy _zoomFactorStrategy;
+    private final ImageEncoder _tileEncoder;
+    private final boolean _memoryMapInput;
+    private final int _regionTiles;
+    private final TileBuilder _tileBuilder;
+    private final Cache<String, SourceInfo> _sources;
+    private final Cache<RegionKey, BufferedImage> _regions;
+
+    static {
+        ImageIO.scanForPlugins();
+        ImageIO.setUseCache(false);
+    }
+
+    public LazyTileRenderer(ImageTilerConfig config) {
+        _tileSize = config.getTileSize();
+        _tileFormat = config.getTileFormat();
+        _zoomFactorStrategy = config.getZoomFactorStrategy();
+        _tileEncoder = config.getTileEncoder();
+        _memoryMapInput = config.isMemoryMapInput();
+        _regionTiles = Math.max(1, config.getLazyRegionTiles());
+        _tileBuilder = new TileBuilder(_tileSize, _tileFormat, config.getTileBackgroundColor(), 64);
+        _sources = CacheBuilder.newBuilder().maximumSize(1024).build();
+        _regions = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, config.getLazyRegionCacheBudget()))
+                .weigher((RegionKey key, BufferedImage region) -> (int) Math.min(Integer.MAX_VALUE, (long) region.getWidth() * region.getHeight() * 4))
+                .build();
+    }
+
+    /**
+     * The number of zoom levels in the image's pyramid.
+     *
+     * @param sourceId Identifies the image in the caches, it must change if the image does
+     */
+    public int getZoomLevels(String sourceId, ImageSource source) throws IOException {
+        return getSourceInfo(sourceId, source).pyramid.length;
+    }
+
+    /**
+     * Render and encode a tile of an image file, using its absolute path to identify it in the caches.
+     *
+     * @return The encoded tile, or null if there is no such tile in the pyramid
+     */
+    public byte[] renderTile(Path imagePath, int level, int col, int row) throws IOException {
+        return renderTile(imagePath.toAbsolutePath().toString(), ImageSource.of(imagePath, _memoryMapInput), level, col, row);
+    }
+
+    /**
+     * Render and encode a tile in the configured tile format.
+     *
+     * @param sourceId Identifies the image in the caches, it must change if the image does
+     * @return The encoded tile, or null if there is no such tile in the pyramid
+     */
+    public byte[] renderTile(String sourceId, ImageSource source, int level, int col, int row) throws IOException {
+        return renderTile(sourceId, source, level, col, row, CancellationToken.NONE);
+    }
+
+    /**
+     * Render and encode a tile until the cancellation token is cancelled, eg because a prefetch is no longer
+     * wanted.  Cancelling the token aborts the decode of the tile's region.
+     *
+     * @param sourceId Identifies the image in the caches, it must change if the image does
+     * @return The encoded tile, or null if there is no such tile in the pyramid
+     * @throws java.util.concurrent.CancellationException If the token was cancelled
+     */
+    public byte[] renderTile(String sourceId, ImageSource source, int level, int col, int row, CancellationToken cancellationToken) throws IOException {
+        BufferedImage tile = buildTile(sourceId, source, level, col, row, cancellationToken);
+        if (tile == null) {
+            return null;
+        }
+        try {
+            String format = _tileFormat == TileFormat.PNG ? "png" : "jpeg";
+            ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+            if (!_tileEncoder.write(tile, format, out)) {
+                throw new IOException("No image writer for " + format + " tiles");
+            }
+            return out.toByteArray();
+        } finally {
+            _tileBuilder.release(tile);
+        }
+    }
+
+    /**
+     * Render a tile without encoding it.
+     *
+     * @param sourceId Identifies the image in the caches, it must change if the image does
+     * @return The tile image, or null if there is no such tile in the pyramid
+     */
+    public BufferedImage renderTileImage(String sourceId, ImageSource source, int level, int col, int row) throws IOException {
+        return buildTile(sourceId, source, level, col, row, CancellationToken.NONE);
+    }
+
+    /**
+     * Forget everything cached for an image, eg because it has been replaced.
+     */
+    public void invalidate(String sourceId) {
+        _sources.invalidate(sourceId);
+        _regions.asMap().keySet().removeIf(key -> key.sourceId.equals(sourceId));
+    }
+
+    private BufferedImage buildTile(String sourceId, ImageSource source, int level, int col, int row, CancellationToken cancellationToken) throws IOException {
+        SourceInfo info = getSourceInfo(sourceId, source);
+        if (level < 0 || level >= info.pyramid.length) {
+            return null;
+        }
+        int subsample = info.pyramid[level];
+        int levelWidth = ceilDiv(info.width, subsample);
+        int levelHeight = ceilDiv(info.height, subsample);
+        if (col < 0 || row < 0 || col >= ceilDiv(levelWidth, _tileSize) || row >= ceilDiv(levelHeight, _tileSize)) {
+            return null;
+        }
+
+        RegionKey key = new RegionKey(sourceId, level, col / _regionTiles, row / _regionTiles);
+        Rectangle bounds = getRegionBounds(levelWidth, levelHeight, key.regionCol, key.regionRow);
+        BufferedImage region;
+        while (true) {
+            try {
+                region = get(_regions, key, () -> decodeRegion(source, info, subsample, bounds, cancellationToken));
+                break;
+            } catch (CancellationException e) {
+                // the decode this request waited for belonged to a cancelled request, decode it again for this one
+                cancellationToken.throwIfCancelled();
+            }
+        }
+
+        // the same tile position as ImageTiler4.splitIntoTiles
+        int x = col * _tileSize;
+        int tw = Math.min(_tileSize, levelWidth - x);
+        int y;
+        int th;
+        if ((row + 1) * _tileSize > levelHeight) {
+            y = 0;
+            th = levelHeight - (row * _tileSize);
+        } else {
+            y = levelHeight - (row + 1) * _tileSize;
+            th = _tileSize;
+        }
+        return _tileBuilder.buildTile(region, x - bounds.x, y - bounds.y, tw, th);
+    }
+
+    /**
+     * The area of a level covered by a region, which like the tiles is counted in rows up from the bottom.
+     */
+    private Rectangle getRegionBounds(int levelWidth, int levelHeight, int regionCol, int regionRow) {
+        int span = _regionTiles * _tileSize;
+        int x = regionCol * span;
+        int bottom = levelHeight - regionRow * span;
+        int top = Math.max(0, bottom - span);
+        return new Rectangle(x, top, Math.min(span, levelWidth - x), bottom - top);
+    }
+
+    /**
+     * Decode the source pixels under a region of a level and scale them to the level.  The reader subsamples to
+     * twice the level's resolution so the final reduction is still filtered rather than point sampled.
+     */
+    private BufferedImage decodeRegion(ImageSource source, SourceInfo info, int subsample, Rectangle bounds, CancellationToken cancellationToken) throws IOException {
+        int x = bounds.x * subsample;
+        int y = bounds.y * subsample;
+        Rectangle sourceRegion = new Rectangle(x, y,
+                Math.min(info.width, (bounds.x + bounds.width) * subsample) - x,
+                Math.min(info.height, (bounds.y + bounds.height) * subsample) - y);
+        int readSubsample = Math.max(1, subsample / 2);
+
+        BufferedImage decoded;
+        try (ImageInputStream iis = source.openImageInputStream()) {
+            ImageReader reader = createReader(iis);
+            try {
+                ImageReaderUtils.ReducedResolution reduced = ImageReaderUtils.findReducedResolution(reader, readSubsample, readSubsample);
+                ImageReadParam params = reader.getDefaultReadParam();
+                params.setSourceRegion(reduced.toReducedRegion(sourceRegion));
+                params.setSourceSubsampling(readSubsample / reduced.scale, readSubsample / reduced.scale, 0, 0);
+                try (CancellationToken.Registration ignored = cancellationToken.onCancel(reader::abort)) {
+                    decoded = reader.read(reduced.imageIndex, params);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+        // an aborted read returns what it had decoded, which mustn't be cached
+        cancellationToken.throwIfCancelled();
+        log.debug("decodeRegion: subsample={}, source region {} decoded to {}x{} for {}x{}", subsample, sourceRegion,
+                decoded.getWidth(), decoded.getHeight(), bounds.width, bounds.height);
+
+        if (decoded.getWidth() == bounds.width && decoded.getHeight() == bounds.height) {
+            return decoded;
+        }
+        BufferedImage resized = Scalr.resize(decoded, bounds.width, bounds.height);
+        if (resized.getWidth() != bounds.width || resized.getHeight() != bounds.height) {
+            // Scalr keeps the aspect ratio, which can be a pixel out for the edge regions
+            BufferedImage exact = ImageTiler4.resizeExact(resized, bounds.width, bounds.height);
+            resized.flush();
+            resized = exact;
+        }
+        decoded.flush();
+        return resized;
+    }
+
+    private SourceInfo getSourceInfo(String sourceId, ImageSource source) throws IOException {
+        return get(_sources, sourceId, () -> {
+            try (ImageInputStream iis = source.openImageInputStream()) {
+                ImageReader reader = createReader(iis);
+                try {
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    return new SourceInfo(width, height, _zoomFactorStrategy.getZoomFactors(height, width));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        });
+    }
+
+    private static ImageReader createReader(ImageInputStream iis) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        ImageReader reader = readers.hasNext() ? DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(readers) : null;
+        if (reader == null) {
+            throw new IOException("No suitable image reader selected");
+        }
+        // formats with reduced resolution pages need to seek back to image 0 after finding them
+        reader.setInput(iis, !ImageReaderUtils.mayHaveReducedResolutions(reader), false);
+        return reader;
+    }
+
+    private static <K, V> V get(Cache<K, V> cache, K key, LoadingTask<V> loader) throws IOException {
+        try {
+            return cache.get(key, loader::load);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof CancellationException) {
+                throw (CancellationException) e.getCause();
+            }
+            throw new IOException("Failed to render tile", e.getCause());
+        }
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return -Math.floorDiv(-x, y);
+    }
+
+    private interface LoadingTask<V> {
+        V load() throws IOException;
+    }
+
+    private static final class SourceInfo {
+        final int width;
+        final int height;
+        final int[] pyramid;
+
+        SourceInfo(int width, int height, int[] pyramid) {
+            this.width = width;
+            this.height = height;
+            this.pyramid = pyramid;
+        }
+    }
+
+    private static final class RegionKey {
+        final String sourceId;
+        final int level;
+        final int regionCol;
+        final int regionRow;
+
+        RegionKey(String sourceId, int level, int regionCol, int regionRow) {
+            this.sourceId = sourceId;
+            this.level = level;
+            this.regionCol = regionCol;
+            this.regionRow = regionRow;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RegionKey)) {
+                return false;
+            }
+            RegionKey other = (RegionKey) o;
+            return level == other.level && regionCol == other.regionCol && regionRow == other.regionRow
+                    && sourceId.equals(other.sourceId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sourceId, level, regionCol, regionRow);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package au.org.ala.images.tiling;
+
+/**
+ * Notified as each zoom level of an image has been completely written to the {@link TilerSink}, eg to publish the
+ * image for browsing as soon as the overview levels are available.
+ *
+ * Levels are reported from the tiler's worker threads, possibly concurrently, so implementations must be thread
+ * safe and should return quickly.  Nothing more is reported once tiling an image has failed.
+ */
+public interface LevelListener {
+
+    /**
+     * @param level The zoom level, 0 being the most zoomed out
+     * @param zoomLevels The number of zoom levels in the image's pyramid
+     */
+    void levelCompleted(int level, int zoomLevels);
+}
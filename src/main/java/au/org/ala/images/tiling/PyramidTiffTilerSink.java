@@ -0,0 +1,505 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.ImageEncoder;
+import com.google.common.io.ByteSink;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A TilerSink that writes the whole pyramid as a single tiled, multi-resolution TIFF.
+ *
+ * Tiles are appended to the file as they arrive, and the image file directories are written when the sink is
+ * closed: the most detailed level first, followed by each lower level as a reduced resolution subfile
+ * (NewSubfileType 1), the layout most pyramid TIFF readers expect.  JPEG tiles are stored as they are (TIFF
+ * compression 7, YCbCr) when they are 4:2:0 subsampled, the subsampling the directories declare, and are encoded
+ * again otherwise; PNG tiles are decoded and stored as Deflate compressed RGBA.
+ *
+ * Each level is written at its real size, with TIFF's tile grid anchored to the top left of the image.  The tile
+ * pyramid's grid is anchored to the bottom left, so when a level's height isn't a whole number of tiles each TIFF
+ * tile is put together from the two pyramid tiles it overlaps, once both have arrived, and encoded again (JPEG
+ * tiles lose a generation of quality).  Levels whose size the tiler doesn't give, through
+ * {@link TilerSink#getLevelSink(int, int, int)}, are written as whole tiles.  Files are classic TIFF, limited to 4GB.
+ *
+ * Tiles may be written concurrently.  The file isn't readable until the sink has been closed, after the tiler has
+ * finished with it.
+ */
+public class PyramidTiffTilerSink implements TilerSink, Closeable {
+
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final int COMPRESSION_JPEG = 7;
+    private static final int COMPRESSION_DEFLATE = 8;
+    private static final int PHOTOMETRIC_RGB = 2;
+    private static final int PHOTOMETRIC_YCBCR = 6;
+    private static final int EXTRA_SAMPLES_UNASSOCIATED_ALPHA = 2;
+
+    private static final ImageEncoder.ChromaSubsampling SUBSAMPLING = ImageEncoder.ChromaSubsampling.YUV420;
+
+    private static final long MAX_OFFSET = 0xffffffffL;
+
+    private final FileChannel channel;
+    private final TileFormat tileFormat;
+    private final int tileSize;
+    private final ImageEncoder encoder = new ImageEncoder();
+
+    // guarded by this
+    private final Map<Integer, LevelTiles> levels = new TreeMap<>();
+    private long nextOffset;
+    private boolean closed = false;
+
+    public PyramidTiffTilerSink(Path tiffFile, TileFormat tileFormat, int tileSize) throws IOException {
+        this.tileFormat = tileFormat;
+        this.tileSize = tileSize;
+        this.channel = FileChannel.open(tiffFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        // little endian header, the first IFD offset is filled in on close
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(0);
+        header.flip();
+        writeFully(header, 0);
+        this.nextOffset = 8;
+        // every JPEG tile in the file has the chroma subsampling given in the IFD
+        encoder.setJpegQuality(0.9f);
+        encoder.setJpegChromaSubsampling(SUBSAMPLING);
+    }
+
+    @Override
+    public LevelSink getLevelSink(int level) {
+        return getLevelSink(level, -1, -1);
+    }
+
+    @Override
+    public LevelSink getLevelSink(int level, int width, int height) {
+        LevelTiles levelTiles;
+        synchronized (this) {
+            levelTiles = levels.computeIfAbsent(level, l -> new LevelTiles());
+            if (width > 0 && height > 0) {
+                levelTiles.width = width;
+                levelTiles.height = height;
+            }
+        }
+        return (col, stripIndex, maxColsPerStrip) -> {
+            int actualCol = col + (stripIndex * maxColsPerStrip);
+            return row -> new ByteSink() {
+                @Override
+                public OutputStream openStream() {
+                    return new ByteArrayOutputStream() {
+                        private boolean written = false;
+
+                        @Override
+                        public void close() throws IOException {
+                            if (!written) {
+                                written = true;
+                                addTile(levelTiles, actualCol, row, buf, count);
+                            }
+                        }
+                    };
+                }
+            };
+        };
+    }
+
+    /**
+     * Write the image file directories and close the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            // tiles whose other half never arrived, such as the bottom row, are filled with zeros
+            for (LevelTiles levelTiles : levels.values()) {
+                for (Map.Entry<Long, byte[]> upper : new ArrayList<>(levelTiles.pending.entrySet())) {
+                    int col = (int) (upper.getKey() >>> 32);
+                    int row = (int) (long) upper.getKey();
+                    for (int tiffRow = row; tiffRow <= row + 1 && tiffRow < levelTiles.getRows(tileSize); tiffRow++) {
+                        if (levelTiles.composed.add(key(col, tiffRow))) {
+                            store(levelTiles, col, tiffRow, composeTile(levelTiles.pending.get(key(col, tiffRow)),
+                                    levelTiles.pending.get(key(col, tiffRow - 1)), levelTiles.getPadding(tileSize)));
+                        }
+                    }
+                }
+                levelTiles.pending.clear();
+            }
+            closed = true;
+            List<Integer> levelOrder = new ArrayList<>();
+            for (Map.Entry<Integer, LevelTiles> entry : levels.entrySet()) {
+                if (!entry.getValue().tiles.isEmpty()) {
+                    levelOrder.add(0, entry.getKey());
+                }
+            }
+
+            long ifdOffset = align(nextOffset);
+            long firstIfd = levelOrder.isEmpty() ? 0 : ifdOffset;
+            for (int i = 0; i < levelOrder.size(); i++) {
+                int level = levelOrder.get(i);
+                Ifd ifd = buildIfd(level, levels.get(level), i > 0);
+                ByteBuffer ifdBytes = ifd.toBytes(ifdOffset, i < levelOrder.size() - 1);
+                if (ifdOffset + ifdBytes.limit() > MAX_OFFSET) {
+                    throw new IOException("Pyramid is too large for a classic TIFF");
+                }
+                writeFully(ifdBytes, ifdOffset);
+                ifdOffset = align(ifdOffset + ifdBytes.limit());
+            }
+
+            ByteBuffer first = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt((int) firstIfd);
+            first.flip();
+            writeFully(first, 4);
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private Ifd buildIfd(int level, LevelTiles levelTiles, boolean reduced) {
+        int cols = levelTiles.width > 0 ? (levelTiles.width + tileSize - 1) / tileSize : levelTiles.maxCol + 1;
+        int rows = levelTiles.getRows(tileSize);
+        int width = levelTiles.width > 0 ? levelTiles.width : cols * tileSize;
+        int height = levelTiles.height > 0 ? levelTiles.height : rows * tileSize;
+
+        // TIFF tiles run from the top left, tiles are kept by pyramid row from the bottom
+        long[] offsets = new long[cols * rows];
+        long[] byteCounts = new long[cols * rows];
+        for (Map.Entry<Long, long[]> tile : levelTiles.tiles.entrySet()) {
+            int col = (int) (tile.getKey() >>> 32);
+            int row = (int) (long) tile.getKey();
+            if (col < cols && row < rows) {
+                int index = (rows - 1 - row) * cols + col;
+                offsets[index] = tile.getValue()[0];
+                byteCounts[index] = tile.getValue()[1];
+            }
+        }
+
+        boolean jpeg = tileFormat == TileFormat.JPEG;
+        Ifd ifd = new Ifd();
+        ifd.add(254, TYPE_LONG, reduced ? 1 : 0);
+        ifd.add(256, TYPE_LONG, width);
+        ifd.add(257, TYPE_LONG, height);
+        ifd.add(258, TYPE_SHORT, jpeg ? new long[] { 8, 8, 8 } : new long[] { 8, 8, 8, 8 });
+        ifd.add(259, TYPE_SHORT, jpeg ? COMPRESSION_JPEG : COMPRESSION_DEFLATE);
+        ifd.add(262, TYPE_SHORT, jpeg ? PHOTOMETRIC_YCBCR : PHOTOMETRIC_RGB);
+        ifd.addAscii(270, "Tile pyramid level " + level);
+        ifd.add(277, TYPE_SHORT, jpeg ? 3 : 4);
+        ifd.add(284, TYPE_SHORT, 1);
+        ifd.add(322, TYPE_LONG, tileSize);
+        ifd.add(323, TYPE_LONG, tileSize);
+        ifd.add(324, TYPE_LONG, offsets);
+        ifd.add(325, TYPE_LONG, byteCounts);
+        if (jpeg) {
+            ifd.add(530, TYPE_SHORT, new long[] { SUBSAMPLING.getHorizontal(), SUBSAMPLING.getVertical() });
+        } else {
+            ifd.add(338, TYPE_SHORT, EXTRA_SAMPLES_UNASSOCIATED_ALPHA);
+        }
+        return ifd;
+    }
+
+    /**
+     * Keep a tile from the pyramid.  When the level is a whole number of tiles high it is also a TIFF tile,
+     * otherwise TIFF tile row r (counted from the bottom, like the pyramid's) is the bottom of pyramid tile r above
+     * the top of pyramid tile r - 1, so it is put together once both of those have arrived.
+     */
+    private void addTile(LevelTiles levelTiles, int col, int row, byte[] encoded, int length) throws IOException {
+        byte[] tile = new byte[length];
+        System.arraycopy(encoded, 0, tile, 0, length);
+        int padding;
+        List<byte[]> parts = new ArrayList<>();
+        List<Integer> tiffRows = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Pyramid TIFF is closed");
+            }
+            padding = levelTiles.getPadding(tileSize);
+            if (padding > 0) {
+                int rows = levelTiles.getRows(tileSize);
+                levelTiles.pending.put(key(col, row), tile);
+                for (int tiffRow = row; tiffRow <= row + 1 && tiffRow < rows; tiffRow++) {
+                    boolean ready = levelTiles.pending.containsKey(key(col, tiffRow))
+                            && (tiffRow == 0 || levelTiles.pending.containsKey(key(col, tiffRow - 1)));
+                    if (ready && levelTiles.composed.add(key(col, tiffRow))) {
+                        tiffRows.add(tiffRow);
+                        parts.add(levelTiles.pending.get(key(col, tiffRow)));
+                        parts.add(tiffRow == 0 ? null : levelTiles.pending.get(key(col, tiffRow - 1)));
+                    }
+                }
+                // a pyramid tile is no longer needed once both TIFF tiles it is part of have been started
+                for (int pyramidRow = row - 1; pyramidRow <= row + 1; pyramidRow++) {
+                    if (levelTiles.composed.contains(key(col, pyramidRow))
+                            && (pyramidRow + 1 >= rows || levelTiles.composed.contains(key(col, pyramidRow + 1)))) {
+                        levelTiles.pending.remove(key(col, pyramidRow));
+                    }
+                }
+            }
+        }
+        if (padding == 0) {
+            append(levelTiles, col, row, toTiffTile(tile));
+        }
+        for (int i = 0; i < tiffRows.size(); i++) {
+            append(levelTiles, col, tiffRows.get(i), composeTile(parts.get(i * 2), parts.get(i * 2 + 1), padding));
+        }
+    }
+
+    /**
+     * JPEG tiles are complete interchange streams, which compression 7 allows, but readers take the chroma
+     * subsampling from the IFD, so tiles encoded with any other are encoded again.  PNG tiles have to be decoded and
+     * stored as TIFF Deflate data, always as RGBA so that every tile in the level has the same samples.
+     */
+    private byte[] toTiffTile(byte[] encoded) throws IOException {
+        if (tileFormat != TileFormat.JPEG) {
+            return deflateRgba(decodeTile(encoded));
+        }
+        if (hasSubsampling(encoded, SUBSAMPLING)) {
+            return encoded;
+        }
+        return encodeJpeg(decodeTile(encoded));
+    }
+
+    /**
+     * Whether a JPEG stream is YCbCr with the given luma sampling factors and chroma sampled once per MCU, read from
+     * its start of frame marker.
+     */
+    static boolean hasSubsampling(byte[] jpeg, ImageEncoder.ChromaSubsampling subsampling) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xff) {
+            int marker = jpeg[pos + 1] & 0xff;
+            int length = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            boolean startOfFrame = marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+            if (startOfFrame) {
+                // precision, height, width and component count, then id, sampling factors and table per component
+                int components = pos + 9 < jpeg.length ? jpeg[pos + 9] & 0xff : 0;
+                if (components != 3 || pos + 10 + components * 3 > jpeg.length) {
+                    return false;
+                }
+                for (int i = 0; i < components; i++) {
+                    int sampling = jpeg[pos + 11 + i * 3] & 0xff;
+                    int horizontal = i == 0 ? subsampling.getHorizontal() : 1;
+                    int vertical = i == 0 ? subsampling.getVertical() : 1;
+                    if (sampling >> 4 != horizontal || (sampling & 0xf) != vertical) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (marker == 0xda || marker == 0xd9) {
+                // scan data before any frame header
+                return false;
+            }
+            pos += 2 + length;
+        }
+        return false;
+    }
+
+    /**
+     * A TIFF tile from the bottom rows of the upper pyramid tile, below its padding, and the top rows of the lower
+     * one.  Either may be missing, which leaves zeros.
+     */
+    private byte[] composeTile(byte[] upper, byte[] lower, int padding) throws IOException {
+        int[] argb = new int[tileSize * tileSize];
+        if (upper != null) {
+            System.arraycopy(decodeTile(upper), padding * tileSize, argb, 0, (tileSize - padding) * tileSize);
+        }
+        if (lower != null) {
+            System.arraycopy(decodeTile(lower), 0, argb, (tileSize - padding) * tileSize, padding * tileSize);
+        }
+        if (tileFormat != TileFormat.JPEG) {
+            return deflateRgba(argb);
+        }
+        return encodeJpeg(argb);
+    }
+
+    private byte[] encodeJpeg(int[] argb) throws IOException {
+        BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, tileSize, tileSize, argb, 0, tileSize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.write(image, "jpeg", out);
+        return out.toByteArray();
+    }
+
+    private int[] decodeTile(byte[] encoded) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(encoded));
+        if (image == null) {
+            throw new IOException("Couldn't decode " + tileFormat + " tile");
+        }
+        int[] argb = new int[tileSize * tileSize];
+        image.getRGB(0, 0, Math.min(tileSize, image.getWidth()), Math.min(tileSize, image.getHeight()), argb, 0, tileSize);
+        return argb;
+    }
+
+    private static byte[] deflateRgba(int[] argb) throws IOException {
+        byte[] rgba = new byte[argb.length * 4];
+        for (int i = 0, j = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            rgba[j++] = (byte) (pixel >> 16);
+            rgba[j++] = (byte) (pixel >> 8);
+            rgba[j++] = (byte) pixel;
+            rgba[j++] = (byte) (pixel >>> 24);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rgba.length / 2);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION))) {
+            deflate.write(rgba);
+        }
+        return out.toByteArray();
+    }
+
+    private void append(LevelTiles levelTiles, int col, int row, byte[] tile) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Pyramid TIFF is closed");
+            }
+        }
+        store(levelTiles, col, row, tile);
+    }
+
+    private void store(LevelTiles levelTiles, int col, int row, byte[] tile) throws IOException {
+        long offset;
+        synchronized (this) {
+            offset = align(nextOffset);
+            if (offset + tile.length > MAX_OFFSET) {
+                throw new IOException("Pyramid is too large for a classic TIFF");
+            }
+            nextOffset = offset + tile.length;
+        }
+        // positional writes to the channel are safe to run concurrently
+        writeFully(ByteBuffer.wrap(tile), offset);
+        synchronized (this) {
+            levelTiles.tiles.put(key(col, row), new long[] { offset, tile.length });
+            levelTiles.maxCol = Math.max(levelTiles.maxCol, col);
+            levelTiles.maxRow = Math.max(levelTiles.maxRow, row);
+        }
+    }
+
+    private static long key(int col, int row) {
+        return ((long) col << 32) | (row & 0xffffffffL);
+    }
+
+    private static long align(long offset) {
+        // TIFF offsets should be word aligned
+        return (offset + 1) & ~1L;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static final class LevelTiles {
+        int width = -1;
+        int height = -1;
+        int maxCol = -1;
+        int maxRow = -1;
+        final Map<Long, long[]> tiles = new HashMap<>();
+        // pyramid tiles waiting for the other half of a TIFF tile, and the TIFF tiles already put together
+        final Map<Long, byte[]> pending = new HashMap<>();
+        final Set<Long> composed = new HashSet<>();
+
+        int getRows(int tileSize) {
+            return height > 0 ? (height + tileSize - 1) / tileSize : maxRow + 1;
+        }
+
+        /**
+         * Rows of background at the top of the pyramid's top tiles.
+         */
+        int getPadding(int tileSize) {
+            return height > 0 ? getRows(tileSize) * tileSize - height : 0;
+        }
+    }
+
+    /**
+     * An image file directory, entries must be added in tag order.
+     */
+    private static final class Ifd {
+        private final List<int[]> headers = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+
+        void add(int tag, int type, long value) {
+            add(tag, type, new long[] { value });
+        }
+
+        void add(int tag, int type, long[] values) {
+            int size = type == TYPE_SHORT ? 2 : 4;
+            ByteBuffer buffer = ByteBuffer.allocate(values.length * size).order(ByteOrder.LITTLE_ENDIAN);
+            for (long value : values) {
+                if (type == TYPE_SHORT) {
+                    buffer.putShort((short) value);
+                } else {
+                    buffer.putInt((int) value);
+                }
+            }
+            addRaw(tag, type, values.length, buffer.array());
+        }
+
+        void addAscii(int tag, String value) {
+            byte[] bytes = (value + "\0").getBytes(StandardCharsets.US_ASCII);
+            addRaw(tag, TYPE_ASCII, bytes.length, bytes);
+        }
+
+        private void addRaw(int tag, int type, int count, byte[] data) {
+            headers.add(new int[] { tag, type, count });
+            values.add(data);
+        }
+
+        /**
+         * Lay out the directory at the offset, with values that don't fit in an entry following it.
+         */
+        ByteBuffer toBytes(long offset, boolean hasNext) {
+            int entriesSize = 2 + headers.size() * 12 + 4;
+            int valuesSize = 0;
+            for (byte[] data : values) {
+                if (data.length > 4) {
+                    valuesSize += align(data.length);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(entriesSize + valuesSize).order(ByteOrder.LITTLE_ENDIAN);
+            long valueOffset = offset + entriesSize;
+            int valuePosition = entriesSize;
+            buffer.putShort((short) headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                int[] header = headers.get(i);
+                byte[] data = values.get(i);
+                buffer.putShort((short) header[0]);
+                buffer.putShort((short) header[1]);
+                buffer.putInt(header[2]);
+                if (data.length <= 4) {
+                    buffer.put(data);
+                    buffer.position(buffer.position() + 4 - data.length);
+                } else {
+                    buffer.putInt((int) valueOffset);
+                    int entryEnd = buffer.position();
+                    buffer.position(valuePosition);
+                    buffer.put(data);
+                    buffer.position(entryEnd);
+                    valueOffset += align(data.length);
+                    valuePosition += (int) align(data.length);
+                }
+            }
+            // the next IFD follows straight after this one's values
+            buffer.putInt(hasNext ? (int) align(offset + entriesSize + valuesSize) : 0);
+            buffer.position(0);
+            return buffer;
+        }
+    }
+}
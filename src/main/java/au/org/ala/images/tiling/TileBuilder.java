@@ -0,0 +1,152 @@
+package au.org.ala.images.tiling;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Builds the tile images for a tiler, reusing the tiles once they have been encoded.
+ *
+ * Full size tiles are copied straight out of the source raster when its layout allows: byte interleaved sources
+ * with the tile's layout are copied a row at a time, and 8 bit packed int sources (what Scalr returns) are unpacked
+ * into the tile's bytes.  Edge tiles that need padding, and sources that need blending onto the JPEG background,
+ * are drawn with Java2D as before.
+ */
+final class TileBuilder {
+
+    private static final GraphicsEnvironment GRAPHICS_ENV = GraphicsEnvironment.getLocalGraphicsEnvironment();
+
+    // the tile layouts, see createTile()
+    private static final int[] ABGR_BAND_OFFSETS = { 3, 2, 1, 0 };
+    private static final int[] BGR_BAND_OFFSETS = { 2, 1, 0 };
+
+    private final int tileSize;
+    private final TileFormat tileFormat;
+    private final Color tileBackgroundColor;
+    private final BlockingQueue<BufferedImage> pool;
+
+    TileBuilder(int tileSize, TileFormat tileFormat, Color tileBackgroundColor, int maxPooled) {
+        this.tileSize = tileSize;
+        this.tileFormat = tileFormat;
+        this.tileBackgroundColor = tileBackgroundColor;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    /**
+     * Build a tile from the tw x th region of the source at (x, y), aligned to the bottom left corner of the tile
+     * so that partial tiles at the top edge are padded at the top.  A region of zero size gives an empty tile.
+     */
+    BufferedImage buildTile(BufferedImage source, int x, int y, int tw, int th) {
+        BufferedImage tile = pool.poll();
+        if (tile == null) {
+            tile = createTile();
+        }
+        if (tw == tileSize && th == tileSize && copyTile(source, x, y, tile)) {
+            return tile;
+        }
+
+        // a reused tile has to be cleared back to the state of a new one
+        Arrays.fill(((DataBufferByte) tile.getRaster().getDataBuffer()).getData(), (byte) 0);
+        Graphics g = GRAPHICS_ENV.createGraphics(tile);
+        try {
+            if (tw > 0 && th > 0) {
+                if (tileFormat == TileFormat.JPEG) {
+                    g.setColor(tileBackgroundColor);
+                    g.fillRect(0, 0, tileSize, tileSize);
+                }
+                g.drawImage(source.getSubimage(x, y, tw, th), 0, tileSize - th, null);
+            }
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * Return a tile once it has been encoded.  The caller must not use it afterwards.
+     */
+    void release(BufferedImage tile) {
+        if (tile != null && tile.getWidth() == tileSize && tile.getHeight() == tileSize) {
+            pool.offer(tile);
+        }
+    }
+
+    private BufferedImage createTile() {
+        // PNG can support transparency, so use that rather than a background color
+        if (tileFormat == TileFormat.PNG) {
+            return new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_4BYTE_ABGR);
+        } else {
+            return new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_3BYTE_BGR);
+        }
+    }
+
+    /**
+     * Copy a full tile out of the source without Java2D, if the source layout is one we can copy directly.
+     */
+    private boolean copyTile(BufferedImage source, int x, int y, BufferedImage tile) {
+        WritableRaster raster = source.getRaster();
+        byte[] dst = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+        int dstPixelStride = tileFormat == TileFormat.PNG ? 4 : 3;
+
+        if (raster.getSampleModel() instanceof PixelInterleavedSampleModel && raster.getDataBuffer() instanceof DataBufferByte) {
+            PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+            int[] expectedOffsets = tileFormat == TileFormat.PNG ? ABGR_BAND_OFFSETS : BGR_BAND_OFFSETS;
+            if (model.getPixelStride() != dstPixelStride || !Arrays.equals(model.getBandOffsets(), expectedOffsets)
+                    || source.getColorModel().isAlphaPremultiplied() || !source.getColorModel().getColorSpace().isCS_sRGB()) {
+                return false;
+            }
+            byte[] src = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int stride = model.getScanlineStride();
+            // the raster may be a child (sub image) of a larger raster
+            int base = ((DataBufferByte) raster.getDataBuffer()).getOffset()
+                    + (y - raster.getSampleModelTranslateY()) * stride + (x - raster.getSampleModelTranslateX()) * dstPixelStride;
+            int rowBytes = tileSize * dstPixelStride;
+            for (int row = 0; row < tileSize; row++) {
+                System.arraycopy(src, base + row * stride, dst, row * rowBytes, rowBytes);
+            }
+            return true;
+        }
+
+        boolean hasAlpha;
+        switch (source.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                hasAlpha = false;
+                break;
+            case BufferedImage.TYPE_INT_ARGB:
+                hasAlpha = true;
+                break;
+            default:
+                return false;
+        }
+        if (hasAlpha && tileFormat == TileFormat.JPEG) {
+            // needs blending onto the background colour
+            return false;
+        }
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] src = ((DataBufferInt) raster.getDataBuffer()).getData();
+        int stride = model.getScanlineStride();
+        int base = ((DataBufferInt) raster.getDataBuffer()).getOffset()
+                + (y - raster.getSampleModelTranslateY()) * stride + (x - raster.getSampleModelTranslateX());
+        int d = 0;
+        for (int row = 0; row < tileSize; row++) {
+            int s = base + row * stride;
+            for (int col = 0; col < tileSize; col++) {
+                int argb = src[s + col];
+                if (dstPixelStride == 4) {
+                    dst[d++] = hasAlpha ? (byte) (argb >>> 24) : (byte) 0xff;
+                }
+                dst[d++] = (byte) argb;
+                dst[d++] = (byte) (argb >> 8);
+                dst[d++] = (byte) (argb >> 16);
+            }
+        }
+        return true;
+    }
+}
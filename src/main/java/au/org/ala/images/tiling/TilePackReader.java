@@ -0,0 +1,118 @@
+package au.org.ala.images.tiling;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads tiles from a pack written by {@link TilePackSink}.
+ *
+ * The index is read onto the heap as two sorted arrays and the tile data is memory mapped, so looking up a tile is
+ * a binary search and a slice of the mapped buffer with no copying or file system calls.  This class is thread
+ * safe.
+ */
+public class TilePackReader implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long[] keys;
+    // offset and length of each tile, in the order of keys
+    private final long[] entries;
+
+    public TilePackReader(Path packFile) throws IOException {
+        this.channel = FileChannel.open(packFile, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < TilePackSink.MAGIC.length + TilePackSink.TRAILER_SIZE) {
+                throw new IOException("Not a tile pack: " + packFile);
+            }
+            ByteBuffer trailer = readFully(size - TilePackSink.TRAILER_SIZE, TilePackSink.TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            int count = trailer.getInt();
+            byte[] magic = new byte[TilePackSink.MAGIC.length];
+            trailer.get(magic);
+            if (!Arrays.equals(magic, TilePackSink.MAGIC) || !Arrays.equals(readFully(0, magic.length).array(), TilePackSink.MAGIC)
+                    || indexOffset + (long) count * TilePackSink.ENTRY_SIZE + TilePackSink.TRAILER_SIZE != size) {
+                throw new IOException("Not a tile pack, or the pack wasn't closed: " + packFile);
+            }
+
+            ByteBuffer index = readFully(indexOffset, count * TilePackSink.ENTRY_SIZE);
+            keys = new long[count];
+            entries = new long[count * 2];
+            for (int i = 0; i < count; i++) {
+                keys[i] = index.getLong();
+                entries[i * 2] = index.getLong();
+                entries[i * 2 + 1] = index.getLong();
+            }
+
+            // tiles never cross a segment boundary, so each tile is within one mapping
+            int segmentCount = (int) ((indexOffset + TilePackSink.SEGMENT_SIZE - 1) / TilePackSink.SEGMENT_SIZE);
+            segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * TilePackSink.SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(TilePackSink.SEGMENT_SIZE, indexOffset - start));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The number of tiles in the pack.
+     */
+    public int getTileCount() {
+        return keys.length;
+    }
+
+    public boolean hasTile(int level, int col, int row) {
+        return find(level, col, row) >= 0;
+    }
+
+    /**
+     * Get the encoded bytes of a tile, as a read only buffer over the mapped pack.  The buffer must not be used
+     * after the reader has been closed.
+     *
+     * @return The tile bytes, or null if the pack has no such tile
+     */
+    public ByteBuffer getTile(int level, int col, int row) {
+        int i = find(level, col, row);
+        if (i < 0) {
+            return null;
+        }
+        long offset = entries[i * 2];
+        int length = (int) entries[i * 2 + 1];
+        ByteBuffer segment = segments[(int) (offset / TilePackSink.SEGMENT_SIZE)].duplicate();
+        int position = (int) (offset % TilePackSink.SEGMENT_SIZE);
+        segment.position(position).limit(position + length);
+        return segment.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int find(int level, int col, int row) {
+        if (level < 0 || level > 0xff || col < 0 || col > 0xfffffff || row < 0 || row > 0xfffffff) {
+            return -1;
+        }
+        return Arrays.binarySearch(keys, TilePackSink.key(level, col, row));
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of tile pack");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
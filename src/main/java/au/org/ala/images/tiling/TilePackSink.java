@@ -0,0 +1,196 @@
+package au.org.ala.images.tiling;
+
+import com.google.common.io.ByteSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A TilerSink that appends every tile of a pyramid to a single pack file instead of writing a file per tile.
+ *
+ * The pack starts with an 8 byte magic number, followed by the encoded tiles in the order they were written and
+ * then an index of (level, col, row) -> (offset, length) sorted by tile, and finally a trailer holding the index
+ * offset, the number of tiles and the magic number again.  Tiles never straddle a {@link #SEGMENT_SIZE} boundary
+ * so that {@link TilePackReader} can map the pack in segments.  Duplicate tiles (see
+ * {@link TilerSink.ColumnSink#linkTile}) share the original tile's bytes.
+ *
+ * Tiles may be written concurrently.  The pack isn't readable until the sink has been closed, after the tiler has
+ * finished with it.
+ */
+public class TilePackSink implements TilerSink, Closeable {
+
+    static final byte[] MAGIC = "ALATPK01".getBytes(StandardCharsets.US_ASCII);
+    static final int ENTRY_SIZE = 24;
+    static final int TRAILER_SIZE = 20;
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+
+    // guarded by this
+    private final Map<Long, long[]> index = new HashMap<>();
+    private final Map<Long, Long> links = new HashMap<>();
+    private long nextOffset;
+    private boolean closed = false;
+
+    public TilePackSink(Path packFile) throws IOException {
+        this.channel = FileChannel.open(packFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        writeFully(ByteBuffer.wrap(MAGIC), 0);
+        this.nextOffset = MAGIC.length;
+    }
+
+    @Override
+    public LevelSink getLevelSink(int level) {
+        return (col, stripIndex, maxColsPerStrip) -> new PackColumnSink(level, col + (stripIndex * maxColsPerStrip));
+    }
+
+    /**
+     * Write the index and close the pack file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (Map.Entry<Long, Long> link : links.entrySet()) {
+                Long targetKey = link.getValue();
+                // follow links to links, as long as they don't go round in circles
+                for (int hops = 0; !index.containsKey(targetKey) && links.containsKey(targetKey) && hops < links.size(); hops++) {
+                    targetKey = links.get(targetKey);
+                }
+                long[] target = index.get(targetKey);
+                if (target == null) {
+                    throw new IOException("Tile " + describe(link.getKey()) + " links to missing tile " + describe(link.getValue()));
+                }
+                index.put(link.getKey(), target);
+            }
+
+            long[] keys = index.keySet().stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(keys);
+            ByteBuffer buffer = ByteBuffer.allocate(keys.length * ENTRY_SIZE + TRAILER_SIZE);
+            for (long key : keys) {
+                long[] entry = index.get(key);
+                buffer.putLong(key);
+                buffer.putLong(entry[0]);
+                buffer.putLong(entry[1]);
+            }
+            buffer.putLong(nextOffset);
+            buffer.putInt(keys.length);
+            buffer.put(MAGIC);
+            buffer.flip();
+            writeFully(buffer, nextOffset);
+            channel.truncate(nextOffset + buffer.limit());
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Pack a tile address into a single sortable key.
+     */
+    static long key(int level, int col, int row) {
+        if (level < 0 || level > 0xff || col < 0 || col > 0xfffffff || row < 0 || row > 0xfffffff) {
+            throw new IllegalArgumentException("Tile out of range: " + level + "/" + col + "/" + row);
+        }
+        return ((long) level << 56) | ((long) col << 28) | row;
+    }
+
+    private static String describe(long key) {
+        return (key >>> 56) + "/" + ((key >>> 28) & 0xfffffff) + "/" + (key & 0xfffffff);
+    }
+
+    private void append(long key, byte[] tile, int length) throws IOException {
+        long offset;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Tile pack is closed");
+            }
+            if (length > SEGMENT_SIZE) {
+                throw new IOException("Tile " + describe(key) + " is too large for a tile pack");
+            }
+            offset = nextOffset;
+            if (offset / SEGMENT_SIZE != (offset + length - 1) / SEGMENT_SIZE) {
+                // start the tile at the next segment instead
+                offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+            }
+            nextOffset = offset + length;
+        }
+        // positional writes to the channel are safe to run concurrently
+        writeFully(ByteBuffer.wrap(tile, 0, length), offset);
+        synchronized (this) {
+            index.put(key, new long[] { offset, length });
+            links.remove(key);
+        }
+    }
+
+    private synchronized boolean link(long key, long targetKey) {
+        if (closed) {
+            return false;
+        }
+        index.remove(key);
+        links.put(key, targetKey);
+        return true;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private class PackColumnSink implements ColumnSink {
+        private final int level;
+        private final int col;
+
+        PackColumnSink(int level, int col) {
+            this.level = level;
+            this.col = col;
+        }
+
+        @Override
+        public ByteSink getTileSink(int row) {
+            long key = key(level, col, row);
+            return new ByteSink() {
+                @Override
+                public OutputStream openStream() {
+                    return new ByteArrayOutputStream() {
+                        private boolean written = false;
+
+                        @Override
+                        public void close() throws IOException {
+                            if (!written) {
+                                written = true;
+                                append(key, buf, count);
+                            }
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public boolean linkTile(int row, ColumnSink target, int targetRow) {
+            if (!(target instanceof PackColumnSink) || ((PackColumnSink) target).owner() != TilePackSink.this) {
+                return false;
+            }
+            PackColumnSink targetColumn = (PackColumnSink) target;
+            return link(key(level, col, row), key(targetColumn.level, targetColumn.col, targetRow));
+        }
+
+        private TilePackSink owner() {
+            return TilePackSink.this;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.ImageSource;
+import au.org.ala.images.util.PrefetchScheduler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serves tiles from a {@link LazyTileRenderer}, and after each tile renders the tiles a deep zoom viewer usually asks
+ * for next in the background: the 8 neighbours at the same level and then the 4 children at the next level.
+ *
+ * See {@link PrefetchScheduler} for how prefetching is kept from slowing down the requested tiles.
+ */
+public class TilePrefetcher implements Closeable {
+
+    private final LazyTileRenderer renderer;
+    private final PrefetchScheduler<byte[]> scheduler;
+
+    public TilePrefetcher(ImageTilerConfig config) {
+        this(new LazyTileRenderer(config), config);
+    }
+
+    public TilePrefetcher(LazyTileRenderer renderer, ImageTilerConfig config) {
+        this.renderer = renderer;
+        this.scheduler = new PrefetchScheduler<>(config.getPrefetchCacheBudget(), tile -> tile.length,
+                config.getPrefetchThreads(), config.getPrefetchQueueSize());
+    }
+
+    /**
+     * Get an encoded tile, and queue its likely next tiles.
+     *
+     * @param sourceId Identifies the image in the caches, it must change if the image does
+     * @return The encoded tile, or null if there is no such tile in the pyramid
+     */
+    public byte[] getTile(String sourceId, ImageSource source, int level, int col, int row) throws IOException {
+        byte[] tile = scheduler.get(key(sourceId, level, col, row), token -> renderer.renderTile(sourceId, source, level, col, row, token));
+        if (tile != null) {
+            prefetchAround(sourceId, source, level, col, row);
+        }
+        return tile;
+    }
+
+    /**
+     * Queue the neighbours and children of a tile, eg one that was served from somewhere else.
+     */
+    public void prefetchAround(String sourceId, ImageSource source, int level, int col, int row) {
+        Map<String, PrefetchScheduler.Renderer<byte[]>> candidates = new LinkedHashMap<>();
+        // neighbours, those in line with the tile first
+        int[][] offsets = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 }, { -1, -1 }, { 1, -1 }, { -1, 1 }, { 1, 1 } };
+        for (int[] offset : offsets) {
+            addCandidate(candidates, sourceId, source, level, col + offset[0], row + offset[1]);
+        }
+        // the next level doubles the resolution, rows are counted up from the bottom at every level
+        for (int i = 0; i < 4; i++) {
+            addCandidate(candidates, sourceId, source, level + 1, col * 2 + (i & 1), row * 2 + (i >> 1));
+        }
+        scheduler.prefetch(sourceId, candidates);
+    }
+
+    /**
+     * Drop the queued prefetches for an image, and abort those being rendered, eg when a viewer closes it.
+     */
+    public void cancel(String sourceId) {
+        scheduler.cancel(sourceId);
+    }
+
+    /**
+     * The number of tiles rendered by prefetching.
+     */
+    public long getPrefetched() {
+        return scheduler.getPrefetched();
+    }
+
+    /**
+     * Whether a tile can be served without rendering it.
+     */
+    public boolean isCached(String sourceId, int level, int col, int row) {
+        return scheduler.isCached(key(sourceId, level, col, row));
+    }
+
+    @Override
+    public void close() {
+        scheduler.close();
+    }
+
+    private void addCandidate(Map<String, PrefetchScheduler.Renderer<byte[]>> candidates, String sourceId, ImageSource source, int level, int col, int row) {
+        // tiles off the right or top edge render as null, which isn't cached
+        if (col >= 0 && row >= 0) {
+            candidates.put(key(sourceId, level, col, row), token -> renderer.renderTile(sourceId, source, level, col, row, token));
+        }
+    }
+
+    private static String key(String sourceId, int level, int col, int row) {
+        return sourceId + '/' + level + '/' + col + '/' + row;
+    }
+}
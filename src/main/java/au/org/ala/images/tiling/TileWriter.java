@@ -0,0 +1,53 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.FastJpegEncoder;
+import au.org.ala.images.util.ImageEncoder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The tile output settings a tiler shares between its {@link TilingJob}s: how tiles are encoded, how many may be
+ * waiting to be written, whether identical tiles are deduplicated and who is told as levels are completed.
+ */
+final class TileWriter {
+
+    final TileBuilder tileBuilder;
+    final TileFormat tileFormat;
+    final int maxTilesInFlight;
+    final boolean deduplicateTiles;
+    final int dedupCacheSize;
+    final LevelListener levelListener;
+
+    private final ImageEncoder tileEncoder;
+    private final boolean fastJpegTiles;
+    private final ThreadLocal<FastJpegEncoder> fastJpegEncoders;
+
+    TileWriter(TileBuilder tileBuilder, TileFormat tileFormat, ImageEncoder tileEncoder, boolean fastJpegTiles, int maxTilesInFlight,
+               boolean deduplicateTiles, int dedupCacheSize, LevelListener levelListener) {
+        this.tileBuilder = tileBuilder;
+        this.tileFormat = tileFormat;
+        this.tileEncoder = tileEncoder;
+        this.fastJpegTiles = fastJpegTiles;
+        this.maxTilesInFlight = Math.max(1, maxTilesInFlight);
+        this.deduplicateTiles = deduplicateTiles;
+        this.dedupCacheSize = dedupCacheSize;
+        this.levelListener = levelListener;
+        this.fastJpegEncoders = ThreadLocal.withInitial(() -> new FastJpegEncoder(tileEncoder.getJpegQuality()));
+    }
+
+    /**
+     * Encode a tile in the tile format.
+     *
+     * @return false if no encoder could write the tile
+     */
+    boolean encode(BufferedImage tile, OutputStream out) throws IOException {
+        if (fastJpegTiles && tileFormat == TileFormat.JPEG && FastJpegEncoder.canEncode(tile)) {
+            fastJpegEncoders.get().write(tile, out);
+            return true;
+        }
+        String format = tileFormat == TileFormat.PNG ? "png" : "jpeg";
+        return tileEncoder.write(tile, format, out);
+    }
+}
@@ -9,12 +9,33 @@ public interface TilerSink {
 
     LevelSink getLevelSink(int level);
 
+    /**
+     * Get the sink for a level, given the size of the level image in pixels.  Tilers that know the level sizes
+     * call this, for sinks that need them (eg to lay out a whole level at once).
+     */
+    default LevelSink getLevelSink(int level, int width, int height) {
+        return getLevelSink(level);
+    }
+
     interface LevelSink {
         ColumnSink getColumnSink(int col, int stripIndex, int _maxColsPerStrip);
     }
 
     interface ColumnSink {
         ByteSink getTileSink(int row);
+
+        /**
+         * Store a tile as a reference to an identical tile that has already been written, eg as a
+         * symbolic link, rather than writing the same bytes again.
+         *
+         * @param row The row of the duplicate tile in this column
+         * @param target The column sink of the original tile, from the same TilerSink
+         * @param targetRow The row of the original tile
+         * @return false if this sink can't store references, in which case the tile's bytes are written as normal
+         */
+        default boolean linkTile(int row, ColumnSink target, int targetRow) throws IOException {
+            return false;
+        }
     }
 
     class PathBasedTilerSink implements TilerSink {
@@ -53,7 +74,19 @@ public interface TilerSink {
 
                 @Override
                 public ByteSink getTileSink(int row) {
-                    return byteSinkFactory.getByteSinkForNames(Integer.toString(level), Integer.toString(col + (stripIndex * maxColsPerStrip)), row + ".png");
+                    return byteSinkFactory.getByteSinkForNames(getTileNames(row));
+                }
+
+                @Override
+                public boolean linkTile(int row, TilerSink.ColumnSink target, int targetRow) throws IOException {
+                    if (!(target instanceof ColumnSink)) {
+                        return false;
+                    }
+                    return byteSinkFactory.link(getTileNames(row), ((ColumnSink) target).getTileNames(targetRow));
+                }
+
+                private String[] getTileNames(int row) {
+                    return new String[] { Integer.toString(level), Integer.toString(col + (stripIndex * maxColsPerStrip)), row + ".png" };
                 }
             }
         }
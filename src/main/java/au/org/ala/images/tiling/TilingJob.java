@@ -0,0 +1,319 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.util.CancellationToken;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a single tileImage call, so that one tiler and its executors can run many jobs at once.
+ *
+ * Rendered tiles are handed to the io executor as soon as they are split.  Once the configured number of
+ * tiles are waiting to be encoded and written, the level worker submitting the next tile blocks until one
+ * completes, so memory use is bounded no matter how big the image is.
+ *
+ * Because level workers block here, the level and io executors must not be the same fixed size pool.
+ */
+final class TilingJob {
+
+    private static final Logger log = LoggerFactory.getLogger(TilingJob.class);
+
+    private final TileWriter tileWriter;
+    private final Semaphore permits;
+    private final CancellationToken cancellationToken;
+    // the tiler's pools, or a scheduler in front of them
+    private final Executor levelExecutor;
+    private final Executor ioExecutor;
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    private final AtomicLong tilesWritten = new AtomicLong();
+    private final AtomicLong duplicateTiles = new AtomicLong();
+    // distinct tiles seen so far by pixel hash, or null if not deduplicating
+    private final Cache<HashCode, WrittenTile> writtenTiles;
+    // the tiles of each level still to be written, see levelSubmitted()
+    private final Map<Integer, LevelProgress> levels = new ConcurrentHashMap<>();
+    // set once the image dimensions are known, before any slices are submitted
+    private TilingPlan plan;
+    // whether the whole plan is being run, so levels can be reported as they are completed
+    private boolean reportLevels;
+
+    TilingJob(TileWriter tileWriter, CancellationToken cancellationToken, Executor levelExecutor, Executor ioExecutor) {
+        this.tileWriter = tileWriter;
+        this.cancellationToken = cancellationToken;
+        this.levelExecutor = levelExecutor;
+        this.ioExecutor = ioExecutor;
+        this.permits = new Semaphore(tileWriter.maxTilesInFlight);
+        this.writtenTiles = tileWriter.deduplicateTiles ? CacheBuilder.newBuilder().maximumSize(tileWriter.dedupCacheSize).build() : null;
+    }
+
+    void fail() {
+        failed.set(true);
+    }
+
+    boolean isFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Once a job has failed, or nobody wants it any more, there is no point decoding or rendering any more of it.
+     */
+    boolean isCancelled() {
+        return failed.get() || cancellationToken.isCancelled();
+    }
+
+    CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    Executor getLevelExecutor() {
+        return levelExecutor;
+    }
+
+    Executor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    long getTilesWritten() {
+        return tilesWritten.get();
+    }
+
+    long getDuplicateTiles() {
+        return duplicateTiles.get();
+    }
+
+    TilingPlan getPlan() {
+        return plan;
+    }
+
+    void setPlan(TilingPlan plan, boolean reportLevels) {
+        this.plan = plan;
+        this.reportLevels = reportLevels;
+    }
+
+    /**
+     * Record that every tile of a level has been submitted, so the level is complete once they are written.
+     */
+    void levelSubmitted(int level) {
+        LevelProgress progress = levels.computeIfAbsent(level, l -> new LevelProgress());
+        progress.submitted = true;
+        checkLevelCompleted(level, progress);
+    }
+
+    private void tileDone(int level, LevelProgress progress) {
+        progress.pendingTiles.decrementAndGet();
+        checkLevelCompleted(level, progress);
+    }
+
+    private void checkLevelCompleted(int level, LevelProgress progress) {
+        // both counters are checked after each change, so whichever change is last notifies
+        LevelListener levelListener = tileWriter.levelListener;
+        if (levelListener == null || !reportLevels || !progress.submitted || progress.pendingTiles.get() > 0 || isCancelled()
+                || !progress.notified.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            levelListener.levelCompleted(level, plan.getZoomLevels());
+        } catch (RuntimeException e) {
+            log.error("Level listener failed for level " + level, e);
+        }
+    }
+
+    /**
+     * Hand a tile built by the writer's {@link TileBuilder} to the io executor, blocking while too many tiles are
+     * waiting to be written.  The tile goes back to the builder once it has been written or dropped.
+     */
+    void submit(int level, TilerSink.ColumnSink columnSink, int row, BufferedImage tile) {
+        SaveTileTask task = new SaveTileTask(columnSink, row, tile);
+        if (isCancelled()) {
+            task.discard();
+            return;
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail();
+            log.error("Interrupted waiting to submit tile");
+            task.discard();
+            return;
+        }
+        LevelProgress progress = levels.computeIfAbsent(level, l -> new LevelProgress());
+        progress.pendingTiles.incrementAndGet();
+        try {
+            CompletableFuture.runAsync(task, ioExecutor);
+            task.done.whenComplete((result, throwable) -> {
+                // before releasing, so the last level is reported before awaitCompletion() returns
+                try {
+                    tileDone(level, progress);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            progress.pendingTiles.decrementAndGet();
+            fail();
+            log.error("IO thread pool rejected tile", e);
+            task.discard();
+        }
+    }
+
+    /**
+     * Wait for every submitted tile to be written.
+     */
+    void awaitCompletion() {
+        permits.acquireUninterruptibly(tileWriter.maxTilesInFlight);
+        permits.release(tileWriter.maxTilesInFlight);
+    }
+
+    private static final class LevelProgress {
+        final AtomicLong pendingTiles = new AtomicLong();
+        volatile boolean submitted = false;
+        final AtomicBoolean notified = new AtomicBoolean(false);
+    }
+
+    /**
+     * A tile that has been written, so that later tiles with the same pixels can refer to it.
+     */
+    private static final class WrittenTile {
+        final TilerSink.ColumnSink columnSink;
+        final int row;
+        // the encoded tile once it has been written, or null if it couldn't be encoded or written
+        final CompletableFuture<byte[]> written = new CompletableFuture<>();
+
+        WrittenTile(TilerSink.ColumnSink columnSink, int row) {
+            this.columnSink = columnSink;
+            this.row = row;
+        }
+    }
+
+    class SaveTileTask implements Runnable {
+        protected final TilerSink.ColumnSink columnSink;
+        protected final int row;
+        protected BufferedImage image;
+        // completed once the tile has been written, which for a duplicate is after the original has been
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        public SaveTileTask(TilerSink.ColumnSink columnSink, int row, BufferedImage image) {
+            this.columnSink = columnSink;
+            this.row = row;
+            this.image = image;
+        }
+
+        public void run() {
+            CompletableFuture<Void> duplicate = null;
+            try {
+                if (isCancelled()) {
+                    // drop tiles that were waiting for the io pool
+                    return;
+                }
+                if (writtenTiles != null) {
+                    duplicate = writeDeduplicated();
+                } else {
+                    try (OutputStream tileStream = columnSink.getTileSink(row).openStream()) {
+                        if (tileWriter.encode(image, tileStream)) {
+                            tilesWritten.incrementAndGet();
+                        } else {
+                            fail();
+                        }
+                    }
+                }
+            } catch (Exception | Error ex) {
+                fail();
+                log.error("Exception occurred saving file task", ex);
+            } finally {
+                discard();
+                if (duplicate == null) {
+                    done.complete(null);
+                } else {
+                    duplicate.whenComplete((result, throwable) -> {
+                        if (throwable != null) {
+                            fail();
+                            log.error("Exception occurred saving duplicate tile", throwable);
+                        }
+                        done.complete(null);
+                    });
+                }
+            }
+        }
+
+        /**
+         * Encode the tile only if no earlier tile of the image had the same pixels, otherwise link to or copy the
+         * earlier tile once it has been written.
+         *
+         * @return The link or copy of the earlier tile, or null if this tile was written itself
+         */
+        private CompletableFuture<Void> writeDeduplicated() throws IOException {
+            // tiles from the TileBuilder are always byte rasters of the same size and layout
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            HashCode hash = Hashing.murmur3_128().hashBytes(pixels);
+            WrittenTile tile = new WrittenTile(columnSink, row);
+            WrittenTile original = writtenTiles.asMap().putIfAbsent(hash, tile);
+
+            if (original != null) {
+                // the pixels aren't needed any more
+                discard();
+                duplicateTiles.incrementAndGet();
+                // a link can only refer to a tile that exists, and the io thread isn't held waiting for it
+                return original.written.thenAcceptAsync(encoded -> writeDuplicate(original, encoded), ioExecutor);
+            }
+
+            byte[] written = null;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (tileWriter.encode(image, out)) {
+                    byte[] encoded = out.toByteArray();
+                    columnSink.getTileSink(row).write(encoded);
+                    tilesWritten.incrementAndGet();
+                    written = encoded;
+                } else {
+                    fail();
+                }
+            } finally {
+                // duplicates waiting on this tile fail with it
+                tile.written.complete(written);
+            }
+            return null;
+        }
+
+        private void writeDuplicate(WrittenTile original, byte[] encoded) {
+            if (encoded == null || isCancelled()) {
+                // the original has already failed the job
+                return;
+            }
+            try {
+                if (!columnSink.linkTile(row, original.columnSink, original.row)) {
+                    columnSink.getTileSink(row).write(encoded);
+                }
+                tilesWritten.incrementAndGet();
+            } catch (IOException e) {
+                fail();
+                log.error("Exception occurred saving duplicate tile", e);
+            }
+        }
+
+        void discard() {
+            // the tile can be reused for another tile once it has been encoded
+            if (image != null) {
+                tileWriter.tileBuilder.release(image);
+                image = null;
+            }
+        }
+    }
+}
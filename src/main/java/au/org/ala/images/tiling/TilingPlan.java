@@ -0,0 +1,582 @@
+package au.org.ala.images.tiling;
+
+import com.google.common.math.IntMath;
+
+import java.awt.*;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The geometry of tiling an image with {@link ImageTiler4}, worked out from its dimensions before any pixels are
+ * read: the zoom levels and their tile grids, the slices the source is decoded in, and the work units that decode
+ * and tile them, each with an estimate of the memory, CPU and tiles it takes.
+ *
+ * The estimates let a scheduler decide whether, or where, to run a job.  CPU cost is counted in pixel operations:
+ * source pixels decoded, level pixels resampled and tile pixels encoded, so it is only meaningful relative to other
+ * plans.  Decoded bytes are the size of the decoded slices; full width bands read from sequentially encoded images
+ * are not accounted for.
+ *
+ * A plan and its work units are serialisable, so they can be split with {@link #split(int)} and run on other
+ * threads or machines with {@link ImageTiler4#tileWorkUnits}.  The work units of a plan must be run in plan order
+ * when the most zoomed out levels should be written first.
+ */
+public final class TilingPlan implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int[] zoomFactors;
+    private final int sliceSize;
+    private final int bytesPerPixel;
+    private final int minLevel;
+    private final int maxLevel;
+    private final int extremeZoomThreshold;
+    private final List<Level> levels;
+    private final List<WorkUnit> workUnits;
+
+    /**
+     * @param sliceSize The size of the decoded slices, see {@link #getSliceSize(int, long, int, int)}
+     * @param bytesPerPixel The decoded size of a source pixel
+     * @param memoryBudget The most bytes to decode at once, the extreme levels are only decoded whole if they fit
+     * @param lowZoomFirst Whether to plan a pass per level, most zoomed out first, each decoded at the level's resolution
+     */
+    TilingPlan(int width, int height, int tileSize, int[] zoomFactors, int sliceSize, int bytesPerPixel, long memoryBudget,
+               int minLevel, int maxLevel, boolean lowZoomFirst) {
+        if (minLevel < 0 || maxLevel < 0 || minLevel > maxLevel) {
+            throw new IllegalArgumentException("Invalid min/max levels");
+        }
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.zoomFactors = zoomFactors.clone();
+        this.sliceSize = sliceSize;
+        this.bytesPerPixel = bytesPerPixel;
+        this.minLevel = minLevel;
+        this.maxLevel = Math.min(maxLevel, zoomFactors.length - 1);
+        this.extremeZoomThreshold = findExtremeZoomThreshold(memoryBudget);
+
+        List<Level> levels = new ArrayList<>();
+        for (int level = this.minLevel; level <= this.maxLevel; level++) {
+            levels.add(new Level(level, zoomFactors[level], ceilDiv(width, zoomFactors[level]), ceilDiv(height, zoomFactors[level]),
+                    tileSize, level <= extremeZoomThreshold));
+        }
+        this.levels = Collections.unmodifiableList(levels);
+
+        List<WorkUnit> units = new ArrayList<>();
+        int pass = 0;
+        if (this.minLevel <= extremeZoomThreshold) {
+            units.add(extremeUnit(pass++, this.minLevel, Math.min(extremeZoomThreshold, this.maxLevel)));
+        }
+        int normalMinLevel = Math.max(this.minLevel, extremeZoomThreshold + 1);
+        if (lowZoomFirst) {
+            // each level is decoded again, so decode it at its own resolution rather than re-decoding the finest
+            for (int level = normalMinLevel; level <= this.maxLevel; level++) {
+                addSliceUnits(units, pass++, level, level, zoomFactors[level]);
+            }
+        } else {
+            for (int[] slicePass : planSlicePasses(normalMinLevel)) {
+                addSliceUnits(units, pass++, slicePass[0], slicePass[1], slicePass[2]);
+            }
+        }
+        this.workUnits = Collections.unmodifiableList(units);
+    }
+
+    /**
+     * Plan tiling an image of a known size with a tiler configuration, eg to estimate the cost of a job before the
+     * image is fetched.  {@link ImageTiler4#plan} also accounts for the source's own tiles.
+     *
+     * @param bytesPerPixel The decoded size of a source pixel, eg 3 for RGB
+     */
+    public static TilingPlan create(int width, int height, int bytesPerPixel, int minLevel, int maxLevel, ImageTilerConfig config) {
+        int tileSize = config.getTileSize();
+        int sliceSize = getSliceSize(tileSize, config.getSliceMemoryBudget(), bytesPerPixel, 0);
+        return new TilingPlan(width, height, tileSize, config.getZoomFactorStrategy().getZoomFactors(height, width), sliceSize,
+                bytesPerPixel, config.getSliceMemoryBudget(), minLevel, maxLevel, config.isLowZoomFirst());
+    }
+
+    /**
+     * The largest tile size x 2^k slice whose decoded pixels fit in the slice memory budget, so every power of 2
+     * level processed by slices starts on a tile boundary.  Slices are at least two tiles wide so the finest level
+     * can always be sliced, and at least as big as the source's native tiles if it is tiled.
+     *
+     * @param nativeTileSize The larger dimension of the source's tiles, or 0 if it isn't tiled
+     */
+    static int getSliceSize(int tileSize, long sliceMemoryBudget, int bytesPerPixel, int nativeTileSize) {
+        // a decoded slice is backed by a single array
+        long budget = Math.min(sliceMemoryBudget, Integer.MAX_VALUE);
+        long sliceSize = tileSize * 2L;
+        while ((sliceSize * 2) * (sliceSize * 2) * bytesPerPixel <= budget) {
+            sliceSize *= 2;
+        }
+        // don't split the source's own tiles between slices, each slice would decode the whole tile again
+        while (sliceSize < nativeTileSize && (sliceSize * 2) * (sliceSize * 2) * bytesPerPixel <= Integer.MAX_VALUE) {
+            sliceSize *= 2;
+        }
+        return (int) sliceSize;
+    }
+
+    /**
+     * The source region of the slice at the given slice coordinates, slice row 0 is at the bottom of the image.
+     */
+    static Rectangle getSliceRect(Point p, int w, int h, int segmentSize) {
+        int rectWidth = (p.x + 1) * segmentSize > w ? w - (p.x * segmentSize) : segmentSize;
+        int rectX = p.x * segmentSize;
+
+        int rectHeight = (p.y + 1) * segmentSize > h ? h - (p.y * segmentSize) : segmentSize;
+        int rectY = h - (p.y * segmentSize) - rectHeight;
+
+        // Safety check
+        if (rectHeight <= 0) {
+            throw new IllegalStateException(String.format(
+                "Invalid slice dimensions: p.y=%d, h=%d, rectY=%d, rectHeight=%d, segmentSize=%d",
+                p.y, h, rectY, rectHeight, segmentSize));
+        }
+        return new Rectangle(rectX, rectY, rectWidth, rectHeight);
+    }
+
+    /**
+     * The column and row of the tile at the bottom left of a slice, or part of one, at a sliced level.  Slices cover
+     * a whole number of tiles at every level they are tiled for, see {@link #isAligned(int, int)}.
+     *
+     * @param sourceRegion The source pixels of the slice
+     */
+    Point getTileOrigin(Rectangle sourceRegion, int level) {
+        long sourceTileSize = (long) zoomFactors[level] * tileSize;
+        long bottom = (long) height - sourceRegion.y - sourceRegion.height;
+        return new Point((int) (sourceRegion.x / sourceTileSize), (int) (bottom / sourceTileSize));
+    }
+
+    /**
+     * Whether slices decoded with the given subsampling start on a tile boundary at a level, so that no tile is split
+     * between two slices and written twice.
+     */
+    boolean isAligned(int level, int decodeSubsample) {
+        return (long) sliceSize * decodeSubsample % ((long) zoomFactors[level] * tileSize) == 0;
+    }
+
+    /**
+     * Split the work units into at most the given number of groups of about the same CPU cost, eg to tile an image
+     * on several machines at once.  The units in each group are in plan order.
+     */
+    public List<List<WorkUnit>> split(int parts) {
+        int groups = Math.max(1, Math.min(parts, workUnits.size()));
+        List<List<WorkUnit>> result = new ArrayList<>();
+        long[] costs = new long[groups];
+        for (int i = 0; i < groups; i++) {
+            result.add(new ArrayList<>());
+        }
+        // the most expensive units first, each to the cheapest group so far
+        List<WorkUnit> byCost = new ArrayList<>(workUnits);
+        byCost.sort(Comparator.comparingLong(WorkUnit::getEstimatedCpuCost).reversed());
+        for (WorkUnit unit : byCost) {
+            int cheapest = 0;
+            for (int i = 1; i < groups; i++) {
+                if (costs[i] < costs[cheapest]) {
+                    cheapest = i;
+                }
+            }
+            result.get(cheapest).add(unit);
+            costs[cheapest] += unit.getEstimatedCpuCost();
+        }
+        for (List<WorkUnit> group : result) {
+            group.sort(Comparator.comparingInt(workUnits::indexOf));
+        }
+        result.removeIf(List::isEmpty);
+        return result;
+    }
+
+    /**
+     * Whether the units are every work unit in the plan, so each level is complete once they have run.
+     */
+    boolean isComplete(Collection<WorkUnit> units) {
+        return units.containsAll(workUnits);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * The number of zoom levels in the image's pyramid, including those that aren't planned.
+     */
+    public int getZoomLevels() {
+        return zoomFactors.length;
+    }
+
+    public int getZoomFactor(int level) {
+        return zoomFactors[level];
+    }
+
+    public int getSliceSize() {
+        return sliceSize;
+    }
+
+    public int getMinLevel() {
+        return minLevel;
+    }
+
+    /**
+     * The most zoomed in planned level, which is less than the requested maximum if the pyramid has fewer levels.
+     */
+    public int getMaxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * The most zoomed in level that is tiled from the whole image rather than by slices, or -1 if there are none.
+     */
+    public int getExtremeZoomThreshold() {
+        return extremeZoomThreshold;
+    }
+
+    /**
+     * The planned levels, most zoomed out first.  Empty if the pyramid has no levels in the requested range.
+     */
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    /**
+     * The work units in the order {@link ImageTiler4} runs them.
+     */
+    public List<WorkUnit> getWorkUnits() {
+        return workUnits;
+    }
+
+    public long getTileCount() {
+        return workUnits.stream().mapToLong(WorkUnit::getTileCount).sum();
+    }
+
+    public long getEstimatedCpuCost() {
+        return workUnits.stream().mapToLong(WorkUnit::getEstimatedCpuCost).sum();
+    }
+
+    /**
+     * The most decoded bytes any one work unit holds at once.
+     */
+    public long getEstimatedDecodedBytes() {
+        return workUnits.stream().mapToLong(WorkUnit::getEstimatedDecodedBytes).max().orElse(0);
+    }
+
+    @Override
+    public String toString() {
+        return "TilingPlan{" + width + "x" + height + ", levels " + minLevel + "-" + maxLevel + ", sliceSize=" + sliceSize
+                + ", workUnits=" + workUnits.size() + ", tiles=" + getTileCount() + '}';
+    }
+
+    /**
+     * Find the highest zoom level (most zoomed out) where slice size < tile size.
+     * Levels at or below this threshold need full-image processing.
+     *
+     * The whole image is decoded at the finest extreme level, so that has to fit in the memory budget too.  Extreme
+     * levels that don't fit are sliced instead, from slices decoded with subsampling.
+     */
+    private int findExtremeZoomThreshold(long memoryBudget) {
+        int threshold = zoomFactors.length - 1; // All levels are extreme
+        for (int level = 0; level < zoomFactors.length; level++) {
+            double sliceSizeAtLevel = (double) sliceSize / (double) zoomFactors[level];
+
+            // If slice size is at least 2x tile size, we can safely use slicing
+            if (sliceSizeAtLevel >= tileSize * 2) {
+                threshold = level - 1; // Previous level was the last extreme one
+                break;
+            }
+        }
+        while (threshold >= 0 && (long) ceilDiv(width, zoomFactors[threshold]) * ceilDiv(height, zoomFactors[threshold]) * bytesPerPixel > memoryBudget) {
+            threshold--;
+        }
+        return threshold;
+    }
+
+    /**
+     * Group the sliced levels into passes that decode the slices with the same subsampling, most zoomed out first.
+     * A pass subsamples by as much as all its levels allow, and a level joins the next finer pass as long as its
+     * slices are still at least two tiles across and start on a tile boundary, so a zoom factor that isn't a power of
+     * 2 times the pass's decode subsample gets a pass of its own.
+     *
+     * @return The min level, max level and decode subsample of each pass
+     */
+    private List<int[]> planSlicePasses(int normalMinLevel) {
+        List<int[]> passes = new ArrayList<>();
+        int passMaxLevel = -1;
+        int decodeSubsample = 0;
+        for (int level = maxLevel; level >= normalMinLevel; level--) {
+            int candidate = IntMath.gcd(decodeSubsample, zoomFactors[level]);
+            if (passMaxLevel >= 0 && !canSlice(level, passMaxLevel, candidate)) {
+                passes.add(0, new int[] { level + 1, passMaxLevel, decodeSubsample });
+                passMaxLevel = -1;
+                candidate = zoomFactors[level];
+            }
+            if (passMaxLevel < 0) {
+                passMaxLevel = level;
+            }
+            decodeSubsample = candidate;
+        }
+        if (passMaxLevel >= 0) {
+            passes.add(0, new int[] { normalMinLevel, passMaxLevel, decodeSubsample });
+        }
+        return passes;
+    }
+
+    private boolean canSlice(int minLevel, int maxLevel, int decodeSubsample) {
+        for (int level = minLevel; level <= maxLevel; level++) {
+            if ((long) sliceSize * decodeSubsample / zoomFactors[level] < tileSize * 2L || !isAligned(level, decodeSubsample)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private WorkUnit extremeUnit(int pass, int minLevel, int maxLevel) {
+        // the whole image is decoded once at the finest level, and the coarser levels resized from it
+        int decodedWidth = ceilDiv(width, zoomFactors[maxLevel]);
+        int decodedHeight = ceilDiv(height, zoomFactors[maxLevel]);
+        long tiles = 0;
+        long levelPixels = 0;
+        for (int level = minLevel; level <= maxLevel; level++) {
+            Level l = levels.get(level - this.minLevel);
+            tiles += l.getTileCount();
+            levelPixels += (long) l.getWidth() * l.getHeight();
+        }
+        long cpuCost = (long) width * height + levelPixels + tiles * tileSize * tileSize;
+        return new WorkUnit(pass, minLevel, maxLevel, zoomFactors[maxLevel], -1, -1, new Rectangle(0, 0, width, height),
+                (long) decodedWidth * decodedHeight * bytesPerPixel, cpuCost, tiles);
+    }
+
+    private void addSliceUnits(List<WorkUnit> units, int pass, int minLevel, int maxLevel, int decodeSubsample) {
+        long segmentSize = (long) sliceSize * decodeSubsample;
+        int xs = (int) ((width + segmentSize - 1) / segmentSize);
+        int ys = (int) ((height + segmentSize - 1) / segmentSize);
+        // the order the slices are decoded in, column by column from the bottom of the image up
+        for (int i = 0; i < xs; i++) {
+            for (int j = ys - 1; j >= 0; j--) {
+                Rectangle rect = getSliceRect(new Point(i, j), width, height, (int) segmentSize);
+                int decodedWidth = ceilDiv(rect.width, decodeSubsample);
+                int decodedHeight = ceilDiv(rect.height, decodeSubsample);
+                long tiles = 0;
+                long levelPixels = 0;
+                for (int level = minLevel; level <= maxLevel; level++) {
+                    int levelSubsample = zoomFactors[level] / decodeSubsample;
+                    int levelWidth = ceilDiv(decodedWidth, levelSubsample);
+                    int levelHeight = ceilDiv(decodedHeight, levelSubsample);
+                    tiles += (long) ceilDiv(levelWidth, tileSize) * ceilDiv(levelHeight, tileSize);
+                    levelPixels += (long) levelWidth * levelHeight;
+                }
+                long cpuCost = (long) rect.width * rect.height + levelPixels + tiles * tileSize * tileSize;
+                units.add(new WorkUnit(pass, minLevel, maxLevel, decodeSubsample, i, j, rect,
+                        (long) decodedWidth * decodedHeight * bytesPerPixel, cpuCost, tiles));
+            }
+        }
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return (x + y - 1) / y;
+    }
+
+    /**
+     * A zoom level and its tile grid.
+     */
+    public static final class Level implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int level;
+        private final int zoomFactor;
+        private final int width;
+        private final int height;
+        private final int cols;
+        private final int rows;
+        private final boolean extreme;
+
+        Level(int level, int zoomFactor, int width, int height, int tileSize, boolean extreme) {
+            this.level = level;
+            this.zoomFactor = zoomFactor;
+            this.width = width;
+            this.height = height;
+            this.cols = ceilDiv(width, tileSize);
+            this.rows = ceilDiv(height, tileSize);
+            this.extreme = extreme;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getZoomFactor() {
+            return zoomFactor;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getCols() {
+            return cols;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        public long getTileCount() {
+            return (long) cols * rows;
+        }
+
+        /**
+         * Whether the level is tiled from the whole image rather than by slices.
+         */
+        public boolean isExtreme() {
+            return extreme;
+        }
+
+        @Override
+        public String toString() {
+            return "Level{" + level + ", zoomFactor=" + zoomFactor + ", " + width + "x" + height + ", tiles=" + cols + "x" + rows + '}';
+        }
+    }
+
+    /**
+     * Decoding one slice of the source, or the whole image for the most zoomed out levels, and tiling a range of
+     * levels from it.
+     */
+    public static final class WorkUnit implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int pass;
+        private final int minLevel;
+        private final int maxLevel;
+        private final int decodeSubsample;
+        private final int sliceCol;
+        private final int sliceRow;
+        private final Rectangle sourceRegion;
+        private final long estimatedDecodedBytes;
+        private final long estimatedCpuCost;
+        private final long tileCount;
+
+        WorkUnit(int pass, int minLevel, int maxLevel, int decodeSubsample, int sliceCol, int sliceRow, Rectangle sourceRegion,
+                 long estimatedDecodedBytes, long estimatedCpuCost, long tileCount) {
+            this.pass = pass;
+            this.minLevel = minLevel;
+            this.maxLevel = maxLevel;
+            this.decodeSubsample = decodeSubsample;
+            this.sliceCol = sliceCol;
+            this.sliceRow = sliceRow;
+            this.sourceRegion = sourceRegion;
+            this.estimatedDecodedBytes = estimatedDecodedBytes;
+            this.estimatedCpuCost = estimatedCpuCost;
+            this.tileCount = tileCount;
+        }
+
+        /**
+         * Units in the same pass tile the same levels, and are decoded together when run on one machine.
+         */
+        public int getPass() {
+            return pass;
+        }
+
+        public int getMinLevel() {
+            return minLevel;
+        }
+
+        public int getMaxLevel() {
+            return maxLevel;
+        }
+
+        /**
+         * The subsampling the source is decoded with, the zoom factor of each of the unit's levels is a multiple of it.
+         */
+        public int getDecodeSubsample() {
+            return decodeSubsample;
+        }
+
+        /**
+         * Whether the unit decodes the whole image for the most zoomed out levels, rather than a slice.
+         */
+        public boolean isExtreme() {
+            return sliceCol < 0;
+        }
+
+        /**
+         * The slice column, counted from the left, or -1 for the whole image.
+         */
+        public int getSliceCol() {
+            return sliceCol;
+        }
+
+        /**
+         * The slice row, counted from the bottom, or -1 for the whole image.
+         */
+        public int getSliceRow() {
+            return sliceRow;
+        }
+
+        Point getSliceCoords() {
+            return new Point(sliceCol, sliceRow);
+        }
+
+        /**
+         * The region of the source image decoded, in source pixels.
+         */
+        public Rectangle getSourceRegion() {
+            return new Rectangle(sourceRegion);
+        }
+
+        public long getEstimatedDecodedBytes() {
+            return estimatedDecodedBytes;
+        }
+
+        public long getEstimatedCpuCost() {
+            return estimatedCpuCost;
+        }
+
+        /**
+         * The number of tiles written, before any are deduplicated.
+         */
+        public long getTileCount() {
+            return tileCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WorkUnit)) {
+                return false;
+            }
+            WorkUnit other = (WorkUnit) o;
+            return pass == other.pass && minLevel == other.minLevel && maxLevel == other.maxLevel
+                    && sliceCol == other.sliceCol && sliceRow == other.sliceRow;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((((pass * 31) + minLevel) * 31 + maxLevel) * 31 + sliceCol) * 31 + sliceRow;
+        }
+
+        @Override
+        public String toString() {
+            return "WorkUnit{pass=" + pass + ", levels " + minLevel + "-" + maxLevel + ", decodeSubsample=" + decodeSubsample
+                    + (isExtreme() ? ", whole image" : ", slice " + sliceCol + "," + sliceRow) + ", tiles=" + tileCount + '}';
+        }
+    }
+}
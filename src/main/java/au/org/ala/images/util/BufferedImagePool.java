@@ -0,0 +1,164 @@
+package au.org.ala.images.util;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A small pool of decoded image buffers, so that the tilers can decode every slice of an image (and of the
+ * following images) into the same few large images instead of allocating a new one per slice.  Slice sized images
+ * are humongous allocations for G1 and allocating one per read fragments the old generation under sustained load.
+ *
+ * Images are matched on their type, and a read reuses the smallest idle image at least as big as it, as a sub image,
+ * so a pool only grows as big as the largest reads made through it.  The least recently released image is dropped
+ * when the pool is full.  This class is thread safe.
+ */
+public class BufferedImagePool {
+
+    private final int maxPooled;
+    private final Deque<BufferedImage> free = new ArrayDeque<>();
+
+    /**
+     * @param maxPooled The number of idle images to keep, 0 disables pooling
+     */
+    public BufferedImagePool(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Get an image of the given type at least the given size, reusing the smallest released one that is big enough,
+     * or else a new image of exactly that size.  The caller uses the top left of a bigger image, eg through
+     * {@link BufferedImage#getSubimage}.  The contents of a reused image are undefined.
+     */
+    public BufferedImage acquire(ImageTypeSpecifier type, int width, int height) {
+        synchronized (free) {
+            BufferedImage best = null;
+            for (BufferedImage image : free) {
+                if (image.getWidth() >= width && image.getHeight() >= height
+                        && (best == null || (long) image.getWidth() * image.getHeight() < (long) best.getWidth() * best.getHeight())
+                        && type.getColorModel().equals(image.getColorModel())
+                        && type.getSampleModel(image.getWidth(), image.getHeight()).equals(image.getSampleModel())) {
+                    best = image;
+                }
+            }
+            if (best != null) {
+                free.remove(best);
+                return best;
+            }
+        }
+        return type.createBufferedImage(width, height);
+    }
+
+    /**
+     * Return an image obtained from {@link #acquire(ImageTypeSpecifier, int, int)} to the pool.  The caller must
+     * not use the image, or any sub image of it, afterwards.
+     */
+    public void release(BufferedImage image) {
+        if (image == null || maxPooled <= 0) {
+            return;
+        }
+        synchronized (free) {
+            free.addFirst(image);
+            while (free.size() > maxPooled) {
+                free.removeLast().flush();
+            }
+        }
+    }
+
+    /**
+     * The sizes of the idle images, most recently released first.
+     */
+    public List<Dimension> getIdleSizes() {
+        synchronized (free) {
+            List<Dimension> sizes = new ArrayList<>();
+            for (BufferedImage image : free) {
+                sizes.add(new Dimension(image.getWidth(), image.getHeight()));
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * Drop all the idle images.
+     */
+    public void clear() {
+        synchronized (free) {
+            free.clear();
+        }
+    }
+
+    /**
+     * Decode a region of an image into a pooled destination of the reader's default image type, sized to the
+     * decoded region or reusing a bigger idle one, in which case the decoded pixels are returned as a sub image at
+     * its top left.  Release {@link PooledImage#getPooled()} once the image is no longer needed.
+     *
+     * Reads bigger than {@code maxWidth} x {@code maxHeight} (eg a whole image read by mistake through a slice
+     * pool), and readers that refuse the destination, fall back to allocating a new image, which is then not pooled.
+     */
+    public PooledImage read(ImageReader reader, ImageReadParam params, int maxWidth, int maxHeight) throws IOException {
+        Rectangle region = params.getSourceRegion();
+        int sourceWidth = region != null ? region.width : reader.getWidth(0);
+        int sourceHeight = region != null ? region.height : reader.getHeight(0);
+        int width = (sourceWidth + params.getSourceXSubsampling() - 1) / params.getSourceXSubsampling();
+        int height = (sourceHeight + params.getSourceYSubsampling() - 1) / params.getSourceYSubsampling();
+
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (maxPooled <= 0 || types == null || !types.hasNext() || width > maxWidth || height > maxHeight) {
+            return new PooledImage(reader.read(0, params), null);
+        }
+        BufferedImage destination = acquire(types.next(), width, height);
+        params.setDestination(destination);
+        BufferedImage image;
+        try {
+            image = reader.read(0, params);
+        } catch (IllegalArgumentException e) {
+            // destination isn't compatible with this reader
+            release(destination);
+            params.setDestination(null);
+            return new PooledImage(reader.read(0, params), null);
+        } finally {
+            params.setDestination(null);
+        }
+        if (image != destination) {
+            release(destination);
+            return new PooledImage(image, null);
+        }
+        if (width == destination.getWidth() && height == destination.getHeight()) {
+            return new PooledImage(destination, destination);
+        }
+        return new PooledImage(destination.getSubimage(0, 0, width, height), destination);
+    }
+
+    /**
+     * A decoded image and the pooled buffer backing it, if any.
+     */
+    public static final class PooledImage {
+        private final BufferedImage image;
+        private final BufferedImage pooled;
+
+        public PooledImage(BufferedImage image, BufferedImage pooled) {
+            this.image = image;
+            this.pooled = pooled;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * The pool buffer to release once the image is done with, or null if the image isn't pooled.
+         */
+        public BufferedImage getPooled() {
+            return pooled;
+        }
+    }
+}
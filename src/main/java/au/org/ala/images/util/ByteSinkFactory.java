@@ -7,4 +7,13 @@ import java.io.IOException;
 public interface ByteSinkFactory {
     void prepare() throws IOException;
     ByteSink getByteSinkForNames(String... names);
+
+    /**
+     * Make the names refer to the same content as the target names, without copying it.
+     *
+     * @return false if links aren't supported, in which case the caller should write the content instead
+     */
+    default boolean link(String[] names, String[] targetNames) throws IOException {
+        return false;
+    }
 }
@@ -0,0 +1,146 @@
+package au.org.ala.images.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets the caller of a long running operation (tiling, thumbnailing, IIIF processing) abandon it, eg when an ingest
+ * is aborted or an HTTP client has gone away, or give it a deadline.
+ *
+ * Cancellation is cooperative: the operation checks the token between slices, levels, tiles and pipeline stages,
+ * and aborts any image read in progress through a listener, then throws a {@link CancellationException}.  Once
+ * cancelled, a token stays cancelled.  A token with a deadline should be closed once the operation is done with it,
+ * eg with try-with-resources, so the deadline doesn't hold on to it until it expires.  This class is thread safe.
+ */
+public class CancellationToken implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CancellationToken.class);
+
+    /**
+     * A token that is never cancelled, for callers that don't need to.
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel() {
+            throw new UnsupportedOperationException("CancellationToken.NONE can't be cancelled");
+        }
+    };
+
+    private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "cancellation-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // most deadlines are cancelled long before they expire, so don't keep them queued until then
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Set<Runnable> listeners = new CopyOnWriteArraySet<>();
+    private volatile String reason;
+    private volatile ScheduledFuture<?> deadline;
+
+    public CancellationToken() {
+    }
+
+    /**
+     * A token that cancels itself once the timeout has passed, unless it has been cancelled before then.
+     */
+    public static CancellationToken withTimeout(Duration timeout) {
+        CancellationToken token = new CancellationToken();
+        token.deadline = DEADLINES.schedule(() -> token.cancel("Deadline of " + timeout + " exceeded"), timeout.toNanos(), TimeUnit.NANOSECONDS);
+        return token;
+    }
+
+    /**
+     * Release the token's deadline, if it has one, without cancelling the token.  The token can still be
+     * cancelled directly afterwards.
+     */
+    @Override
+    public void close() {
+        ScheduledFuture<?> deadline = this.deadline;
+        if (deadline != null) {
+            this.deadline = null;
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * Cancel the operation using this token.  Listeners are run on the calling thread.
+     */
+    public void cancel() {
+        cancel("Cancelled");
+    }
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    /**
+     * @throws CancellationException if the token has been cancelled
+     */
+    public void throwIfCancelled() {
+        String reason = this.reason;
+        if (reason != null) {
+            throw new CancellationException(reason);
+        }
+    }
+
+    /**
+     * Run a listener when the token is cancelled, or now if it already has been.  Listeners should be quick, eg
+     * aborting an ImageReader, and are run at most once.
+     *
+     * @return A registration that removes the listener when closed
+     */
+    public Registration onCancel(Runnable listener) {
+        if (this == NONE) {
+            return () -> {};
+        }
+        listeners.add(listener);
+        if (isCancelled() && listeners.remove(listener)) {
+            runListener(listener);
+        }
+        return () -> listeners.remove(listener);
+    }
+
+    private void cancel(String reason) {
+        synchronized (this) {
+            if (this.reason != null) {
+                return;
+            }
+            this.reason = reason;
+        }
+        close();
+        for (Runnable listener : listeners) {
+            // a listener removed concurrently must not be run
+            if (listeners.remove(listener)) {
+                runListener(listener);
+            }
+        }
+    }
+
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            log.warn("Cancellation listener failed", e);
+        }
+    }
+
+    /**
+     * A listener registered with {@link #onCancel(Runnable)}.
+     */
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
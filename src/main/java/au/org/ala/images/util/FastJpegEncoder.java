@@ -0,0 +1,494 @@
+package au.org.ala.images.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A baseline JPEG encoder for TYPE_3BYTE_BGR images, such as the tiles produced by the tilers.
+ *
+ * Tiles don't need any of the metadata, colour management or stream plumbing of the ImageIO writer, so this writes
+ * a JFIF file with the standard Huffman tables, 4:2:0 chroma subsampling and IJG scaled quantisation tables
+ * (the same tables the ImageIO writer uses for a given quality), using the libjpeg integer DCT.  Each MCU is
+ * converted and encoded straight from the image raster into a reusable output buffer, so encoding an image
+ * allocates nothing once the buffer has grown to fit.
+ *
+ * Instances are not thread safe, use one per thread.  Use {@link #canEncode(BufferedImage)} to check an image can
+ * be encoded, and fall back to ImageIO for anything else.
+ */
+public class FastJpegEncoder {
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // ITU T.81 Annex K quantisation tables, in natural order
+    private static final int[] LUMINANCE_QUANTISATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+    private static final int[] CHROMINANCE_QUANTISATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    // ITU T.81 Annex K.3 Huffman tables, as code counts per length followed by the symbols
+    private static final int[] DC_LUMINANCE_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] DC_LUMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] DC_CHROMINANCE_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] DC_CHROMINANCE_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] AC_LUMINANCE_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final HuffmanTable DC_LUMINANCE = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private static final HuffmanTable DC_CHROMINANCE = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private static final HuffmanTable AC_LUMINANCE = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private static final HuffmanTable AC_CHROMINANCE = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    // libjpeg jfdctint constants, 13 bit fixed point
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_298631336 = 2446;
+    private static final int FIX_0_390180644 = 3196;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_765366865 = 6270;
+    private static final int FIX_0_899976223 = 7373;
+    private static final int FIX_1_175875602 = 9633;
+    private static final int FIX_1_501321110 = 12299;
+    private static final int FIX_1_847759065 = 15137;
+    private static final int FIX_1_961570560 = 16069;
+    private static final int FIX_2_053119869 = 16819;
+    private static final int FIX_2_562915447 = 20995;
+    private static final int FIX_3_072711026 = 25172;
+
+    private final int[] luminanceTable = new int[64];
+    private final int[] chrominanceTable = new int[64];
+    // quantiser divisors for the DCT output, which is scaled up by 8
+    private final int[] luminanceDivisors = new int[64];
+    private final int[] chrominanceDivisors = new int[64];
+
+    private final int[][] yBlocks = new int[4][64];
+    private final int[] cbBlock = new int[64];
+    private final int[] crBlock = new int[64];
+    private final int[] cbSums = new int[64];
+    private final int[] crSums = new int[64];
+
+    private byte[] buffer = new byte[64 * 1024];
+    private int length;
+    private long bitBuffer;
+    private int bitCount;
+
+    /**
+     * @param quality JPEG quality from 0 to 1, as for ImageWriteParam.setCompressionQuality
+     */
+    public FastJpegEncoder(float quality) {
+        // the IJG scaling, as used by the ImageIO writer
+        int q = Math.max(1, Math.min(100, Math.round(quality * 100)));
+        int scale = q < 50 ? 5000 / q : 200 - q * 2;
+        for (int i = 0; i < 64; i++) {
+            luminanceTable[i] = Math.max(1, Math.min(255, (LUMINANCE_QUANTISATION[i] * scale + 50) / 100));
+            chrominanceTable[i] = Math.max(1, Math.min(255, (CHROMINANCE_QUANTISATION[i] * scale + 50) / 100));
+            luminanceDivisors[i] = luminanceTable[i] << 3;
+            chrominanceDivisors[i] = chrominanceTable[i] << 3;
+        }
+    }
+
+    /**
+     * Whether the image is a byte interleaved BGR image this encoder can read directly.
+     */
+    public static boolean canEncode(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && raster.getSampleModel() instanceof PixelInterleavedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && image.getWidth() > 0 && image.getHeight() > 0
+                && image.getWidth() <= 0xffff && image.getHeight() <= 0xffff;
+    }
+
+    /**
+     * Encode the image as a baseline JFIF file.  The output stream is not closed.
+     */
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        if (!canEncode(image)) {
+            throw new IllegalArgumentException("Can only encode TYPE_3BYTE_BGR images");
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        length = 0;
+        bitBuffer = 0;
+        bitCount = 0;
+
+        writeHeaders(width, height);
+
+        WritableRaster raster = image.getRaster();
+        PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int stride = model.getScanlineStride();
+        int pixelStride = model.getPixelStride();
+        int[] bandOffsets = model.getBandOffsets();
+        // the raster may be a child (sub image) of a larger raster
+        int base = ((DataBufferByte) raster.getDataBuffer()).getOffset()
+                - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX() * pixelStride;
+        int redOffset = bandOffsets[0];
+        int greenOffset = bandOffsets[1];
+        int blueOffset = bandOffsets[2];
+
+        int yPredictor = 0;
+        int cbPredictor = 0;
+        int crPredictor = 0;
+        for (int mcuY = 0; mcuY < height; mcuY += 16) {
+            for (int mcuX = 0; mcuX < width; mcuX += 16) {
+                Arrays.fill(cbSums, 0);
+                Arrays.fill(crSums, 0);
+                for (int y = 0; y < 16; y++) {
+                    // replicate the last row and column into partial MCUs
+                    int row = base + Math.min(mcuY + y, height - 1) * stride;
+                    int[] yBlock0 = yBlocks[(y >> 3) << 1];
+                    int[] yBlock1 = yBlocks[((y >> 3) << 1) + 1];
+                    int blockRow = (y & 7) << 3;
+                    int chromaRow = (y >> 1) << 3;
+                    for (int x = 0; x < 16; x++) {
+                        int p = row + Math.min(mcuX + x, width - 1) * pixelStride;
+                        int r = data[p + redOffset] & 0xff;
+                        int g = data[p + greenOffset] & 0xff;
+                        int b = data[p + blueOffset] & 0xff;
+                        int lum = (19595 * r + 38470 * g + 7471 * b + 32768) >> 16;
+                        (x < 8 ? yBlock0 : yBlock1)[blockRow + (x & 7)] = lum - 128;
+                        int chroma = chromaRow + (x >> 1);
+                        cbSums[chroma] += -11059 * r - 21709 * g + 32768 * b;
+                        crSums[chroma] += 32768 * r - 27439 * g - 5329 * b;
+                    }
+                }
+                for (int i = 0; i < 64; i++) {
+                    // average of the 2x2 block, centred on 0 for the DCT
+                    cbBlock[i] = (cbSums[i] + (1 << 17)) >> 18;
+                    crBlock[i] = (crSums[i] + (1 << 17)) >> 18;
+                }
+
+                for (int[] yBlock : yBlocks) {
+                    yPredictor = encodeBlock(yBlock, luminanceDivisors, yPredictor, DC_LUMINANCE, AC_LUMINANCE);
+                }
+                cbPredictor = encodeBlock(cbBlock, chrominanceDivisors, cbPredictor, DC_CHROMINANCE, AC_CHROMINANCE);
+                crPredictor = encodeBlock(crBlock, chrominanceDivisors, crPredictor, DC_CHROMINANCE, AC_CHROMINANCE);
+            }
+        }
+
+        // pad the last byte with ones
+        writeBits(0x7f, 7);
+        writeMarker(0xd9);
+        out.write(buffer, 0, length);
+    }
+
+    private int encodeBlock(int[] block, int[] divisors, int predictor, HuffmanTable dc, HuffmanTable ac) {
+        forwardDct(block);
+        for (int i = 0; i < 64; i++) {
+            int value = block[i];
+            int divisor = divisors[i];
+            block[i] = value < 0 ? -((-value + (divisor >> 1)) / divisor) : (value + (divisor >> 1)) / divisor;
+        }
+
+        int dcValue = block[0];
+        writeValue(dcValue - predictor, dc, 0);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL
+                writeBits(ac.codes[0xf0], ac.sizes[0xf0]);
+                run -= 16;
+            }
+            writeValue(value, ac, run << 4);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB
+            writeBits(ac.codes[0], ac.sizes[0]);
+        }
+        return dcValue;
+    }
+
+    /**
+     * Write the Huffman code for the value's size category (combined with the run length for AC values) followed
+     * by the value's bits.
+     */
+    private void writeValue(int value, HuffmanTable table, int run) {
+        int magnitude = value < 0 ? -value : value;
+        int bits = 32 - Integer.numberOfLeadingZeros(magnitude);
+        int symbol = run | bits;
+        writeBits(table.codes[symbol], table.sizes[symbol]);
+        if (bits > 0) {
+            writeBits(value < 0 ? value - 1 : value, bits);
+        }
+    }
+
+    private void writeBits(int bits, int count) {
+        bitBuffer = (bitBuffer << count) | (bits & ((1 << count) - 1));
+        bitCount += count;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            int b = (int) (bitBuffer >> bitCount) & 0xff;
+            ensureCapacity(2);
+            buffer[length++] = (byte) b;
+            if (b == 0xff) {
+                // byte stuffing
+                buffer[length++] = 0;
+            }
+        }
+    }
+
+    /**
+     * libjpeg's accurate integer forward DCT (jfdctint), the output is scaled up by 8.
+     */
+    private static void forwardDct(int[] data) {
+        for (int row = 0; row < 64; row += 8) {
+            int tmp0 = data[row] + data[row + 7];
+            int tmp7 = data[row] - data[row + 7];
+            int tmp1 = data[row + 1] + data[row + 6];
+            int tmp6 = data[row + 1] - data[row + 6];
+            int tmp2 = data[row + 2] + data[row + 5];
+            int tmp5 = data[row + 2] - data[row + 5];
+            int tmp3 = data[row + 3] + data[row + 4];
+            int tmp4 = data[row + 3] - data[row + 4];
+
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+
+            data[row] = (tmp10 + tmp11) << PASS1_BITS;
+            data[row + 4] = (tmp10 - tmp11) << PASS1_BITS;
+
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[row + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+            data[row + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
+
+            oddPart(data, row, 1, tmp4, tmp5, tmp6, tmp7, CONST_BITS - PASS1_BITS);
+        }
+        for (int col = 0; col < 8; col++) {
+            int tmp0 = data[col] + data[col + 56];
+            int tmp7 = data[col] - data[col + 56];
+            int tmp1 = data[col + 8] + data[col + 48];
+            int tmp6 = data[col + 8] - data[col + 48];
+            int tmp2 = data[col + 16] + data[col + 40];
+            int tmp5 = data[col + 16] - data[col + 40];
+            int tmp3 = data[col + 24] + data[col + 32];
+            int tmp4 = data[col + 24] - data[col + 32];
+
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+
+            data[col] = descale(tmp10 + tmp11, PASS1_BITS);
+            data[col + 32] = descale(tmp10 - tmp11, PASS1_BITS);
+
+            int z1 = (tmp12 + tmp13) * FIX_0_541196100;
+            data[col + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+            data[col + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
+
+            oddPart(data, col, 8, tmp4, tmp5, tmp6, tmp7, CONST_BITS + PASS1_BITS);
+        }
+    }
+
+    private static void oddPart(int[] data, int offset, int step, int tmp4, int tmp5, int tmp6, int tmp7, int shift) {
+        int z1 = tmp4 + tmp7;
+        int z2 = tmp5 + tmp6;
+        int z3 = tmp4 + tmp6;
+        int z4 = tmp5 + tmp7;
+        int z5 = (z3 + z4) * FIX_1_175875602;
+
+        tmp4 *= FIX_0_298631336;
+        tmp5 *= FIX_2_053119869;
+        tmp6 *= FIX_3_072711026;
+        tmp7 *= FIX_1_501321110;
+        z1 *= -FIX_0_899976223;
+        z2 *= -FIX_2_562915447;
+        z3 = z3 * -FIX_1_961570560 + z5;
+        z4 = z4 * -FIX_0_390180644 + z5;
+
+        data[offset + 7 * step] = descale(tmp4 + z1 + z3, shift);
+        data[offset + 5 * step] = descale(tmp5 + z2 + z4, shift);
+        data[offset + 3 * step] = descale(tmp6 + z2 + z3, shift);
+        data[offset + step] = descale(tmp7 + z1 + z4, shift);
+    }
+
+    private static int descale(int x, int n) {
+        return (x + (1 << (n - 1))) >> n;
+    }
+
+    private void writeHeaders(int width, int height) {
+        writeMarker(0xd8);
+
+        // JFIF 1.2, no units, 1:1 aspect ratio, no thumbnail
+        writeMarker(0xe0);
+        writeShort(16);
+        writeByte('J');
+        writeByte('F');
+        writeByte('I');
+        writeByte('F');
+        writeByte(0);
+        writeByte(1);
+        writeByte(2);
+        writeByte(0);
+        writeShort(1);
+        writeShort(1);
+        writeByte(0);
+        writeByte(0);
+
+        writeMarker(0xdb);
+        writeShort(2 + 2 * 65);
+        writeByte(0);
+        for (int i = 0; i < 64; i++) {
+            writeByte(luminanceTable[ZIGZAG[i]]);
+        }
+        writeByte(1);
+        for (int i = 0; i < 64; i++) {
+            writeByte(chrominanceTable[ZIGZAG[i]]);
+        }
+
+        // baseline, 8 bit, Y sampled 2x2, Cb and Cr 1x1
+        writeMarker(0xc0);
+        writeShort(17);
+        writeByte(8);
+        writeShort(height);
+        writeShort(width);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x22);
+        writeByte(0);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(1);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(1);
+
+        writeMarker(0xc4);
+        writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        writeMarker(0xda);
+        writeShort(12);
+        writeByte(3);
+        writeByte(1);
+        writeByte(0x00);
+        writeByte(2);
+        writeByte(0x11);
+        writeByte(3);
+        writeByte(0x11);
+        writeByte(0);
+        writeByte(63);
+        writeByte(0);
+    }
+
+    private void writeHuffmanTable(int tableClassAndId, int[] bits, int[] values) {
+        writeByte(tableClassAndId);
+        for (int count : bits) {
+            writeByte(count);
+        }
+        for (int value : values) {
+            writeByte(value);
+        }
+    }
+
+    private void writeMarker(int marker) {
+        writeByte(0xff);
+        writeByte(marker);
+    }
+
+    private void writeShort(int value) {
+        writeByte(value >> 8);
+        writeByte(value);
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+    }
+
+    /**
+     * Huffman codes and code lengths indexed by symbol, generated as in ITU T.81 Annex C.
+     */
+    private static final class HuffmanTable {
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    codes[values[k]] = code;
+                    sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
@@ -45,4 +45,25 @@ public class FileByteSinkFactory implements ByteSinkFactory {
         }
         return MoreFiles.asByteSink(path);
     }
+
+    /**
+     * Creates a relative symbolic link to the target, so the tree can still be moved as a whole.
+     */
+    @Override
+    public boolean link(String[] names, String[] targetNames) throws IOException {
+        Path path = Paths.get(parentDir.getAbsolutePath(), names);
+        Path target = Paths.get(parentDir.getAbsolutePath(), targetNames);
+        Path parent = path.getParent();
+        if (!Files.exists(parent) && !parent.toFile().mkdirs()) {
+            log.error("Unable to create directories for {}", path);
+        }
+        try {
+            Files.deleteIfExists(path);
+            Files.createSymbolicLink(path, parent.relativize(target));
+            return true;
+        } catch (UnsupportedOperationException | SecurityException | IOException e) {
+            log.debug("Unable to link {} to {}, falling back to a copy", path, target, e);
+            return false;
+        }
+    }
 }
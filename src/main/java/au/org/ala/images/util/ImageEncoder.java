@@ -0,0 +1,215 @@
+package au.org.ala.images.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes images like {@link ImageIO#write(java.awt.image.RenderedImage, String, OutputStream)}, but with explicit
+ * JPEG and PNG settings and without looking up and building a new ImageWriter for every image.
+ *
+ * Writers are cached per thread and format, and reset after every image, so they are shared by every encoder
+ * used on that thread.  An encoder's settings should be set up before it is shared between threads.
+ */
+public class ImageEncoder {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageEncoder.class);
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * JPEG chroma subsampling, as horizontal and vertical luma sampling factors.
+     */
+    public enum ChromaSubsampling {
+        /** No chroma subsampling */
+        YUV444(1, 1),
+        /** Half horizontal chroma resolution */
+        YUV422(2, 1),
+        /** Half horizontal and vertical chroma resolution, the ImageIO default */
+        YUV420(2, 2);
+
+        private final int horizontal;
+        private final int vertical;
+
+        ChromaSubsampling(int horizontal, int vertical) {
+            this.horizontal = horizontal;
+            this.vertical = vertical;
+        }
+
+        /** The horizontal luma sampling factor, chroma has 1 */
+        public int getHorizontal() { return horizontal; }
+
+        /** The vertical luma sampling factor, chroma has 1 */
+        public int getVertical() { return vertical; }
+    }
+
+    private float _jpegQuality = 0.75f;
+    private ChromaSubsampling _jpegChromaSubsampling = ChromaSubsampling.YUV420;
+    private boolean _jpegOptimizeHuffman = false;
+    private boolean _jpegProgressive = false;
+    private int _pngDeflateLevel = -1;
+    private ParallelPngEncoder _pngEncoder = null;
+
+    /**
+     * JPEG quality from 0 to 1, the ImageIO default is 0.75.
+     */
+    public float getJpegQuality() { return _jpegQuality; }
+    public void setJpegQuality(float jpegQuality) { _jpegQuality = jpegQuality; }
+
+    public ChromaSubsampling getJpegChromaSubsampling() { return _jpegChromaSubsampling; }
+    public void setJpegChromaSubsampling(ChromaSubsampling jpegChromaSubsampling) { _jpegChromaSubsampling = jpegChromaSubsampling; }
+
+    /**
+     * Compute optimal Huffman tables for each JPEG, smaller files for a little more encoding time.
+     */
+    public boolean isJpegOptimizeHuffman() { return _jpegOptimizeHuffman; }
+    public void setJpegOptimizeHuffman(boolean jpegOptimizeHuffman) { _jpegOptimizeHuffman = jpegOptimizeHuffman; }
+
+    public boolean isJpegProgressive() { return _jpegProgressive; }
+    public void setJpegProgressive(boolean jpegProgressive) { _jpegProgressive = jpegProgressive; }
+
+    /**
+     * PNG deflate level from 0 (store) to 9 (smallest), or -1 for the writer's default.
+     */
+    public int getPngDeflateLevel() { return _pngDeflateLevel; }
+    public void setPngDeflateLevel(int pngDeflateLevel) { _pngDeflateLevel = pngDeflateLevel; }
+
+    /**
+     * Encode PNGs with this encoder instead of ImageIO, for the image types it supports.  Its own deflate level
+     * is used rather than pngDeflateLevel.  Null (the default) to always use ImageIO.
+     */
+    public ParallelPngEncoder getPngEncoder() { return _pngEncoder; }
+    public void setPngEncoder(ParallelPngEncoder pngEncoder) { _pngEncoder = pngEncoder; }
+
+    /**
+     * Encode an image in the given ImageIO format.  The output stream is not closed.
+     *
+     * @return false if there is no writer that can encode the image in the format, as for ImageIO.write
+     */
+    public boolean write(BufferedImage image, String formatName, OutputStream out) throws IOException {
+        String format = normaliseFormat(formatName);
+        if (format.equals("png") && _pngEncoder != null && _pngEncoder.write(image, out)) {
+            return true;
+        }
+        ImageWriter writer = getWriter(format);
+        if (writer == null || !writer.getOriginatingProvider().canEncodeImage(image)) {
+            // another writer for the format may be able to handle this image type
+            return ImageIO.write(image, formatName, out);
+        }
+
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = null;
+            if (format.equals("jpeg")) {
+                metadata = configureJpeg(writer, param, image);
+            } else if (format.equals("png")) {
+                configurePng(param);
+            }
+            writer.write(null, new IIOImage(image, null, metadata), param);
+            ios.flush();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // don't reuse a writer that may be in a bad state
+            WRITERS.get().remove(format);
+            writer.dispose();
+            writer = null;
+            throw e;
+        } finally {
+            if (writer != null) {
+                writer.reset();
+            }
+            ios.close();
+        }
+    }
+
+    private static String normaliseFormat(String formatName) {
+        String format = formatName.toLowerCase(Locale.ROOT);
+        return format.equals("jpg") ? "jpeg" : format;
+    }
+
+    private static ImageWriter getWriter(String format) {
+        Map<String, ImageWriter> writers = WRITERS.get();
+        ImageWriter writer = writers.get(format);
+        if (writer == null) {
+            Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format);
+            if (!it.hasNext()) {
+                return null;
+            }
+            writer = it.next();
+            writers.put(format, writer);
+        }
+        return writer;
+    }
+
+    private IIOMetadata configureJpeg(ImageWriter writer, ImageWriteParam param, BufferedImage image) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(_jpegQuality);
+        if (_jpegProgressive && param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        if (_jpegOptimizeHuffman && param instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(true);
+        }
+        if (_jpegChromaSubsampling == ChromaSubsampling.YUV420 || image.getColorModel().getNumColorComponents() < 3) {
+            return null;
+        }
+
+        // chroma subsampling is only exposed through the native metadata
+        try {
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+            if (metadata == null || metadata.isReadOnly() || !JPEG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+                return null;
+            }
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+            Node sof = root.getElementsByTagName("sof").item(0);
+            if (sof == null) {
+                return null;
+            }
+            boolean luma = true;
+            for (Node spec = sof.getFirstChild(); spec != null; spec = spec.getNextSibling()) {
+                IIOMetadataNode componentSpec = (IIOMetadataNode) spec;
+                // chroma components are always sampled at 1, relative to the luma component
+                componentSpec.setAttribute("HsamplingFactor", String.valueOf(luma ? _jpegChromaSubsampling.horizontal : 1));
+                componentSpec.setAttribute("VsamplingFactor", String.valueOf(luma ? _jpegChromaSubsampling.vertical : 1));
+                luma = false;
+            }
+            metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+            return metadata;
+        } catch (Exception e) {
+            log.debug("Couldn't set JPEG chroma subsampling, using the writer default", e);
+            return null;
+        }
+    }
+
+    private void configurePng(ImageWriteParam param) {
+        if (_pngDeflateLevel < 0 || !param.canWriteCompressed()) {
+            return;
+        }
+        // the JDK writer uses a deflate level of (int) (9 * (1 - quality))
+        float quality = 1f - (Math.min(_pngDeflateLevel, 9) + 0.5f) / 9f;
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(Math.max(0f, Math.min(1f, quality)));
+    }
+}
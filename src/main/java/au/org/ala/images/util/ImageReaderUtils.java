@@ -25,6 +25,7 @@ import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataFormatImpl;
 import javax.imageio.metadata.IIOMetadataNode;
 import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
@@ -513,6 +514,90 @@ public class ImageReaderUtils {
         return Orientation.Normal;
     }
 
+    /**
+     * Find the image to read for a subsampled read of image 0.  Multi-resolution sources, such as pyramidal TIFFs,
+     * hold reduced resolution copies of image 0 as later images; the smallest copy reduced by a power of 2 that
+     * divides both subsampling factors can be read with proportionally less subsampling, which decodes far fewer
+     * pixels.  Other images (layers, thumbnails, other pages) are ignored by checking their size against image 0.
+     *
+     * @return The reduced image, or image 0 at scale 1 if there is no suitable reduced image
+     */
+    public static ReducedResolution findReducedResolution(ImageReader reader, int xSubsampling, int ySubsampling) throws IOException {
+        int maxScale = Math.min(xSubsampling, ySubsampling);
+        if (maxScale < 2 || !mayHaveReducedResolutions(reader) || reader.isSeekForwardOnly()) {
+            return ReducedResolution.FULL;
+        }
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        ReducedResolution best = ReducedResolution.FULL;
+        int images = reader.getNumImages(true);
+        for (int i = 1; i < Math.min(images, 64); i++) {
+            int reducedWidth = reader.getWidth(i);
+            int reducedHeight = reader.getHeight(i);
+            if (reducedWidth <= 0 || reducedHeight <= 0 || reducedWidth >= width) {
+                continue;
+            }
+            // the scale must be a power of 2, the same both ways, and divide the subsampling
+            int scale = Integer.highestOneBit((int) Math.round(width / (double) reducedWidth));
+            if (scale < 2 || scale <= best.scale || xSubsampling % scale != 0 || ySubsampling % scale != 0
+                    || Math.abs(reducedWidth - width / (double) scale) > 1 || Math.abs(reducedHeight - height / (double) scale) > 1) {
+                continue;
+            }
+            best = new ReducedResolution(i, scale, reducedWidth, reducedHeight);
+        }
+        return best;
+    }
+
+    /**
+     * Whether the reader's format can hold reduced resolution copies of image 0.  The reader's input must not be
+     * seek forward only for them to be found.
+     */
+    public static boolean mayHaveReducedResolutions(ImageReader reader) throws IOException {
+        String format = reader.getFormatName().toLowerCase();
+        return format.equals("tif") || format.equals("tiff");
+    }
+
+    /**
+     * An image that is image 0 reduced by an integer scale, see {@link #findReducedResolution(ImageReader, int, int)}.
+     */
+    public static class ReducedResolution {
+        static final ReducedResolution FULL = new ReducedResolution(0, 1, -1, -1);
+
+        public final int imageIndex;
+        public final int scale;
+        private final int width;
+        private final int height;
+
+        ReducedResolution(int imageIndex, int scale, int width, int height) {
+            this.imageIndex = imageIndex;
+            this.scale = scale;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Map a region of image 0 onto this image, covering at least the same pixels.
+         */
+        public Rectangle toReducedRegion(Rectangle region) {
+            if (scale == 1) {
+                return region;
+            }
+            int x = Math.min(region.x / scale, width - 1);
+            int y = Math.min(region.y / scale, height - 1);
+            int right = Math.min(width, (int) Math.ceil((region.x + region.width) / (double) scale));
+            int bottom = Math.min(height, (int) Math.ceil((region.y + region.height) / (double) scale));
+            return new Rectangle(x, y, Math.max(1, right - x), Math.max(1, bottom - y));
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("imageIndex", imageIndex)
+                    .add("scale", scale)
+                    .toString();
+        }
+    }
+
     public static class Dimension {
         public final int width;
         public final int height;
@@ -0,0 +1,224 @@
+package au.org.ala.images.util;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.io.input.UnsynchronizedByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.FileCacheImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A source of encoded image bytes that can be opened as an {@link ImageInputStream} as many times as needed.
+ *
+ * The tilers open the same image several times (once for the dimensions, once for the extreme zoom levels and
+ * once for the slices), so file backed sources let the OS page cache hold the encoded image instead of the heap.
+ */
+public abstract class ImageSource {
+
+    /**
+     * Open a new ImageInputStream positioned at the start of the image.  The caller is responsible for closing it.
+     */
+    public abstract ImageInputStream openImageInputStream() throws IOException;
+
+    /**
+     * Wrap an in memory copy of the image.
+     */
+    public static ImageSource of(byte[] imageBytes) {
+        return new ByteArrayImageSource(imageBytes);
+    }
+
+    /**
+     * Read the image from a file, using a memory mapped stream if {@code memoryMap} is true or the best available
+     * file ImageInputStream otherwise.
+     */
+    public static ImageSource of(Path path, boolean memoryMap) {
+        return memoryMap ? new MappedFileImageSource(path) : new FileImageSource(path);
+    }
+
+    /**
+     * Read the image from a Guava ByteSource.  If the size of the source is known it is read through one open
+     * stream, skipping forward for forward seeks and reopening it with {@link ByteSource#slice(long, long)} only
+     * to seek backwards, which is cheap for file and byte array backed sources.  Otherwise the stream is cached to
+     * a temporary file to make it seekable.
+     */
+    public static ImageSource of(ByteSource byteSource) {
+        return new ByteSourceImageSource(byteSource);
+    }
+
+    private static ImageInputStream checked(ImageInputStream iis) throws IOException {
+        if (iis == null) {
+            throw new IOException("Failed to create ImageInputStream");
+        }
+        return iis;
+    }
+
+    private static final class ByteArrayImageSource extends ImageSource {
+        private final byte[] imageBytes;
+
+        ByteArrayImageSource(byte[] imageBytes) {
+            this.imageBytes = imageBytes;
+        }
+
+        @Override
+        public ImageInputStream openImageInputStream() throws IOException {
+            var bais = UnsynchronizedByteArrayInputStream.builder()
+                    .setByteArray(imageBytes)
+                    .setOffset(0)
+                    .get();
+            return checked(ImageIO.createImageInputStream(bais));
+        }
+    }
+
+    private static final class FileImageSource extends ImageSource {
+        private final Path path;
+
+        FileImageSource(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public ImageInputStream openImageInputStream() throws IOException {
+            if (!Files.isReadable(path)) {
+                throw new IOException("Can't read image file " + path);
+            }
+            // Let ImageIO pick the stream SPI so a buffered implementation is used when one is registered
+            return checked(ImageIO.createImageInputStream(path.toFile()));
+        }
+    }
+
+    private static final class MappedFileImageSource extends ImageSource {
+        private final Path path;
+
+        MappedFileImageSource(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public ImageInputStream openImageInputStream() throws IOException {
+            return new MappedFileImageInputStream(path);
+        }
+    }
+
+    private static final class ByteSourceImageSource extends ImageSource {
+        private final ByteSource byteSource;
+
+        ByteSourceImageSource(ByteSource byteSource) {
+            this.byteSource = byteSource;
+        }
+
+        @Override
+        public ImageInputStream openImageInputStream() throws IOException {
+            var size = byteSource.sizeIfKnown();
+            if (size.isPresent()) {
+                return new SlicedByteSourceImageInputStream(byteSource, size.get());
+            }
+            var inputStream = byteSource.openBufferedStream();
+            try {
+                return new FileCacheImageInputStream(inputStream, null);
+            } catch (IOException | RuntimeException e) {
+                inputStream.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Seekable stream over a ByteSource of known size, reading a window at a time from a stream that is kept open
+     * while the reader moves forward, so reading the image from start to end reads the source once.  A seek back
+     * before the window reopens the stream at the new position; a ByteSource that can't slice cheaply skips to it
+     * from its start, so that is only worth it for readers that seldom seek backwards.
+     */
+    private static final class SlicedByteSourceImageInputStream extends ImageInputStreamImpl {
+        private static final int WINDOW_SIZE = 64 * 1024;
+
+        private final ByteSource byteSource;
+        private final long length;
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private long windowStart = 0;
+        private int windowLength = 0;
+        // the source stream and its position, null until the first read
+        private InputStream in;
+        private long inPos;
+
+        SlicedByteSourceImageInputStream(ByteSource byteSource, long length) {
+            this.byteSource = byteSource;
+            this.length = length;
+        }
+
+        private boolean fill() throws IOException {
+            if (streamPos >= windowStart && streamPos < windowStart + windowLength) {
+                return true;
+            }
+            if (streamPos >= length) {
+                return false;
+            }
+            if (in == null || streamPos < inPos) {
+                closeSource();
+                in = byteSource.slice(streamPos, length - streamPos).openStream();
+                inPos = streamPos;
+            } else if (streamPos > inPos) {
+                ByteStreams.skipFully(in, streamPos - inPos);
+                inPos = streamPos;
+            }
+            windowStart = streamPos;
+            windowLength = ByteStreams.read(in, window, 0, WINDOW_SIZE);
+            inPos += windowLength;
+            return windowLength > 0;
+        }
+
+        private void closeSource() throws IOException {
+            if (in != null) {
+                InputStream closing = in;
+                in = null;
+                closing.close();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkClosed();
+            bitOffset = 0;
+            if (!fill()) {
+                return -1;
+            }
+            return window[(int) (streamPos++ - windowStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkClosed();
+            if (off < 0 || len < 0 || off + len > b.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int windowOffset = (int) (streamPos - windowStart);
+            int count = Math.min(len, windowLength - windowOffset);
+            System.arraycopy(window, windowOffset, b, off, count);
+            streamPos += count;
+            return count;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            closeSource();
+        }
+    }
+}
@@ -1,7 +1,15 @@
 package au.org.ala.images.util;
 
 import org.imgscalr.Scalr;
+
+import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
 public class ImageUtils {
 
@@ -13,4 +21,153 @@ public class ImageUtils {
         return Scalr.resize(src, Scalr.Method.QUALITY, destWidth, destHeight, Scalr.OP_ANTIALIAS);
     }
 
+    /**
+     * Halve an image in both dimensions by averaging each 2x2 block of source pixels (a box / area filter).
+     * A trailing odd row or column is averaged over the pixels that exist, so the result is always
+     * ceil(width / 2) x ceil(height / 2), matching the dimensions the tilers compute for each zoom level.
+     *
+     * Byte interleaved (eg TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR, TYPE_BYTE_GRAY) and 8 bit packed int images are
+     * averaged in place and keep their type, anything else is first converted to TYPE_INT_RGB / TYPE_INT_ARGB.
+     *
+     * @param src The image to downsample
+     * @return A new image half the size of the source
+     */
+    public static BufferedImage downsample2x(BufferedImage src) {
+        WritableRaster raster = src.getRaster();
+        if (raster.getSampleModel() instanceof PixelInterleavedSampleModel && raster.getDataBuffer() instanceof DataBufferByte) {
+            return downsample2xInterleaved(src);
+        } else if (isPacked8BitInt(src)) {
+            return downsample2xPacked(src);
+        }
+
+        // Unusual layout (indexed, 16 bit, banded, ...), normalise it first
+        BufferedImage converted = toIntImage(src);
+        BufferedImage result = downsample2xPacked(converted);
+        converted.flush();
+        return result;
+    }
+
+    private static boolean isPacked8BitInt(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_INT_BGR:
+                return image.getRaster().getDataBuffer() instanceof DataBufferInt;
+            default:
+                return false;
+        }
+    }
+
+    private static BufferedImage createCompatibleImage(BufferedImage src, int width, int height) {
+        if (src.getType() != BufferedImage.TYPE_CUSTOM) {
+            return new BufferedImage(width, height, src.getType());
+        }
+        ColorModel cm = src.getColorModel();
+        return new BufferedImage(cm, cm.createCompatibleWritableRaster(width, height), cm.isAlphaPremultiplied(), null);
+    }
+
+    private static BufferedImage downsample2xInterleaved(BufferedImage src) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int dstWidth = (srcWidth + 1) / 2;
+        int dstHeight = (srcHeight + 1) / 2;
+
+        WritableRaster srcRaster = src.getRaster();
+        PixelInterleavedSampleModel srcModel = (PixelInterleavedSampleModel) srcRaster.getSampleModel();
+        byte[] srcData = ((DataBufferByte) srcRaster.getDataBuffer()).getData();
+        int srcStride = srcModel.getScanlineStride();
+        int pixelStride = srcModel.getPixelStride();
+        int[] srcBandOffsets = srcModel.getBandOffsets();
+        // the raster may be a child (sub image) of a larger raster
+        int srcBase = ((DataBufferByte) srcRaster.getDataBuffer()).getOffset()
+                - srcRaster.getSampleModelTranslateY() * srcStride - srcRaster.getSampleModelTranslateX() * pixelStride;
+
+        BufferedImage dst = createCompatibleImage(src, dstWidth, dstHeight);
+        WritableRaster dstRaster = dst.getRaster();
+        if (!(dstRaster.getSampleModel() instanceof PixelInterleavedSampleModel) || !(dstRaster.getDataBuffer() instanceof DataBufferByte)) {
+            // custom colour model that won't give back the same layout
+            return downsample2xPacked(toIntImage(src));
+        }
+        PixelInterleavedSampleModel dstModel = (PixelInterleavedSampleModel) dstRaster.getSampleModel();
+        byte[] dstData = ((DataBufferByte) dstRaster.getDataBuffer()).getData();
+        int dstStride = dstModel.getScanlineStride();
+        int dstPixelStride = dstModel.getPixelStride();
+        int[] dstBandOffsets = dstModel.getBandOffsets();
+        int bands = srcBandOffsets.length;
+
+        for (int y = 0; y < dstHeight; y++) {
+            int row0 = srcBase + (y * 2) * srcStride;
+            boolean hasRow1 = y * 2 + 1 < srcHeight;
+            int row1 = hasRow1 ? row0 + srcStride : row0;
+            int dstRow = y * dstStride;
+            for (int x = 0; x < dstWidth; x++) {
+                int p00 = row0 + (x * 2) * pixelStride;
+                boolean hasCol1 = x * 2 + 1 < srcWidth;
+                int p01 = hasCol1 ? p00 + pixelStride : p00;
+                int p10 = row1 + (x * 2) * pixelStride;
+                int p11 = hasCol1 ? p10 + pixelStride : p10;
+                int dstPixel = dstRow + x * dstPixelStride;
+                for (int b = 0; b < bands; b++) {
+                    int o = srcBandOffsets[b];
+                    int sum = (srcData[p00 + o] & 0xff) + (srcData[p01 + o] & 0xff)
+                            + (srcData[p10 + o] & 0xff) + (srcData[p11 + o] & 0xff);
+                    dstData[dstPixel + dstBandOffsets[b]] = (byte) ((sum + 2) >> 2);
+                }
+            }
+        }
+        return dst;
+    }
+
+    private static BufferedImage downsample2xPacked(BufferedImage src) {
+        int srcWidth = src.getWidth();
+        int srcHeight = src.getHeight();
+        int dstWidth = (srcWidth + 1) / 2;
+        int dstHeight = (srcHeight + 1) / 2;
+
+        WritableRaster srcRaster = src.getRaster();
+        SinglePixelPackedSampleModel srcModel = (SinglePixelPackedSampleModel) srcRaster.getSampleModel();
+        int[] srcData = ((DataBufferInt) srcRaster.getDataBuffer()).getData();
+        int srcStride = srcModel.getScanlineStride();
+        int srcBase = ((DataBufferInt) srcRaster.getDataBuffer()).getOffset()
+                - srcRaster.getSampleModelTranslateY() * srcStride - srcRaster.getSampleModelTranslateX();
+
+        BufferedImage dst = new BufferedImage(dstWidth, dstHeight, src.getType());
+        int[] dstData = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+
+        for (int y = 0; y < dstHeight; y++) {
+            int row0 = srcBase + (y * 2) * srcStride;
+            int row1 = y * 2 + 1 < srcHeight ? row0 + srcStride : row0;
+            int dstRow = y * dstWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int x0 = x * 2;
+                int x1 = x0 + 1 < srcWidth ? x0 + 1 : x0;
+                int p00 = srcData[row0 + x0];
+                int p01 = srcData[row0 + x1];
+                int p10 = srcData[row1 + x0];
+                int p11 = srcData[row1 + x1];
+                int result = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int sum = ((p00 >>> shift) & 0xff) + ((p01 >>> shift) & 0xff)
+                            + ((p10 >>> shift) & 0xff) + ((p11 >>> shift) & 0xff);
+                    result |= ((sum + 2) >> 2) << shift;
+                }
+                dstData[dstRow + x] = result;
+            }
+        }
+        return dst;
+    }
+
+    private static BufferedImage toIntImage(BufferedImage src) {
+        int type = src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage converted = new BufferedImage(src.getWidth(), src.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        try {
+            g.drawImage(src, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+
 }
@@ -0,0 +1,100 @@
+package au.org.ala.images.util;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An ImageInputStream over a memory mapped file.  The file is mapped read only in chunks of up to 1GB so files
+ * larger than 2GB can be read, and the pages are owned by the OS page cache rather than the Java heap.
+ */
+public class MappedFileImageInputStream extends ImageInputStreamImpl {
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+
+    private final long length;
+    private MappedByteBuffer[] chunks;
+
+    public MappedFileImageInputStream(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            length = channel.size();
+            int chunkCount = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+            chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long position = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, length - position));
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        int result = chunks[(int) (streamPos >>> CHUNK_SHIFT)].get((int) (streamPos & (CHUNK_SIZE - 1))) & 0xff;
+        streamPos++;
+        return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        int total = (int) Math.min(len, length - streamPos);
+        int remaining = total;
+        while (remaining > 0) {
+            MappedByteBuffer chunk = chunks[(int) (streamPos >>> CHUNK_SHIFT)];
+            int chunkOffset = (int) (streamPos & (CHUNK_SIZE - 1));
+            int count = Math.min(remaining, chunk.limit() - chunkOffset);
+            // absolute bulk get isn't available until Java 13, so use a duplicate to keep this thread safe
+            chunk.duplicate().position(chunkOffset).get(b, off, count);
+            off += count;
+            remaining -= count;
+            streamPos += count;
+        }
+        return total;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean isCached() {
+        return true;
+    }
+
+    @Override
+    public boolean isCachedMemory() {
+        return false;
+    }
+
+    @Override
+    public boolean isCachedFile() {
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        // the mappings are released when the buffers are garbage collected
+        chunks = null;
+    }
+}
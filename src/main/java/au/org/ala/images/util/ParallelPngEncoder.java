@@ -0,0 +1,423 @@
+package au.org.ala.images.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder for 8 bit RGB and RGBA images that compresses large images on several threads.
+ *
+ * Each scanline gets the filter with the smallest sum of absolute differences, the usual libpng heuristic.  The
+ * filtered data is split into blocks that are deflated independently, each primed with the last 32KB of the block
+ * before it as a preset dictionary, and the raw deflate streams are joined into a single zlib stream as pigz does,
+ * so the compression ratio is close to a single threaded deflate.  Images with an alpha channel that turns out to be
+ * fully opaque are written as RGB.
+ *
+ * Blocks are compressed on the executor, or on the calling thread if there isn't one or the image fits in a single
+ * block.  This class is thread safe.
+ */
+public class ParallelPngEncoder {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final int deflateLevel;
+    private final int blockSize;
+    private final Executor executor;
+
+    public ParallelPngEncoder() {
+        this(Deflater.DEFAULT_COMPRESSION, 128 * 1024, null);
+    }
+
+    /**
+     * @param deflateLevel The deflate level, 0 to 9 or -1 for the zlib default
+     * @param blockSize The approximate number of bytes of filtered image data in each independently compressed block
+     * @param executor The executor to compress blocks on, or null to compress on the calling thread
+     */
+    public ParallelPngEncoder(int deflateLevel, int blockSize, Executor executor) {
+        this.deflateLevel = deflateLevel;
+        this.blockSize = Math.max(DICTIONARY_SIZE, blockSize);
+        this.executor = executor;
+    }
+
+    /**
+     * Whether the image has a layout this encoder can read: 8 bit interleaved sRGB bytes with or without alpha
+     * (eg TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR) or TYPE_INT_RGB / TYPE_INT_ARGB.
+     */
+    public static boolean canEncode(BufferedImage image) {
+        return PixelSource.of(image) != null;
+    }
+
+    /**
+     * Encode the image as a PNG.  The output stream is not closed.
+     *
+     * @return false if the image layout isn't supported, see {@link #canEncode(BufferedImage)}
+     */
+    public boolean write(BufferedImage image, OutputStream out) throws IOException {
+        PixelSource source = PixelSource.of(image);
+        if (source == null) {
+            return false;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = source.hasAlpha && !source.isOpaque(width, height);
+        int bytesPerPixel = alpha ? 4 : 3;
+        int rowBytes = 1 + width * bytesPerPixel;
+
+        // filter every scanline into one buffer, each block of rows independently
+        byte[] filtered = new byte[Math.multiplyExact(rowBytes, height)];
+        int rowsPerBlock = Math.max(1, blockSize / rowBytes);
+        int blocks = (height + rowsPerBlock - 1) / rowsPerBlock;
+        runBlocks(blocks, block -> {
+            int firstRow = block * rowsPerBlock;
+            int lastRow = Math.min(height, firstRow + rowsPerBlock);
+            byte[] previous = new byte[width * bytesPerPixel];
+            byte[] current = new byte[width * bytesPerPixel];
+            if (firstRow > 0) {
+                source.readRow(firstRow - 1, width, alpha, previous);
+            }
+            for (int row = firstRow; row < lastRow; row++) {
+                source.readRow(row, width, alpha, current);
+                filterRow(current, previous, bytesPerPixel, filtered, row * rowBytes);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            return null;
+        });
+
+        // then deflate each block, primed with the data before it
+        int blockBytes = rowsPerBlock * rowBytes;
+        List<byte[]> compressed = runBlocks(blocks, block -> {
+            int start = block * blockBytes;
+            int end = Math.min(filtered.length, start + blockBytes);
+            return deflateBlock(filtered, start, end, block == blocks - 1);
+        });
+
+        Adler32 adler = new Adler32();
+        adler.update(filtered, 0, filtered.length);
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8);
+        headerData.writeByte(alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        headerData.writeByte(0);
+        writeChunk(dos, "IHDR", header.toByteArray(), 0, header.size());
+
+        writeChunk(dos, "IDAT", zlibHeader(), 0, 2);
+        for (byte[] data : compressed) {
+            writeChunk(dos, "IDAT", data, 0, data.length);
+        }
+        long checksum = adler.getValue();
+        byte[] trailer = { (byte) (checksum >> 24), (byte) (checksum >> 16), (byte) (checksum >> 8), (byte) checksum };
+        writeChunk(dos, "IDAT", trailer, 0, trailer.length);
+
+        writeChunk(dos, "IEND", new byte[0], 0, 0);
+        dos.flush();
+        return true;
+    }
+
+    private byte[] deflateBlock(byte[] data, int start, int end, boolean last) {
+        Deflater deflater = new Deflater(deflateLevel, true);
+        try {
+            if (start > 0) {
+                int dictionaryStart = Math.max(0, start - DICTIONARY_SIZE);
+                deflater.setDictionary(data, dictionaryStart, start - dictionaryStart);
+            }
+            deflater.setInput(data, start, end - start);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((end - start) / 2 + 64);
+            byte[] buffer = new byte[16 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // end on a byte boundary without a final block, so the next block's stream can follow on
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] zlibHeader() {
+        int level;
+        if (deflateLevel == 0 || deflateLevel == 1) {
+            level = 0;
+        } else if (deflateLevel >= 2 && deflateLevel <= 5) {
+            level = 1;
+        } else if (deflateLevel >= 7) {
+            level = 3;
+        } else {
+            level = 2;
+        }
+        // deflate with a 32KB window, then the level and the check bits
+        int cmf = 0x78;
+        int flg = level << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+
+    private <T> List<T> runBlocks(int blocks, BlockTask<T> task) {
+        List<T> results = new ArrayList<>(blocks);
+        if (executor == null || blocks == 1) {
+            for (int block = 0; block < blocks; block++) {
+                results.add(task.run(block));
+            }
+            return results;
+        }
+        List<CompletableFuture<T>> futures = new ArrayList<>(blocks);
+        for (int block = 0; block < blocks; block++) {
+            int b = block;
+            futures.add(CompletableFuture.supplyAsync(() -> task.run(b), executor));
+        }
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Filter a row with whichever filter gives the smallest sum of absolute values.
+     */
+    private static void filterRow(byte[] row, byte[] previous, int bpp, byte[] out, int offset) {
+        int length = row.length;
+        long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+            sumNone += Math.abs((byte) x);
+            sumSub += Math.abs((byte) (x - a));
+            sumUp += Math.abs((byte) (x - b));
+            sumAverage += Math.abs((byte) (x - ((a + b) >> 1)));
+            sumPaeth += Math.abs((byte) (x - paeth(a, b, c)));
+        }
+        int filter = FILTER_NONE;
+        long best = sumNone;
+        if (sumSub < best) { filter = FILTER_SUB; best = sumSub; }
+        if (sumUp < best) { filter = FILTER_UP; best = sumUp; }
+        if (sumAverage < best) { filter = FILTER_AVERAGE; best = sumAverage; }
+        if (sumPaeth < best) { filter = FILTER_PAETH; }
+
+        out[offset] = (byte) filter;
+        for (int i = 0; i < length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+            int value;
+            switch (filter) {
+                case FILTER_SUB: value = x - a; break;
+                case FILTER_UP: value = x - b; break;
+                case FILTER_AVERAGE: value = x - ((a + b) >> 1); break;
+                case FILTER_PAETH: value = x - paeth(a, b, c); break;
+                default: value = x;
+            }
+            out[offset + 1 + i] = (byte) value;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private interface BlockTask<T> {
+        T run(int block);
+    }
+
+    /**
+     * Reads rows of an image as RGB or RGBA bytes straight from its raster.
+     */
+    private static abstract class PixelSource {
+        final boolean hasAlpha;
+
+        PixelSource(boolean hasAlpha) {
+            this.hasAlpha = hasAlpha;
+        }
+
+        static PixelSource of(BufferedImage image) {
+            if (image.getWidth() <= 0 || image.getHeight() <= 0) {
+                return null;
+            }
+            WritableRaster raster = image.getRaster();
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_RGB:
+                    return new IntPixelSource(raster, false);
+                case BufferedImage.TYPE_INT_ARGB:
+                    return new IntPixelSource(raster, true);
+                default:
+                    break;
+            }
+            if (raster.getSampleModel() instanceof PixelInterleavedSampleModel && raster.getDataBuffer() instanceof DataBufferByte
+                    && image.getColorModel() instanceof ComponentColorModel
+                    && image.getColorModel().getColorSpace().isCS_sRGB() && !image.getColorModel().isAlphaPremultiplied()) {
+                int bands = raster.getNumBands();
+                boolean alpha = image.getColorModel().hasAlpha();
+                if ((bands == 3 && !alpha) || (bands == 4 && alpha)) {
+                    return new BytePixelSource(raster, alpha);
+                }
+            }
+            return null;
+        }
+
+        abstract void readRow(int y, int width, boolean alpha, byte[] row);
+
+        abstract boolean isOpaque(int width, int height);
+    }
+
+    private static final class BytePixelSource extends PixelSource {
+        private final byte[] data;
+        private final int base;
+        private final int stride;
+        private final int pixelStride;
+        private final int[] bandOffsets;
+
+        BytePixelSource(WritableRaster raster, boolean hasAlpha) {
+            super(hasAlpha);
+            PixelInterleavedSampleModel model = (PixelInterleavedSampleModel) raster.getSampleModel();
+            DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+            this.data = buffer.getData();
+            this.stride = model.getScanlineStride();
+            this.pixelStride = model.getPixelStride();
+            this.bandOffsets = model.getBandOffsets();
+            // the raster may be a child (sub image) of a larger raster
+            this.base = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX() * pixelStride;
+        }
+
+        @Override
+        void readRow(int y, int width, boolean alpha, byte[] row) {
+            int bands = alpha ? 4 : 3;
+            int p = base + y * stride;
+            int d = 0;
+            for (int x = 0; x < width; x++, p += pixelStride) {
+                for (int band = 0; band < bands; band++) {
+                    row[d++] = data[p + bandOffsets[band]];
+                }
+            }
+        }
+
+        @Override
+        boolean isOpaque(int width, int height) {
+            int alphaOffset = bandOffsets[3];
+            for (int y = 0; y < height; y++) {
+                int p = base + y * stride + alphaOffset;
+                for (int x = 0; x < width; x++, p += pixelStride) {
+                    if (data[p] != (byte) 0xff) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class IntPixelSource extends PixelSource {
+        private final int[] data;
+        private final int base;
+        private final int stride;
+
+        IntPixelSource(WritableRaster raster, boolean hasAlpha) {
+            super(hasAlpha);
+            SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            this.data = buffer.getData();
+            this.stride = model.getScanlineStride();
+            this.base = buffer.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+        }
+
+        @Override
+        void readRow(int y, int width, boolean alpha, byte[] row) {
+            int p = base + y * stride;
+            int d = 0;
+            for (int x = 0; x < width; x++) {
+                int argb = data[p + x];
+                row[d++] = (byte) (argb >> 16);
+                row[d++] = (byte) (argb >> 8);
+                row[d++] = (byte) argb;
+                if (alpha) {
+                    row[d++] = (byte) (argb >>> 24);
+                }
+            }
+        }
+
+        @Override
+        boolean isOpaque(int width, int height) {
+            for (int y = 0; y < height; y++) {
+                int p = base + y * stride;
+                for (int x = 0; x < width; x++) {
+                    if ((data[p + x] >>> 24) != 0xff) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
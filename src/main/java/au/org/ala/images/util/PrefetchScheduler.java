@@ -0,0 +1,278 @@
+package au.org.ala.images.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Serves rendered images (tiles, IIIF regions, ...) from a byte bounded cache, and renders the images a viewer is
+ * likely to ask for next in the background.
+ *
+ * Foreground requests render on the caller's thread, or wait for the same image if it is already being rendered.
+ * Prefetches run on a few minimum priority daemon threads, and only while no foreground request is rendering, so
+ * they never compete with a viewer for CPU.  The prefetch queue is last in first out, since the most recent request
+ * is the best guess of where the viewer is going, and once it is full the oldest prefetches are dropped.  Prefetches
+ * can be cancelled by group, eg when a viewer closes an image: queued ones are dropped, and those already rendering
+ * are cancelled through the token given to their renderer.  A prefetch that a foreground request is waiting for is
+ * left to finish.
+ *
+ * @param <V> The type of the rendered images
+ */
+public class PrefetchScheduler<V> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(PrefetchScheduler.class);
+
+    /**
+     * Renders an image, or returns null if there is no such image.
+     */
+    public interface Renderer<V> {
+        /**
+         * @param cancellationToken Cancelled if the image is no longer wanted, eg when a prefetch's group is
+         *                          cancelled, the renderer should abort its decode through it
+         */
+        V render(CancellationToken cancellationToken) throws IOException;
+    }
+
+    private final Cache<String, V> cache;
+    private final LinkedBlockingDeque<Prefetch<V>> queue = new LinkedBlockingDeque<>();
+    private final int maxQueued;
+    private final Map<String, Rendering<V>> rendering = new ConcurrentHashMap<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Object foregroundLock = new Object();
+    // guarded by foregroundLock
+    private int foregroundRendering = 0;
+    private final AtomicLong prefetched = new AtomicLong();
+    private volatile boolean closed = false;
+
+    /**
+     * @param cacheBudget The approximate number of bytes of rendered images to keep
+     * @param weigher The size in bytes of a rendered image
+     * @param threads The number of prefetch threads
+     * @param maxQueued The number of prefetches to queue before dropping the oldest
+     */
+    public PrefetchScheduler(long cacheBudget, ToIntFunction<V> weigher, int threads, int maxQueued) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, cacheBudget))
+                .weigher((String key, V value) -> weigher.applyAsInt(value))
+                .build();
+        this.maxQueued = Math.max(1, maxQueued);
+        for (int i = 0; i < Math.max(1, threads); i++) {
+            Thread worker = new Thread(this::runPrefetches, "prefetch-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Get an image from the cache, or render it now.
+     *
+     * @return The image, or null if the renderer returned null
+     */
+    public V get(String key, Renderer<V> renderer) throws IOException {
+        V value = cache.getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        synchronized (foregroundLock) {
+            foregroundRendering++;
+        }
+        try {
+            return render(key, renderer, null);
+        } finally {
+            synchronized (foregroundLock) {
+                foregroundRendering--;
+                foregroundLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queue images to render in the background, most likely first.  Images already cached are skipped.
+     *
+     * @param group The group to cancel the prefetches with, eg the source image id
+     * @param candidates The keys and renderers of the images, most likely first
+     */
+    public void prefetch(String group, Map<String, Renderer<V>> candidates) {
+        if (closed) {
+            return;
+        }
+        List<Map.Entry<String, Renderer<V>>> entries = new ArrayList<>(candidates.entrySet());
+        // the queue is taken from the front, so push the least likely first
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Map.Entry<String, Renderer<V>> entry = entries.get(i);
+            if (cache.getIfPresent(entry.getKey()) != null || rendering.containsKey(entry.getKey())) {
+                continue;
+            }
+            queue.offerFirst(new Prefetch<>(group, entry.getKey(), entry.getValue()));
+            while (queue.size() > maxQueued) {
+                queue.pollLast();
+            }
+        }
+    }
+
+    /**
+     * Drop the queued prefetches of a group, and cancel those of its prefetches that are rendering.
+     */
+    public void cancel(String group) {
+        queue.removeIf(prefetch -> prefetch.group.equals(group));
+        cancelRendering(group);
+    }
+
+    /**
+     * Drop all queued prefetches, and cancel those that are rendering.
+     */
+    public void cancelAll() {
+        queue.clear();
+        cancelRendering(null);
+    }
+
+    /**
+     * The number of images rendered by prefetching.
+     */
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    /**
+     * Whether an image is in the cache, without rendering it.
+     */
+    public boolean isCached(String key) {
+        return cache.getIfPresent(key) != null;
+    }
+
+    /**
+     * Stop the prefetch threads.  Foreground requests still work, but nothing more is prefetched.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        cancelAll();
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Render an image once, however many threads ask for it at the same time.
+     *
+     * @param group The group of a prefetch, or null for a foreground request
+     */
+    private V render(String key, Renderer<V> renderer, String group) throws IOException {
+        Rendering<V> render = new Rendering<>(group);
+        Rendering<V> existing = rendering.putIfAbsent(key, render);
+        if (existing != null) {
+            if (group != null) {
+                return existing.future.join();
+            }
+            // a foreground request is waiting, so the render isn't cancelled with its group
+            existing.joined = true;
+            try {
+                return existing.future.join();
+            } catch (CompletionException | CancellationException e) {
+                // the other render failed or was cancelled before it was joined, so try again here and report our
+                // own error if there is one
+                log.debug("Render of {} failed on another thread, retrying", key, e);
+                return renderer.render(CancellationToken.NONE);
+            }
+        }
+        try {
+            V value = renderer.render(render.cancellationToken);
+            render.cancellationToken.throwIfCancelled();
+            if (value != null) {
+                cache.put(key, value);
+            }
+            render.future.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            render.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendering.remove(key, render);
+        }
+    }
+
+    /**
+     * Cancel the prefetches of a group, or all of them, that are rendering and that no foreground request is
+     * waiting for.
+     */
+    private void cancelRendering(String group) {
+        for (Rendering<V> render : rendering.values()) {
+            if (render.group != null && (group == null || render.group.equals(group)) && !render.joined) {
+                render.cancellationToken.cancel();
+            }
+        }
+    }
+
+    private void runPrefetches() {
+        while (!closed) {
+            Prefetch<V> prefetch;
+            try {
+                prefetch = queue.pollFirst(1, TimeUnit.SECONDS);
+                if (prefetch == null) {
+                    continue;
+                }
+                awaitForegroundIdle();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (closed || cache.getIfPresent(prefetch.key) != null || rendering.containsKey(prefetch.key)) {
+                continue;
+            }
+            try {
+                if (render(prefetch.key, prefetch.renderer, prefetch.group) != null) {
+                    prefetched.incrementAndGet();
+                }
+            } catch (Exception e) {
+                log.debug("Prefetch of {} failed", prefetch.key, e);
+            }
+        }
+    }
+
+    private void awaitForegroundIdle() throws InterruptedException {
+        synchronized (foregroundLock) {
+            while (foregroundRendering > 0 && !closed) {
+                foregroundLock.wait(100);
+            }
+        }
+    }
+
+    private static final class Rendering<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        // null for a foreground request, which is never cancelled
+        final String group;
+        final CancellationToken cancellationToken;
+        volatile boolean joined;
+
+        Rendering(String group) {
+            this.group = group;
+            this.cancellationToken = group != null ? new CancellationToken() : CancellationToken.NONE;
+        }
+    }
+
+    private static final class Prefetch<V> {
+        final String group;
+        final String key;
+        final Renderer<V> renderer;
+
+        Prefetch(String group, String key, Renderer<V> renderer) {
+            this.group = group;
+            this.key = key;
+            this.renderer = renderer;
+        }
+    }
+}
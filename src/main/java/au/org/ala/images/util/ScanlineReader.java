@@ -0,0 +1,599 @@
+package au.org.ala.images.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Decodes an image once from top to bottom and hands it to a consumer a band of rows at a time.
+ *
+ * Formats like baseline JPEG and PNG can't decode a region without decoding every row above it, so reading them
+ * band by band with source regions decodes the top of the image again for every band.  Here the reader decodes
+ * the whole image into a destination whose sample model routes each row into the buffer of the band it belongs
+ * to, so each row is decoded once and only two bands are held in memory.  This relies on the reader writing the
+ * rows of the destination in order, which {@link #canStream(ImageReader)} checks for.
+ *
+ * A destination can't have more than 2^31 pixels, so larger images are read in a few segments of rows and each
+ * segment decodes the rows above it again.
+ */
+public final class ScanlineReader {
+
+    private static final Logger log = LoggerFactory.getLogger(ScanlineReader.class);
+
+    /**
+     * Receives the bands of an image in order, from the top.
+     */
+    public interface BandConsumer {
+        /**
+         * @param band The decoded rows of the band, at the top left of the image.  Its buffer is reused for the
+         *             band after next, so it may be used until the consumer returns from the next call.
+         * @param y The decoded row at the top of the band
+         */
+        void accept(BufferedImage band, int y) throws IOException;
+    }
+
+    private ScanlineReader() {
+    }
+
+    /**
+     * Whether the reader decodes the rows of its first image once each, in order, into a destination of a type
+     * that can be streamed: non progressive JPEG and non interlaced PNG with a byte or short per sample.  The
+     * reader's input must be an ImageInputStream that isn't seek forward only, as a JPEG header is read again from
+     * the start of the stream.
+     */
+    public static boolean canStream(ImageReader reader) throws IOException {
+        String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+        if (!format.equals("jpeg") && !format.equals("jpg") && !format.equals("png")) {
+            return false;
+        }
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types == null || !types.hasNext()) {
+            return false;
+        }
+        SampleModel sampleModel = types.next().getSampleModel(1, 1);
+        if (!(sampleModel instanceof ComponentSampleModel)
+                || (sampleModel.getDataType() != DataBuffer.TYPE_BYTE && sampleModel.getDataType() != DataBuffer.TYPE_USHORT)) {
+            return false;
+        }
+        if (format.equals("png")) {
+            return isSequentialPng(reader);
+        }
+        // the header is read directly, as the JPEG reader's image metadata scans the whole stream for markers
+        if (!(reader.getInput() instanceof ImageInputStream)) {
+            return false;
+        }
+        ImageInputStream iis = (ImageInputStream) reader.getInput();
+        if (iis.getFlushedPosition() > 0) {
+            return false;
+        }
+        iis.mark();
+        try {
+            iis.seek(0);
+            return isSequentialJpeg(iis);
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            iis.reset();
+        }
+    }
+
+    /**
+     * Interlaced PNGs write every row once per pass.
+     */
+    private static boolean isSequentialPng(ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return false;
+        }
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+        NodeList scans = root.getElementsByTagName("NumProgressiveScans");
+        return scans.getLength() == 0 || "1".equals(((IIOMetadataNode) scans.item(0)).getAttribute("value").trim());
+    }
+
+    /**
+     * Progressive JPEGs write every row once per scan, and colour converted JPEGs (CMYK, YCCK) are decoded whole
+     * before they are converted.
+     */
+    private static boolean isSequentialJpeg(ImageInputStream iis) throws IOException {
+        if (iis.readUnsignedShort() != 0xFFD8) {
+            return false;
+        }
+        while (true) {
+            int b = iis.read();
+            if (b < 0) {
+                return false;
+            } else if (b != 0xFF) {
+                continue;
+            }
+            int marker = iis.read();
+            while (marker == 0xFF) {
+                marker = iis.read();
+            }
+            if (marker < 0 || marker == 0xDA) {
+                // end of stream or start of scan without a frame
+                return false;
+            } else if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                // markers without a length
+                continue;
+            }
+            int length = iis.readUnsignedShort();
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                // start of frame: sample precision, height and width, then the number of components
+                iis.skipBytes(5);
+                int channels = iis.read();
+                return (marker == 0xC0 || marker == 0xC1) && (channels == 1 || channels == 3);
+            }
+            iis.skipBytes(length - 2);
+        }
+    }
+
+    /**
+     * Decode the reader's first image and hand it to the consumer band by band.
+     *
+     * @param params The read param, with subsampling if required but without a source region or destination
+     * @param bandHeights The number of decoded rows in each band, from the top, adding up to the decoded height
+     * @param pool Where the band buffers are taken from and returned to
+     */
+    public static void read(ImageReader reader, ImageReadParam params, int[] bandHeights, BufferedImagePool pool,
+                            BandConsumer consumer) throws IOException {
+        read(reader, params, bandHeights, pool, consumer, Integer.MAX_VALUE - 1);
+    }
+
+    /**
+     * @param maxSegmentSamples The most samples in the destination of one segment
+     */
+    static void read(ImageReader reader, ImageReadParam params, int[] bandHeights, BufferedImagePool pool,
+                     BandConsumer consumer, long maxSegmentSamples) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int xSubsample = params.getSourceXSubsampling();
+        int ySubsample = params.getSourceYSubsampling();
+        int decodedWidth = (width + xSubsample - 1) / xSubsample;
+        int decodedHeight = (height + ySubsample - 1) / ySubsample;
+        if (Arrays.stream(bandHeights).asLongStream().sum() != decodedHeight) {
+            throw new IllegalArgumentException("Bands don't add up to the decoded height " + decodedHeight);
+        }
+
+        ImageTypeSpecifier type = reader.getImageTypes(0).next();
+        Bands bands = new Bands(reader, type, decodedWidth, bandHeights, pool, consumer);
+        AbortListener aborted = new AbortListener();
+        reader.addIIOReadProgressListener(aborted);
+        try {
+            int segmentRows = (int) Math.max(1, Math.min(decodedHeight, maxSegmentSamples / ((long) decodedWidth * type.getSampleModel().getNumDataElements())));
+            int segments = (decodedHeight + segmentRows - 1) / segmentRows;
+            if (segments > 1) {
+                log.debug("read: decoding {}x{} in {} segments of {} rows", decodedWidth, decodedHeight, segments, segmentRows);
+            }
+            for (int segment = 0; segment < segments && !aborted.aborted && bands.failure == null; segment++) {
+                int top = segment * segmentRows;
+                int rows = Math.min(segmentRows, decodedHeight - top);
+                if (segments > 1) {
+                    int sourceTop = top * ySubsample;
+                    params.setSourceRegion(new Rectangle(0, sourceTop, width, Math.min(height - sourceTop, rows * ySubsample)));
+                }
+                params.setDestination(bands.createDestination(top, rows));
+                reader.read(0, params);
+            }
+            if (!aborted.aborted) {
+                bands.finish();
+            }
+        } catch (RuntimeException e) {
+            if (bands.failure == null) {
+                throw e;
+            }
+        } finally {
+            params.setDestination(null);
+            params.setSourceRegion(null);
+            reader.removeIIOReadProgressListener(aborted);
+            bands.release();
+        }
+        if (bands.failure instanceof IOException) {
+            throw (IOException) bands.failure;
+        } else if (bands.failure != null) {
+            throw new IIOException("Couldn't decode image in bands", bands.failure);
+        }
+    }
+
+    private static final class AbortListener implements IIOReadProgressListener {
+        volatile boolean aborted;
+
+        @Override
+        public void readAborted(ImageReader source) {
+            aborted = true;
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+    }
+
+    /**
+     * The two band buffers, and the bands of the image being decoded into them.
+     */
+    private static final class Bands {
+        private final ImageReader reader;
+        private final ImageTypeSpecifier type;
+        private final int width;
+        private final int[] bandHeights;
+        private final BufferedImagePool pool;
+        private final BandConsumer consumer;
+        private final BufferedImage[] buffers = new BufferedImage[2];
+
+        private int band;
+        private int bandTop;
+        private BufferedImage current;
+        private Throwable failure;
+
+        // the current buffer's samples, when they can be written directly
+        private byte[] bytes;
+        private short[] shorts;
+        private int offset;
+        private int pixelStride;
+        private int scanlineStride;
+        private int[] bandOffsets;
+
+        Bands(ImageReader reader, ImageTypeSpecifier type, int width, int[] bandHeights, BufferedImagePool pool, BandConsumer consumer) {
+            this.reader = reader;
+            this.type = type;
+            this.width = width;
+            this.bandHeights = bandHeights;
+            this.pool = pool;
+            this.consumer = consumer;
+            int maxHeight = Arrays.stream(bandHeights).max().orElse(1);
+            for (int i = 0; i < buffers.length && i < bandHeights.length; i++) {
+                buffers[i] = pool.acquire(type, width, maxHeight);
+            }
+            setCurrent(buffers[0]);
+        }
+
+        BufferedImage createDestination(int top, int rows) {
+            ColorModel colorModel = type.getColorModel();
+            RoutingSampleModel sampleModel = new RoutingSampleModel((ComponentSampleModel) type.getSampleModel(width, 1), width, rows, top, this);
+            DataBuffer placeholder = sampleModel.getDataType() == DataBuffer.TYPE_BYTE ? new DataBufferByte(1) : new DataBufferUShort(1);
+            WritableRaster raster = new WritableRaster(sampleModel, placeholder, new Point(0, 0)) { };
+            return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+        }
+
+        /**
+         * The buffer row of a decoded row that is being written, handing completed bands to the consumer, or -1
+         * once decoding has failed.
+         */
+        int rowForWrite(int row) {
+            if (failure != null) {
+                return -1;
+            }
+            while (band < bandHeights.length && row >= bandTop + bandHeights[band]) {
+                completeBand();
+                if (failure != null) {
+                    return -1;
+                }
+            }
+            if (band >= bandHeights.length || row < bandTop) {
+                fail(new IIOException("Row " + row + " was decoded out of order"));
+                return -1;
+            }
+            return row - bandTop;
+        }
+
+        /**
+         * The buffer row of a decoded row that is being read back, or -1 if it isn't in the current band.
+         */
+        int rowForRead(int row) {
+            if (failure != null || band >= bandHeights.length || row < bandTop || row >= bandTop + bandHeights[band]) {
+                return -1;
+            }
+            return row - bandTop;
+        }
+
+        BufferedImage current() {
+            return current;
+        }
+
+        void finish() {
+            while (failure == null && band < bandHeights.length) {
+                completeBand();
+            }
+        }
+
+        private void completeBand() {
+            try {
+                BufferedImage image = current;
+                if (image.getWidth() != width || image.getHeight() != bandHeights[band]) {
+                    image = image.getSubimage(0, 0, width, bandHeights[band]);
+                }
+                consumer.accept(image, bandTop);
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            bandTop += bandHeights[band];
+            band++;
+            setCurrent(buffers[band % 2]);
+        }
+
+        private void setCurrent(BufferedImage image) {
+            current = image;
+            bytes = null;
+            shorts = null;
+            if (image == null) {
+                return;
+            }
+            WritableRaster raster = image.getRaster();
+            DataBuffer buffer = raster.getDataBuffer();
+            if (raster.getSampleModel() instanceof ComponentSampleModel && raster.getSampleModelTranslateX() == 0
+                    && raster.getSampleModelTranslateY() == 0 && buffer.getNumBanks() == 1) {
+                ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+                offset = buffer.getOffset();
+                pixelStride = sampleModel.getPixelStride();
+                scanlineStride = sampleModel.getScanlineStride();
+                bandOffsets = sampleModel.getBandOffsets();
+                if (buffer instanceof DataBufferByte) {
+                    bytes = ((DataBufferByte) buffer).getData();
+                } else if (buffer instanceof DataBufferUShort) {
+                    shorts = ((DataBufferUShort) buffer).getData();
+                }
+            }
+        }
+
+        /**
+         * Write the samples of some pixels of a row of the current buffer, from the given offset in the array.
+         */
+        void setPixels(int x, int row, int w, int[] iArray, int in) {
+            int out = offset + row * scanlineStride + x * pixelStride;
+            int numBands = bandOffsets != null ? bandOffsets.length : 0;
+            if (bytes != null) {
+                for (int px = 0; px < w; px++, out += pixelStride) {
+                    for (int b = 0; b < numBands; b++) {
+                        bytes[out + bandOffsets[b]] = (byte) iArray[in++];
+                    }
+                }
+            } else if (shorts != null) {
+                for (int px = 0; px < w; px++, out += pixelStride) {
+                    for (int b = 0; b < numBands; b++) {
+                        shorts[out + bandOffsets[b]] = (short) iArray[in++];
+                    }
+                }
+            } else {
+                int length = w * current.getRaster().getNumBands();
+                current.getRaster().setPixels(x, row, w, 1, in == 0 && iArray.length == length ? iArray : Arrays.copyOfRange(iArray, in, in + length));
+            }
+        }
+
+        private void fail(Throwable e) {
+            failure = e;
+            // stop decoding, the rest of the image is ignored
+            reader.abort();
+        }
+
+        void release() {
+            for (BufferedImage buffer : buffers) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * A sample model for a segment of the image's rows that stores the pixels of each row in the buffer of its
+     * band instead of a data buffer.  Readers write the destination through its raster, which delegates every
+     * access to the sample model.
+     */
+    private static final class RoutingSampleModel extends ComponentSampleModel {
+        private final int top;
+        private final Bands bands;
+
+        RoutingSampleModel(ComponentSampleModel rowModel, int width, int height, int top, Bands bands) {
+            super(rowModel.getDataType(), width, height, rowModel.getPixelStride(), rowModel.getScanlineStride(),
+                    rowModel.getBankIndices(), rowModel.getBandOffsets());
+            this.top = top;
+            this.bands = bands;
+        }
+
+        @Override
+        public SampleModel createSubsetSampleModel(int[] bands) {
+            for (int i = 0; i < bands.length; i++) {
+                if (bands[i] != i) {
+                    throw new UnsupportedOperationException("Can't stream a subset of the bands");
+                }
+            }
+            if (bands.length != getNumBands()) {
+                throw new UnsupportedOperationException("Can't stream a subset of the bands");
+            }
+            return this;
+        }
+
+        @Override
+        public SampleModel createCompatibleSampleModel(int w, int h) {
+            return new ComponentSampleModel(getDataType(), w, h, getPixelStride(), w * getPixelStride(), getBankIndices(), getBandOffsets());
+        }
+
+        private WritableRaster raster() {
+            return bands.current().getRaster();
+        }
+
+        @Override
+        public Object getDataElements(int x, int y, Object obj, DataBuffer data) {
+            int row = bands.rowForRead(top + y);
+            if (row >= 0) {
+                return raster().getDataElements(x, row, obj);
+            }
+            return obj != null ? obj : getDataType() == DataBuffer.TYPE_BYTE ? new byte[getNumDataElements()] : new short[getNumDataElements()];
+        }
+
+        @Override
+        public void setDataElements(int x, int y, Object obj, DataBuffer data) {
+            int row = bands.rowForWrite(top + y);
+            if (row >= 0) {
+                raster().setDataElements(x, row, obj);
+            }
+        }
+
+        @Override
+        public int[] getPixel(int x, int y, int[] iArray, DataBuffer data) {
+            int row = bands.rowForRead(top + y);
+            if (row >= 0) {
+                return raster().getPixel(x, row, iArray);
+            }
+            return iArray != null ? iArray : new int[getNumBands()];
+        }
+
+        /**
+         * Some readers, eg PNG, write a pixel at a time to destinations they don't recognise.
+         */
+        @Override
+        public void setPixel(int x, int y, int[] iArray, DataBuffer data) {
+            int row = bands.rowForWrite(top + y);
+            if (row >= 0) {
+                bands.setPixels(x, row, 1, iArray, 0);
+            }
+        }
+
+        @Override
+        public int[] getPixels(int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+            int[] pixels = iArray != null ? iArray : new int[w * h * getNumBands()];
+            int rowLength = w * getNumBands();
+            int[] rowPixels = null;
+            for (int i = 0; i < h; i++) {
+                int row = bands.rowForRead(top + y + i);
+                if (row >= 0) {
+                    rowPixels = raster().getPixels(x, row, w, 1, rowPixels);
+                    System.arraycopy(rowPixels, 0, pixels, i * rowLength, rowLength);
+                } else {
+                    Arrays.fill(pixels, i * rowLength, (i + 1) * rowLength, 0);
+                }
+            }
+            return pixels;
+        }
+
+        /**
+         * Readers write a row at a time, so this is the one that has to be fast.
+         */
+        @Override
+        public void setPixels(int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+            for (int i = 0; i < h; i++) {
+                int row = bands.rowForWrite(top + y + i);
+                if (row >= 0) {
+                    bands.setPixels(x, row, w, iArray, i * w * getNumBands());
+                }
+            }
+        }
+
+        @Override
+        public int getSample(int x, int y, int b, DataBuffer data) {
+            int row = bands.rowForRead(top + y);
+            return row >= 0 ? raster().getSample(x, row, b) : 0;
+        }
+
+        @Override
+        public float getSampleFloat(int x, int y, int b, DataBuffer data) {
+            return getSample(x, y, b, data);
+        }
+
+        @Override
+        public double getSampleDouble(int x, int y, int b, DataBuffer data) {
+            return getSample(x, y, b, data);
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, int s, DataBuffer data) {
+            int row = bands.rowForWrite(top + y);
+            if (row >= 0) {
+                raster().setSample(x, row, b, s);
+            }
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, float s, DataBuffer data) {
+            setSample(x, y, b, (int) s, data);
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, double s, DataBuffer data) {
+            setSample(x, y, b, (int) s, data);
+        }
+
+        @Override
+        public int[] getSamples(int x, int y, int w, int h, int b, int[] iArray, DataBuffer data) {
+            int[] samples = iArray != null ? iArray : new int[w * h];
+            for (int i = 0; i < h; i++) {
+                for (int j = 0; j < w; j++) {
+                    samples[i * w + j] = getSample(x + j, y + i, b, data);
+                }
+            }
+            return samples;
+        }
+
+        @Override
+        public void setSamples(int x, int y, int w, int h, int b, int[] iArray, DataBuffer data) {
+            for (int i = 0; i < h; i++) {
+                int row = bands.rowForWrite(top + y + i);
+                if (row >= 0) {
+                    raster().setSamples(x, row, w, 1, b, Arrays.copyOfRange(iArray, i * w, (i + 1) * w));
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+}
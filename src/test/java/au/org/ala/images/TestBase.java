@@ -1,7 +1,19 @@
 package au.org.ala.images;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class TestBase {
 
@@ -18,4 +30,37 @@ public class TestBase {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * Write a multi-page TIFF of the image followed by copies at 1/2, 1/4... the size, filled with a marker colour
+     * so tests can tell which page was read.
+     */
+    protected void writePyramidTiff(Path file, BufferedImage image, int reducedPages, Color marker) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            writer.writeToSequence(new IIOImage(image, null, null), null);
+            for (int page = 1; page <= reducedPages; page++) {
+                BufferedImage reduced = new BufferedImage(image.getWidth() >> page, image.getHeight() >> page, BufferedImage.TYPE_3BYTE_BGR);
+                Graphics g = reduced.getGraphics();
+                g.setColor(marker);
+                g.fillRect(0, 0, reduced.getWidth(), reduced.getHeight());
+                g.dispose();
+                writer.writeToSequence(new IIOImage(reduced, null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * The files under a tile directory, as sorted paths relative to it, eg "3/2/1.png".
+     */
+    protected static List<String> listTiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).map(p -> dir.relativize(p).toString()).sorted().collect(Collectors.toList());
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package au.org.ala.images.iiif;
 
 import au.org.ala.images.TestBase;
+import au.org.ala.images.util.CancellationToken;
 import com.google.common.io.ByteSource;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
@@ -10,9 +11,14 @@ import org.junit.runners.JUnit4;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
 
 import static org.junit.Assert.*;
 
@@ -137,4 +143,75 @@ public class IiifImageProcessorTest extends TestBase {
             assertTrue(out.size() > 0);
         }
     }
+
+    /**
+     * Test that subsampled requests on a pyramidal TIFF are read from the reduced resolution pages.
+     */
+    @Test
+    public void testReducedResolutionPages() throws Exception {
+        BufferedImage full = new BufferedImage(1024, 512, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics g = full.getGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, full.getWidth(), full.getHeight());
+        g.dispose();
+        Path tiff = Files.createTempFile("iiif-pyramid", ".tif");
+        try {
+            writePyramidTiff(tiff, full, 2, Color.GREEN);
+            ByteSource bytes = com.google.common.io.Files.asByteSource(tiff.toFile());
+            IiifImageProcessor processor = new IiifImageProcessor();
+
+            // a quarter of the size comes from the 256x128 page
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IiifImageProcessor.Result result = processor.process(bytes, IiifImageProcessor.Region.full(), IiifImageProcessor.Size.width(256, false),
+                    IiifImageProcessor.Rotation.none(), IiifImageProcessor.Quality.DEFAULT, IiifImageProcessor.Format.PNG, out);
+            assertEquals(256, result.width);
+            assertEquals(128, result.height);
+            assertEquals(Color.GREEN.getRGB(), ImageIO.read(new ByteArrayInputStream(out.toByteArray())).getRGB(100, 60));
+
+            // a region at half size comes from the 512x256 page
+            out.reset();
+            result = processor.process(bytes, IiifImageProcessor.Region.absolute(512, 0, 512, 256), IiifImageProcessor.Size.width(256, false),
+                    IiifImageProcessor.Rotation.none(), IiifImageProcessor.Quality.DEFAULT, IiifImageProcessor.Format.PNG, out);
+            assertEquals(256, result.width);
+            assertEquals(128, result.height);
+            assertEquals(Color.GREEN.getRGB(), ImageIO.read(new ByteArrayInputStream(out.toByteArray())).getRGB(100, 60));
+
+            // full size still comes from the full resolution page
+            out.reset();
+            processor.process(bytes, IiifImageProcessor.Region.absolute(0, 0, 100, 100), IiifImageProcessor.Size.max(false),
+                    IiifImageProcessor.Rotation.none(), IiifImageProcessor.Quality.DEFAULT, IiifImageProcessor.Format.PNG, out);
+            assertEquals(Color.RED.getRGB(), ImageIO.read(new ByteArrayInputStream(out.toByteArray())).getRGB(50, 50));
+        } finally {
+            Files.deleteIfExists(tiff);
+        }
+    }
+
+    /**
+     * Test that a cancelled request, or one past its deadline, stops without writing anything.
+     */
+    @Test
+    public void testCancellation() throws Exception {
+        byte[] bytes = readImageBytes("audio-icon.png");
+        IiifImageProcessor processor = new IiifImageProcessor();
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            processor.process(ByteSource.wrap(bytes), IiifImageProcessor.Region.full(), IiifImageProcessor.Size.max(false),
+                    IiifImageProcessor.Rotation.none(), IiifImageProcessor.Quality.DEFAULT, IiifImageProcessor.Format.PNG, out, token);
+            fail("Processing should have been cancelled");
+        } catch (CancellationException e) {
+            assertEquals(0, out.size());
+        }
+
+        CancellationToken deadline = CancellationToken.withTimeout(Duration.ofMillis(1));
+        Thread.sleep(50);
+        try {
+            processor.process(ByteSource.wrap(bytes), IiifImageProcessor.Region.full(), IiifImageProcessor.Size.max(false),
+                    IiifImageProcessor.Rotation.none(), IiifImageProcessor.Quality.DEFAULT, IiifImageProcessor.Format.PNG, out, deadline);
+            fail("Processing should have passed its deadline");
+        } catch (CancellationException e) {
+            assertEquals(0, out.size());
+        }
+    }
 }
@@ -0,0 +1,161 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.util.FileByteSinkFactory;
+import com.google.common.io.ByteSink;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class BatchImageTilerTest extends TestBase {
+
+    /**
+     * Test that a batch of images tiled concurrently through one tiler produces the same tiles as tiling each
+     * image on its own.
+     */
+    @Test
+    public void testBatchMatchesIndividualTiling() throws Exception {
+        String[] images = { "large_test_10000x2000.jpg", "1024x576.jpg", "Bearded_Heath.jpg", "audio-icon.png" };
+        ImageTilerConfig config = new ImageTilerConfig();
+        config.setTileFormat(TileFormat.PNG);
+        ImageTiler4 tiler = new ImageTiler4(config);
+
+        List<Path> dirs = new ArrayList<>();
+        try {
+            List<CompletableFuture<ImageTilerResults>> futures = new ArrayList<>();
+            try (BatchImageTiler batch = new BatchImageTiler(tiler, 3)) {
+                for (String image : images) {
+                    Path dir = Files.createTempDirectory("batchtiler-actual");
+                    dirs.add(dir);
+                    futures.add(batch.submit(getImageFile(image).toPath(), new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(dir.toFile()))));
+                }
+            }
+            for (int i = 0; i < images.length; i++) {
+                ImageTilerResults actual = futures.get(i).get(5, TimeUnit.MINUTES);
+                Path expectedDir = Files.createTempDirectory("batchtiler-expected");
+                dirs.add(expectedDir);
+                ImageTilerResults expected = tiler.tileImage(getImageFile(images[i]), expectedDir.toFile());
+                assertTrue(images[i], actual.getSuccess());
+                assertEquals(images[i], expected.getZoomLevels(), actual.getZoomLevels());
+                assertEquals(images[i], listTiles(expectedDir), listTiles(dirs.get(i)));
+            }
+        } finally {
+            for (Path dir : dirs) {
+                FileUtils.deleteDirectory(dir.toFile());
+            }
+        }
+    }
+
+    /**
+     * Test that waiting images start smallest first, and that a large image passed over too often is started
+     * ahead of smaller ones.
+     */
+    @Test
+    public void testSmallestFirstWithAging() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> started = Collections.synchronizedList(new ArrayList<>());
+        IImageTiler recordingTiler = new IImageTiler() {
+            @Override
+            public ImageTilerResults tileImage(Path imagePath, TilerSink tilerSink, int minLevel, int maxLevel) throws InterruptedException {
+                started.add(imagePath.getFileName().toString());
+                release.await();
+                return new ImageTilerResults(true, 1);
+            }
+
+            @Override
+            public ImageTilerResults tileImage(InputStream imageInputStream, TilerSink tilerSink, int minLevel, int maxLevel) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        // silky_oak is the largest, but may only be passed over twice
+        String[] images = { "audio-icon.png", "silky_oak.JPG", "1024x576.jpg", "large_test_10000x2000.jpg", "Bearded_Heath.jpg", "wickhams_grevillea.PNG" };
+        List<CompletableFuture<ImageTilerResults>> futures = new ArrayList<>();
+        try (BatchImageTiler batch = new BatchImageTiler(recordingTiler, 1, 2)) {
+            for (String image : images) {
+                futures.add(batch.submit(getImageFile(image).toPath(), null));
+            }
+            release.countDown();
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+
+        assertEquals(Arrays.asList("audio-icon.png", "1024x576.jpg", "large_test_10000x2000.jpg", "silky_oak.JPG", "Bearded_Heath.jpg", "wickhams_grevillea.PNG"), started);
+    }
+
+    /**
+     * Test that a small image submitted after a large one has its tile writes run ahead of the large one's, so it
+     * finishes first even though every tile of the large one is already waiting to be written.
+     */
+    @Test
+    public void testSmallImageOvertakesLarge() throws Exception {
+        ImageTilerConfig config = new ImageTilerConfig(1, 1, 256, 6, TileFormat.PNG);
+        config.setMaxTilesInFlight(100000);
+        ImageTiler4 tiler = new ImageTiler4(config);
+
+        // hold up the io thread until both images have submitted all of their tiles
+        CountDownLatch release = new CountDownLatch(1);
+        TilerSink blockingSink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+            @Override
+            public OutputStream openStream() throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return OutputStream.nullOutputStream();
+            }
+        };
+
+        List<String> finished = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<ImageTilerResults> large;
+        CompletableFuture<ImageTilerResults> small;
+        try (BatchImageTiler batch = new BatchImageTiler(tiler, 2)) {
+            large = batch.submit(getImageFile("large_test_10000x2000.jpg").toPath(), blockingSink);
+            large.thenRun(() -> finished.add("large"));
+            awaitJobsWaitingForTiles(1);
+            small = batch.submit(getImageFile("1024x576.jpg").toPath(), blockingSink);
+            small.thenRun(() -> finished.add("small"));
+            awaitJobsWaitingForTiles(2);
+            release.countDown();
+        }
+        assertTrue(large.get(5, TimeUnit.MINUTES).getSuccess());
+        assertTrue(small.get(5, TimeUnit.MINUTES).getSuccess());
+        assertEquals(Arrays.asList("small", "large"), finished);
+    }
+
+    /**
+     * Wait until some batch jobs have submitted every tile and are waiting for them to be written.
+     */
+    private static void awaitJobsWaitingForTiles(int jobs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (true) {
+            long waiting = Thread.getAllStackTraces().entrySet().stream()
+                    .filter(entry -> entry.getKey().getName().startsWith("batch-tiler-"))
+                    .filter(entry -> Arrays.stream(entry.getValue()).anyMatch(frame -> frame.getMethodName().equals("awaitCompletion")))
+                    .count();
+            if (waiting >= jobs) {
+                return;
+            }
+            assertTrue("Jobs didn't submit their tiles", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+}
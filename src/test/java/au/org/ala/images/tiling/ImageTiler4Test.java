@@ -1,19 +1,49 @@
 package au.org.ala.images.tiling;
 
 import au.org.ala.images.TestBase;
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.FileByteSinkFactory;
+import au.org.ala.images.util.ImageSource;
+import com.google.common.io.ByteSink;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -155,6 +185,48 @@ public class ImageTiler4Test extends TestBase {
         }
     }
 
+    /**
+     * Test that cascading levels (each level box filtered from the one below) produces the same tile layout
+     * as resizing every level from the full resolution slice.
+     */
+    @Test
+    public void testCascadingLevels() throws Exception {
+        String filename = "large_test_10000x10000.jpg";
+        URL url = ImageTiler4Test.class.getResource(String.format("/images/%s", filename));
+        File imageFile = new File(url.toURI());
+
+        BufferedImage originalImage = ImageIO.read(imageFile);
+
+        ImageTilerConfig config = new ImageTilerConfig();
+        config.setCascadeLevels(true);
+        ImageTiler4 tiler = new ImageTiler4(config);
+
+        Path tempDir = Files.createTempDirectory("imagetiler4-cascade-test");
+        try {
+            var sw = Stopwatch.createStarted();
+            ImageTilerResults results = tiler.tileImage(imageFile, tempDir.toFile());
+            println("Cascading tiling completed in %s", sw.stop());
+            assertTrue("Tiling should succeed", results.getSuccess());
+
+            int zoomLevels = results.getZoomLevels();
+            for (int level = 0; level < zoomLevels; level++) {
+                testZoomLevel(tempDir.toFile(), level, originalImage, config.getTileSize(), zoomLevels);
+            }
+
+            // a tile from a cascaded level should still look like the source at that position
+            int level = zoomLevels - 3;
+            int subsample = (int) Math.pow(2, zoomLevels - level - 1);
+            File tile = new File(tempDir.toFile(), level + "/0/0.png");
+            BufferedImage tileImage = ImageIO.read(tile);
+            int levelHeight = (int) Math.ceil((double) originalImage.getHeight() / subsample);
+            // tile row 0 is the bottom of the image
+            int tileTop = levelHeight - _tileSize;
+            assertTrue(checkPixelMatch(tileImage, originalImage, _tileSize / 2, _tileSize / 2, subsample, -tileTop));
+        } finally {
+            FileUtils.deleteDirectory(tempDir.toFile());
+        }
+    }
+
     private boolean checkPixelMatch(BufferedImage tile, BufferedImage original, int tileX, int tileY, int subsample, int paddingTop) {
         if (tileX >= tile.getWidth() || tileY >= tile.getHeight() || tileY < paddingTop) {
             println("  checkPixelMatch: out of bounds - tileX=%d, tileY=%d, paddingTop=%d", tileX, tileY, paddingTop);
@@ -255,5 +327,803 @@ public class ImageTiler4Test extends TestBase {
             FileUtils.deleteDirectory(tempDir.toFile());
         }
     }
-}
 
+    /**
+     * Test that file and ByteSource inputs, with and without memory mapping, produce the same tiles as an input stream.
+     */
+    @Test
+    public void testFileAndByteSourceInputs() throws Exception {
+        String filename = "1024x576.jpg";
+        URL url = ImageTiler4Test.class.getResource(String.format("/images/%s", filename));
+        File imageFile = new File(url.toURI());
+
+        ImageTilerConfig config = new ImageTilerConfig();
+        Path streamDir = Files.createTempDirectory("imagetiler4-stream-test");
+        Path fileDir = Files.createTempDirectory("imagetiler4-file-test");
+        Path mappedDir = Files.createTempDirectory("imagetiler4-mapped-test");
+        Path byteSourceDir = Files.createTempDirectory("imagetiler4-bytesource-test");
+        try {
+            ImageTilerResults expected = new ImageTiler4(config).tileImage(FileUtils.openInputStream(imageFile), sinkFor(streamDir));
+            assertTrue(expected.getSuccess());
+
+            config.setMemoryMapInput(false);
+            ImageTilerResults fileResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(fileDir), 0, Integer.MAX_VALUE);
+            config.setMemoryMapInput(true);
+            ImageTilerResults mappedResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(mappedDir), 0, Integer.MAX_VALUE);
+            ImageTilerResults byteSourceResults = new ImageTiler4(config).tileImage(com.google.common.io.Files.asByteSource(imageFile), sinkFor(byteSourceDir), 0, Integer.MAX_VALUE);
+
+            assertSameTiles(expected, streamDir, fileResults, fileDir);
+            assertSameTiles(expected, streamDir, mappedResults, mappedDir);
+            assertSameTiles(expected, streamDir, byteSourceResults, byteSourceDir);
+        } finally {
+            FileUtils.deleteDirectory(streamDir.toFile());
+            FileUtils.deleteDirectory(fileDir.toFile());
+            FileUtils.deleteDirectory(mappedDir.toFile());
+            FileUtils.deleteDirectory(byteSourceDir.toFile());
+        }
+    }
+
+    /**
+     * Test that reading a sequentially encoded image in full width bands gives the same tiles as reading it by slice.
+     */
+    @Test
+    public void testBandReadsMatchSliceReads() throws Exception {
+        String filename = "large_test_10000x10000.jpg";
+        URL url = ImageTiler4Test.class.getResource(String.format("/images/%s", filename));
+        File imageFile = new File(url.toURI());
+
+        Path sliceDir = Files.createTempDirectory("imagetiler4-slice-test");
+        Path bandDir = Files.createTempDirectory("imagetiler4-band-test");
+        try {
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setMaxBandBytes(0);
+            ImageTilerResults sliceResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(sliceDir), 0, Integer.MAX_VALUE);
+            assertTrue(sliceResults.getSuccess());
+
+            config = new ImageTilerConfig();
+            config.setMaxBandBytes(Long.MAX_VALUE);
+            ImageTilerResults bandResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(bandDir), 0, Integer.MAX_VALUE);
+            assertTrue(bandResults.getSuccess());
+
+            int maxLevel = sliceResults.getZoomLevels() - 1;
+            // tiles either side of the slice boundary at full resolution, and the corners
+            for (String tile : new String[] { "0/0.png", "31/0.png", "32/0.png", "39/39.png", "0/7.png", "0/8.png" }) {
+                File expected = sliceDir.resolve(maxLevel + "/" + tile).toFile();
+                File actual = bandDir.resolve(maxLevel + "/" + tile).toFile();
+                assertTrue("Tile should exist " + actual, actual.exists());
+                assertTrue("Tiles should match " + tile, FileUtils.contentEquals(expected, actual));
+            }
+        } finally {
+            FileUtils.deleteDirectory(sliceDir.toFile());
+            FileUtils.deleteDirectory(bandDir.toFile());
+        }
+    }
+
+    /**
+     * Test that an image too wide for a band of whole slice rows is still decoded once in bands rather than once per
+     * slice column, and gives the same tiles as reading it by slice.
+     */
+    @Test
+    public void testWideImageReadInBands() throws Exception {
+        BufferedImage image = new BufferedImage(12000, 3000, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, 12000, 3000, Color.BLUE));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(Color.WHITE);
+        g.fillOval(2000, 500, 9000, 2000);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler4-wide", ".jpg");
+        Path sliceDir = Files.createTempDirectory("imagetiler4-wide-slice-test");
+        Path bandDir = Files.createTempDirectory("imagetiler4-wide-band-test");
+        try {
+            ImageIO.write(image, "jpeg", imageFile.toFile());
+            long fileSize = Files.size(imageFile);
+            // 12000 pixel RGB rows don't fit two 8192 row bands in the default band budget
+            ImageTilerConfig config = new ImageTilerConfig();
+            TilingPlan plan = new ImageTiler4(config).plan(ImageSource.of(imageFile, false), 0, Integer.MAX_VALUE);
+            assertEquals(8192, plan.getSliceSize());
+            assertTrue(12000L * 3 * 8192 * 2 > config.getMaxBandBytes());
+            // just the sliced levels, the extreme levels decode the whole image either way
+            int minLevel = plan.getExtremeZoomThreshold() + 1;
+
+            AtomicLong bandBytesRead = new AtomicLong();
+            assertTrue(new ImageTiler4(config).tileImage(countingSource(imageFile, bandBytesRead), sinkFor(bandDir), minLevel, Integer.MAX_VALUE).getSuccess());
+
+            config = new ImageTilerConfig();
+            config.setMaxBandBytes(0);
+            AtomicLong sliceBytesRead = new AtomicLong();
+            assertTrue(new ImageTiler4(config).tileImage(countingSource(imageFile, sliceBytesRead), sinkFor(sliceDir), minLevel, Integer.MAX_VALUE).getSuccess());
+
+            println("Read %d bytes in bands and %d bytes by slice of a %d byte image", bandBytesRead.get(), sliceBytesRead.get(), fileSize);
+            // each of the two slice columns decodes the whole image, the bands decode it once
+            assertTrue(sliceBytesRead.get() > fileSize * 3 / 2);
+            assertTrue(bandBytesRead.get() < fileSize * 3 / 2);
+
+            assertEquals(listTiles(sliceDir), listTiles(bandDir));
+            int maxLevel = plan.getMaxLevel();
+            // tiles either side of the slice boundary at full resolution, and the corners
+            for (String tile : new String[] { "0/0.png", "31/5.png", "32/5.png", "46/11.png", "0/11.png" }) {
+                File expected = sliceDir.resolve(maxLevel + "/" + tile).toFile();
+                File actual = bandDir.resolve(maxLevel + "/" + tile).toFile();
+                assertTrue("Tile should exist " + actual, actual.exists());
+                assertTrue("Tiles should match " + tile, FileUtils.contentEquals(expected, actual));
+            }
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(sliceDir.toFile());
+            FileUtils.deleteDirectory(bandDir.toFile());
+        }
+    }
+
+    /**
+     * Test that decoding slices in parallel gives the same tiles as decoding them one at a time.
+     */
+    @Test
+    public void testParallelSliceDecoding() throws Exception {
+        String filename = "large_test_10000x10000.jpg";
+        URL url = ImageTiler4Test.class.getResource(String.format("/images/%s", filename));
+        File imageFile = new File(url.toURI());
+
+        Path sequentialDir = Files.createTempDirectory("imagetiler4-sequential-test");
+        Path parallelDir = Files.createTempDirectory("imagetiler4-parallel-test");
+        try {
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setMaxBandBytes(0);
+            ImageTilerResults sequentialResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(sequentialDir), 0, Integer.MAX_VALUE);
+            assertTrue(sequentialResults.getSuccess());
+
+            config = new ImageTilerConfig();
+            config.setMaxBandBytes(0);
+            config.setDecodeParallelism(4);
+            // room for two decoded 8192x8192 RGB slices
+            config.setDecodeMemoryBudget(2L * 8192 * 8192 * 3);
+            ImageTilerResults parallelResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(parallelDir), 0, Integer.MAX_VALUE);
+            assertTrue(parallelResults.getSuccess());
+
+            assertEquals(sequentialResults.getZoomLevels(), parallelResults.getZoomLevels());
+            int maxLevel = sequentialResults.getZoomLevels() - 1;
+            for (String tile : new String[] { "0/0.png", "31/0.png", "32/0.png", "39/39.png", "32/39.png" }) {
+                File expected = sequentialDir.resolve(maxLevel + "/" + tile).toFile();
+                File actual = parallelDir.resolve(maxLevel + "/" + tile).toFile();
+                assertTrue("Tile should exist " + actual, actual.exists());
+                assertTrue("Tiles should match " + tile, FileUtils.contentEquals(expected, actual));
+            }
+        } finally {
+            FileUtils.deleteDirectory(sequentialDir.toFile());
+            FileUtils.deleteDirectory(parallelDir.toFile());
+        }
+    }
+
+    /**
+     * Test that a small slice memory budget tiles the image in smaller slices with the same result at the full
+     * resolution level, including the tiles either side of the slice boundaries.
+     */
+    @Test
+    public void testSliceMemoryBudget() throws Exception {
+        File imageFile = getImageFile("large_test_10000x2000.jpg");
+        BufferedImage originalImage = ImageIO.read(imageFile);
+
+        Path defaultDir = Files.createTempDirectory("imagetiler4-default-slices-test");
+        Path smallDir = Files.createTempDirectory("imagetiler4-small-slices-test");
+        try {
+            ImageTilerResults defaultResults = new ImageTiler4(new ImageTilerConfig()).tileImage(imageFile.toPath(), sinkFor(defaultDir), 0, Integer.MAX_VALUE);
+            assertTrue(defaultResults.getSuccess());
+
+            ImageTilerConfig config = new ImageTilerConfig();
+            // fits a 1024x1024 RGB slice but not a 2048x2048 one
+            config.setSliceMemoryBudget(4L * 1024 * 1024);
+            ImageTilerResults smallResults = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(smallDir), 0, Integer.MAX_VALUE);
+            assertTrue(smallResults.getSuccess());
+            assertEquals(defaultResults.getZoomLevels(), smallResults.getZoomLevels());
+
+            int zoomLevels = smallResults.getZoomLevels();
+            for (int level = 0; level < zoomLevels; level++) {
+                testZoomLevel(smallDir.toFile(), level, originalImage, _tileSize, zoomLevels);
+            }
+
+            int maxLevel = zoomLevels - 1;
+            for (String tile : new String[] { "0/0.png", "3/3.png", "4/3.png", "3/4.png", "4/4.png", "39/7.png" }) {
+                File expected = defaultDir.resolve(maxLevel + "/" + tile).toFile();
+                File actual = smallDir.resolve(maxLevel + "/" + tile).toFile();
+                assertTrue("Tile should exist " + actual, actual.exists());
+                assertTrue("Tiles should match " + tile, FileUtils.contentEquals(expected, actual));
+            }
+        } finally {
+            FileUtils.deleteDirectory(defaultDir.toFile());
+            FileUtils.deleteDirectory(smallDir.toFile());
+        }
+    }
+
+    /**
+     * Test that tiling a small image leaves pooled slice images no bigger than the image, rather than slice sized.
+     */
+    @Test
+    public void testSlicePoolSizedToImage() throws Exception {
+        File imageFile = getImageFile("1024x576.jpg");
+        Path dir = Files.createTempDirectory("imagetiler-slice-pool-test");
+        try {
+            ImageTiler3 tiler3 = new ImageTiler3(new ImageTilerConfig());
+            assertTrue(tiler3.tileImage(imageFile.toPath(), sinkFor(dir.resolve("3")), 0, Integer.MAX_VALUE).getSuccess());
+            assertFalse(tiler3.getSlicePool().getIdleSizes().isEmpty());
+            for (Dimension size : tiler3.getSlicePool().getIdleSizes()) {
+                assertTrue("Pooled image " + size, size.width <= 1024 && size.height <= 576);
+            }
+
+            ImageTiler4 tiler4 = new ImageTiler4(new ImageTilerConfig());
+            assertTrue(tiler4.tileImage(imageFile.toPath(), sinkFor(dir.resolve("4")), 0, Integer.MAX_VALUE).getSuccess());
+            for (Dimension size : tiler4.getSlicePool().getIdleSizes()) {
+                assertTrue("Pooled image " + size, size.width <= 1024 && size.height <= 576);
+            }
+        } finally {
+            FileUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    /**
+     * Test that requesting only the lower resolution levels decodes with subsampling and still produces every tile.
+     */
+    @Test
+    public void testLowResolutionLevelsOnly() throws Exception {
+        String filename = "large_test_10000x10000.jpg";
+        URL url = ImageTiler4Test.class.getResource(String.format("/images/%s", filename));
+        File imageFile = new File(url.toURI());
+        BufferedImage originalImage = ImageIO.read(imageFile);
+
+        ImageTilerConfig config = new ImageTilerConfig();
+        int tileSize = config.getTileSize();
+        int zoomLevels = config.getZoomFactorStrategy().getZoomFactors(originalImage.getHeight(), originalImage.getWidth()).length;
+        int maxLevel = zoomLevels - 3;
+
+        Path tempDir = Files.createTempDirectory("imagetiler4-lowres-test");
+        try {
+            ImageTilerResults results = new ImageTiler4(config).tileImage(imageFile.toPath(), sinkFor(tempDir), 0, maxLevel);
+            assertTrue(results.getSuccess());
+            assertEquals(zoomLevels, results.getZoomLevels());
+
+            for (int level = 0; level <= maxLevel; level++) {
+                testZoomLevel(tempDir.toFile(), level, originalImage, tileSize, zoomLevels);
+            }
+            assertFalse("Levels above the requested range should not be tiled", tempDir.resolve(String.valueOf(maxLevel + 1)).toFile().exists());
+
+            // bottom left tile of the highest requested level
+            int subsample = (int) Math.pow(2, zoomLevels - maxLevel - 1);
+            int levelHeight = (int) Math.ceil((double) originalImage.getHeight() / subsample);
+            int tileTop = levelHeight - tileSize;
+            BufferedImage tile = ImageIO.read(tempDir.resolve(maxLevel + "/0/0.png").toFile());
+            assertTrue(checkPixelMatch(tile, originalImage, tileSize / 2, tileSize / 2, subsample, -tileTop));
+        } finally {
+            FileUtils.deleteDirectory(tempDir.toFile());
+        }
+    }
+
+    /**
+     * Test that one tiler instance can run several jobs at once, and that a failed job doesn't affect later ones.
+     */
+    @Test
+    public void testConcurrentJobsOnOneTiler() throws Exception {
+        File imageFile = getImageFile("1024x576.jpg");
+        ImageTiler4 tiler = new ImageTiler4(new ImageTilerConfig());
+
+        // a sink that can't write any tiles
+        TilerSink failingSink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+            @Override
+            public OutputStream openStream() throws IOException {
+                throw new IOException("Can't write tile");
+            }
+        };
+        assertFalse(tiler.tileImage(imageFile.toPath(), failingSink, 0, Integer.MAX_VALUE).getSuccess());
+
+        Path expectedDir = Files.createTempDirectory("imagetiler4-expected-test");
+        List<Path> jobDirs = new ArrayList<>();
+        ExecutorService jobs = Executors.newFixedThreadPool(4);
+        try {
+            ImageTilerResults expected = tiler.tileImage(imageFile.toPath(), sinkFor(expectedDir), 0, Integer.MAX_VALUE);
+            assertTrue("A failed job should not fail later jobs", expected.getSuccess());
+
+            List<Future<ImageTilerResults>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Path jobDir = Files.createTempDirectory("imagetiler4-job-test");
+                jobDirs.add(jobDir);
+                futures.add(jobs.submit(() -> tiler.tileImage(imageFile.toPath(), sinkFor(jobDir), 0, Integer.MAX_VALUE)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertSameTiles(expected, expectedDir, futures.get(i).get(), jobDirs.get(i));
+            }
+        } finally {
+            jobs.shutdown();
+            FileUtils.deleteDirectory(expectedDir.toFile());
+            for (Path jobDir : jobDirs) {
+                FileUtils.deleteDirectory(jobDir.toFile());
+            }
+        }
+    }
+
+    /**
+     * Test that tiles with the same pixels are written as links to the first such tile, or as copies of its bytes
+     * for sinks that can't link, and that every tile still has the same content.
+     */
+    @Test
+    public void testDeduplicateTiles() throws Exception {
+        // a blank sheet with a specimen in one corner
+        BufferedImage image = new BufferedImage(2048, 1024, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(new Color(30, 120, 40));
+        g.fillOval(100, 100, 400, 300);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler4-dedup", ".png");
+        Path expectedDir = Files.createTempDirectory("imagetiler4-dedup-expected-test");
+        Path linkedDir = Files.createTempDirectory("imagetiler4-dedup-linked-test");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageTilerResults expected = new ImageTiler4(new ImageTilerConfig()).tileImage(imageFile, sinkFor(expectedDir), 0, Integer.MAX_VALUE);
+            assertTrue(expected.getSuccess());
+
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setDeduplicateTiles(true);
+            ImageTiler4 tiler = new ImageTiler4(config);
+            ImageTilerResults linked = tiler.tileImage(imageFile, sinkFor(linkedDir), 0, Integer.MAX_VALUE);
+            assertTrue(linked.getSuccess());
+
+            Map<String, byte[]> copies = new ConcurrentHashMap<>();
+            TilerSink memorySink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+                @Override
+                public OutputStream openStream() {
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            copies.put(level + "/" + col + "/" + row + ".png", toByteArray());
+                        }
+                    };
+                }
+            };
+            assertTrue(tiler.tileImage(imageFile, memorySink, 0, Integer.MAX_VALUE).getSuccess());
+
+            // links are only made to tiles that have been written
+            Map<String, byte[]> written = new ConcurrentHashMap<>();
+            List<String> danglingLinks = new CopyOnWriteArrayList<>();
+            class MemoryColumnSink implements TilerSink.ColumnSink {
+                final String column;
+
+                MemoryColumnSink(int level, int col) {
+                    column = level + "/" + col + "/";
+                }
+
+                @Override
+                public ByteSink getTileSink(int row) {
+                    return new ByteSink() {
+                        @Override
+                        public OutputStream openStream() {
+                            return new ByteArrayOutputStream() {
+                                @Override
+                                public void close() {
+                                    written.put(column + row, toByteArray());
+                                }
+                            };
+                        }
+                    };
+                }
+
+                @Override
+                public boolean linkTile(int row, TilerSink.ColumnSink target, int targetRow) {
+                    String targetName = ((MemoryColumnSink) target).column + targetRow;
+                    if (!written.containsKey(targetName)) {
+                        danglingLinks.add(column + row + " -> " + targetName);
+                    }
+                    written.put(column + row, written.getOrDefault(targetName, new byte[0]));
+                    return true;
+                }
+            }
+            TilerSink linkingSink = level -> (col, stripIndex, maxColsPerStrip) -> new MemoryColumnSink(level, col);
+            assertTrue(tiler.tileImage(imageFile, linkingSink, 0, Integer.MAX_VALUE).getSuccess());
+            assertEquals(List.of(), danglingLinks);
+            assertEquals(copies.keySet(), written.keySet().stream().map(name -> name + ".png").collect(Collectors.toSet()));
+
+            List<String> expectedTiles = listTiles(expectedDir);
+            int links = 0;
+            for (String name : expectedTiles) {
+                Path expectedTile = expectedDir.resolve(name);
+                Path linkedTile = linkedDir.resolve(name);
+                if (Files.isSymbolicLink(linkedTile)) {
+                    links++;
+                }
+                byte[] expectedBytes = Files.readAllBytes(expectedTile);
+                assertArrayEquals(name, expectedBytes, Files.readAllBytes(linkedTile));
+                assertArrayEquals(name, expectedBytes, copies.get(name));
+            }
+            assertEquals(expectedTiles.size(), copies.size());
+            // 8x4 tiles at full resolution, only the 2x2 in the corner have any of the specimen
+            assertTrue("Blank tiles should be linked, got " + links, links >= 28);
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(expectedDir.toFile());
+            FileUtils.deleteDirectory(linkedDir.toFile());
+        }
+    }
+
+    /**
+     * Test that the extreme zoom levels of a pyramidal TIFF are read from its reduced resolution pages.
+     */
+    @Test
+    public void testReducedResolutionPages() throws Exception {
+        BufferedImage full = new BufferedImage(4096, 2048, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = full.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, full.getWidth(), full.getHeight());
+        g.dispose();
+
+        Path tiff = Files.createTempFile("imagetiler4-pyramid", ".tif");
+        Path tempDir = Files.createTempDirectory("imagetiler4-pyramid-test");
+        try {
+            writePyramidTiff(tiff, full, 4, Color.GREEN);
+            ImageTilerConfig config = new ImageTilerConfig();
+            // slices of 512 pixels, so every level below the full resolution is read whole
+            config.setSliceMemoryBudget(3L * 1024 * 1024);
+            ImageTilerResults results = new ImageTiler4(config).tileImage(tiff, sinkFor(tempDir), 0, Integer.MAX_VALUE);
+            assertTrue(results.getSuccess());
+            int maxLevel = results.getZoomLevels() - 1;
+
+            // level 0 is 1/16 of the size, read from the smallest page (the tiles are JPEG, so allow for some loss)
+            BufferedImage lowest = ImageIO.read(tempDir.resolve("0/0/0.png").toFile());
+            Color lowestColor = new Color(lowest.getRGB(10, lowest.getHeight() - 10));
+            assertTrue(lowestColor.toString(), lowestColor.getGreen() > 240 && lowestColor.getRed() < 16);
+            BufferedImage highest = ImageIO.read(tempDir.resolve(maxLevel + "/0/0.png").toFile());
+            Color highestColor = new Color(highest.getRGB(10, 10));
+            assertTrue(highestColor.toString(), highestColor.getRed() > 240 && highestColor.getGreen() < 16);
+        } finally {
+            Files.deleteIfExists(tiff);
+            FileUtils.deleteDirectory(tempDir.toFile());
+        }
+    }
+
+    /**
+     * Test that low zoom first writes the coarsest levels first, that each level is reported once all of its tiles
+     * have been written, and that the tiles are nearly the same either way.
+     */
+    @Test
+    public void testLowZoomFirst() throws Exception {
+        BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, 2000, 1500, Color.ORANGE));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(new Color(30, 120, 40));
+        g.fillOval(300, 200, 900, 700);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler4-lowzoom", ".png");
+        Path defaultDir = Files.createTempDirectory("imagetiler4-default-order-test");
+        Path lowZoomDir = Files.createTempDirectory("imagetiler4-lowzoom-test");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+
+            // 1024 pixel slices, so the two finest levels are tiled from slices and the others from the whole image
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setSliceMemoryBudget(4L * 1024 * 1024);
+            List<Integer> defaultLevels = new CopyOnWriteArrayList<>();
+            config.setLevelListener((level, zoomLevels) -> defaultLevels.add(level));
+            ImageTilerResults expected = new ImageTiler4(config).tileImage(imageFile, sinkFor(defaultDir), 0, Integer.MAX_VALUE);
+            assertTrue(expected.getSuccess());
+            assertEquals(4, expected.getZoomLevels());
+            assertEquals(List.of(0, 1, 2, 3), defaultLevels.stream().sorted().collect(Collectors.toList()));
+
+            // the number of tiles on disk for each level as it is reported
+            List<long[]> reported = new CopyOnWriteArrayList<>();
+            config.setLowZoomFirst(true);
+            config.setLevelListener((level, zoomLevels) -> {
+                try (Stream<Path> files = Files.walk(lowZoomDir.resolve(String.valueOf(level)))) {
+                    reported.add(new long[] { level, files.filter(Files::isRegularFile).count() });
+                } catch (IOException e) {
+                    reported.add(new long[] { level, -1 });
+                }
+            });
+            ImageTilerResults actual = new ImageTiler4(config).tileImage(imageFile, sinkFor(lowZoomDir), 0, Integer.MAX_VALUE);
+            assertTrue(actual.getSuccess());
+
+            assertEquals(4, reported.size());
+            for (int level = 0; level < 4; level++) {
+                int subsample = 1 << (3 - level);
+                long tiles = (long) Math.ceil(Math.ceil(2000.0 / subsample) / _tileSize) * (long) Math.ceil(Math.ceil(1500.0 / subsample) / _tileSize);
+                assertEquals("level reported in order", level, reported.get(level)[0]);
+                assertEquals("tiles written when level " + level + " was reported", tiles, reported.get(level)[1]);
+            }
+
+            // the sliced levels are decoded subsampled rather than resized, so they are only nearly the same
+            assertEquals(listTiles(defaultDir), listTiles(lowZoomDir));
+            for (String tile : listTiles(defaultDir)) {
+                BufferedImage expectedTile = ImageIO.read(defaultDir.resolve(tile).toFile());
+                BufferedImage actualTile = ImageIO.read(lowZoomDir.resolve(tile).toFile());
+                assertEquals(tile, expectedTile.getWidth(), actualTile.getWidth());
+                assertEquals(tile, expectedTile.getHeight(), actualTile.getHeight());
+                long difference = 0;
+                for (int y = 0; y < expectedTile.getHeight(); y++) {
+                    for (int x = 0; x < expectedTile.getWidth(); x++) {
+                        int e = expectedTile.getRGB(x, y);
+                        int a = actualTile.getRGB(x, y);
+                        for (int shift = 0; shift < 24; shift += 8) {
+                            difference += Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+                        }
+                    }
+                }
+                double mean = difference / (3.0 * expectedTile.getWidth() * expectedTile.getHeight());
+                assertTrue("tile " + tile + " mean difference " + mean, mean < 4.0);
+            }
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(defaultDir.toFile());
+            FileUtils.deleteDirectory(lowZoomDir.toFile());
+        }
+    }
+
+    /**
+     * Test that cancelling the token stops tiling part way through, and that a cancelled job reports it.
+     */
+    @Test
+    public void testCancellation() throws Exception {
+        BufferedImage image = new BufferedImage(4000, 3000, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, 4000, 3000, Color.ORANGE));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler4-cancel", ".png");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setSliceMemoryBudget(4L * 1024 * 1024);
+            ImageTiler4 tiler = new ImageTiler4(config);
+
+            AtomicInteger written = new AtomicInteger();
+            CancellationToken token = new CancellationToken();
+            TilerSink cancellingSink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+                @Override
+                public OutputStream openStream() {
+                    if (written.incrementAndGet() == 20) {
+                        token.cancel();
+                    }
+                    return OutputStream.nullOutputStream();
+                }
+            };
+            try {
+                tiler.tileImage(imageFile, cancellingSink, 0, Integer.MAX_VALUE, token);
+                fail("Tiling should have been cancelled");
+            } catch (CancellationException e) {
+                // expected
+            }
+            // 16x12 tiles at the finest level alone
+            println("%d tiles written before tiling stopped", written.get());
+            assertTrue(written.get() < 100);
+
+            // a cancelled token stops the job before it starts, and the tiler is still usable
+            written.set(0);
+            try {
+                tiler.tileImage(imageFile, cancellingSink, 0, Integer.MAX_VALUE, token);
+                fail("Tiling should have been cancelled");
+            } catch (CancellationException e) {
+                assertEquals(0, written.get());
+            }
+            assertTrue(tiler.tileImage(imageFile, cancellingSink, 0, Integer.MAX_VALUE, CancellationToken.NONE).getSuccess());
+        } finally {
+            Files.deleteIfExists(imageFile);
+        }
+    }
+
+    /**
+     * Test that the extreme levels derived from the one decoded level match decoding each level on its own with
+     * reader subsampling, as the tiler used to, in size and near enough in pixels.
+     */
+    @Test
+    public void testDerivedExtremeLevels() throws Exception {
+        BufferedImage image = new BufferedImage(3000, 2200, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(20, 60, 200), 3000, 2200, new Color(240, 200, 30)));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(new Color(30, 120, 40));
+        g.fillOval(400, 300, 1800, 1400);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler4-derived", ".png");
+        Path tileDir = Files.createTempDirectory("imagetiler4-derived-test");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+
+            // 512 pixel slices, and room to decode the whole image down to zoom factor 4 for the extreme levels
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setTileFormat(TileFormat.PNG);
+            config.setSliceMemoryBudget(2L * 1024 * 1024);
+            ImageTiler4 tiler = new ImageTiler4(config);
+            TilingPlan plan = tiler.plan(ImageSource.of(imageFile, false), 0, Integer.MAX_VALUE);
+            assertTrue("Several levels should be extreme", plan.getExtremeZoomThreshold() >= 2);
+            assertTrue(tiler.tileImage(imageFile, sinkFor(tileDir), 0, Integer.MAX_VALUE).getSuccess());
+
+            for (int level = 0; level <= plan.getExtremeZoomThreshold(); level++) {
+                BufferedImage expected = readSubsampled(imageFile, plan.getZoomFactor(level));
+                int cols = (expected.getWidth() + _tileSize - 1) / _tileSize;
+                int rows = (expected.getHeight() + _tileSize - 1) / _tileSize;
+                assertEquals("level " + level + " columns", cols, tileDir.resolve(String.valueOf(level)).toFile().list().length);
+
+                long difference = 0;
+                long pixels = 0;
+                for (int col = 0; col < cols; col++) {
+                    assertEquals("level " + level + " rows", rows, tileDir.resolve(level + "/" + col).toFile().list().length);
+                    for (int row = 0; row < rows; row++) {
+                        BufferedImage tile = ImageIO.read(tileDir.resolve(level + "/" + col + "/" + row + ".png").toFile());
+                        // tiles are anchored at the bottom left, partial tiles are padded at the top and right
+                        int top = expected.getHeight() - (row + 1) * _tileSize;
+                        for (int y = 0; y < _tileSize; y++) {
+                            for (int x = 0; x < _tileSize; x++) {
+                                int ex = col * _tileSize + x;
+                                int ey = top + y;
+                                boolean content = ex < expected.getWidth() && ey >= 0;
+                                int actual = tile.getRGB(x, y);
+                                assertEquals("level " + level + " tile " + col + "/" + row + " padding at " + x + "," + y, content, (actual >>> 24) != 0);
+                                if (content) {
+                                    int e = expected.getRGB(ex, ey);
+                                    for (int shift = 0; shift < 24; shift += 8) {
+                                        difference += Math.abs(((e >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                                    }
+                                    pixels++;
+                                }
+                            }
+                        }
+                    }
+                }
+                double mean = difference / (3.0 * pixels);
+                println("Level %d: mean difference %.2f from a subsampled decode", level, mean);
+                assertTrue("level " + level + " mean difference " + mean, mean < 3.0);
+            }
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(tileDir.toFile());
+        }
+    }
+
+    private static BufferedImage readSubsampled(Path imageFile, int subsample) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(imageFile.toFile())) {
+            ImageReader reader = ImageIO.getImageReaders(iis).next();
+            try {
+                reader.setInput(iis);
+                ImageReadParam params = reader.getDefaultReadParam();
+                params.setSourceSubsampling(subsample, subsample, 0, 0);
+                return reader.read(0, params);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Test that no more than the configured number of tiles are waiting to be written when the sink is slow, and
+     * that limiting them doesn't change the tiles.
+     */
+    @Test
+    public void testMaxTilesInFlight() throws Exception {
+        BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.MAGENTA, 2000, 1500, Color.GREEN));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler4-inflight", ".png");
+        Path unboundedDir = Files.createTempDirectory("imagetiler4-unbounded-test");
+        Path boundedDir = Files.createTempDirectory("imagetiler4-bounded-test");
+        // tiles handed to the io pool and not yet written
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ExecutorService ioExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            public void execute(Runnable command) {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                super.execute(command);
+            }
+        };
+        ExecutorService levelExecutor = Executors.newFixedThreadPool(2);
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+
+            ImageTilerConfig unboundedConfig = new ImageTilerConfig();
+            // more than the image has tiles
+            unboundedConfig.setMaxTilesInFlight(100_000);
+            assertTrue(new ImageTiler4(unboundedConfig).tileImage(imageFile, sinkFor(unboundedDir), 0, Integer.MAX_VALUE).getSuccess());
+
+            ImageTilerConfig config = new ImageTilerConfig(ioExecutor, levelExecutor);
+            config.setMaxTilesInFlight(4);
+            TilerSink fileSink = sinkFor(boundedDir);
+            TilerSink slowSink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+                @Override
+                public OutputStream openStream() throws IOException {
+                    OutputStream out = fileSink.getLevelSink(level).getColumnSink(col, stripIndex, maxColsPerStrip).getTileSink(row).openStream();
+                    return new FilterOutputStream(out) {
+                        @Override
+                        public void close() throws IOException {
+                            super.close();
+                            Uninterruptibles.sleepUninterruptibly(2, TimeUnit.MILLISECONDS);
+                            inFlight.decrementAndGet();
+                        }
+                    };
+                }
+            };
+            assertTrue(new ImageTiler4(config).tileImage(imageFile, slowSink, 0, Integer.MAX_VALUE).getSuccess());
+
+            println("At most %d tiles in flight", maxInFlight.get());
+            assertTrue("In flight tiles should be limited, got " + maxInFlight.get(), maxInFlight.get() <= 4);
+            assertTrue("The io pool should have been kept busy", maxInFlight.get() > 1);
+            List<String> tiles = listTiles(unboundedDir);
+            assertEquals(tiles, listTiles(boundedDir));
+            for (String tile : tiles) {
+                assertArrayEquals(tile, Files.readAllBytes(unboundedDir.resolve(tile)), Files.readAllBytes(boundedDir.resolve(tile)));
+            }
+        } finally {
+            ioExecutor.shutdown();
+            levelExecutor.shutdown();
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(unboundedDir.toFile());
+            FileUtils.deleteDirectory(boundedDir.toFile());
+        }
+    }
+
+    private void assertSameTiles(ImageTilerResults expected, Path expectedDir, ImageTilerResults actual, Path actualDir) throws Exception {
+        assertTrue(actual.getSuccess());
+        assertEquals(expected.getZoomLevels(), actual.getZoomLevels());
+        for (int level = 0; level < expected.getZoomLevels(); level++) {
+            File expectedTile = expectedDir.resolve(level + "/0/0.png").toFile();
+            File actualTile = actualDir.resolve(level + "/0/0.png").toFile();
+            assertTrue("Tile should exist " + actualTile, actualTile.exists());
+            assertTrue("Tiles should match at level " + level, FileUtils.contentEquals(expectedTile, actualTile));
+        }
+    }
+
+    /**
+     * A file image source that counts the bytes read, including bytes read again after seeking back.
+     */
+    private static ImageSource countingSource(Path path, AtomicLong bytesRead) {
+        return new ImageSource() {
+            @Override
+            public ImageInputStream openImageInputStream() throws IOException {
+                FileImageInputStream file = new FileImageInputStream(path.toFile());
+                return new ImageInputStreamImpl() {
+                    @Override
+                    public int read() throws IOException {
+                        bitOffset = 0;
+                        file.seek(streamPos);
+                        int b = file.read();
+                        if (b >= 0) {
+                            streamPos++;
+                            bytesRead.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        bitOffset = 0;
+                        file.seek(streamPos);
+                        int n = file.read(b, off, len);
+                        if (n > 0) {
+                            streamPos += n;
+                            bytesRead.addAndGet(n);
+                        }
+                        return n;
+                    }
+
+                    @Override
+                    public long length() {
+                        return file.length();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        file.close();
+                    }
+                };
+            }
+        };
+    }
+
+    private static TilerSink sinkFor(Path dir) throws IOException {
+        return new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(dir.toFile()));
+    }
+}
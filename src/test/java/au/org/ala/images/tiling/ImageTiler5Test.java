@@ -0,0 +1,268 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.FileByteSinkFactory;
+import com.google.common.io.ByteSink;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ImageTiler5Test extends TestBase {
+
+    /**
+     * Test that the streaming tiler produces the same set of tiles as ImageTiler4, and that each level is a box
+     * average of the original image.
+     */
+    @Test
+    public void testStreamingTiles() throws Exception {
+        File imageFile = getImageFile("large_test_10000x2000.jpg");
+        BufferedImage original = ImageIO.read(imageFile);
+
+        Path expectedDir = Files.createTempDirectory("imagetiler5-expected");
+        Path actualDir = Files.createTempDirectory("imagetiler5-actual");
+        try {
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setTileFormat(TileFormat.PNG);
+            // a band height that doesn't line up with tiles or zoom factors
+            config.setStreamingBandHeight(300);
+            int tileSize = config.getTileSize();
+
+            ImageTilerResults expected = new ImageTiler4(config).tileImage(imageFile, expectedDir.toFile());
+            ImageTilerResults actual = new ImageTiler5(config).tileImage(imageFile, actualDir.toFile());
+            assertTrue(expected.getSuccess());
+            assertTrue(actual.getSuccess());
+            assertEquals(expected.getZoomLevels(), actual.getZoomLevels());
+            assertEquals(listTiles(expectedDir), listTiles(actualDir));
+
+            int[] pyramid = config.getZoomFactorStrategy().getZoomFactors(original.getHeight(), original.getWidth());
+            for (int level = 0; level < pyramid.length; level++) {
+                int subsample = pyramid[level];
+                int levelWidth = (original.getWidth() + subsample - 1) / subsample;
+                int levelHeight = (original.getHeight() + subsample - 1) / subsample;
+                int rows = (levelHeight + tileSize - 1) / tileSize;
+
+                // bottom left pixel of the bottom left tile
+                BufferedImage bottomLeft = ImageIO.read(actualDir.resolve(level + "/0/0.png").toFile());
+                assertPixelClose(boxAverage(original, 0, levelHeight - 1, subsample), bottomLeft.getRGB(0, tileSize - 1), level);
+
+                // top right pixel of the top right tile, which is padded above and to the right
+                int cols = (levelWidth + tileSize - 1) / tileSize;
+                BufferedImage topRight = ImageIO.read(actualDir.resolve(level + "/" + (cols - 1) + "/" + (rows - 1) + ".png").toFile());
+                int padding = rows * tileSize - levelHeight;
+                int x = levelWidth - (cols - 1) * tileSize - 1;
+                assertPixelClose(boxAverage(original, levelWidth - 1, 0, subsample), topRight.getRGB(x, padding), level);
+                if (padding > 0) {
+                    assertEquals("Padding should be transparent at level " + level, 0, topRight.getRGB(0, padding - 1) >>> 24);
+                }
+                if (x + 1 < tileSize) {
+                    assertEquals("Padding should be transparent at level " + level, 0, topRight.getRGB(x + 1, padding) >>> 24);
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(expectedDir.toFile());
+            FileUtils.deleteDirectory(actualDir.toFile());
+        }
+    }
+
+    /**
+     * Test that a subset of levels can be streamed.
+     */
+    @Test
+    public void testLevelRange() throws Exception {
+        File imageFile = getImageFile("1024x576.jpg");
+        Path tempDir = Files.createTempDirectory("imagetiler5-range");
+        try {
+            ImageTilerConfig config = new ImageTilerConfig();
+            var sink = new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(tempDir.toFile()));
+            ImageTilerResults results = new ImageTiler5(config).tileImage(imageFile.toPath(), sink, 1, 2);
+            assertTrue(results.getSuccess());
+            assertFalse(tempDir.resolve("0").toFile().exists());
+            assertTrue(tempDir.resolve("1/0/0.png").toFile().exists());
+            assertTrue(tempDir.resolve("2/0/0.png").toFile().exists());
+            assertFalse(tempDir.resolve("3").toFile().exists());
+        } finally {
+            FileUtils.deleteDirectory(tempDir.toFile());
+        }
+    }
+
+    /**
+     * Test that an image decoded in a single pass gives the same tiles as one read a band at a time as regions, and
+     * that a failed call doesn't fail the next one on the same tiler.
+     */
+    @Test
+    public void testStreamedMatchesRegionReads() throws Exception {
+        BufferedImage image = new BufferedImage(1000, 700, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.YELLOW, 1000, 700, Color.MAGENTA));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(Color.BLACK);
+        g.fillOval(200, 100, 500, 400);
+        g.dispose();
+
+        Path pngFile = Files.createTempFile("imagetiler5-streamed", ".png");
+        Path bmpFile = Files.createTempFile("imagetiler5-regions", ".bmp");
+        Path streamedDir = Files.createTempDirectory("imagetiler5-streamed");
+        Path regionsDir = Files.createTempDirectory("imagetiler5-regions");
+        try {
+            ImageIO.write(image, "png", pngFile.toFile());
+            ImageIO.write(image, "bmp", bmpFile.toFile());
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setStreamingBandHeight(300);
+            ImageTiler5 tiler = new ImageTiler5(config);
+
+            TilerSink failingSink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+                @Override
+                public OutputStream openStream() throws IOException {
+                    throw new IOException("Sink failure");
+                }
+            };
+            assertFalse(tiler.tileImage(pngFile, failingSink, 0, Integer.MAX_VALUE).getSuccess());
+            // stops reading bands with the next band still being decoded
+            assertFalse(tiler.tileImage(bmpFile, failingSink, 0, Integer.MAX_VALUE).getSuccess());
+
+            assertTrue(tiler.tileImage(pngFile, new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(streamedDir.toFile())), 0, Integer.MAX_VALUE).getSuccess());
+            assertTrue(tiler.tileImage(bmpFile, new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(regionsDir.toFile())), 0, Integer.MAX_VALUE).getSuccess());
+            List<String> tiles = listTiles(streamedDir);
+            assertFalse(tiles.isEmpty());
+            assertEquals(tiles, listTiles(regionsDir));
+            for (String tile : tiles) {
+                assertArrayEquals(tile, Files.readAllBytes(streamedDir.resolve(tile)), Files.readAllBytes(regionsDir.resolve(tile)));
+            }
+        } finally {
+            Files.deleteIfExists(pngFile);
+            Files.deleteIfExists(bmpFile);
+            FileUtils.deleteDirectory(streamedDir.toFile());
+            FileUtils.deleteDirectory(regionsDir.toFile());
+        }
+    }
+
+    /**
+     * Test that deduplicated tiles are written with the same bytes as when every tile is encoded.
+     */
+    @Test
+    public void testDeduplicateTiles() throws Exception {
+        // mostly plain background, so most tiles are the same
+        BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(Color.RED);
+        g.fillOval(700, 500, 300, 200);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler5-dedup", ".png");
+        Path expectedDir = Files.createTempDirectory("imagetiler5-dedup-expected");
+        Path actualDir = Files.createTempDirectory("imagetiler5-dedup-actual");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageTilerConfig config = new ImageTilerConfig();
+            assertTrue(new ImageTiler5(config).tileImage(imageFile.toFile(), expectedDir.toFile()).getSuccess());
+            config.setDeduplicateTiles(true);
+            assertTrue(new ImageTiler5(config).tileImage(imageFile.toFile(), actualDir.toFile()).getSuccess());
+
+            List<String> tiles = listTiles(expectedDir);
+            assertEquals(tiles, listTiles(actualDir));
+            for (String tile : tiles) {
+                assertArrayEquals(tile, Files.readAllBytes(expectedDir.resolve(tile)), Files.readAllBytes(actualDir.resolve(tile)));
+            }
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(expectedDir.toFile());
+            FileUtils.deleteDirectory(actualDir.toFile());
+        }
+    }
+
+    /**
+     * Test that the streaming tiler, and ImageTiler3, stop part way through when the token is cancelled, whichever
+     * overload it is passed to.
+     */
+    @Test
+    public void testCancellation() throws Exception {
+        BufferedImage image = new BufferedImage(4000, 3000, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, 4000, 3000, Color.ORANGE));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("imagetiler5-cancel", ".png");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setStreamingBandHeight(256);
+            for (IImageTiler tiler : new IImageTiler[] { new ImageTiler5(config), new ImageTiler3(config) }) {
+                AtomicInteger written = new AtomicInteger();
+                CancellationToken token = new CancellationToken();
+                TilerSink cancellingSink = level -> (col, stripIndex, maxColsPerStrip) -> row -> new ByteSink() {
+                    @Override
+                    public OutputStream openStream() {
+                        if (written.incrementAndGet() == 20) {
+                            token.cancel();
+                        }
+                        return OutputStream.nullOutputStream();
+                    }
+                };
+                try {
+                    tiler.tileImage(com.google.common.io.Files.asByteSource(imageFile.toFile()), cancellingSink, 0, Integer.MAX_VALUE, token);
+                    fail("Tiling should have been cancelled");
+                } catch (CancellationException e) {
+                    // expected
+                }
+                println("%s: %d tiles written before tiling stopped", tiler.getClass().getSimpleName(), written.get());
+                // 16x12 tiles at the finest level alone
+                assertTrue(written.get() < 100);
+
+                written.set(0);
+                try (InputStream in = Files.newInputStream(imageFile)) {
+                    tiler.tileImage(in, cancellingSink, 0, Integer.MAX_VALUE, token);
+                    fail("Tiling should have been cancelled");
+                } catch (CancellationException e) {
+                    assertEquals(0, written.get());
+                }
+                assertTrue(tiler.tileImage(imageFile, cancellingSink, 0, Integer.MAX_VALUE, CancellationToken.NONE).getSuccess());
+            }
+        } finally {
+            Files.deleteIfExists(imageFile);
+        }
+    }
+
+    private static int boxAverage(BufferedImage image, int levelX, int levelY, int subsample) {
+        long r = 0, g = 0, b = 0;
+        int count = 0;
+        for (int y = levelY * subsample; y < Math.min(image.getHeight(), (levelY + 1) * subsample); y++) {
+            for (int x = levelX * subsample; x < Math.min(image.getWidth(), (levelX + 1) * subsample); x++) {
+                int rgb = image.getRGB(x, y);
+                r += (rgb >> 16) & 0xff;
+                g += (rgb >> 8) & 0xff;
+                b += rgb & 0xff;
+                count++;
+            }
+        }
+        return (int) ((r + count / 2) / count) << 16 | (int) ((g + count / 2) / count) << 8 | (int) ((b + count / 2) / count);
+    }
+
+    private static void assertPixelClose(int expected, int actual, int level) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int e = (expected >> shift) & 0xff;
+            int a = (actual >> shift) & 0xff;
+            assertTrue(String.format("Level %d expected %06x but was %06x", level, expected & 0xffffff, actual & 0xffffff), Math.abs(e - a) <= 1);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.util.FileByteSinkFactory;
+import au.org.ala.images.util.ImageSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class LazyTileRendererTest extends TestBase {
+
+    /**
+     * Lazily rendered tiles should have the same addresses, sizes and padding as the ones ImageTiler4 writes, and
+     * near enough the same pixels.
+     */
+    @Test
+    public void testMatchesImageTiler4() throws Exception {
+        BufferedImage image = new BufferedImage(1900, 1300, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(20, 60, 200), 1900, 1300, new Color(240, 200, 30)));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(new Color(30, 120, 40));
+        g.fillOval(300, 200, 900, 700);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("lazy-tiles", ".png");
+        Path tileDir = Files.createTempDirectory("lazy-tiles-test");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setTileFormat(TileFormat.PNG);
+            config.setLazyRegionTiles(2);
+            ImageTilerResults results = new ImageTiler4(config)
+                    .tileImage(imageFile, new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(tileDir.toFile())), 0, Integer.MAX_VALUE);
+            assertTrue(results.getSuccess());
+
+            LazyTileRenderer renderer = new LazyTileRenderer(config);
+            ImageSource source = ImageSource.of(imageFile, false);
+            assertEquals(results.getZoomLevels(), renderer.getZoomLevels("test", source));
+
+            int compared = 0;
+            for (int level = 0; level < results.getZoomLevels(); level++) {
+                for (int col = 0; col < 16; col++) {
+                    for (int row = 0; row < 16; row++) {
+                        Path expectedFile = tileDir.resolve(level + "/" + col + "/" + row + ".png");
+                        byte[] lazy = renderer.renderTile("test", source, level, col, row);
+                        assertEquals("tile " + level + "/" + col + "/" + row, Files.exists(expectedFile), lazy != null);
+                        if (lazy == null) {
+                            continue;
+                        }
+                        BufferedImage expected = ImageIO.read(expectedFile.toFile());
+                        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(lazy));
+                        assertTileMatches(level + "/" + col + "/" + row, expected, actual);
+                        compared++;
+                    }
+                }
+            }
+            try (var files = Files.walk(tileDir)) {
+                assertEquals(files.filter(Files::isRegularFile).count(), compared);
+            }
+            println("Compared %d lazily rendered tiles", compared);
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(tileDir.toFile());
+        }
+    }
+
+    private void assertTileMatches(String tile, BufferedImage expected, BufferedImage actual) {
+        assertEquals(tile, expected.getWidth(), actual.getWidth());
+        assertEquals(tile, expected.getHeight(), actual.getHeight());
+        long difference = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                // the padding has to be in the same place
+                assertEquals(tile + " alpha at " + x + "," + y, e >>> 24, a >>> 24);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    difference += Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff));
+                }
+            }
+        }
+        double mean = difference / (3.0 * expected.getWidth() * expected.getHeight());
+        assertTrue(tile + " mean difference " + mean, mean < 4.0);
+    }
+}
@@ -0,0 +1,202 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.iiif.IiifImageProcessor;
+import au.org.ala.images.util.ImageEncoder;
+import com.google.common.io.ByteSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PyramidTiffTilerSinkTest extends TestBase {
+
+    /**
+     * Test that every level of the pyramid can be read back from the TIFF at its real size.
+     */
+    @Test
+    public void testPyramidTiff() throws Exception {
+        File imageFile = getImageFile("1024x576.jpg");
+        BufferedImage original = ImageIO.read(imageFile);
+
+        for (TileFormat format : TileFormat.values()) {
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setTileFormat(format);
+            Path tiff = Files.createTempFile("pyramid-tiff-test", ".tif");
+            try {
+                ImageTilerResults results;
+                try (PyramidTiffTilerSink sink = new PyramidTiffTilerSink(tiff, format, config.getTileSize())) {
+                    results = new ImageTiler4(config).tileImage(imageFile.toPath(), sink, 0, Integer.MAX_VALUE);
+                }
+                assertTrue(results.getSuccess());
+
+                try (ImageInputStream iis = ImageIO.createImageInputStream(tiff.toFile())) {
+                    ImageReader reader = ImageIO.getImageReaders(iis).next();
+                    try {
+                        reader.setInput(iis);
+                        assertEquals(results.getZoomLevels(), reader.getNumImages(true));
+                        for (int i = 0; i < results.getZoomLevels(); i++) {
+                            int subsample = 1 << i;
+                            assertEquals(format + " level " + i, (original.getWidth() + subsample - 1) / subsample, reader.getWidth(i));
+                            assertEquals(format + " level " + i, (original.getHeight() + subsample - 1) / subsample, reader.getHeight(i));
+                        }
+
+                        // 576 pixels high, so the TIFF tiles straddle the pyramid's and are re-encoded
+                        BufferedImage level = reader.read(0);
+                        assertEquals(576, level.getHeight());
+                        int tolerance = format == TileFormat.PNG ? 0 : 32;
+                        for (int y = 0; y < original.getHeight(); y += 37) {
+                            for (int x = 0; x < original.getWidth(); x += 41) {
+                                assertSimilar(format + " at " + x + "," + y, original.getRGB(x, y), level.getRGB(x, y), tolerance);
+                            }
+                        }
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(tiff);
+            }
+        }
+    }
+
+    /**
+     * Test that JPEG tiles that aren't 4:2:0 subsampled, as the TIFF declares, are stored 4:2:0 and still read back.
+     */
+    @Test
+    public void testJpegSubsampling() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                image.setRGB(x, y, (x << 16) | (y << 8) | ((x + y) / 2));
+            }
+        }
+        ImageEncoder encoder = new ImageEncoder();
+        encoder.setJpegChromaSubsampling(ImageEncoder.ChromaSubsampling.YUV444);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(encoder.write(image, "jpeg", out));
+        byte[] tile = out.toByteArray();
+        assertFalse(PyramidTiffTilerSink.hasSubsampling(tile, ImageEncoder.ChromaSubsampling.YUV420));
+        assertTrue(PyramidTiffTilerSink.hasSubsampling(tile, ImageEncoder.ChromaSubsampling.YUV444));
+
+        Path tiff = Files.createTempFile("pyramid-tiff-test", ".tif");
+        try {
+            try (PyramidTiffTilerSink sink = new PyramidTiffTilerSink(tiff, TileFormat.JPEG, 256)) {
+                sink.getLevelSink(0, 256, 256).getColumnSink(0, 0, 1).getTileSink(0).write(tile);
+            }
+
+            // the only JPEG stream in the file is the stored tile
+            byte[] bytes = Files.readAllBytes(tiff);
+            int start = 0;
+            while (!((bytes[start] & 0xff) == 0xff && (bytes[start + 1] & 0xff) == 0xd8 && (bytes[start + 2] & 0xff) == 0xff)) {
+                start++;
+            }
+            byte[] stored = Arrays.copyOfRange(bytes, start, bytes.length);
+            assertTrue(PyramidTiffTilerSink.hasSubsampling(stored, ImageEncoder.ChromaSubsampling.YUV420));
+
+            BufferedImage level = ImageIO.read(tiff.toFile());
+            assertEquals(256, level.getWidth());
+            for (int y = 0; y < 256; y += 17) {
+                for (int x = 0; x < 256; x += 19) {
+                    assertSimilar("at " + x + "," + y, image.getRGB(x, y), level.getRGB(x, y), 32);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tiff);
+        }
+    }
+
+    /**
+     * Test that a region served from the TIFF by the IIIF processor matches the same region of the source image,
+     * at full size and from a reduced resolution level.
+     */
+    @Test
+    public void testIiifRegion() throws Exception {
+        File imageFile = getImageFile("1024x576.jpg");
+        ImageTilerConfig config = new ImageTilerConfig();
+        config.setTileFormat(TileFormat.PNG);
+        Path tiff = Files.createTempFile("pyramid-tiff-iiif", ".tif");
+        try {
+            try (PyramidTiffTilerSink sink = new PyramidTiffTilerSink(tiff, TileFormat.PNG, config.getTileSize())) {
+                assertTrue(new ImageTiler4(config).tileImage(imageFile.toPath(), sink, 0, Integer.MAX_VALUE).getSuccess());
+            }
+
+            BufferedImage original = ImageIO.read(imageFile);
+            IiifImageProcessor processor = new IiifImageProcessor();
+            IiifImageProcessor.Region region = IiifImageProcessor.Region.absolute(300, 100, 500, 400);
+            ByteSource tiffBytes = com.google.common.io.Files.asByteSource(tiff.toFile());
+
+            // full size comes from the full resolution level, which has the source's pixels
+            BufferedImage actual = process(processor, tiffBytes, region, IiifImageProcessor.Size.max(false));
+            assertEquals(500, actual.getWidth());
+            assertEquals(400, actual.getHeight());
+            assertEquals(0.0, meanDifference(original.getSubimage(300, 100, 500, 400), actual), 0.0);
+
+            // a quarter of the size is the level at a quarter resolution, close to the average of 4x4 source pixels
+            // (a row out gives a mean difference of over 12)
+            actual = process(processor, tiffBytes, region, IiifImageProcessor.Size.width(125, false));
+            assertEquals(125, actual.getWidth());
+            assertEquals(100, actual.getHeight());
+            BufferedImage expected = new BufferedImage(125, 100, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 100; y++) {
+                for (int x = 0; x < 125; x++) {
+                    int[] sums = new int[3];
+                    for (int sy = 0; sy < 4; sy++) {
+                        for (int sx = 0; sx < 4; sx++) {
+                            int rgb = original.getRGB(300 + x * 4 + sx, 100 + y * 4 + sy);
+                            for (int c = 0; c < 3; c++) {
+                                sums[c] += (rgb >> (c * 8)) & 0xff;
+                            }
+                        }
+                    }
+                    expected.setRGB(x, y, ((sums[2] / 16) << 16) | ((sums[1] / 16) << 8) | (sums[0] / 16));
+                }
+            }
+            double mean = meanDifference(expected, actual);
+            println("reduced region: mean difference %.2f", mean);
+            assertTrue("differs by " + mean, mean < 8);
+        } finally {
+            Files.deleteIfExists(tiff);
+        }
+    }
+
+    private static BufferedImage process(IiifImageProcessor processor, ByteSource bytes, IiifImageProcessor.Region region,
+                                         IiifImageProcessor.Size size) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        processor.process(bytes, region, size, IiifImageProcessor.Rotation.none(), IiifImageProcessor.Quality.DEFAULT,
+                IiifImageProcessor.Format.PNG, out);
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static double meanDifference(BufferedImage expected, BufferedImage actual) {
+        long difference = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                for (int shift = 0; shift < 24; shift += 8) {
+                    difference += Math.abs(((expected.getRGB(x, y) >> shift) & 0xff) - ((actual.getRGB(x, y) >> shift) & 0xff));
+                }
+            }
+        }
+        return difference / (3.0 * expected.getWidth() * expected.getHeight());
+    }
+
+    private static void assertSimilar(String message, int expected, int actual, int tolerance) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int difference = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+            assertTrue(message + " differs by " + difference, difference <= tolerance);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TileBuilderTest extends TestBase {
+
+    private static final int TILE_SIZE = 64;
+
+    /**
+     * Test that directly copied tiles match tiles drawn with Java2D for the source layouts the tilers produce,
+     * including sub images of a larger source.
+     */
+    @Test
+    public void testCopiedTilesMatchDrawnTiles() {
+        int[] sourceTypes = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB };
+        for (TileFormat format : TileFormat.values()) {
+            TileBuilder builder = new TileBuilder(TILE_SIZE, format, Color.gray, 4);
+            for (int sourceType : sourceTypes) {
+                BufferedImage source = randomImage(200, 150, sourceType).getSubimage(10, 20, 150, 100);
+                BufferedImage tile = builder.buildTile(source, 30, 5, TILE_SIZE, TILE_SIZE);
+                BufferedImage expected = source.getColorModel().hasAlpha() && format == TileFormat.PNG
+                        // Java2D rounds translucent pixels when it blends them onto the empty tile, copies are exact
+                        ? source.getSubimage(30, 5, TILE_SIZE, TILE_SIZE)
+                        : drawTile(format, source, 30, 5, TILE_SIZE, TILE_SIZE);
+                assertSameTile(format + " from type " + sourceType, expected, tile);
+                builder.release(tile);
+            }
+        }
+    }
+
+    /**
+     * Test that edge tiles are padded at the top and right, even when built in a tile reused from a full one.
+     */
+    @Test
+    public void testEdgeTilesInReusedTiles() {
+        for (TileFormat format : TileFormat.values()) {
+            TileBuilder builder = new TileBuilder(TILE_SIZE, format, Color.gray, 4);
+            BufferedImage source = randomImage(100, 100, BufferedImage.TYPE_3BYTE_BGR);
+            builder.release(builder.buildTile(source, 0, 0, TILE_SIZE, TILE_SIZE));
+
+            BufferedImage tile = builder.buildTile(source, 64, 64, 36, 36);
+            assertSameTile(format + " edge tile", drawTile(format, source, 64, 64, 36, 36), tile);
+            builder.release(tile);
+
+            tile = builder.buildTile(source, 0, 0, 0, 0);
+            assertSameTile(format + " empty tile", drawTile(format, source, 0, 0, 0, 0), tile);
+        }
+    }
+
+    private static BufferedImage randomImage(int width, int height, int type) {
+        Random random = new Random(width * 31L + type);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * How the tilers drew tiles before tiles were copied directly.
+     */
+    private static BufferedImage drawTile(TileFormat format, BufferedImage source, int x, int y, int tw, int th) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, format == TileFormat.PNG ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        Graphics g = tile.createGraphics();
+        if (tw > 0 && th > 0) {
+            if (format == TileFormat.JPEG) {
+                g.setColor(Color.gray);
+                g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            }
+            g.drawImage(source.getSubimage(x, y, tw, th), 0, TILE_SIZE - th, null);
+        }
+        g.dispose();
+        return tile;
+    }
+
+    private static void assertSameTile(String message, BufferedImage expected, BufferedImage actual) {
+        for (int y = 0; y < TILE_SIZE; y++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                assertEquals(message + " at " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.util.FileByteSinkFactory;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TilePackTest extends TestBase {
+
+    /**
+     * Test that a pack holds the same tiles as the one file per tile sink.
+     */
+    @Test
+    public void testPackMatchesFiles() throws Exception {
+        File imageFile = getImageFile("1024x576.jpg");
+        ImageTiler4 tiler = new ImageTiler4(new ImageTilerConfig());
+
+        Path tileDir = Files.createTempDirectory("tilepack-files-test");
+        Path pack = Files.createTempFile("tilepack-test", ".pack");
+        try {
+            ImageTilerResults expected = tiler.tileImage(imageFile.toPath(), new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(tileDir.toFile())), 0, Integer.MAX_VALUE);
+            assertTrue(expected.getSuccess());
+            try (TilePackSink sink = new TilePackSink(pack)) {
+                assertTrue(tiler.tileImage(imageFile.toPath(), sink, 0, Integer.MAX_VALUE).getSuccess());
+            }
+
+            List<Path> tiles;
+            try (Stream<Path> files = Files.walk(tileDir)) {
+                tiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            try (TilePackReader reader = new TilePackReader(pack)) {
+                assertEquals(tiles.size(), reader.getTileCount());
+                for (Path tile : tiles) {
+                    Path relative = tileDir.relativize(tile);
+                    int level = Integer.parseInt(relative.getName(0).toString());
+                    int col = Integer.parseInt(relative.getName(1).toString());
+                    int row = Integer.parseInt(relative.getName(2).toString().replace(".png", ""));
+                    assertArrayEquals(relative.toString(), Files.readAllBytes(tile), toBytes(reader.getTile(level, col, row)));
+                }
+                assertNull(reader.getTile(expected.getZoomLevels(), 0, 0));
+                assertFalse(reader.hasTile(0, 1, 0));
+            }
+        } finally {
+            FileUtils.deleteDirectory(tileDir.toFile());
+            Files.deleteIfExists(pack);
+        }
+    }
+
+    /**
+     * Test linked tiles share the original's bytes, and that an unclosed pack is rejected.
+     */
+    @Test
+    public void testLinksAndIncompletePacks() throws Exception {
+        Path pack = Files.createTempFile("tilepack-links-test", ".pack");
+        try {
+            TilePackSink sink = new TilePackSink(pack);
+            TilerSink.ColumnSink column = sink.getLevelSink(2).getColumnSink(1, 1, 6);
+            assertTrue(column.linkTile(4, column, 3));
+            column.getTileSink(3).write("original".getBytes(StandardCharsets.UTF_8));
+            sink.getLevelSink(0).getColumnSink(0, 0, 1).getTileSink(0).write("other".getBytes(StandardCharsets.UTF_8));
+            try {
+                new TilePackReader(pack).close();
+                fail("An unclosed pack should not be readable");
+            } catch (IOException e) {
+                // expected
+            }
+            sink.close();
+
+            try (TilePackReader reader = new TilePackReader(pack)) {
+                assertEquals(3, reader.getTileCount());
+                assertEquals("original", new String(toBytes(reader.getTile(2, 7, 3)), StandardCharsets.UTF_8));
+                assertEquals("original", new String(toBytes(reader.getTile(2, 7, 4)), StandardCharsets.UTF_8));
+                assertEquals("other", new String(toBytes(reader.getTile(0, 0, 0)), StandardCharsets.UTF_8));
+            }
+        } finally {
+            Files.deleteIfExists(pack);
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        assertNotNull(buffer);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
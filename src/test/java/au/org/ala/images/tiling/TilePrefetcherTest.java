@@ -0,0 +1,55 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.util.ImageSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TilePrefetcherTest extends TestBase {
+
+    @Test
+    public void testPrefetchesNeighboursAndChildren() throws Exception {
+        BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.BLUE, 2000, 1500, Color.ORANGE));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("tile-prefetch", ".png");
+        try (TilePrefetcher prefetcher = new TilePrefetcher(new ImageTilerConfig())) {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageSource source = ImageSource.of(imageFile, false);
+
+            // level 2 of a 2000x1500 image is 1000x750, 4x3 tiles
+            assertNotNull(prefetcher.getTile("test", source, 2, 1, 1));
+            int[][] expected = { { 2, 0, 1 }, { 2, 2, 1 }, { 2, 1, 0 }, { 2, 1, 2 }, { 2, 0, 0 }, { 2, 2, 2 },
+                    { 3, 2, 2 }, { 3, 3, 2 }, { 3, 2, 3 }, { 3, 3, 3 } };
+            long deadline = System.currentTimeMillis() + 30000;
+            for (int[] tile : expected) {
+                while (!prefetcher.isCached("test", tile[0], tile[1], tile[2])) {
+                    assertTrue("tile " + tile[0] + "/" + tile[1] + "/" + tile[2] + " wasn't prefetched", System.currentTimeMillis() < deadline);
+                    Thread.sleep(20);
+                }
+            }
+            assertTrue(prefetcher.getPrefetched() >= expected.length);
+            // tiles off the edge of the level aren't rendered or cached
+            assertFalse(prefetcher.isCached("test", 2, 4, 1));
+
+            // prefetched tiles are the same as ones rendered on request
+            byte[] rendered = new LazyTileRenderer(new ImageTilerConfig()).renderTile("other", source, 3, 3, 3);
+            assertArrayEquals(rendered, prefetcher.getTile("test", source, 3, 3, 3));
+        } finally {
+            Files.deleteIfExists(imageFile);
+        }
+    }
+}
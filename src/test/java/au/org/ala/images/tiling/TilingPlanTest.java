@@ -0,0 +1,220 @@
+package au.org.ala.images.tiling;
+
+import au.org.ala.images.TestBase;
+import au.org.ala.images.util.CancellationToken;
+import au.org.ala.images.util.FileByteSinkFactory;
+import au.org.ala.images.util.ImageSource;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class TilingPlanTest extends TestBase {
+
+    /**
+     * Test that the plan's levels and tile count match what is written, and that running a serialised plan's work
+     * units separately writes the same tiles as tiling the image in one go.
+     */
+    @Test
+    public void testWorkUnits() throws Exception {
+        BufferedImage image = new BufferedImage(3000, 2000, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.RED, 3000, 2000, Color.CYAN));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(Color.BLACK);
+        g.fillOval(500, 300, 1600, 1200);
+        g.dispose();
+
+        Path imageFile = Files.createTempFile("tiling-plan", ".png");
+        Path wholeDir = Files.createTempDirectory("tiling-plan-whole");
+        Path unitsDir = Files.createTempDirectory("tiling-plan-units");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageTilerConfig config = new ImageTilerConfig();
+            config.setSliceMemoryBudget(4L * 1024 * 1024);
+            ImageTiler4 tiler = new ImageTiler4(config);
+            ImageSource source = ImageSource.of(imageFile, false);
+
+            TilingPlan plan = tiler.plan(source, 0, Integer.MAX_VALUE);
+            println("%s", plan);
+            assertEquals(1024, plan.getSliceSize());
+            assertEquals(plan.getZoomLevels(), plan.getLevels().size());
+            assertTrue(plan.getExtremeZoomThreshold() >= 0);
+            TilingPlan.Level finest = plan.getLevels().get(plan.getMaxLevel());
+            assertEquals(3000, finest.getWidth());
+            assertEquals(12, finest.getCols());
+            assertEquals(8, finest.getRows());
+            // the extreme levels, then 3x2 slices
+            assertEquals(7, plan.getWorkUnits().size());
+            assertTrue(plan.getEstimatedCpuCost() > 3000L * 2000);
+            assertEquals(1024L * 1024 * 3, plan.getEstimatedDecodedBytes());
+
+            ImageTilerResults results = tiler.tileImage(imageFile, new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(wholeDir.toFile())), 0, Integer.MAX_VALUE);
+            assertTrue(results.getSuccess());
+            List<String> wholeTiles = listTiles(wholeDir);
+            assertEquals(plan.getTileCount(), wholeTiles.size());
+
+            TilingPlan copy = roundTrip(plan);
+            List<List<TilingPlan.WorkUnit>> parts = copy.split(3);
+            assertEquals(3, parts.size());
+            assertEquals(copy.getWorkUnits().size(), parts.stream().mapToInt(List::size).sum());
+            TilerSink unitsSink = new TilerSink.PathBasedTilerSink(new FileByteSinkFactory(unitsDir.toFile()));
+            for (List<TilingPlan.WorkUnit> part : parts) {
+                assertTrue(tiler.tileWorkUnits(source, unitsSink, copy, part, CancellationToken.NONE).getSuccess());
+            }
+
+            List<String> unitTiles = listTiles(unitsDir);
+            assertEquals(wholeTiles, unitTiles);
+            for (String tile : wholeTiles) {
+                assertArrayEquals(tile, Files.readAllBytes(wholeDir.resolve(tile)), Files.readAllBytes(unitsDir.resolve(tile)));
+            }
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(wholeDir.toFile());
+            FileUtils.deleteDirectory(unitsDir.toFile());
+        }
+    }
+
+    /**
+     * Test that a plan made from dimensions alone has a pass per level when the lowest zoom levels come first.
+     */
+    @Test
+    public void testLowZoomFirstPasses() {
+        ImageTilerConfig config = new ImageTilerConfig();
+        config.setSliceMemoryBudget(4L * 1024 * 1024);
+        config.setLowZoomFirst(true);
+        TilingPlan plan = TilingPlan.create(3000, 2000, 3, 0, Integer.MAX_VALUE, config);
+
+        int previousPass = -1;
+        int previousLevel = -1;
+        for (TilingPlan.WorkUnit unit : plan.getWorkUnits()) {
+            assertTrue(unit.getPass() >= previousPass);
+            assertTrue(unit.getMinLevel() >= previousLevel);
+            if (!unit.isExtreme()) {
+                assertEquals(unit.getMinLevel(), unit.getMaxLevel());
+            }
+            previousPass = unit.getPass();
+            previousLevel = unit.getMinLevel();
+        }
+        assertEquals(plan.getMaxLevel(), previousLevel);
+
+        // each sliced pass is decoded at its level's resolution, in slices no bigger than the default order's
+        config.setLowZoomFirst(false);
+        TilingPlan defaultOrder = TilingPlan.create(3000, 2000, 3, 0, Integer.MAX_VALUE, config);
+        for (TilingPlan.WorkUnit unit : plan.getWorkUnits()) {
+            if (!unit.isExtreme()) {
+                assertEquals(plan.getZoomFactor(unit.getMinLevel()), unit.getDecodeSubsample());
+                Rectangle region = unit.getSourceRegion();
+                long decoded = (long) ((region.width + unit.getDecodeSubsample() - 1) / unit.getDecodeSubsample())
+                        * ((region.height + unit.getDecodeSubsample() - 1) / unit.getDecodeSubsample()) * 3;
+                assertEquals(decoded, unit.getEstimatedDecodedBytes());
+                assertTrue(unit.getEstimatedDecodedBytes() <= defaultOrder.getEstimatedDecodedBytes());
+            }
+        }
+        // so a level at half resolution decodes a quarter of the pixels of the finest level
+        long finestBytes = plan.getWorkUnits().stream().filter(unit -> unit.getMinLevel() == plan.getMaxLevel())
+                .mapToLong(TilingPlan.WorkUnit::getEstimatedDecodedBytes).sum();
+        long halfBytes = plan.getWorkUnits().stream().filter(unit -> !unit.isExtreme() && unit.getMinLevel() == plan.getMaxLevel() - 1)
+                .mapToLong(TilingPlan.WorkUnit::getEstimatedDecodedBytes).sum();
+        assertEquals(1500L * 1000 * 3, halfBytes);
+        assertEquals(3000L * 2000 * 3, finestBytes);
+
+        // levels past the end of the pyramid plan nothing
+        assertTrue(TilingPlan.create(3000, 2000, 3, 20, 30, config).getWorkUnits().isEmpty());
+    }
+
+    /**
+     * Test that no work unit of a huge image decodes more than the memory budget, the extreme levels that don't fit
+     * are sliced from subsampled decodes instead.
+     */
+    @Test
+    public void testDecodedBytesWithinBudget() {
+        long budget = 16L * 1024 * 1024;
+        ImageTilerConfig config = new ImageTilerConfig();
+        config.setSliceMemoryBudget(budget);
+        TilingPlan plan = TilingPlan.create(60000, 60000, 3, 0, Integer.MAX_VALUE, config);
+        println("%s", plan);
+
+        for (TilingPlan.WorkUnit unit : plan.getWorkUnits()) {
+            assertTrue(unit.toString(), unit.getEstimatedDecodedBytes() <= budget);
+            for (int level = unit.getMinLevel(); level <= unit.getMaxLevel(); level++) {
+                assertEquals(0, plan.getZoomFactor(level) % unit.getDecodeSubsample());
+            }
+        }
+        assertTrue(plan.getEstimatedDecodedBytes() <= budget);
+        // the levels between the sliced finest ones and the extreme ones get a pass of their own
+        assertTrue(plan.getWorkUnits().stream().anyMatch(unit -> !unit.isExtreme() && unit.getDecodeSubsample() > 1));
+        assertEquals(plan.getTileCount(), plan.getLevels().stream().mapToLong(TilingPlan.Level::getTileCount).sum());
+    }
+
+    /**
+     * Test that levels whose zoom factors aren't a power of 2 apart get their own pass rather than sharing one whose
+     * slices would split their tiles, and that such a plan can be run.
+     */
+    @Test
+    public void testSlicesAlignedWithTiles() throws Exception {
+        ImageTilerConfig config = new ImageTilerConfig();
+        // 2048 pixel slices, big enough to tile the zoom factor 3 level
+        config.setSliceMemoryBudget(16L * 1024 * 1024);
+        config.setZoomFactorStrategy(new ZoomFactorStrategy() {
+            @Override
+            public int[] getZoomFactors(byte[] imageBytes) {
+                return getZoomFactors(0, 0);
+            }
+
+            @Override
+            public int[] getZoomFactors(int height, int width) {
+                return new int[] { 12, 6, 3, 1 };
+            }
+        });
+        TilingPlan plan = TilingPlan.create(3000, 2000, 3, 0, Integer.MAX_VALUE, config);
+        println("%s", plan);
+
+        for (TilingPlan.WorkUnit unit : plan.getWorkUnits()) {
+            for (int level = unit.getMinLevel(); level <= unit.getMaxLevel() && !unit.isExtreme(); level++) {
+                assertTrue(unit + " at level " + level, plan.isAligned(level, unit.getDecodeSubsample()));
+            }
+        }
+        // the zoom factor 3 level can't share the full resolution pass
+        assertEquals(2048, plan.getSliceSize());
+        assertTrue(plan.getExtremeZoomThreshold() < 2);
+        assertTrue(plan.getWorkUnits().stream().anyMatch(unit -> !unit.isExtreme() && unit.getDecodeSubsample() == 3));
+
+        BufferedImage image = new BufferedImage(3000, 2000, BufferedImage.TYPE_3BYTE_BGR);
+        Path imageFile = Files.createTempFile("tiling-plan-aligned", ".png");
+        Path tilesDir = Files.createTempDirectory("tiling-plan-aligned");
+        try {
+            ImageIO.write(image, "png", imageFile.toFile());
+            ImageTilerResults results = new ImageTiler4(config).tileImage(imageFile.toFile(), tilesDir.toFile());
+            assertTrue(results.getSuccess());
+            assertEquals(plan.getTileCount(), listTiles(tilesDir).size());
+        } finally {
+            Files.deleteIfExists(imageFile);
+            FileUtils.deleteDirectory(tilesDir.toFile());
+        }
+    }
+
+    private static TilingPlan roundTrip(TilingPlan plan) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(plan);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (TilingPlan) in.readObject();
+        }
+    }
+}
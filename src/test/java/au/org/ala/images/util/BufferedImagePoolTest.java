@@ -0,0 +1,59 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class BufferedImagePoolTest extends TestBase {
+
+    /**
+     * Test that successive region reads decode into the same pooled buffer, including a smaller edge region, and
+     * give the same pixels as reading without a destination.
+     */
+    @Test
+    public void testRegionsShareDestination() throws Exception {
+        BufferedImagePool pool = new BufferedImagePool(1);
+        try (ImageInputStream iis = ImageIO.createImageInputStream(getImageFile("1024x576.jpg"))) {
+            ImageReader reader = ImageIO.getImageReaders(iis).next();
+            reader.setInput(iis, true, false);
+            try {
+                BufferedImage pooled = null;
+                for (Rectangle region : new Rectangle[] { new Rectangle(0, 0, 512, 512), new Rectangle(512, 64, 512, 512), new Rectangle(0, 512, 300, 64) }) {
+                    ImageReadParam params = reader.getDefaultReadParam();
+                    params.setSourceRegion(region);
+                    BufferedImagePool.PooledImage image = pool.read(reader, params, 512, 512);
+                    assertNotNull(image.getPooled());
+                    if (pooled != null) {
+                        assertSame("Regions should reuse the released buffer", pooled, image.getPooled());
+                    }
+                    pooled = image.getPooled();
+                    assertEquals(region.width, image.getImage().getWidth());
+                    assertEquals(region.height, image.getImage().getHeight());
+
+                    params = reader.getDefaultReadParam();
+                    params.setSourceRegion(region);
+                    BufferedImage expected = reader.read(0, params);
+                    for (int y = 0; y < region.height; y += 17) {
+                        for (int x = 0; x < region.width; x += 13) {
+                            assertEquals(expected.getRGB(x, y), image.getImage().getRGB(x, y));
+                        }
+                    }
+                    pool.release(image.getPooled());
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class CancellationTokenTest extends TestBase {
+
+    /**
+     * Listeners run once when cancelled, straight away if registered afterwards, and not at all once removed.
+     */
+    @Test
+    public void testListeners() {
+        CancellationToken token = new CancellationToken();
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger removedRuns = new AtomicInteger();
+        token.onCancel(runs::incrementAndGet);
+        token.onCancel(removedRuns::incrementAndGet).close();
+        token.throwIfCancelled();
+
+        token.cancel();
+        token.cancel();
+        assertTrue(token.isCancelled());
+        assertEquals(1, runs.get());
+        assertEquals(0, removedRuns.get());
+
+        token.onCancel(runs::incrementAndGet);
+        assertEquals(2, runs.get());
+        try {
+            token.throwIfCancelled();
+            fail("Token should have been cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A deadline cancels the token and runs its listeners.
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        CancellationToken token = CancellationToken.withTimeout(Duration.ofMillis(20));
+        CountDownLatch cancelled = new CountDownLatch(1);
+        token.onCancel(cancelled::countDown);
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        assertTrue(token.isCancelled());
+        assertFalse(CancellationToken.NONE.isCancelled());
+    }
+
+    /**
+     * Closing a token releases its deadline without cancelling it.
+     */
+    @Test
+    public void testCloseReleasesDeadline() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        try (CancellationToken token = CancellationToken.withTimeout(Duration.ofMillis(50))) {
+            token.onCancel(cancelled::countDown);
+        }
+        assertFalse(cancelled.await(200, TimeUnit.MILLISECONDS));
+
+        CancellationToken token = CancellationToken.withTimeout(Duration.ofHours(1));
+        token.close();
+        assertFalse(token.isCancelled());
+        token.cancel();
+        assertTrue(token.isCancelled());
+        CancellationToken.NONE.close();
+    }
+}
@@ -0,0 +1,74 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class FastJpegEncoderTest extends TestBase {
+
+    /**
+     * Test that tiles decode to (nearly) the same pixels as the ImageIO encoding at the same quality, including
+     * partial MCUs and sub images, and that reusing the encoder gives the same output.
+     */
+    @Test
+    public void testMatchesImageIO() throws Exception {
+        BufferedImage source = ImageIO.read(getImageFile("1024x576.jpg"));
+        BufferedImage bgr = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics g = bgr.getGraphics();
+        g.drawImage(source, 0, 0, null);
+        g.dispose();
+
+        FastJpegEncoder encoder = new FastJpegEncoder(0.75f);
+        for (BufferedImage tile : new BufferedImage[] { bgr.getSubimage(256, 256, 256, 256), bgr.getSubimage(333, 101, 100, 37), bgr }) {
+            assertTrue(FastJpegEncoder.canEncode(tile));
+
+            ByteArrayOutputStream fast = new ByteArrayOutputStream();
+            encoder.write(tile, fast);
+            ByteArrayOutputStream again = new ByteArrayOutputStream();
+            encoder.write(tile, again);
+            assertArrayEquals(fast.toByteArray(), again.toByteArray());
+
+            ByteArrayOutputStream imageIO = new ByteArrayOutputStream();
+            assertTrue(new ImageEncoder().write(tile, "jpeg", imageIO));
+
+            BufferedImage fastDecoded = ImageIO.read(new ByteArrayInputStream(fast.toByteArray()));
+            BufferedImage imageIODecoded = ImageIO.read(new ByteArrayInputStream(imageIO.toByteArray()));
+            assertEquals(tile.getWidth(), fastDecoded.getWidth());
+            assertEquals(tile.getHeight(), fastDecoded.getHeight());
+            assertTrue(meanDifference(fastDecoded, imageIODecoded) < 1.0);
+            assertTrue(meanDifference(fastDecoded, tile) < 1.5 * meanDifference(imageIODecoded, tile) + 0.5);
+            assertEquals(imageIO.size(), fast.size(), imageIO.size() * 0.1);
+        }
+    }
+
+    @Test
+    public void testCanEncode() {
+        assertTrue(FastJpegEncoder.canEncode(new BufferedImage(256, 256, BufferedImage.TYPE_3BYTE_BGR)));
+        assertFalse(FastJpegEncoder.canEncode(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB)));
+        assertFalse(FastJpegEncoder.canEncode(new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR)));
+    }
+
+    private static double meanDifference(BufferedImage a, BufferedImage b) {
+        long total = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int p = a.getRGB(x, y);
+                int q = b.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    total += Math.abs(((p >> shift) & 0xff) - ((q >> shift) & 0xff));
+                }
+            }
+        }
+        return total / (3.0 * a.getWidth() * a.getHeight());
+    }
+}
@@ -0,0 +1,95 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ImageEncoderTest extends TestBase {
+
+    /**
+     * Test that the default settings give the same output as ImageIO.write, each time the cached writer is reused.
+     */
+    @Test
+    public void testDefaultsMatchImageIO() throws Exception {
+        BufferedImage image = ImageIO.read(getImageFile("1024x576.jpg"));
+        ImageEncoder encoder = new ImageEncoder();
+        for (String format : new String[] { "jpeg", "JPG", "png" }) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            assertTrue(ImageIO.write(image, format, expected));
+            for (int i = 0; i < 2; i++) {
+                ByteArrayOutputStream actual = new ByteArrayOutputStream();
+                assertTrue(encoder.write(image, format, actual));
+                assertArrayEquals(format, expected.toByteArray(), actual.toByteArray());
+            }
+        }
+    }
+
+    /**
+     * Test that the JPEG and PNG settings are applied.
+     */
+    @Test
+    public void testEncodeSettings() throws Exception {
+        BufferedImage image = ImageIO.read(getImageFile("1024x576.jpg"));
+        ImageEncoder defaults = new ImageEncoder();
+
+        ImageEncoder fullChroma = new ImageEncoder();
+        fullChroma.setJpegChromaSubsampling(ImageEncoder.ChromaSubsampling.YUV444);
+        fullChroma.setJpegQuality(0.9f);
+        byte[] jpeg = encode(fullChroma, image, "jpeg");
+        Element sof = getJpegMarker(jpeg, "sof");
+        NodeList components = sof.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            assertEquals("1", ((Element) components.item(i)).getAttribute("HsamplingFactor"));
+            assertEquals("1", ((Element) components.item(i)).getAttribute("VsamplingFactor"));
+        }
+        assertTrue(jpeg.length > encode(defaults, image, "jpeg").length);
+
+        ImageEncoder progressive = new ImageEncoder();
+        progressive.setJpegProgressive(true);
+        progressive.setJpegOptimizeHuffman(true);
+        assertEquals("2", getJpegMarker(encode(progressive, image, "jpeg"), "sof").getAttribute("process"));
+
+        ImageEncoder stored = new ImageEncoder();
+        stored.setPngDeflateLevel(0);
+        ImageEncoder smallest = new ImageEncoder();
+        smallest.setPngDeflateLevel(9);
+        byte[] storedPng = encode(stored, image, "png");
+        byte[] smallestPng = encode(smallest, image, "png");
+        assertTrue(storedPng.length > smallestPng.length);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(storedPng));
+        assertEquals(image.getRGB(100, 100), decoded.getRGB(100, 100));
+    }
+
+    private static byte[] encode(ImageEncoder encoder, BufferedImage image, String format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(encoder.write(image, format, out));
+        return out.toByteArray();
+    }
+
+    private static Element getJpegMarker(byte[] jpeg, String marker) throws Exception {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+            try {
+                reader.setInput(iis);
+                IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(0).getAsTree("javax_imageio_jpeg_image_1.0");
+                return (Element) root.getElementsByTagName(marker).item(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
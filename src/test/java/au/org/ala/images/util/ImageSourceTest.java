@@ -0,0 +1,114 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ImageSourceTest extends TestBase {
+
+    /**
+     * Test that a ByteSource of known size that can only be read from the start is read about once from start to
+     * end, rather than once per window, and that an image decodes the same from it as from the file.
+     */
+    @Test
+    public void testByteSourceReadOnce() throws Exception {
+        byte[] bytes = Files.readAllBytes(getImageFile("P1010763.JPG").toPath());
+        AtomicLong consumed = new AtomicLong();
+        ImageSource source = ImageSource.of(streamOnlySource(bytes, consumed));
+
+        try (ImageInputStream iis = source.openImageInputStream()) {
+            byte[] read = new byte[bytes.length];
+            iis.readFully(read, 0, 100);
+            // skip forward, then read the rest in small pieces
+            iis.seek(5000);
+            for (int pos = 5000; pos < bytes.length; pos += 1000) {
+                iis.readFully(read, pos, Math.min(1000, bytes.length - pos));
+            }
+            iis.seek(100);
+            iis.readFully(read, 100, 4900);
+            assertArrayEquals(bytes, read);
+            iis.seek(bytes.length);
+            assertEquals(-1, iis.read());
+        }
+        println("consumed %d of %d bytes", consumed.get(), bytes.length);
+        // once to the end, and again up to the backwards seek
+        assertTrue(consumed.get() <= bytes.length + 5000 + 64 * 1024);
+
+        consumed.set(0);
+        BufferedImage expected = ImageIO.read(getImageFile("1024x576.jpg"));
+        byte[] small = Files.readAllBytes(getImageFile("1024x576.jpg").toPath());
+        try (ImageInputStream iis = ImageSource.of(streamOnlySource(small, consumed)).openImageInputStream()) {
+            ImageReader reader = ImageIO.getImageReaders(iis).next();
+            try {
+                reader.setInput(iis);
+                BufferedImage actual = reader.read(0);
+                int[] expectedPixels = expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0, expected.getWidth());
+                int[] actualPixels = actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0, actual.getWidth());
+                assertTrue(Arrays.equals(expectedPixels, actualPixels));
+            } finally {
+                reader.dispose();
+            }
+        }
+        assertTrue(consumed.get() < 2L * small.length);
+    }
+
+    /**
+     * A source of known size that can't seek: slices skip from the start, and skipped bytes count as read.
+     */
+    private static ByteSource streamOnlySource(byte[] bytes, AtomicLong consumed) {
+        return new ByteSource() {
+            @Override
+            public InputStream openStream() {
+                return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b >= 0) {
+                            consumed.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int count = super.read(b, off, len);
+                        if (count > 0) {
+                            consumed.addAndGet(count);
+                        }
+                        return count;
+                    }
+
+                    @Override
+                    public long skip(long n) throws IOException {
+                        long skipped = super.skip(n);
+                        consumed.addAndGet(skipped);
+                        return skipped;
+                    }
+                };
+            }
+
+            @Override
+            public Optional<Long> sizeIfKnown() {
+                return Optional.of((long) bytes.length);
+            }
+        };
+    }
+}
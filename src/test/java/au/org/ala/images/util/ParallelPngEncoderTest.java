@@ -0,0 +1,84 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ParallelPngEncoderTest extends TestBase {
+
+    /**
+     * Test that images split into many blocks round trip exactly, and that opaque alpha images are written as RGB.
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        BufferedImage source = ImageIO.read(getImageFile("1024x576.jpg"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            ParallelPngEncoder encoder = new ParallelPngEncoder(6, 64 * 1024, executor);
+            for (int type : new int[] { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB }) {
+                BufferedImage image = new BufferedImage(source.getWidth(), source.getHeight(), type);
+                Graphics g = image.getGraphics();
+                g.drawImage(source, 0, 0, null);
+                if (image.getColorModel().hasAlpha()) {
+                    // a translucent corner
+                    ((Graphics2D) g).setComposite(AlphaComposite.Src);
+                    g.setColor(new Color(10, 200, 30, 100));
+                    g.fillRect(0, 0, 100, 50);
+                }
+                g.dispose();
+
+                for (BufferedImage tile : new BufferedImage[] { image, image.getSubimage(300, 200, 300, 200) }) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    assertTrue(encoder.write(tile, out));
+                    BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+                    assertEquals(tile.getWidth(), decoded.getWidth());
+                    assertEquals(tile.getHeight(), decoded.getHeight());
+                    // only the full image has any translucent pixels
+                    assertEquals(tile.getColorModel().hasAlpha() && tile == image, decoded.getColorModel().hasAlpha());
+                    for (int y = 0; y < tile.getHeight(); y++) {
+                        for (int x = 0; x < tile.getWidth(); x++) {
+                            assertEquals(tile.getRGB(x, y), decoded.getRGB(x, y));
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that splitting into blocks costs little compression, and the encoder is used by ImageEncoder.
+     */
+    @Test
+    public void testCompression() throws Exception {
+        BufferedImage image = ImageIO.read(getImageFile("1024x576.jpg"));
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        assertTrue(new ParallelPngEncoder(6, Integer.MAX_VALUE, null).write(image, single));
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        assertTrue(new ParallelPngEncoder(6, 32 * 1024, null).write(image, blocks));
+        assertTrue(blocks.size() < single.size() * 1.02);
+
+        ImageEncoder imageEncoder = new ImageEncoder();
+        imageEncoder.setPngEncoder(new ParallelPngEncoder(6, 32 * 1024, null));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(imageEncoder.write(image, "png", out));
+        assertArrayEquals(blocks.toByteArray(), out.toByteArray());
+
+        assertFalse(ParallelPngEncoder.canEncode(new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_GRAY)));
+        ByteArrayOutputStream gray = new ByteArrayOutputStream();
+        assertTrue(imageEncoder.write(new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_GRAY), "png", gray));
+    }
+}
@@ -0,0 +1,126 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class PrefetchSchedulerTest extends TestBase {
+
+    @Test
+    public void testQueueOrderAndCancel() throws Exception {
+        List<String> rendered = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (PrefetchScheduler<byte[]> scheduler = new PrefetchScheduler<>(1024 * 1024, value -> value.length, 1, 4)) {
+            // hold the only prefetch thread while the queue is filled
+            Map<String, PrefetchScheduler.Renderer<byte[]>> blocker = new LinkedHashMap<>();
+            blocker.put("blocker", token -> {
+                started.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                return new byte[1];
+            });
+            scheduler.prefetch("a", blocker);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            scheduler.prefetch("a", candidates(rendered, "a1", "a2", "a3"));
+            scheduler.prefetch("b", candidates(rendered, "b1", "b2"));
+            scheduler.prefetch("c", candidates(rendered, "c1"));
+            // only the 4 newest are kept, and the b prefetches are cancelled
+            scheduler.cancel("b");
+
+            // a foreground request for a queued image doesn't wait for it
+            assertArrayEquals(new byte[] { 9 }, scheduler.get("a1", token -> new byte[] { 9 }));
+
+            release.countDown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (scheduler.getPrefetched() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            // newest first, a2 and a3 were dropped, and a1 was already cached
+            assertEquals(List.of("c1"), rendered);
+            assertEquals(2, scheduler.getPrefetched());
+            assertTrue(scheduler.isCached("c1"));
+            assertFalse(scheduler.isCached("a3"));
+        }
+    }
+
+    /**
+     * Cancelling a group aborts its prefetches that are rendering, unless a foreground request is waiting for one.
+     */
+    @Test
+    public void testCancelRendering() throws Exception {
+        try (PrefetchScheduler<byte[]> scheduler = new PrefetchScheduler<>(1024 * 1024, value -> value.length, 1, 4)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch aborted = new CountDownLatch(1);
+            Map<String, PrefetchScheduler.Renderer<byte[]>> slow = new LinkedHashMap<>();
+            slow.put("a1", token -> {
+                token.onCancel(aborted::countDown);
+                started.countDown();
+                Uninterruptibles.awaitUninterruptibly(aborted, 10, TimeUnit.SECONDS);
+                return new byte[] { 1 };
+            });
+            scheduler.prefetch("a", slow);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            scheduler.cancel("a");
+            assertTrue(aborted.await(10, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            assertFalse(scheduler.isCached("a1"));
+            assertEquals(0, scheduler.getPrefetched());
+
+            CountDownLatch joinedStarted = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Map<String, PrefetchScheduler.Renderer<byte[]>> joined = new LinkedHashMap<>();
+            joined.put("b1", token -> {
+                joinedStarted.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                return new byte[] { 2 };
+            });
+            scheduler.prefetch("b", joined);
+            assertTrue(joinedStarted.await(10, TimeUnit.SECONDS));
+
+            List<byte[]> results = new CopyOnWriteArrayList<>();
+            Thread foreground = new Thread(() -> {
+                try {
+                    results.add(scheduler.get("b1", token -> new byte[] { 3 }));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            foreground.start();
+            // wait for the foreground request to be waiting on the prefetch
+            while (foreground.getState() != Thread.State.WAITING && foreground.isAlive()) {
+                Thread.sleep(5);
+            }
+            scheduler.cancel("b");
+            release.countDown();
+            foreground.join(10000);
+            assertEquals(1, results.size());
+            assertArrayEquals(new byte[] { 2 }, results.get(0));
+            assertTrue(scheduler.isCached("b1"));
+        }
+    }
+
+    private Map<String, PrefetchScheduler.Renderer<byte[]>> candidates(List<String> rendered, String... keys) {
+        Map<String, PrefetchScheduler.Renderer<byte[]>> candidates = new LinkedHashMap<>();
+        for (String key : keys) {
+            candidates.put(key, token -> {
+                rendered.add(key);
+                return new byte[] { 1 };
+            });
+        }
+        return candidates;
+    }
+}
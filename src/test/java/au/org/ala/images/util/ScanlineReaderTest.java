@@ -0,0 +1,120 @@
+package au.org.ala.images.util;
+
+import au.org.ala.images.TestBase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class ScanlineReaderTest extends TestBase {
+
+    /**
+     * Test that the bands of a single pass decode have the same pixels as decoding the whole image, with and
+     * without subsampling and when the image is decoded in segments.
+     */
+    @Test
+    public void testBandsMatchWholeImage() throws Exception {
+        BufferedImage image = new BufferedImage(1000, 777, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.RED, 1000, 777, Color.BLUE));
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.setColor(Color.GREEN);
+        g.fillOval(100, 100, 600, 500);
+        g.dispose();
+
+        BufferedImagePool pool = new BufferedImagePool(2);
+        for (String format : new String[] { "jpeg", "png" }) {
+            File file = Files.createTempFile("scanline-reader", "." + format).toFile();
+            try {
+                ImageIO.write(image, format, file);
+                for (int subsample : new int[] { 1, 3 }) {
+                    for (long maxSegmentSamples : new long[] { Integer.MAX_VALUE - 1, 1000L * 3 * 50 }) {
+                        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+                            ImageReader reader = DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(ImageIO.getImageReaders(iis));
+                            reader.setInput(iis, false, false);
+                            try {
+                                assertTrue(format, ScanlineReader.canStream(reader));
+                                ImageReadParam params = reader.getDefaultReadParam();
+                                params.setSourceSubsampling(subsample, subsample, 0, 0);
+                                BufferedImage expected = reader.read(0, params);
+
+                                // a partial band at the top, then bands of 100 source rows
+                                int decodedHeight = expected.getHeight();
+                                int bandRows = 100 / subsample;
+                                int[] bandHeights = new int[(decodedHeight + bandRows - 1) / bandRows];
+                                Arrays.fill(bandHeights, bandRows);
+                                bandHeights[0] = decodedHeight - (bandHeights.length - 1) * bandRows;
+
+                                List<Integer> tops = new ArrayList<>();
+                                ScanlineReader.read(reader, params, bandHeights, pool, (band, y) -> {
+                                    assertEquals(expected.getWidth(), band.getWidth());
+                                    assertEquals(bandHeights[tops.size()], band.getHeight());
+                                    tops.add(y);
+                                    for (int row = 0; row < band.getHeight(); row++) {
+                                        for (int x = 0; x < band.getWidth(); x += 7) {
+                                            assertEquals(format + " " + x + "," + (y + row), expected.getRGB(x, y + row), band.getRGB(x, row));
+                                        }
+                                    }
+                                }, maxSegmentSamples);
+                                assertEquals(bandHeights.length, tops.size());
+                                assertEquals(0, (int) tops.get(0));
+                            } finally {
+                                reader.dispose();
+                            }
+                        }
+                    }
+                }
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Test that progressive JPEGs, which write every row once per scan, are not streamed.
+     */
+    @Test
+    public void testProgressiveNotStreamed() throws Exception {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        writeParam.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            ImageReader reader = DefaultImageReaderSelectionStrategy.INSTANCE.selectImageReader(ImageIO.getImageReaders(iis));
+            reader.setInput(iis, false, false);
+            try {
+                assertFalse(ScanlineReader.canStream(reader));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}